@@ -0,0 +1,67 @@
+package client;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * decoding of one line of the line protocol into the reused ServerEvent, from a stream which repeats the line forever
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TextDecodeBenchmark {
+
+    @Param({"Message: alice: 3: hello there, how is everyone doing today?", "OnlineCount: 42"})
+    public String line;
+
+    private TextClientProtocol protocol;
+    private final ServerEvent event = new ServerEvent();
+
+    @Setup
+    public void setUp() {
+        byte[] bytes = (line + "\n").getBytes(StandardCharsets.UTF_8);
+        InputStream repeating = new InputStream() {
+            private int position = 0;
+
+            @Override
+            public int read() {
+                byte b = bytes[position];
+                position = (position + 1) % bytes.length;
+                return b & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) {
+                for (int i = 0; i < length; i++) {
+                    buffer[offset + i] = (byte) read();
+                }
+                return length;
+            }
+        };
+        protocol = new TextClientProtocol(repeating, new ByteArrayOutputStream());
+    }
+
+    @Benchmark
+    public ServerEvent read() throws IOException {
+        protocol.read(event);
+        return event;
+    }
+}
@@ -0,0 +1,41 @@
+package server;
+
+import java.io.IOException;
+import java.net.Socket;
+
+/**
+ * <p>A ChatServer for the benchmarks: bound to a free port but never accepting, with persistence, the periodic reports and the rate limits off.</p>
+ *
+ * <p>Its clients are handlers without a socket, registered through handlePayLoad() like real ones. Nothing writes their outbound
+ * queues, so the queues stay full and DROP_OLDEST makes every send cost one dequeue and one enqueue, like a queue drained by a writer</p>
+ */
+class BenchmarkServer implements AutoCloseable {
+    final ChatServer server;
+
+    BenchmarkServer() throws IOException {
+        ServerConfig config = new ServerConfig();
+        config.persistenceDir = "";
+        config.threadReportSeconds = 0;
+        config.writeReportSeconds = 0;
+        config.slowConsumerPolicy = SlowConsumerPolicy.DROP_OLDEST;
+        //the benchmarks send as fast as they can from one client
+        config.messageRate = 0;
+        config.messageByteRate = 0;
+        server = new ChatServer(0, config);
+    }
+
+    /**
+     * registers a client with /newClient, the username has to be unique and at most 10 characters
+     */
+    ChatServer.ConnectionHandler register(String username, WireCodec codec) {
+        ChatServer.ConnectionHandler handler = server.new ConnectionHandler(new Socket());
+        handler.codec = codec;
+        handler.handlePayLoad("/newClient " + username);
+        return handler;
+    }
+
+    @Override
+    public void close() {
+        server.close();
+    }
+}
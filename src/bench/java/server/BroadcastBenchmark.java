@@ -0,0 +1,72 @@
+package server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import utils.ResponseType;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Fan-out of one message or notice to every connection of the server, every other connection speaks the binary protocol.</p>
+ *
+ * <p>{@link #encodeMessagePerRecipient()} is the baseline: every handler encodes the message itself, like the server did
+ * before the frames were shared</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BroadcastBenchmark {
+
+    @Param({"10", "100", "1000", "10000"})
+    public int handlers;
+
+    private BenchmarkServer server;
+    private final List<ChatServer.ConnectionHandler> recipients = new ArrayList<>();
+
+    @Setup
+    public void setUp() throws IOException {
+        server = new BenchmarkServer();
+        for (int i = 0; i < handlers; i++) {
+            recipients.add(server.register("user" + i, i % 2 == 0 ? WireCodec.TEXT : WireCodec.BINARY));
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        server.close();
+        recipients.clear();
+    }
+
+    @Benchmark
+    public void broadcastMessage() {
+        server.server.broadcastExceptFor(codec -> codec.message("alice", 3, "hello there, how is everyone doing today?", 0), null);
+    }
+
+    @Benchmark
+    public void encodeMessagePerRecipient() {
+        for (ChatServer.ConnectionHandler handler : recipients) {
+            handler.sendFrame(handler.codec.message("alice", 3, "hello there, how is everyone doing today?", 0));
+        }
+    }
+
+    @Benchmark
+    public void broadcastNotice() {
+        server.server.broadcastExceptFor(ResponseType.NOTICE, "'alice' has joined the chat", null);
+    }
+}
@@ -0,0 +1,51 @@
+package server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * parsing and dispatching of one text line, the client is alone in the lobby so a /message is not fanned out
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HandlePayloadBenchmark {
+
+    @Param({"/message hello there, how is everyone doing today?", "/onlineCount", "/help", "/unknownCommand with a body"})
+    public String payload;
+
+    private BenchmarkServer server;
+    private ChatServer.ConnectionHandler handler;
+
+    @Setup
+    public void setUp() throws IOException {
+        server = new BenchmarkServer();
+        handler = server.register("alice", WireCodec.TEXT);
+    }
+
+    @TearDown
+    public void tearDown() {
+        server.close();
+    }
+
+    @Benchmark
+    public void handlePayLoad() {
+        handler.handlePayLoad(payload);
+    }
+}
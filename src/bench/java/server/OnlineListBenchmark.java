@@ -0,0 +1,63 @@
+package server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * the /onlineList response: encoded from the members of a room, and served from a {@link RosterSnapshot} like the server
+ * does between two membership changes
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OnlineListBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int members;
+
+    @Param({"text", "binary"})
+    public String protocol;
+
+    private Set<String> usernames;
+    private WireCodec codec;
+    private RosterSnapshot snapshot;
+
+    @Setup
+    public void setUp() {
+        ConcurrentHashMap<String, Boolean> room = new ConcurrentHashMap<>();
+        for (int i = 0; i < members; i++) {
+            room.put("user" + i, Boolean.TRUE);
+        }
+        usernames = room.keySet();
+        codec = protocol.equals("text") ? WireCodec.TEXT : WireCodec.BINARY;
+        snapshot = new RosterSnapshot(0, 0, new ArrayList<>(usernames), members);
+    }
+
+    @Benchmark
+    public ByteBuffer onlineList() {
+        return codec.onlineList(usernames, 1, members);
+    }
+
+    @Benchmark
+    public ByteBuffer cachedOnlineList() {
+        return snapshot.page(codec, 1);
+    }
+}
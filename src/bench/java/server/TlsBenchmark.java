@@ -0,0 +1,190 @@
+package server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import utils.Tls;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * <p>Connections per second over loopback: plain, TLS with a full handshake, and TLS resuming the session of the last connection.
+ * The server side goes through a {@link TlsAcceptor} like in the server. A full handshake is forced by invalidating the session
+ * after every connection.</p>
+ *
+ * <p>The write benchmarks send 64 KB chunks over one open connection to a reader which throws them away, the cost of TLS
+ * on the bulk throughput. The key store is generated with keytool in a temporary directory</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TlsBenchmark {
+    private static final String PASSWORD = "benchmark";
+    private static final int CHUNK = 64 * 1024;
+
+    private Path directory;
+    private TlsAcceptor acceptor;
+    private SSLContext clientContext;
+    private ServerSocket plainServer;
+    private ServerSocket tlsServer;
+
+    private Socket plainWriter;
+    private Socket tlsWriter;
+    private final byte[] chunk = new byte[CHUNK];
+
+    @Setup
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("tls-benchmark");
+        Path keyStore = directory.resolve("server.p12");
+        Path certificate = directory.resolve("server.pem");
+        Path trustStore = directory.resolve("trust.p12");
+        keytool("-genkeypair", "-alias", "chat", "-keyalg", "EC", "-groupname", "secp256r1", "-dname", "CN=localhost",
+                "-validity", "1", "-storetype", "PKCS12", "-keystore", keyStore.toString(), "-storepass", PASSWORD);
+        keytool("-exportcert", "-alias", "chat", "-keystore", keyStore.toString(), "-storepass", PASSWORD, "-rfc", "-file", certificate.toString());
+        keytool("-importcert", "-noprompt", "-alias", "chat", "-file", certificate.toString(), "-storetype", "PKCS12",
+                "-keystore", trustStore.toString(), "-storepass", PASSWORD);
+
+        acceptor = new TlsAcceptor(Tls.serverContext(keyStore, PASSWORD.toCharArray()), 2, 256, 5000, 20_000, 3600);
+        clientContext = Tls.clientContext(trustStore, PASSWORD.toCharArray());
+
+        plainServer = new ServerSocket(0, 256, InetAddress.getLoopbackAddress());
+        tlsServer = new ServerSocket(0, 256, InetAddress.getLoopbackAddress());
+        acceptLoop(plainServer, this::serve);
+        acceptLoop(tlsServer, socket -> acceptor.accept(socket, this::serve));
+
+        plainWriter = new Socket(InetAddress.getLoopbackAddress(), plainServer.getLocalPort());
+        plainWriter.getInputStream().read();
+        tlsWriter = tlsSocket();
+        tlsWriter.getInputStream().read();
+    }
+
+    private static void keytool(String... arguments) throws IOException, InterruptedException {
+        String[] command = new String[arguments.length + 1];
+        command[0] = Path.of(System.getProperty("java.home"), "bin", "keytool").toString();
+        System.arraycopy(arguments, 0, command, 1, arguments.length);
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).redirectOutput(ProcessBuilder.Redirect.DISCARD).start();
+        if (process.waitFor() != 0) {
+            throw new IOException("keytool " + arguments[0] + " failed");
+        }
+    }
+
+    private static void acceptLoop(ServerSocket server, Consumer<Socket> accepted) {
+        daemon(() -> {
+            try {
+                while (true) {
+                    accepted.accept(server.accept());
+                }
+            } catch (IOException e) {
+                //closed by tearDown()
+            }
+        });
+    }
+
+    /**
+     * sends one byte, which tells the client the connection is up, then reads until the client closes
+     */
+    private void serve(Socket socket) {
+        daemon(() -> {
+            try (Socket connection = socket) {
+                connection.setTcpNoDelay(true);
+                connection.getOutputStream().write(1);
+                connection.getOutputStream().flush();
+                InputStream input = connection.getInputStream();
+                byte[] buffer = new byte[CHUNK];
+                while (input.read(buffer) != -1) {
+                    //thrown away
+                }
+            } catch (IOException e) {
+                //the client went away
+            }
+        });
+    }
+
+    private static void daemon(Runnable task) {
+        Thread thread = new Thread(task);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        plainWriter.close();
+        tlsWriter.close();
+        plainServer.close();
+        tlsServer.close();
+        acceptor.close();
+        try (var files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+
+    private SSLSocket tlsSocket() throws IOException {
+        SSLSocket socket = (SSLSocket) clientContext.getSocketFactory().createSocket(InetAddress.getLoopbackAddress(), tlsServer.getLocalPort());
+        socket.setTcpNoDelay(true);
+        return socket;
+    }
+
+    @Benchmark
+    public int plainConnect() throws IOException {
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), plainServer.getLocalPort())) {
+            socket.setTcpNoDelay(true);
+            return socket.getInputStream().read();
+        }
+    }
+
+    @Benchmark
+    public int fullHandshake() throws IOException {
+        try (SSLSocket socket = tlsSocket()) {
+            int read = socket.getInputStream().read();
+            //an invalidated session is never resumed
+            socket.getSession().invalidate();
+            return read;
+        }
+    }
+
+    @Benchmark
+    public int resumedHandshake() throws IOException {
+        try (SSLSocket socket = tlsSocket()) {
+            return socket.getInputStream().read();
+        }
+    }
+
+    @Benchmark
+    public void plainWrite64k() throws IOException {
+        OutputStream output = plainWriter.getOutputStream();
+        output.write(chunk);
+        output.flush();
+    }
+
+    @Benchmark
+    public void tlsWrite64k() throws IOException {
+        OutputStream output = tlsWriter.getOutputStream();
+        output.write(chunk);
+        output.flush();
+    }
+}
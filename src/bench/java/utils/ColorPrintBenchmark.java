@@ -0,0 +1,107 @@
+package utils;
+
+import org.jline.reader.LineReader;
+import org.jline.reader.LineReaderBuilder;
+import org.jline.terminal.Terminal;
+import org.jline.terminal.impl.DumbTerminal;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.StringJoiner;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * rendering of the chat messages into a dumb terminal which throws the output away, the long messages are word wrapped.
+ * The burst benchmarks print BURST messages line by line, and batched into one printAbove() like client.RenderQueue does.
+ * The format benchmarks only build the lines of a burst, without the terminal
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ColorPrintBenchmark {
+
+    @Param({"20", "200"})
+    public int messageLength;
+
+    private Terminal terminal;
+    private static final int BURST = 20;
+
+    private LineReader reader;
+    private Consumer<String> out;
+    private String message;
+
+    @Setup
+    public void setUp() throws IOException {
+        terminal = new DumbTerminal(new ByteArrayInputStream(new byte[0]), OutputStream.nullOutputStream());
+        reader = LineReaderBuilder.builder().terminal(terminal).build();
+        out = reader::printAbove;
+        StringBuilder words = new StringBuilder();
+        while (words.length() < messageLength) {
+            words.append("word").append(words.length() % 7).append(' ');
+        }
+        message = words.substring(0, messageLength).trim();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        terminal.close();
+    }
+
+    @Benchmark
+    public void printUserMessage() {
+        ColorPrint.printUserMessage(out, "alice", CustomColors.BRIGHT_GREEN, message);
+    }
+
+    @Benchmark
+    public void printUserMessageBurst() {
+        for (int i = 0; i < BURST; i++) {
+            ColorPrint.printUserMessage(out, "alice", CustomColors.BRIGHT_GREEN, message);
+        }
+    }
+
+    @Benchmark
+    public void printUserMessageBurstBatched() {
+        StringJoiner frame = new StringJoiner("\n");
+        for (int i = 0; i < BURST; i++) {
+            ColorPrint.printUserMessage(frame::add, "alice", CustomColors.BRIGHT_GREEN, message);
+        }
+        reader.printAbove(frame.toString());
+    }
+
+    @Benchmark
+    public void printMyMessage() {
+        ColorPrint.printMyMessage(out, message);
+    }
+
+    @Benchmark
+    public void formatUserMessageBurst(Blackhole blackhole) {
+        for (int i = 0; i < BURST; i++) {
+            ColorPrint.printUserMessage(blackhole::consume, "alice", CustomColors.BRIGHT_GREEN, message);
+        }
+    }
+
+    @Benchmark
+    public void formatMyMessageBurst(Blackhole blackhole) {
+        for (int i = 0; i < BURST; i++) {
+            ColorPrint.printMyMessage(blackhole::consume, message);
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package client;
+
+import utils.BinaryProtocol;
+import utils.BinaryProtocol.FrameBuilder;
+import utils.RequestType;
+import utils.ResponseType;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * <p>Length-prefixed frames with typed fields, see {@link BinaryProtocol}.</p>
+ *
+ * <p>With compression the /newClient frame offers deflate, and from then on COMPRESSED frames are inflated with one
+ * {@link Inflater} kept for the whole connection and decoded like any other frame. With resume it also offers resume,
+ * and the server answers with a RESUME_TOKEN frame. /resume offers the same features as /newClient.</p>
+ *
+ * <p>Both always offer heartbeats: the server then sends a PING when the connection went quiet and closes it when not even
+ * a PONG came back within its idle timeout, so whoever reads the events has to answer PING with /pong</p>
+ */
+class BinaryClientProtocol implements ClientProtocol {
+    private final DataInputStream serverReader;
+    private final OutputStream serverWriter;
+
+    //null without compression
+    private final Inflater inflater;
+    private final boolean resume;
+    //the frame the last COMPRESSED frame inflated to, reused
+    private byte[] inflated = new byte[4096];
+
+    BinaryClientProtocol(InputStream input, OutputStream output) {
+        this(input, output, false);
+    }
+
+    BinaryClientProtocol(InputStream input, OutputStream output, boolean compression) {
+        this(input, output, compression, false);
+    }
+
+    BinaryClientProtocol(InputStream input, OutputStream output, boolean compression, boolean resume) {
+        this.serverReader = new DataInputStream(input);
+        this.serverWriter = output;
+        this.inflater = compression ? new Inflater(true) : null;
+        this.resume = resume;
+    }
+
+    @Override
+    public String name() {
+        return "binary";
+    }
+
+    @Override
+    public void send(String commandLine) throws IOException {
+        //same split as the server does for the line protocol: command, space, body
+        commandLine = commandLine.trim();
+        int spaceIndex = commandLine.indexOf(" ");
+        String command = spaceIndex == -1 ? commandLine : commandLine.substring(0, spaceIndex);
+        String body = spaceIndex == -1 ? "" : commandLine.substring(spaceIndex + 1).trim();
+
+        RequestType type = RequestType.fromCommand(command);
+        FrameBuilder frame = new FrameBuilder(type.opcode, body.length() + 8);
+        if (type == RequestType.ADMIN_LOGIN) {
+            //without '--' the frame has no fields and the server answers that credentials are required
+            int separator = body.indexOf("--");
+            if (separator != -1) {
+                frame.putString(body.substring(0, separator)).putString(body.substring(separator + 2));
+            }
+        } else if (type == RequestType.NEW_CLIENT || type == RequestType.RESUME) {
+            frame.putString(body);
+            if (inflater != null) {
+                frame.putString(BinaryProtocol.COMPRESSION_DEFLATE);
+            }
+            if (resume) {
+                frame.putString(BinaryProtocol.RESUME);
+            }
+            frame.putString(BinaryProtocol.HEARTBEAT);
+        } else if (!body.isEmpty()) {
+            frame.putString(body);
+        }
+
+        ByteBuffer encoded = frame.build();
+        synchronized (serverWriter) {
+            serverWriter.write(encoded.array(), 0, encoded.limit());
+            serverWriter.flush();
+        }
+    }
+
+    @Override
+    public boolean read(ServerEvent event) throws IOException {
+        int length;
+        try {
+            length = serverReader.readInt();
+        } catch (EOFException e) {
+            return false;
+        }
+        if (length <= 0 || length > BinaryProtocol.MAX_FRAME_LENGTH) {
+            throw new IOException("Server sent a frame of " + length + " bytes");
+        }
+        byte[] bytes = new byte[length];
+        serverReader.readFully(bytes);
+        ByteBuffer frame = ByteBuffer.wrap(bytes);
+
+        ResponseType type = ResponseType.fromOpcode(frame.get());
+        if (type == ResponseType.COMPRESSED && inflater != null) {
+            frame = inflate(frame);
+            type = ResponseType.fromOpcode(frame.get());
+        }
+        if (type == null || type == ResponseType.COMPRESSED) {
+            event.reset(ResponseType.NOTICE);
+            event.text = "Unknown frame from the server";
+            return true;
+        }
+
+        event.reset(type);
+        switch (type) {
+            case MESSAGE: {
+                event.username = BinaryProtocol.getString(frame);
+                event.usernameColor = frame.getInt();
+                event.text = BinaryProtocol.getString(frame);
+                //servers from before the sequences end the frame here
+                event.sequence = frame.remaining() >= 8 ? frame.getLong() : -1;
+                break;
+            }
+            case USERNAME_CHANGED: {
+                event.username = BinaryProtocol.getString(frame);
+                event.text = BinaryProtocol.getString(frame);
+                break;
+            }
+            case ONLINE_COUNT: {
+                event.count = frame.getInt();
+                break;
+            }
+            case ONLINE_LIST: {
+                String[] usernames = new String[frame.getInt()];
+                for (int i = 0; i < usernames.length; i++) {
+                    usernames[i] = BinaryProtocol.getString(frame);
+                }
+                //a page of a longer list ends with the position of its first username and the length of the whole list
+                int first = 1;
+                int total = usernames.length;
+                if (frame.hasRemaining()) {
+                    first = frame.getInt();
+                    total = frame.getInt();
+                }
+                boolean paged = first > 1 || usernames.length < total;
+                String[] items = new String[usernames.length + (paged ? 1 : 0)];
+                for (int i = 0; i < usernames.length; i++) {
+                    //the line protocol numbers the online list on the server, here the client does it
+                    items[i] = (first + i) + ". " + usernames[i];
+                }
+                if (paged) {
+                    items[usernames.length] = "showing " + first + "-" + (first + usernames.length - 1) + " of " + total
+                            + ", '/onlineList <page>' for the others";
+                }
+                event.items = items;
+                break;
+            }
+            case HELP:
+            case ROOM_LIST:
+            case STATS: {
+                String[] items = new String[frame.getInt()];
+                for (int i = 0; i < items.length; i++) {
+                    items[i] = BinaryProtocol.getString(frame);
+                }
+                event.items = items;
+                break;
+            }
+            case HISTORY: {
+                int count = frame.getInt();
+                event.usernames = new String[count];
+                event.usernameColors = new int[count];
+                event.items = new String[count];
+                for (int i = 0; i < count; i++) {
+                    event.usernames[i] = BinaryProtocol.getString(frame);
+                    event.usernameColors[i] = frame.getInt();
+                    event.items[i] = BinaryProtocol.getString(frame);
+                }
+                if (frame.remaining() >= 8L * count) {
+                    event.sequences = new long[count];
+                    for (int i = 0; i < count; i++) {
+                        event.sequences[i] = frame.getLong();
+                    }
+                }
+                break;
+            }
+            case RESUME_TOKEN: {
+                event.text = BinaryProtocol.getString(frame);
+                event.sequence = frame.getLong();
+                break;
+            }
+            case THROTTLED: {
+                event.text = BinaryProtocol.getString(frame);
+                event.retryAfterMillis = frame.getLong();
+                break;
+            }
+            case WHISPER: {
+                event.text = BinaryProtocol.getString(frame);
+                event.username = BinaryProtocol.getString(frame);
+                event.usernameColor = frame.getInt();
+                break;
+            }
+            default: {
+                event.text = frame.hasRemaining() ? BinaryProtocol.getString(frame) : "";
+            }
+        }
+        return true;
+    }
+
+    /**
+     * inflates the rest of a COMPRESSED frame, returns the frame it carried positioned at its opcode
+     */
+    private ByteBuffer inflate(ByteBuffer compressed) throws IOException {
+        inflater.setInput(compressed);
+        int length = 0;
+        try {
+            do {
+                if (length == inflated.length) {
+                    if (inflated.length >= BinaryProtocol.LENGTH_FIELD + BinaryProtocol.MAX_FRAME_LENGTH) {
+                        throw new IOException("Server sent a compressed frame of more than " + BinaryProtocol.MAX_FRAME_LENGTH + " bytes");
+                    }
+                    inflated = Arrays.copyOf(inflated, Math.min(inflated.length * 2, BinaryProtocol.LENGTH_FIELD + BinaryProtocol.MAX_FRAME_LENGTH));
+                }
+                length += inflater.inflate(inflated, length, inflated.length - length);
+                if (inflater.finished() || inflater.needsDictionary()) {
+                    throw new IOException("Server ended the compressed stream");
+                }
+                //the sync flush at the end of every COMPRESSED frame lets all of it out once the input is used up
+            } while (!inflater.needsInput() || length == inflated.length);
+        } catch (DataFormatException e) {
+            throw new IOException("Server sent a corrupt compressed frame: " + e.getMessage());
+        }
+
+        ByteBuffer frame = ByteBuffer.wrap(inflated, 0, length);
+        int frameLength = length < BinaryProtocol.LENGTH_FIELD ? -1 : frame.getInt();
+        if (frameLength <= 0 || frameLength != frame.remaining()) {
+            throw new IOException("Server sent a compressed frame which does not hold one frame");
+        }
+        return frame.slice();
+    }
+}
@@ -10,12 +10,13 @@ import org.jline.utils.AttributedStyle;
 import org.jline.utils.InfoCmp;
 import utils.ColorPrint;
 import utils.CustomColors;
+import utils.ResponseType;
 
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.PrintWriter;
 import java.net.Socket;
+import java.nio.file.Path;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
@@ -31,15 +32,45 @@ public class ChatClient {
     ExecutorService executorService;
     private volatile String myUsername;
 
+    //-Dchat.client.protocol=text skips the binary protocol negotiation
+    private final boolean preferBinary = !"text".equalsIgnoreCase(System.getProperty("chat.client.protocol", "binary"));
+
+    //-Dchat.client.compression=none sends everything uncompressed, by default the client offers deflate at /newClient
+    private final boolean compression = !"none".equalsIgnoreCase(System.getProperty("chat.client.compression", "deflate"));
+
+    //-Dchat.client.tls=true connects over TLS, -Dchat.client.tls.trustStore is needed unless the server certificate is signed by a CA the JVM trusts
+    private final boolean tls = Boolean.getBoolean("chat.client.tls");
+
+    //-Dchat.client.resume=false gives up when the connection drops, by default the client reconnects and resumes its session
+    private final boolean resumable = !"false".equalsIgnoreCase(System.getProperty("chat.client.resume", "true"));
+
+    //-Dchat.client.reconnectAttempts: how many times the client tries to reconnect before it gives up
+    private final int reconnectAttempts = Math.max(1, Integer.getInteger("chat.client.reconnectAttempts", 5));
+
+    //-Dchat.client.refreshRate: how many times a second the output is printed at most
+    private final int refreshRate = Math.max(1, Integer.getInteger("chat.client.refreshRate", 30));
+
 
     Terminal terminal;
     LineReader terminalReader;
 
+    //replaced when the client reconnects
+    private volatile Socket clientSocket;
+    private volatile ClientProtocol protocol;
+    //one per client, so a TLS reconnect resumes the TLS session as well
+    private ClientSockets sockets;
+    //only used by the server listener
+    private final ResumeState resume = new ResumeState();
+    //System.nanoTime() until which the server asked to hold the messages back, set by the listener on a THROTTLED frame
+    private volatile long holdMessagesUntil = System.nanoTime();
+    //System.nanoTime() of the last /ping typed, the PONG shows the round trip
+    private volatile long pingSentAt;
+
     public ChatClient(String hostname, int port) {
         this.hostname = hostname;
         this.port = port;
         try {
-            Completer completer = new StringsCompleter("/disconnect", "/changeUsername", "/onlineCount", "/onlineList", "/help");
+            Completer completer = new StringsCompleter("/disconnect", "/changeUsername", "/onlineCount", "/onlineList", "/help", "/history", "/join", "/leave", "/rooms", "/ping", "/whisper");
             this.terminal = TerminalBuilder.builder().system(true).build();
             this.terminalReader = LineReaderBuilder.builder().terminal(terminal).completer(completer).build();
         } catch (IOException e) {
@@ -50,7 +81,7 @@ public class ChatClient {
 
     public static void main(String[] args) {
         System.setProperty("java.util.logging.SimpleFormatter.format", "%4$s: %5$s%n");
-        ChatClient client = new ChatClient("localhost", 8082);
+        ChatClient client = new ChatClient(System.getProperty("chat.client.host", "localhost"), Integer.getInteger("chat.client.port", 8082));
         client.runClient();
     }
 
@@ -61,66 +92,51 @@ public class ChatClient {
 
         executorService = Executors.newFixedThreadPool(2);
         try (
-                Socket clientSocket = new Socket(hostname, port);
-                PrintWriter serverWriter = new PrintWriter(clientSocket.getOutputStream(), true);
-                BufferedReader serverReader = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
                 BufferedReader consoleBufferedReader = new BufferedReader(new InputStreamReader(System.in))) {
 
+            sockets = clientSockets();
+            clientSocket = sockets.open(hostname, port);
+            protocol = ClientProtocol.negotiate(clientSocket, preferBinary, compression, resumable);
+            logger.info("Connected using the " + protocol.name() + " protocol" + (tls ? " over TLS" : ""));
+
+            handleInitialAuthentication(protocol);
 
-            handleInitialAuthentication(serverWriter, serverReader);
+            //from here on the listener and the console reader only queue their output, the render thread prints it
+            RenderQueue render = new RenderQueue(terminalReader, refreshRate);
 
 
             Runnable serverListenerTask = () -> {
-                String response;
+                //reused for every frame
+                ServerEvent event = new ServerEvent();
                 try {
                     while (running) {
-                        response = serverReader.readLine();
-                        if(response == null) {
+                        if(!read(event)) {
+                            if (running && reconnect(render)) {
+                                continue;
+                            }
                             break;
                         }
-                        String typeOfResponse;
-                        String responseBody;
-
-                        response = response.trim();
 
                         //if the server issues disconnect command
-                        if(response.equalsIgnoreCase("disconnect"))
+                        if(event.type == ResponseType.CLOSE)
                             break;
 
-                        //when the response does not contain any 'type'
-                        if(!response.contains(":")) {
-                            ColorPrint.printAtCenterWithBox(terminalReader, response, CustomColors.ORANGE /*orange color*/);
-                            continue;
-                        }
-
-
-                        //extracting the type of response and response body
-                        int colonIndex = response.indexOf(":");
-                        typeOfResponse = response.substring(0, colonIndex).trim();
-                        responseBody = response.substring(colonIndex +1).trim();
-
-
-                        switch (typeOfResponse) {
-                            case "Error":
-                            case "Disconnect": {
-                                ColorPrint.printAtCenterWithBox(terminalReader, responseBody, AttributedStyle.RED);
+                        switch (event.type) {
+                            case ERROR:
+                            case DISCONNECT: {
+                                ColorPrint.printAtCenterWithBox(render, event.text, AttributedStyle.RED);
                                 break;
                             }
-                            case "Message": {
-                                String username = responseBody.split(":")[0].trim();
-                                int usernameColor = Integer.parseInt(responseBody.split(":")[1].trim());
-
-                                String actualmessage = responseBody.split(":")[2].trim();
-
-                                ColorPrint.printUserMessage(terminalReader, username, usernameColor ,actualmessage);
-
+                            case MESSAGE: {
+                                if (resume.onMessage(event.sequence)) {
+                                    ColorPrint.printUserMessage(render, event.username, event.usernameColor, event.text);
+                                }
                                 break;
                             }
 
-                            case "UsernameChanged": {
-                                setMyUsername(responseBody.split(":")[0].trim());
-                                String actualMessage = responseBody.split(":")[1].trim();
-                                ColorPrint.printAtCenterWithBox(this.terminalReader, actualMessage, CustomColors.BRIGHT_YELLOW);
+                            case USERNAME_CHANGED: {
+                                setMyUsername(event.username);
+                                ColorPrint.printAtCenterWithBox(render, event.text, CustomColors.BRIGHT_YELLOW);
 
                                 //terminalReaderTask is waiting whether the change is success or failure to display the messge prompt.
                                 synchronized (lock) {
@@ -129,43 +145,84 @@ public class ChatClient {
                                 break;
                             }
 
-                            case "UsernameChangeFailed": {
-                                ColorPrint.printAtCenterWithBox(terminalReader, responseBody, AttributedStyle.RED);
+                            case USERNAME_CHANGE_FAILED: {
+                                ColorPrint.printAtCenterWithBox(render, event.text, AttributedStyle.RED);
                                 synchronized (lock) {
                                     lock.notifyAll();
                                 }
                                 break;
                             }
 
-                            case "OnlineCount": {
-                                if(responseBody.equals("1")) {
-                                    ColorPrint.printAtCenterWithBox(terminalReader, "Only you are in the chat room", CustomColors.ORANGE);
+                            case ONLINE_COUNT: {
+                                if(event.count == 1) {
+                                    ColorPrint.printAtCenterWithBox(render, "Only you are in the chat room", CustomColors.ORANGE);
                                 } else {
-                                    ColorPrint.printAtCenterWithBox(terminalReader, responseBody + " people are in the chat room", CustomColors.ORANGE);
+                                    ColorPrint.printAtCenterWithBox(render, event.count + " people are in the chat room", CustomColors.ORANGE);
                                 }
                                 break;
                             }
 
-                            case "OnlineList": {
-                               ColorPrint.printList(terminalReader, responseBody, CustomColors.BRIGHT_GREEN);
+                            case ONLINE_LIST: {
+                               ColorPrint.printList(render, event.items, CustomColors.BRIGHT_GREEN);
                                break;
                            }
 
-                            case "Help": {
-                                ColorPrint.printList(terminalReader, responseBody, CustomColors.BRIGHT_MAGENTA);
+                            case HELP: {
+                                ColorPrint.printList(render, event.items, CustomColors.BRIGHT_MAGENTA);
+                                break;
+                            }
+
+                            case ROOM_LIST:
+                            case STATS: {
+                                ColorPrint.printList(render, event.items, CustomColors.BRIGHT_CYAN);
+                                break;
+                            }
+
+                            case HISTORY: {
+                                if (resume.onHistory(event) > 0) {
+                                    ColorPrint.printHistory(render, event.usernames, event.usernameColors, event.items);
+                                }
+                                break;
+                            }
+
+                            case RESUME_TOKEN: {
+                                resume.onToken(event.text, event.sequence);
+                                break;
+                            }
+
+                            case THROTTLED: {
+                                holdMessagesUntil = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(event.retryAfterMillis);
+                                ColorPrint.printAtCenterWithBox(render, event.text, AttributedStyle.RED);
+                                break;
+                            }
+
+                            case WHISPER: {
+                                ColorPrint.printWhisper(render, event.username, event.usernameColor, event.text);
+                                break;
+                            }
+
+                            case PING: {
+                                //the server checks that the connection is alive, it closes it when no answer comes
+                                send("/pong", render);
+                                break;
+                            }
+
+                            case PONG: {
+                                long roundTrip = System.nanoTime() - pingSentAt;
+                                ColorPrint.printAtCenterWithBox(render, "Pong: " + TimeUnit.NANOSECONDS.toMillis(roundTrip) + "ms", CustomColors.ORANGE);
                                 break;
                             }
 
 
                            default: {
-                                ColorPrint.printAtCenterWithBox(terminalReader, response, CustomColors.ORANGE /*orange color*/);
+                                ColorPrint.printAtCenterWithBox(render, event.text, CustomColors.ORANGE /*orange color*/);
                             }
                         }
                     }
-                } catch (IOException ex) {
-                    logger.warning("IOException from Server Reader: cnnection Lost");
                 } finally {
                     running = false;
+                    closeQuietly(clientSocket);
+                    render.close();
                     try {
                         terminal.close();
                     } catch (IOException e) {
@@ -201,18 +258,32 @@ public class ChatClient {
 
                         if (message != null) {
                             if (!message.startsWith("/")) {
-                                serverWriter.println("/message " + message);
-                                ColorPrint.printMyMessage(this.terminalReader, message);
+                                waitWhileThrottled();
+                                if (send("/message " + message, render)) {
+                                    ColorPrint.printMyMessage(render, message);
+                                }
+                            } else if (message.startsWith("/whisper ")) {
+                                waitWhileThrottled();
+                                //shown right away like a message, an offline recipient is answered with an Error
+                                String[] whisper = message.substring("/whisper ".length()).trim().split(" ", 2);
+                                if (send(message, render) && whisper.length == 2 && !whisper[1].isBlank()) {
+                                    ColorPrint.printMyWhisper(render, whisper[0], whisper[1].trim());
+                                }
                             } else if(message.contains("/changeUsername")) {
-                                serverWriter.println(message);
-                                synchronized (lock) {
-                                    lock.wait();
-                                    //thread waits until changeUsername is accepted by the server
-                                    //if this is not done, it renders the old username for prompting input
+                                if (send(message, render)) {
+                                    synchronized (lock) {
+                                        lock.wait();
+                                        //thread waits until changeUsername is accepted by the server
+                                        //if this is not done, it renders the old username for prompting input
+                                    }
+                                }
+                            }
+                            else {
+                                if (message.equals("/ping")) {
+                                    pingSentAt = System.nanoTime();
                                 }
+                                send(message, render);
                             }
-                            else
-                                serverWriter.println(message);
                         }
                         message = null;
                     }
@@ -246,16 +317,119 @@ public class ChatClient {
 
         }
     }
+    /**
+     * waits out the time the server asked for after it dropped a message, so the next one is not dropped as well
+     */
+    private void waitWhileThrottled() throws InterruptedException {
+        long wait = holdMessagesUntil - System.nanoTime();
+        if (wait > 0) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+    }
+
+    /**
+     * reads the next frame, returns false when the connection is gone
+     */
+    private boolean read(ServerEvent event) {
+        try {
+            return protocol.read(event);
+        } catch (IOException e) {
+            logger.warning("IOException from Server Reader: connection lost " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * while the client is reconnecting the command is not sent, the user is told so. Returns whether it was sent
+     */
+    private boolean send(String command, RenderQueue render) {
+        try {
+            protocol.send(command);
+            return true;
+        } catch (IOException e) {
+            ColorPrint.printAtCenterWithBox(render, "Not connected, that was not sent", AttributedStyle.RED);
+            return false;
+        }
+    }
+
+    /**
+     * <p>Connects again and resumes the session with the token of the server, so the username and the room are kept and
+     * the messages sent in the meantime are replayed.</p>
+     *
+     * <p>Tries a few times with a growing pause. Returns false if the session can't be resumed, ie: the client got
+     * no token (line protocol, /disconnect, older server) or the server no longer has the session</p>
+     */
+    private boolean reconnect(RenderQueue render) {
+        if (!resumable || !resume.hasToken()) {
+            return false;
+        }
+        closeQuietly(clientSocket);
+        String resumeBody = resume.resumeBody();
+        long pauseMillis = 250;
+        for (int attempt = 1; attempt <= reconnectAttempts && running; attempt++) {
+            ColorPrint.printAtCenterWithBox(render, "Connection lost, reconnecting (" + attempt + "/" + reconnectAttempts + ")", CustomColors.ORANGE);
+            Socket socket = null;
+            try {
+                Thread.sleep(pauseMillis);
+                socket = sockets.open(hostname, port);
+                ClientProtocol resumed = ClientProtocol.negotiate(socket, true, compression, true);
+                resume.resuming();
+                resumed.send("/resume " + resumeBody);
+                ServerEvent reply = new ServerEvent();
+                if (!resumed.read(reply)) {
+                    throw new IOException("Server closed the connection");
+                }
+                if (reply.type != ResponseType.SUCCESS) {
+                    ColorPrint.printAtCenterWithBox(render, reply.text, AttributedStyle.RED);
+                    closeQuietly(socket);
+                    return false;
+                }
+                clientSocket = socket;
+                protocol = resumed;
+                ColorPrint.printAtCenterWithBox(render, reply.text, CustomColors.YELLOW);
+                return true;
+            } catch (IOException e) {
+                logger.info("Reconnect failed: " + e.getMessage());
+                closeQuietly(socket);
+                pauseMillis = Math.min(pauseMillis * 2, 5000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                closeQuietly(socket);
+                return false;
+            }
+        }
+        return false;
+    }
+
+    private static void closeQuietly(Socket socket) {
+        if (socket == null) {
+            return;
+        }
+        try {
+            socket.close();
+        } catch (IOException e) {
+            //the connection is given up anyway
+        }
+    }
+
+    private ClientSockets clientSockets() throws IOException {
+        if (!tls) {
+            return new ClientSockets();
+        }
+        String trustStore = System.getProperty("chat.client.tls.trustStore", "").trim();
+        return new ClientSockets(trustStore.isEmpty() ? null : Path.of(trustStore), System.getProperty("chat.client.tls.trustStorePassword", ""));
+    }
+
     private void setMyUsername(String username) {
         this.myUsername = username;
     }
 
 
-    private void handleInitialAuthentication (PrintWriter serverWriter, BufferedReader serverReader) throws IOException {
+    private void handleInitialAuthentication (ClientProtocol protocol) throws IOException {
         String loginPrompt = "Enter your username: ";
         String command = "/newClient";
+        ServerEvent reply = new ServerEvent();
         do {
-            String reply;
             System.out.print(loginPrompt);
             String credentials = terminalReader.readLine();
 
@@ -270,27 +444,24 @@ public class ChatClient {
                 continue;
             }
 
-            serverWriter.println(command + " " + credentials);
-            reply = serverReader.readLine();
-
-            if(reply.contains(":")) {
-                String typeOfResponse = reply.substring(0, reply.indexOf(":"));
-                String responseBody = reply.substring(reply.indexOf(":") + 1);
+            protocol.send(command + " " + credentials);
+            if(!protocol.read(reply)) {
+                throw new IOException("Server closed the connection during authentication");
+            }
 
-                if(typeOfResponse.equalsIgnoreCase("Error")) {
-                    ColorPrint.printAtCenterWithBox(terminalReader, responseBody.trim(), AttributedStyle.RED);
-                }
+            if(reply.type == ResponseType.ERROR) {
+                ColorPrint.printAtCenterWithBox(terminalReader::printAbove, reply.text, AttributedStyle.RED);
+            }
 
-                else if(typeOfResponse.equalsIgnoreCase("Success")) {
-                    //print the welcome message
-                    ColorPrint.printAtCenterWithBox(terminalReader, responseBody, CustomColors.YELLOW /*orange color*/);
+            else if(reply.type == ResponseType.SUCCESS) {
+                //print the welcome message
+                ColorPrint.printAtCenterWithBox(terminalReader::printAbove, reply.text, CustomColors.YELLOW /*orange color*/);
 
-                    if(command.equals("/adminLogin")) {
-                        setMyUsername(credentials.substring(0, credentials.indexOf("-")));
-                    } else
-                        setMyUsername(credentials);
-                    break;
-                }
+                if(command.equals("/adminLogin")) {
+                    setMyUsername(credentials.substring(0, credentials.indexOf("-")));
+                } else
+                    setMyUsername(credentials);
+                break;
             }
         } while (true);
     }
@@ -0,0 +1,68 @@
+package client;
+
+import utils.BinaryProtocol;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.logging.Logger;
+
+/**
+ * <p>The client side of a wire protocol: sends what the user typed and decodes what the server sends.</p>
+ *
+ * <p>{@link #negotiate(Socket, boolean)} first offers the binary protocol and falls back to the line protocol
+ * if the server does not answer with the binary preamble. Compression and resume can only be offered over the binary protocol.</p>
+ */
+public interface ClientProtocol {
+
+    /**
+     * sends a command the way the user typed it, eg: '/changeUsername bob' or '/message hello'
+     */
+    void send(String commandLine) throws IOException;
+
+    /**
+     * decodes the next frame into the event, returns false when the server closed the connection
+     */
+    boolean read(ServerEvent event) throws IOException;
+
+    String name();
+
+    static ClientProtocol negotiate(Socket socket, boolean preferBinary) throws IOException {
+        return negotiate(socket, preferBinary, false);
+    }
+
+    static ClientProtocol negotiate(Socket socket, boolean preferBinary, boolean compression) throws IOException {
+        return negotiate(socket, preferBinary, compression, false);
+    }
+
+    /**
+     * with compression the binary protocol offers deflate when it sends /newClient, with resume it asks for a resume token
+     */
+    static ClientProtocol negotiate(Socket socket, boolean preferBinary, boolean compression, boolean resume) throws IOException {
+        Logger logger = Logger.getLogger(ClientProtocol.class.getName());
+        OutputStream output = socket.getOutputStream();
+        InputStream input = new BufferedInputStream(socket.getInputStream());
+
+        if (!preferBinary) {
+            return new TextClientProtocol(input, output);
+        }
+
+        output.write(BinaryProtocol.PREAMBLE);
+        output.flush();
+
+        input.mark(BinaryProtocol.PREAMBLE.length);
+        byte[] reply = input.readNBytes(BinaryProtocol.PREAMBLE.length);
+        if (BinaryProtocol.isPreamble(reply, 0)) {
+            return new BinaryClientProtocol(input, output, compression, resume);
+        }
+
+        //an older server treated the preamble as a text line and answered with one line, skip it
+        input.reset();
+        TextClientProtocol textProtocol = new TextClientProtocol(input, output);
+        textProtocol.skipLine();
+        logger.info("Server does not support the binary protocol, using the line protocol");
+        return textProtocol;
+    }
+}
@@ -0,0 +1,66 @@
+package client;
+
+import utils.Tls;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+
+/**
+ * <p>Opens the connections to the server, plain or TLS.</p>
+ *
+ * <p>With TLS all the connections of an instance share one SSLContext, so every connection after the first resumes the cached
+ * session instead of doing a full handshake. The server certificate has to match the host name, see {@link Tls} for a local one</p>
+ */
+final class ClientSockets {
+    //null for plain sockets
+    private final SSLContext tlsContext;
+
+    /**
+     * plain sockets
+     */
+    ClientSockets() {
+        this.tlsContext = null;
+    }
+
+    /**
+     * TLS sockets which trust the certificates of the trust store, or the ones the JVM trusts if it is null
+     */
+    ClientSockets(Path trustStore, String trustStorePassword) throws IOException {
+        try {
+            this.tlsContext = Tls.clientContext(trustStore, trustStorePassword.toCharArray());
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Could not load the TLS trust store " + trustStore + ": " + e.getMessage(), e);
+        }
+    }
+
+    boolean isTls() {
+        return tlsContext != null;
+    }
+
+    /**
+     * connects, and with TLS also runs the handshake so a bad certificate fails here rather than on the first read
+     */
+    Socket open(String host, int port) throws IOException {
+        if (tlsContext == null) {
+            return new Socket(host, port);
+        }
+        SSLSocket socket = (SSLSocket) tlsContext.getSocketFactory().createSocket(host, port);
+        try {
+            SSLParameters parameters = socket.getSSLParameters();
+            parameters.setEndpointIdentificationAlgorithm("HTTPS");
+            socket.setSSLParameters(parameters);
+            //the handshake is a few small records each way, Nagle would hold them back for the delayed ACK of the server
+            socket.setTcpNoDelay(true);
+            socket.startHandshake();
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        return socket;
+    }
+}
@@ -0,0 +1,354 @@
+package client;
+
+import utils.LatencyHistogram;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Logger;
+
+/**
+ * <h2>Headless load generator</h2>
+ *
+ * <p>Opens many simulated sessions against a running server, registers them with /newClient and sends /message traffic
+ * at a fixed rate, eg:</p>
+ * <pre>mvn exec:java -Ploadgen -Dchat.loadgen.clients=2000 -Dchat.loadgen.rate=500 -Dchat.loadgen.messageBytes=128</pre>
+ *
+ * <p>Every session reads on its own virtual thread, the messages are sent by one pacing thread.
+ * A message carries the time it was scheduled to be sent, and every session receiving it records the end-to-end fan-out latency.
+ * Measuring from the scheduled time rather than the actual send means a server which stalls the sender is not flattered
+ * by the messages which were never sent during the stall (coordinated omission).</p>
+ *
+ * <p>Options (system properties, the defaults in brackets):</p>
+ * <pre>
+ * chat.loadgen.host            server host [localhost]
+ * chat.loadgen.port            server port [8082]
+ * chat.loadgen.protocol        binary or text [binary]
+ * chat.loadgen.clients         sessions to open [1000]
+ * chat.loadgen.senders         sessions which send messages, the others only receive [100]
+ * chat.loadgen.rooms           sessions are spread over this many rooms, 1 keeps everyone in the lobby [1]
+ * chat.loadgen.rate            messages per second over all the senders [100]
+ * chat.loadgen.messageBytes    length of every message [64]
+ * chat.loadgen.warmupSeconds   latencies of the first seconds are thrown away [5]
+ * chat.loadgen.durationSeconds how long the messages are sent, after the warmup [30]
+ * chat.loadgen.prefix          usernames are prefix + number, must leave room for the number within 10 characters [lg]
+ * chat.loadgen.tls             connect over TLS [false]
+ * chat.loadgen.tls.trustStore  PKCS12 trust store with the server certificate, see {@link utils.Tls} [the JVM's]
+ * chat.loadgen.tls.trustStorePassword
+ * </pre>
+ *
+ * <p>The connect summary tells how long opening a session took, TLS handshake included. With TLS all the sessions share one
+ * SSLContext, so the first one does a full handshake and the others resume its session</p>
+ */
+public class LoadGenerator {
+    private static final Logger logger = Logger.getLogger(LoadGenerator.class.getName());
+
+    //every generated message starts with this, other messages (eg: of real users) are not measured
+    private static final String MARKER = "lg ";
+
+    final String host = System.getProperty("chat.loadgen.host", "localhost");
+    final int port = Integer.getInteger("chat.loadgen.port", 8082);
+    final boolean binary = !"text".equalsIgnoreCase(System.getProperty("chat.loadgen.protocol", "binary"));
+    final int clients = Math.max(1, Integer.getInteger("chat.loadgen.clients", 1000));
+    final int senders = Math.max(1, Math.min(clients, Integer.getInteger("chat.loadgen.senders", 100)));
+    final int rooms = Math.max(1, Integer.getInteger("chat.loadgen.rooms", 1));
+    final int rate = Math.max(1, Integer.getInteger("chat.loadgen.rate", 100));
+    final int messageBytes = Math.max(MARKER.length() + 40, Integer.getInteger("chat.loadgen.messageBytes", 64));
+    final int warmupSeconds = Math.max(0, Integer.getInteger("chat.loadgen.warmupSeconds", 5));
+    final int durationSeconds = Math.max(1, Integer.getInteger("chat.loadgen.durationSeconds", 30));
+    final String prefix = System.getProperty("chat.loadgen.prefix", "lg");
+    final boolean tls = Boolean.getBoolean("chat.loadgen.tls");
+
+    private static final int CONNECT_CONCURRENCY = 64;
+
+    private final ClientSockets clientSockets;
+
+    //only changed while connecting
+    private final List<Session> sessions = new ArrayList<>();
+    //nanoseconds to open one session: connect and TLS handshake
+    private final LatencyHistogram connectLatency = new LatencyHistogram();
+    private final ExecutorService readers = Executors.newVirtualThreadPerTaskExecutor();
+
+    //nanoseconds from the scheduled send until a session read the message
+    private final LatencyHistogram latency = new LatencyHistogram();
+    //same, but reset after every interval report
+    private final LatencyHistogram intervalLatency = new LatencyHistogram();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    //THROTTLED frames, the server sends one when a session goes over its rate limit and drops its messages for a while
+    private final LongAdder throttled = new LongAdder();
+    private final LongAdder disconnects = new LongAdder();
+
+    //only messages scheduled within [measureFrom, measureUntil) are measured
+    private volatile long measureFrom = Long.MAX_VALUE;
+    private volatile long measureUntil = Long.MAX_VALUE;
+
+    //set once the sessions are being disconnected, readers which end from now on did not lose their connection
+    private volatile boolean closing = false;
+
+    /**
+     * one simulated client
+     */
+    private class Session {
+        final String username;
+        final String room;
+        final Socket socket;
+        final ClientProtocol protocol;
+        final CountDownLatch registered = new CountDownLatch(1);
+
+        Session(String username, String room) throws IOException {
+            this.username = username;
+            this.room = room;
+            long started = System.nanoTime();
+            this.socket = clientSockets.open(host, port);
+            connectLatency.record(System.nanoTime() - started);
+            socket.setTcpNoDelay(true);
+            this.protocol = ClientProtocol.negotiate(socket, binary);
+        }
+
+        void read() {
+            //reused for every frame
+            ServerEvent event = new ServerEvent();
+            try {
+                while (protocol.read(event)) {
+                    switch (event.type) {
+                        case MESSAGE: {
+                            onMessage(event.text);
+                            break;
+                        }
+                        case SUCCESS: {
+                            registered.countDown();
+                            break;
+                        }
+                        case ERROR: {
+                            errors.increment();
+                            if (registered.getCount() > 0) {
+                                logger.warning(username + ": " + event.text);
+                            }
+                            break;
+                        }
+                        case THROTTLED: {
+                            //the generator keeps its rate, a session over the server's limit loses those messages
+                            throttled.increment();
+                            break;
+                        }
+                        case PING: {
+                            //idle sessions of a long run would be closed by the server otherwise
+                            protocol.send("/pong");
+                            break;
+                        }
+                        case CLOSE: {
+                            return;
+                        }
+                        default: {
+                            //notices, history, ... are not measured
+                        }
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                if (!closing) {
+                    logger.warning(username + " lost the connection: " + e.getMessage());
+                }
+            } finally {
+                if (!closing) {
+                    disconnects.increment();
+                }
+                registered.countDown();
+                close();
+            }
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                //closing anyway
+            }
+        }
+    }
+
+    LoadGenerator() throws IOException {
+        if (tls) {
+            String trustStore = System.getProperty("chat.loadgen.tls.trustStore", "").trim();
+            clientSockets = new ClientSockets(trustStore.isEmpty() ? null : Path.of(trustStore),
+                    System.getProperty("chat.loadgen.tls.trustStorePassword", ""));
+        } else {
+            clientSockets = new ClientSockets();
+        }
+    }
+
+    /**
+     * the text is 'lg <scheduled send time in nanos> xxx...'
+     */
+    private void onMessage(String text) {
+        if (text == null || !text.startsWith(MARKER)) {
+            return;
+        }
+        long now = System.nanoTime();
+        int end = text.indexOf(' ', MARKER.length());
+        long scheduledAt = Long.parseLong(text, MARKER.length(), end == -1 ? text.length() : end, 10);
+        delivered.increment();
+        intervalLatency.record(now - scheduledAt);
+        if (scheduledAt >= measureFrom && scheduledAt < measureUntil) {
+            latency.record(now - scheduledAt);
+        }
+    }
+
+    private String message(long scheduledAt) {
+        StringBuilder message = new StringBuilder(messageBytes).append(MARKER).append(scheduledAt).append(' ');
+        while (message.length() < messageBytes) {
+            message.append('x');
+        }
+        return message.toString();
+    }
+
+    /**
+     * opens the sessions from virtual threads, at most CONNECT_CONCURRENCY handshakes at a time
+     */
+    void connect() throws InterruptedException {
+        long started = System.nanoTime();
+        Semaphore handshakes = new Semaphore(CONNECT_CONCURRENCY);
+        CountDownLatch opened = new CountDownLatch(clients);
+        for (int i = 0; i < clients; i++) {
+            int index = i;
+            handshakes.acquire();
+            readers.execute(() -> {
+                Session session = null;
+                try {
+                    session = new Session(prefix + index, rooms == 1 ? null : "lg" + (index % rooms));
+                    session.protocol.send("/newClient " + session.username);
+                    synchronized (sessions) {
+                        sessions.add(session);
+                    }
+                } catch (IOException e) {
+                    logger.warning("Could not open session " + index + ": " + e.getMessage());
+                    session = null;
+                } finally {
+                    handshakes.release();
+                    opened.countDown();
+                }
+                if (session != null) {
+                    session.read();
+                }
+            });
+        }
+        opened.await();
+        for (Session session : sessions) {
+            if (!session.registered.await(30, TimeUnit.SECONDS)) {
+                logger.warning(session.username + " is not registered after 30s");
+            }
+        }
+        for (Session session : sessions) {
+            if (session.room != null) {
+                try {
+                    session.protocol.send("/join " + session.room);
+                } catch (IOException e) {
+                    errors.increment();
+                }
+            }
+        }
+        long elapsed = System.nanoTime() - started;
+        logger.info("Opened " + sessions.size() + " sessions in " + TimeUnit.NANOSECONDS.toMillis(elapsed)
+                + "ms (" + String.format("%.0f", sessions.size() / (elapsed / 1e9)) + "/s) using the "
+                + (sessions.isEmpty() ? "?" : sessions.get(0).protocol.name()) + " protocol" + (clientSockets.isTls() ? " over TLS" : "")
+                + ", connect " + connectLatency.summaryMicros());
+    }
+
+    /**
+     * sends rate messages per second, round-robin over the senders, until the warmup and the measured duration are over
+     */
+    void run() {
+        int senderCount = Math.min(senders, sessions.size());
+        long interval = TimeUnit.SECONDS.toNanos(1) / rate;
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(warmupSeconds + durationSeconds);
+        measureUntil = end;
+        measureFrom = start + TimeUnit.SECONDS.toNanos(warmupSeconds);
+        long nextReport = start + TimeUnit.SECONDS.toNanos(1);
+        long lastSent = 0;
+        long lastDelivered = 0;
+
+        for (long i = 0; ; i++) {
+            long scheduledAt = start + i * interval;
+            if (scheduledAt >= end) {
+                break;
+            }
+            long now;
+            while ((now = System.nanoTime()) < scheduledAt) {
+                LockSupport.parkNanos(scheduledAt - now);
+            }
+            if (now >= nextReport) {
+                long sentNow = sent.sum();
+                long deliveredNow = delivered.sum();
+                logger.info((now < measureFrom ? "(warmup) " : "") + "sent=" + (sentNow - lastSent) + "/s delivered=" + (deliveredNow - lastDelivered)
+                        + "/s latency " + intervalLatency.summaryMicros());
+                intervalLatency.reset();
+                lastSent = sentNow;
+                lastDelivered = deliveredNow;
+                nextReport += TimeUnit.SECONDS.toNanos(1);
+            }
+
+            Session sender = sessions.get((int) (i % senderCount));
+            try {
+                sender.protocol.send("/message " + message(scheduledAt));
+                sent.increment();
+            } catch (IOException e) {
+                errors.increment();
+            }
+        }
+    }
+
+    /**
+     * gives the last messages time to arrive, then prints the totals
+     */
+    void finish() throws InterruptedException {
+        Thread.sleep(1000);
+        long measuredSent = (long) rate * durationSeconds;
+        double seconds = durationSeconds;
+        logger.info("Summary: clients=" + sessions.size() + " senders=" + Math.min(senders, sessions.size()) + " rooms=" + rooms
+                + " rate=" + rate + "/s messageBytes=" + messageBytes);
+        logger.info("Summary: sent=" + sent.sum() + " delivered=" + delivered.sum()
+                + " measured throughput " + String.format("%.0f", measuredSent / seconds) + " msg/s in, "
+                + String.format("%.0f", latency.count() / seconds) + " deliveries/s out");
+        logger.info("Summary: fan-out latency " + latency.summaryMicros() + " over " + latency.count() + " deliveries");
+        logger.info("Summary: errors=" + errors.sum() + " lost connections=" + disconnects.sum());
+        if (throttled.sum() > 0) {
+            logger.info("Summary: the server told the senders to slow down " + throttled.sum()
+                    + " times and dropped their messages meanwhile, raise chat.server.messageRate or add senders to spread the rate");
+        }
+
+        //a graceful /disconnect, so the readers end on the server's close rather than on a socket closed under them
+        closing = true;
+        for (Session session : sessions) {
+            try {
+                session.protocol.send("/disconnect");
+            } catch (IOException ignored) {
+                //closed below
+            }
+        }
+        readers.shutdown();
+        if (!readers.awaitTermination(5, TimeUnit.SECONDS)) {
+            for (Session session : sessions) {
+                session.close();
+            }
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException, IOException {
+        System.setProperty("java.util.logging.SimpleFormatter.format", "%4$s: %5$s%n");
+        LoadGenerator generator = new LoadGenerator();
+        generator.connect();
+        generator.run();
+        generator.finish();
+    }
+}
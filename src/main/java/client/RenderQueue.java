@@ -0,0 +1,155 @@
+package client;
+
+import org.jline.reader.LineReader;
+import org.jline.utils.AttributedString;
+import org.jline.utils.AttributedStyle;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+/**
+ * <p>Collects the lines to print above the prompt and prints them in frames, at most framesPerSecond times a second.</p>
+ *
+ * <p>Every LineReader.printAbove() erases and redraws the prompt, so printing a burst of messages line by line keeps the
+ * thread which reads the socket busy repainting the terminal. Here that thread only queues the formatted lines, and the
+ * render thread prints everything queued since the last frame with a single printAbove().</p>
+ *
+ * <p>When the terminal can't keep up, a frame prints at most MAX_LINES_PER_FRAME lines and ends with a gray line telling how
+ * many are still waiting. The queue holds at most MAX_PENDING_LINES, beyond that the oldest lines are skipped and counted,
+ * so a client which stays behind does not run out of memory</p>
+ */
+public class RenderQueue implements Consumer<String>, AutoCloseable {
+    private static final Logger logger = Logger.getLogger(RenderQueue.class.getName());
+
+    static final int MAX_LINES_PER_FRAME = 200;
+    static final int MAX_PENDING_LINES = 10_000;
+    private static final int COLOR_GRAY = 244;
+
+    private final LineReader reader;
+    private final long frameNanos;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition linesQueued = lock.newCondition();
+    //wakes the render thread from the pause between two frames
+    private final Condition closing = lock.newCondition();
+    //guarded by lock
+    private final ArrayDeque<String> pending = new ArrayDeque<>();
+    private long skipped = 0;
+    private boolean closed = false;
+
+    private final Thread renderThread;
+
+    public RenderQueue(LineReader reader, int framesPerSecond) {
+        this.reader = reader;
+        this.frameNanos = TimeUnit.SECONDS.toNanos(1) / Math.max(1, framesPerSecond);
+        this.renderThread = new Thread(this::renderLoop, "render");
+        renderThread.setDaemon(true);
+        renderThread.start();
+    }
+
+    /**
+     * queues one line, never blocks on the terminal
+     */
+    @Override
+    public void accept(String line) {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            if (pending.size() == MAX_PENDING_LINES) {
+                pending.pollFirst();
+                skipped++;
+            }
+            boolean wasEmpty = pending.isEmpty();
+            pending.addLast(line);
+            if (wasEmpty) {
+                linesQueued.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void renderLoop() {
+        StringBuilder frame = new StringBuilder();
+        try {
+            while (true) {
+                long frameStarted = System.nanoTime();
+                boolean last;
+                lock.lock();
+                try {
+                    while (pending.isEmpty() && skipped == 0 && !closed) {
+                        linesQueued.await();
+                    }
+                    last = closed;
+                    //the last frame prints everything that is left
+                    int lines = last ? pending.size() : Math.min(pending.size(), MAX_LINES_PER_FRAME);
+                    for (int i = 0; i < lines; i++) {
+                        frame.append(pending.pollFirst()).append('\n');
+                    }
+                    if (skipped > 0 || !pending.isEmpty()) {
+                        frame.append(backlog(pending.size(), skipped)).append('\n');
+                        skipped = 0;
+                    }
+                } finally {
+                    lock.unlock();
+                }
+
+                if (frame.length() > 0) {
+                    //printAbove() adds the last line break itself
+                    frame.setLength(frame.length() - 1);
+                    reader.printAbove(frame.toString());
+                    frame.setLength(0);
+                }
+                if (last) {
+                    return;
+                }
+                lock.lock();
+                try {
+                    long wait = frameStarted + frameNanos - System.nanoTime();
+                    while (wait > 0 && !closed) {
+                        wait = closing.awaitNanos(wait);
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            }
+        } catch (InterruptedException e) {
+            //close() gave up waiting for the last frame
+        } catch (RuntimeException e) {
+            //the terminal was closed under the render thread
+            logger.warning("Rendering stopped: " + e.getMessage());
+        }
+    }
+
+    private static String backlog(int waiting, long skipped) {
+        String text = "[behind: " + waiting + " lines waiting" + (skipped > 0 ? ", " + skipped + " skipped" : "") + "]";
+        return new AttributedString(text, AttributedStyle.DEFAULT.foreground(COLOR_GRAY)).toAnsi();
+    }
+
+    /**
+     * prints what is still queued and stops the render thread
+     */
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            linesQueued.signal();
+            closing.signal();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            renderThread.join(TimeUnit.SECONDS.toMillis(1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        renderThread.interrupt();
+    }
+}
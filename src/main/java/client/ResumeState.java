@@ -0,0 +1,101 @@
+package client;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * <p>What the client needs to resume its session once the connection dropped: the token of the server and the highest
+ * message sequence it received.</p>
+ *
+ * <p>Around a resume a message can arrive twice, replayed and live. From the /resume until the new token arrives the
+ * sequences of every message are remembered, and later messages with one of them are dropped. The HISTORY frames of
+ * /history, /join and /leave are shown as they are, they are asked for</p>
+ *
+ * <p>Only used by the thread which reads from the server</p>
+ */
+final class ResumeState {
+    private String token;
+    private long lastSeen = -1;
+
+    //between the /resume and the new token
+    private boolean resuming = false;
+    //the messages received since the last /resume
+    private final Set<Long> sinceResume = new HashSet<>();
+
+    boolean hasToken() {
+        return token != null;
+    }
+
+    /**
+     * the body of the /resume command
+     */
+    String resumeBody() {
+        return token + " " + lastSeen;
+    }
+
+    long lastSeen() {
+        return lastSeen;
+    }
+
+    /**
+     * called right before /resume is sent, the token is used up by it
+     */
+    void resuming() {
+        token = null;
+        resuming = true;
+        sinceResume.clear();
+    }
+
+    void onToken(String token, long upToDate) {
+        this.token = token;
+        this.lastSeen = Math.max(lastSeen, upToDate);
+        resuming = false;
+    }
+
+    /**
+     * returns false if the message was already received around the last resume, and should not be shown again
+     */
+    boolean onMessage(long sequence) {
+        if (sequence < 0) {
+            return true;
+        }
+        lastSeen = Math.max(lastSeen, sequence);
+        if (resuming) {
+            return sinceResume.add(sequence);
+        }
+        return sinceResume.isEmpty() || !sinceResume.contains(sequence);
+    }
+
+    /**
+     * drops the messages of a replayed HISTORY frame which were already received, returns the number of messages left
+     */
+    int onHistory(ServerEvent event) {
+        if (event.sequences == null) {
+            return event.items.length;
+        }
+        for (long sequence : event.sequences) {
+            lastSeen = Math.max(lastSeen, sequence);
+        }
+        if (!resuming) {
+            return event.items.length;
+        }
+        int kept = 0;
+        for (int i = 0; i < event.items.length; i++) {
+            if (sinceResume.add(event.sequences[i])) {
+                event.usernames[kept] = event.usernames[i];
+                event.usernameColors[kept] = event.usernameColors[i];
+                event.items[kept] = event.items[i];
+                event.sequences[kept] = event.sequences[i];
+                kept++;
+            }
+        }
+        if (kept < event.items.length) {
+            event.usernames = Arrays.copyOf(event.usernames, kept);
+            event.usernameColors = Arrays.copyOf(event.usernameColors, kept);
+            event.items = Arrays.copyOf(event.items, kept);
+            event.sequences = Arrays.copyOf(event.sequences, kept);
+        }
+        return kept;
+    }
+}
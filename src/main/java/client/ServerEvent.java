@@ -0,0 +1,50 @@
+package client;
+
+import utils.ResponseType;
+
+/**
+ * <p>One frame received from the server, decoded into typed fields.</p>
+ *
+ * <p>The listener reuses a single instance for every frame, so only the fields of the current type are meaningful:</p>
+ * <pre>
+ * MESSAGE           username, usernameColor, text, sequence
+ * USERNAME_CHANGED  username, text
+ * ONLINE_COUNT      count
+ * ONLINE_LIST, HELP items
+ * ROOM_LIST, STATS  items
+ * HISTORY           usernames, usernameColors, items (the messages), sequences, oldest first
+ * RESUME_TOKEN      text (the token), sequence
+ * THROTTLED         text, retryAfterMillis
+ * WHISPER           username, usernameColor, text
+ * everything else   text
+ * </pre>
+ *
+ * <p>The sequences are -1 and null when the server does not send them (the line protocol, older servers)</p>
+ */
+public class ServerEvent {
+    ResponseType type;
+    String username;
+    int usernameColor;
+    String text;
+    int count;
+    String[] items;
+    String[] usernames;
+    int[] usernameColors;
+    long sequence;
+    long[] sequences;
+    long retryAfterMillis;
+
+    void reset(ResponseType type) {
+        this.type = type;
+        this.username = null;
+        this.usernameColor = 0;
+        this.text = null;
+        this.count = 0;
+        this.items = null;
+        this.usernames = null;
+        this.usernameColors = null;
+        this.sequence = -1;
+        this.sequences = null;
+        this.retryAfterMillis = 0;
+    }
+}
@@ -0,0 +1,171 @@
+package client;
+
+import utils.ResponseType;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+
+/**
+ * the original line protocol: commands are sent as typed, responses are 'Type: body' lines
+ */
+class TextClientProtocol implements ClientProtocol {
+    private final BufferedReader serverReader;
+    private final PrintWriter serverWriter;
+
+    TextClientProtocol(InputStream input, OutputStream output) {
+        this.serverReader = new BufferedReader(new InputStreamReader(input));
+        this.serverWriter = new PrintWriter(output, true);
+    }
+
+    @Override
+    public String name() {
+        return "text";
+    }
+
+    @Override
+    public void send(String commandLine) {
+        serverWriter.println(commandLine);
+    }
+
+    void skipLine() throws IOException {
+        serverReader.readLine();
+    }
+
+    /**
+     * <p>Decodes the line in one pass over offsets into it: only the fields of the event are copied out.</p>
+     *
+     * <p>Only the fields in front of the text are delimited by ':', so a text may contain any number of colons, eg:
+     * 'Message: alice: 3: see you at 10:30' is alice's message 'see you at 10:30'</p>
+     */
+    @Override
+    public boolean read(ServerEvent event) throws IOException {
+        String response = serverReader.readLine();
+        if(response == null) {
+            return false;
+        }
+        int start = skipSpaces(response, 0, response.length());
+        int end = trimEnd(response, start, response.length());
+
+        //if the server issues disconnect command
+        if(response.regionMatches(true, start, "/disconnect", 0, end - start) && end - start == "/disconnect".length()) {
+            event.reset(ResponseType.CLOSE);
+            return true;
+        }
+
+        //extracting the type of response, lines without a known type are notices
+        int colonIndex = response.indexOf(':', start);
+        ResponseType type = colonIndex == -1 || colonIndex >= end ? null
+                : ResponseType.fromPrefix(response, start, trimEnd(response, start, colonIndex));
+        if (type == null) {
+            event.reset(ResponseType.NOTICE);
+            event.text = response.substring(start, end);
+            return true;
+        }
+        int bodyStart = skipSpaces(response, colonIndex + 1, end);
+
+        event.reset(type);
+        try {
+            decodeBody(event, response, bodyStart, end);
+        } catch (NumberFormatException e) {
+            //a line which does not match its type is shown as it is
+            event.reset(ResponseType.NOTICE);
+            event.text = response.substring(start, end);
+        }
+        return true;
+    }
+
+    private static void decodeBody(ServerEvent event, String response, int bodyStart, int end) {
+        switch (event.type) {
+            case MESSAGE:
+            case WHISPER: {
+                //username: color: text
+                int usernameEnd = fieldEnd(response, bodyStart, end);
+                int colorEnd = fieldEnd(response, usernameEnd + 1, end);
+                event.username = field(response, bodyStart, usernameEnd);
+                int colorStart = skipSpaces(response, usernameEnd + 1, colorEnd);
+                event.usernameColor = Integer.parseInt(response, colorStart, trimEnd(response, colorStart, colorEnd), 10);
+                event.text = field(response, colorEnd + 1, end);
+                break;
+            }
+            case USERNAME_CHANGED: {
+                //newUsername: text
+                int usernameEnd = fieldEnd(response, bodyStart, end);
+                event.username = field(response, bodyStart, usernameEnd);
+                event.text = field(response, usernameEnd + 1, end);
+                break;
+            }
+            case ONLINE_COUNT: {
+                event.count = Integer.parseInt(response, bodyStart, end, 10);
+                break;
+            }
+            case ONLINE_LIST:
+            case HELP:
+            case ROOM_LIST:
+            case STATS: {
+                event.items = response.substring(bodyStart, end).split("--");
+                break;
+            }
+            case HISTORY: {
+                //messages are separated by \u001E, the username, color and text of a message by \u001F
+                String[] records = response.substring(bodyStart, end).split("\u001E");
+                event.usernames = new String[records.length];
+                event.usernameColors = new int[records.length];
+                event.items = new String[records.length];
+                for (int i = 0; i < records.length; i++) {
+                    String[] fields = records[i].split("\u001F", 3);
+                    event.usernames[i] = fields[0];
+                    event.usernameColors[i] = Integer.parseInt(fields[1]);
+                    event.items[i] = fields[2];
+                }
+                break;
+            }
+            case THROTTLED: {
+                //retryAfterMillis: text
+                int millisEnd = fieldEnd(response, bodyStart, end);
+                event.retryAfterMillis = Long.parseLong(response, bodyStart, trimEnd(response, bodyStart, millisEnd), 10);
+                event.text = field(response, millisEnd + 1, end);
+                break;
+            }
+            default: {
+                event.text = response.substring(bodyStart, end);
+            }
+        }
+    }
+
+    /**
+     * index of the ':' which ends the field starting at start, throws like a malformed number if there is none
+     */
+    private static int fieldEnd(String line, int start, int end) {
+        int colon = line.indexOf(':', start);
+        if (colon == -1 || colon >= end) {
+            throw new NumberFormatException("Malformed line: " + line);
+        }
+        return colon;
+    }
+
+    /**
+     * the trimmed line[start, end)
+     */
+    private static String field(String line, int start, int end) {
+        start = skipSpaces(line, start, end);
+        return line.substring(start, trimEnd(line, start, end));
+    }
+
+    private static int skipSpaces(String line, int start, int end) {
+        while (start < end && line.charAt(start) <= ' ') {
+            start++;
+        }
+        return start;
+    }
+
+    private static int trimEnd(String line, int start, int end) {
+        while (end > start && line.charAt(end - 1) <= ' ') {
+            end--;
+        }
+        return end;
+    }
+}
@@ -0,0 +1,109 @@
+package server;
+
+import java.net.InetAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * <p>Admission control of the accept loops: decides right after accept() whether a socket may stay, before anything is
+ * allocated for it (no ConnectionHandler, no thread, no TLS handshake).</p>
+ *
+ * <p>Two limits: the open sockets of the whole server, and the open sockets from one address. A rejected socket costs one
+ * counter update and a close. Every admitted socket has to be released exactly once when it is closed, whatever closed it</p>
+ */
+final class AcceptGate {
+    private static final Logger logger = Logger.getLogger(AcceptGate.class.getName());
+
+    //0 means no limit
+    private final int maxConnections;
+    private final int maxConnectionsPerAddress;
+
+    private final AtomicInteger open = new AtomicInteger();
+    //only holds the addresses with open sockets, and only when the per address limit is on
+    private final ConcurrentHashMap<InetAddress, Integer> openByAddress = new ConcurrentHashMap<>();
+
+    final LongAdder accepted = new LongAdder();
+    final LongAdder rejectedFull = new LongAdder();
+    final LongAdder rejectedPerAddress = new LongAdder();
+
+    //only used by logRejections()
+    private long lastRejected;
+
+    AcceptGate(int maxConnections, int maxConnectionsPerAddress) {
+        this.maxConnections = maxConnections;
+        this.maxConnectionsPerAddress = maxConnectionsPerAddress;
+    }
+
+    /**
+     * returns whether the socket from this address may stay, if so it counts as open until {@link #release(InetAddress)}
+     */
+    boolean admit(InetAddress address) {
+        if (open.incrementAndGet() > maxConnections && maxConnections > 0) {
+            open.decrementAndGet();
+            rejectedFull.increment();
+            return false;
+        }
+        if (maxConnectionsPerAddress > 0 && address != null) {
+            boolean[] admitted = {false};
+            openByAddress.compute(address, (key, count) -> {
+                int current = count == null ? 0 : count;
+                if (current >= maxConnectionsPerAddress) {
+                    return count;
+                }
+                admitted[0] = true;
+                return current + 1;
+            });
+            if (!admitted[0]) {
+                open.decrementAndGet();
+                rejectedPerAddress.increment();
+                return false;
+            }
+        }
+        accepted.increment();
+        return true;
+    }
+
+    /**
+     * the admitted socket from this address was closed
+     */
+    void release(InetAddress address) {
+        open.decrementAndGet();
+        if (maxConnectionsPerAddress > 0 && address != null) {
+            openByAddress.computeIfPresent(address, (key, count) -> count == 1 ? null : count - 1);
+        }
+    }
+
+    int open() {
+        return open.get();
+    }
+
+    int openFrom(InetAddress address) {
+        return openByAddress.getOrDefault(address, 0);
+    }
+
+    long rejected() {
+        return rejectedFull.sum() + rejectedPerAddress.sum();
+    }
+
+    /**
+     * logs the sockets rejected since the last call, called once a second so a connect storm costs one line a second
+     */
+    void logRejections() {
+        long rejected = rejected();
+        if (rejected > lastRejected) {
+            logger.warning("Rejected " + (rejected - lastRejected) + " connections in the last second, " + open() + " open ("
+                    + rejectedFull.sum() + " server full, " + rejectedPerAddress.sum() + " over the per address limit in total)");
+        }
+        lastRejected = rejected;
+    }
+
+    /**
+     * eg: 'accept: 1200 accepted (35.0/s), 14 open, 3 rejected (2 server full, 1 per address)'
+     */
+    String report(double acceptsPerSecond) {
+        return String.format("accept: %d accepted (%.1f/s), %d open, %d rejected (%d server full, %d per address)",
+                accepted.sum(), acceptsPerSecond, open(), rejected(), rejectedFull.sum(), rejectedPerAddress.sum());
+    }
+}
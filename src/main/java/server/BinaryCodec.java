@@ -0,0 +1,119 @@
+package server;
+
+import server.persistence.LogRecord;
+import utils.BinaryProtocol;
+import utils.BinaryProtocol.FrameBuilder;
+import utils.ResponseType;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * length-prefixed frames with typed fields, see {@link utils.BinaryProtocol}
+ */
+class BinaryCodec implements WireCodec {
+
+    @Override
+    public int id() {
+        return 1;
+    }
+
+    @Override
+    public ByteBuffer encode(ResponseType type, String text) {
+        return new FrameBuilder(type.opcode, text.length() + 8).putString(text).build();
+    }
+
+    @Override
+    public ByteBuffer message(String username, int usernameColor, String message, long sequence) {
+        return new FrameBuilder(ResponseType.MESSAGE.opcode, username.length() + message.length() + 24)
+                .putString(username)
+                .putInt(usernameColor)
+                .putString(message)
+                .putLong(sequence)
+                .build();
+    }
+
+    @Override
+    public ByteBuffer usernameChanged(String newUsername, String text) {
+        return new FrameBuilder(ResponseType.USERNAME_CHANGED.opcode)
+                .putString(newUsername)
+                .putString(text)
+                .build();
+    }
+
+    @Override
+    public ByteBuffer onlineCount(int count) {
+        return new FrameBuilder(ResponseType.ONLINE_COUNT.opcode, 4).putInt(count).build();
+    }
+
+    @Override
+    public ByteBuffer onlineList(Iterable<String> usernames, int firstNumber, int total) {
+        FrameBuilder frame = new FrameBuilder(ResponseType.ONLINE_LIST.opcode);
+        int count = 0;
+        frame.putInt(0);
+        for (String name : usernames) {
+            frame.putString(name);
+            count++;
+        }
+        if (firstNumber > 1 || count < total) {
+            //only a page of a longer list carries where it starts, so a list on one page is encoded like before paging
+            frame.putInt(firstNumber).putInt(total);
+        }
+        ByteBuffer built = frame.build();
+        //the count is the first field, right after the length and the opcode
+        built.putInt(BinaryProtocol.LENGTH_FIELD + 1, count);
+        return built;
+    }
+
+    @Override
+    public ByteBuffer help(String[] lines) {
+        FrameBuilder frame = new FrameBuilder(ResponseType.HELP.opcode, 256).putInt(lines.length);
+        for (String line : lines) {
+            frame.putString(line);
+        }
+        return frame.build();
+    }
+
+    @Override
+    public ByteBuffer list(ResponseType type, List<String> lines) {
+        FrameBuilder frame = new FrameBuilder(type.opcode, lines.size() * 32).putInt(lines.size());
+        for (String line : lines) {
+            frame.putString(line);
+        }
+        return frame.build();
+    }
+
+    @Override
+    public ByteBuffer history(List<LogRecord> records) {
+        FrameBuilder frame = new FrameBuilder(ResponseType.HISTORY.opcode, records.size() * 72).putInt(records.size());
+        for (LogRecord record : records) {
+            frame.putString(record.username).putInt(record.usernameColor).putString(record.text);
+        }
+        //after the records, so the clients from before the sequences still read the frame
+        for (LogRecord record : records) {
+            frame.putLong(record.sequence);
+        }
+        return frame.build();
+    }
+
+    @Override
+    public ByteBuffer resumeToken(String token, long sequence) {
+        return new FrameBuilder(ResponseType.RESUME_TOKEN.opcode, token.length() + 16).putString(token).putLong(sequence).build();
+    }
+
+    @Override
+    public ByteBuffer throttled(long retryAfterMillis, String text) {
+        //the text first, a client which does not know the frame reads it like any other text frame
+        return new FrameBuilder(ResponseType.THROTTLED.opcode, text.length() + 16).putString(text).putLong(retryAfterMillis).build();
+    }
+
+    @Override
+    public ByteBuffer whisper(String username, int usernameColor, String text) {
+        //the text first like THROTTLED, a client which does not know the frame still shows what was said
+        return new FrameBuilder(ResponseType.WHISPER.opcode, username.length() + text.length() + 16)
+                .putString(text)
+                .putString(username)
+                .putInt(usernameColor)
+                .build();
+    }
+}
@@ -1,357 +1,1970 @@
 package server;
 
 
+import server.persistence.LogRecord;
+import server.persistence.MessageLog;
+import utils.BinaryProtocol;
 import utils.ColorAssigner;
 import utils.CustomColors;
-
-import java.io.BufferedReader;
+import utils.RequestType;
+import utils.ResponseType;
+import utils.Tls;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.ServerSocket;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.logging.Level;
 import java.util.logging.Logger;
+import jdk.net.ExtendedSocketOptions;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
 
 /**
- * <p>This is the Server which when instantiated attaches to port 8082 and starts accepting requests</p>
+ * <p>This is the Server which when instantiated attaches to the given port (8082 unless -Dchat.server.port says otherwise) and starts accepting requests</p>
  *
  * <p> For every new incoming request, it instantiates a new ConnectionHandler which is responsinble for handling the request</p>
  *
  * <p>After instantiating the ConnectionHandler, it assigns a thread from ThreadPool to handle the connection</p>
+ *
+ * <p>-Dchat.server.acceptors accept loops run in parallel, sharing one listening socket or, with -Dchat.server.reusePort=true,
+ * each on its own socket bound with SO_REUSEPORT. Right after accept() the {@link AcceptGate} checks the connection
+ * against -Dchat.server.maxConnections and -Dchat.server.maxConnectionsPerAddress, a rejected connection is closed
+ * before anything is allocated for it</p>
+ *
+ * <p>In NIO mode (-Dchat.server.mode=nio) the accepted channel is instead handed to one of a few {@link NioEventLoop}s,
+ * which do the reading, line framing and writing without blocking a thread per connection</p>
+ *
+ * <p>In VIRTUAL mode (-Dchat.server.mode=virtual) every ConnectionHandler runs on its own virtual thread instead of a pooled platform thread</p>
+ *
+ * <p>Outgoing frames never get written by the thread which calls send(): they go into the bounded {@link OutboundQueue} of the
+ * connection and are written by its own writer, so one slow client can't stall a broadcast</p>
+ *
+ * <p>Clients speak either the original line protocol or the binary protocol described in {@link BinaryProtocol},
+ * chosen by the first byte they send. Both end up in the same {@code handleRequest()}</p>
+ *
+ * <p>With -Dchat.server.tls=true (THREADS and VIRTUAL mode) every accepted socket first goes through the TLS handshake
+ * on the bounded pool of a {@link TlsAcceptor}, and only then gets its ConnectionHandler</p>
+ *
+ * <p>A binary client which offers resume at /newClient gets a token. If its connection drops without /disconnect, the session
+ * is parked in {@link ResumableSessions} for -Dchat.server.resumeWindowSeconds: the username and the seat in the room stay
+ * taken, and a client which comes back with /resume takes the session over and gets the messages it missed</p>
+ *
+ * <p>Idle connections are watched by one {@link HashedWheelTimer}: a client which offered heartbeats gets a PING after
+ * -Dchat.server.pingIntervalSeconds of silence and is closed after -Dchat.server.idleTimeoutSeconds, so half-open connections
+ * leave their room with the usual Disconnect notice. Connections which never register are only closed after
+ * -Dchat.server.registrationTimeoutSeconds if it is set, the other ones get TCP keepalive probes</p>
+ *
+ * <p>With -Dchat.cluster.port several servers form a cluster through a {@link ClusterNode}: messages, notices and the
+ * room memberships are relayed to the other nodes, and usernames are unique across all of them</p>
  */
 
 public class ChatServer implements AutoCloseable {
     //constants:
     private final int MAX_USERNAME_SIZE = 10;
 
+    //the idle timeouts are seconds long, a tick of 100ms and 512 buckets make one turn of the wheel 51.2s
+    private static final long TIMER_TICK_MILLIS = 100;
+    private static final int TIMER_WHEEL_SIZE = 512;
+
+    //an idle writer thread of THREADS mode is kept this long, so a quiet server does not keep the whole pool around
+    private static final long WRITER_KEEP_ALIVE_SECONDS = 2;
+
 
     private static final Logger logger = Logger.getLogger(ChatServer.class.getName());
 
-    private final ServerSocket serverSocket;
+    //one listening socket shared by the acceptors, or one per acceptor with SO_REUSEPORT
+    private final ServerSocketChannel[] listeners;
+
+    //written to a rejected connection before it is closed, unless it is a TLS connection
+    private static final byte[] TOO_MANY_CONNECTIONS = "Error: Too many connections, try again later\n".getBytes(StandardCharsets.US_ASCII);
+
+    private final ServerConfig config;
+
+    //every registered connection by username, a username is taken atomically so two clients can't both get it
+    private final UsernameRegistry connections = new UsernameRegistry();
 
-    // CopyOnWriteArrayList: modifications (add/remove) create a new array copy.
-    // Threads already iterating see the old snapshot; new iterations/readers see the updated list.
-    private final ConcurrentHashMap<String, ConnectionHandler> connections = new ConcurrentHashMap<>();
+    //every registered connection is also a member of exactly one room, messages are only fanned out within the room
+    private final ConcurrentHashMap<String, Room> rooms = new ConcurrentHashMap<>();
 
     private final ExecutorService executorService;
+    //THREADS mode only: a bounded pool running the drains of the outbound queues, its threads go away soon after a burst of writes
+    private final ThreadPoolExecutor writerPool;
+
+    //only used in NIO mode
+    private final NioEventLoop[] eventLoops;
+    private final AtomicInteger nextEventLoop = new AtomicInteger();
+
+    //null unless -Dchat.server.tls=true
+    final TlsAcceptor tls;
+
+    //null when -Dchat.server.threadReportSeconds=0
+    private final ThreadUsageReporter threadUsageReporter;
+
+    //totals over all the connections, the per connection numbers are in their OutboundQueue
+    private final LongAdder droppedFrames = new LongAdder();
+    private final LongAdder slowConsumerDisconnects = new LongAdder();
+
+    final WriteStats writeStats = new WriteStats();
+
+    final AcceptGate acceptGate;
+
+    final ServerMetrics metrics = new ServerMetrics(this);
+
+    //the sessions which can be resumed, by token
+    final ResumableSessions sessions = new ResumableSessions();
+
+    //null when -Dchat.server.jmx=false
+    private ObjectName metricsName;
+
+    //null when -Dchat.persistence.dir is empty
+    private final MessageLog messageLog;
+
+    //numbers the messages when there is no message log to do it
+    private final AtomicLong messageSequence = new AtomicLong();
+
+    //null when -Dchat.cluster.port=0
+    private final ClusterNode cluster;
+
+    //the idle checks of the connections and the expiry of the parked sessions, one entry per connection
+    final HashedWheelTimer timer = new HashedWheelTimer("server-timer", TIMER_TICK_MILLIS, TimeUnit.MILLISECONDS, TIMER_WHEEL_SIZE);
+
+    //periodic reports and other small timed jobs of the server
+    private final ScheduledExecutorService housekeeping = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "server-housekeeping");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     public ChatServer(int port) throws IOException {
-        serverSocket = new ServerSocket(8082);
-        executorService = Executors.newCachedThreadPool();
-        logger.info("Server started on port: " + port);
+        this(port, ServerConfig.fromSystemProperties());
     }
 
+    public ChatServer(int port, ServerConfig config) throws IOException {
+        this.config = config;
+        if (config.tls && config.mode == ServerConfig.ExecutionMode.NIO) {
+            //the event loops would need an SSLEngine per connection
+            throw new IllegalArgumentException("TLS is only supported in THREADS and VIRTUAL mode");
+        }
+        tls = config.tls ? createTlsAcceptor(config) : null;
+        acceptGate = new AcceptGate(config.maxConnections, config.maxConnectionsPerAddress);
+        listeners = openListeners(port, config);
+
+        writerPool = config.mode == ServerConfig.ExecutionMode.THREADS ? createWriterPool(config.writerThreads) : null;
+        if (config.mode == ServerConfig.ExecutionMode.NIO) {
+            executorService = null;
+            eventLoops = new NioEventLoop[config.eventLoops];
+            for (int i = 0; i < eventLoops.length; i++) {
+                eventLoops[i] = new NioEventLoop("nio-event-loop-" + i);
+                eventLoops[i].start();
+            }
+        } else if (config.mode == ServerConfig.ExecutionMode.VIRTUAL) {
+            executorService = Executors.newVirtualThreadPerTaskExecutor();
+            eventLoops = null;
+        } else {
+            executorService = Executors.newCachedThreadPool();
+            eventLoops = null;
+        }
 
-    public static void main(String[] args) {
-        try (ChatServer server = new ChatServer(8082)) {
-            server.runServer();
-        } catch (Exception e) {
-            logger.severe("ERROR: Failed to start the server");
+        threadUsageReporter = config.threadReportSeconds > 0
+                ? new ThreadUsageReporter(config.threadReportSeconds, config.mode == ServerConfig.ExecutionMode.VIRTUAL)
+                : null;
+        if (config.writeReportSeconds > 0) {
+            housekeeping.scheduleAtFixedRate(() -> logger.info(writeStats.report()),
+                    config.writeReportSeconds, config.writeReportSeconds, TimeUnit.SECONDS);
+        }
+        if (config.persistenceDir.isEmpty()) {
+            messageLog = null;
+        } else {
+            messageLog = new MessageLog(Path.of(config.persistenceDir), config.fsyncPolicy, config.fsyncIntervalMillis,
+                    config.segmentBytes, config.retentionBytes, TimeUnit.HOURS.toMillis(config.retentionHours));
+            housekeeping.scheduleAtFixedRate(messageLog::enforceRetention, 1, 1, TimeUnit.HOURS);
+            if (config.writeReportSeconds > 0) {
+                housekeeping.scheduleAtFixedRate(() -> logger.info(messageLog.report()),
+                        config.writeReportSeconds, config.writeReportSeconds, TimeUnit.SECONDS);
+            }
+        }
+        rooms.put(Room.LOBBY, new Room(Room.LOBBY, config.historySize));
+        housekeeping.scheduleAtFixedRate(metrics::tick, 1, 1, TimeUnit.SECONDS);
+        housekeeping.scheduleAtFixedRate(acceptGate::logRejections, 1, 1, TimeUnit.SECONDS);
+        if (config.jmx) {
+            registerMetrics();
         }
+        if (config.clusterPort > 0) {
+            cluster = new ClusterNode(config.clusterNodeId, config.clusterBindAddress, config.clusterPort, config.clusterPeers,
+                    config.clusterSecret, config.clusterClaimTimeoutMillis, new ClusterListener());
+            if (config.writeReportSeconds > 0) {
+                housekeeping.scheduleAtFixedRate(() -> logger.info(cluster.report()),
+                        config.writeReportSeconds, config.writeReportSeconds, TimeUnit.SECONDS);
+            }
+        } else {
+            cluster = null;
+        }
+        logger.info("Server started on port: " + localPort() + " (" + config + ")");
     }
 
-
-    public void runServer() {
+    /**
+     * binds the listening sockets: one per acceptor with SO_REUSEPORT, otherwise a single one which the acceptors share
+     */
+    private static ServerSocketChannel[] openListeners(int port, ServerConfig config) throws IOException {
+        ServerSocketChannel first = ServerSocketChannel.open();
+        boolean reusePort = config.reusePort && config.acceptors > 1
+                && first.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        if (config.reusePort && config.acceptors > 1 && !reusePort) {
+            logger.warning("SO_REUSEPORT is not supported on this platform, the acceptors share one listening socket");
+        }
+        ServerSocketChannel[] listeners = new ServerSocketChannel[reusePort ? config.acceptors : 1];
+        listeners[0] = first;
         try {
-            while (!serverSocket.isClosed()) {
-                Socket clientSocket = serverSocket.accept();
-                logger.info("New client connected: " + clientSocket.getInetAddress());
-                ConnectionHandler connectionHandler = new ConnectionHandler(clientSocket);
-                executorService.execute(connectionHandler);
+            if (reusePort) {
+                first.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            first.bind(new InetSocketAddress(port), config.acceptBacklog);
+            //with port 0 the others join the port the first one got
+            int boundPort = first.socket().getLocalPort();
+            for (int i = 1; i < listeners.length; i++) {
+                listeners[i] = ServerSocketChannel.open();
+                listeners[i].setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                listeners[i].bind(new InetSocketAddress(boundPort), config.acceptBacklog);
             }
         } catch (IOException e) {
-            if (!serverSocket.isClosed()) {
-                logger.severe("Error: IOEException while accepting client connection");
+            for (ServerSocketChannel listener : listeners) {
+                if (listener != null) {
+                    listener.close();
+                }
             }
-        } finally {
-            logger.info("Server is no longer accepting new connections");
+            throw e;
         }
+        return listeners;
     }
 
-    @Override
-    public void close() {
-        //first close all the connections
-        for (ConnectionHandler connectionHandler : connections.values()) {
-            connectionHandler.close();
+    /**
+     * the port the server listens on, the one it was given unless that was 0
+     */
+    int localPort() {
+        return listeners[0].socket().getLocalPort();
+    }
+
+
+    private static TlsAcceptor createTlsAcceptor(ServerConfig config) throws IOException {
+        if (config.tlsKeyStore.isEmpty()) {
+            throw new IllegalArgumentException("TLS needs a key store: -Dchat.server.tls.keyStore");
         }
-        //close the Thread Pool
-        executorService.shutdown();
         try {
-            //close the server
-            if (!serverSocket.isClosed()) {
-                serverSocket.close();
-            }
-        } catch (IOException e) {
-            logger.severe("Error while attempting to close the server");
+            SSLContext context = Tls.serverContext(Path.of(config.tlsKeyStore), config.tlsKeyStorePassword.toCharArray());
+            return new TlsAcceptor(context, config.tlsHandshakeThreads, config.tlsHandshakeQueue, config.tlsHandshakeTimeoutMillis,
+                    config.tlsSessionCacheSize, config.tlsSessionTimeoutSeconds);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Could not load the TLS key store " + config.tlsKeyStore + ": " + e.getMessage(), e);
         }
     }
 
+    /**
+     * THREADS mode: a fixed number of writer threads, a drain which finds them all busy waits in the queue. A connection
+     * has at most one drain scheduled, so the queue holds at most one task per connection
+     */
+    private static ThreadPoolExecutor createWriterPool(int threads) {
+        AtomicInteger threadNumber = new AtomicInteger();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, WRITER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), runnable -> new Thread(runnable, "writer-" + threadNumber.getAndIncrement()));
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /**
+     * publishes the metrics as chat.server:type=ServerMetrics,port=<port>, the port tells apart several servers in one JVM
+     */
+    private void registerMetrics() {
+        try {
+            metricsName = new ObjectName("chat.server:type=ServerMetrics,port=" + localPort());
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, metricsName);
+        } catch (JMException e) {
+            logger.warning("Could not register the server metrics with JMX: " + e.getMessage());
+            metricsName = null;
+        }
+    }
 
-    public void broadcast(String message) {
-        for (ConnectionHandler connectionHandler : connections.values()) {
-            connectionHandler.send(message);
+    public static void main(String[] args) {
+        try (ChatServer server = new ChatServer(Integer.getInteger("chat.server.port", 8082))) {
+            server.runServer();
+        } catch (Exception e) {
+            logger.severe("ERROR: Failed to start the server");
         }
     }
 
-    public void broadcastExceptFor(String message, ConnectionHandler ignoreThisClient) {
-        for (ConnectionHandler connectionHandler : connections.values()) {
-            if(connectionHandler != ignoreThisClient)
-                connectionHandler.send(message);
+
+    /**
+     * accepts connections until the server is closed, on config.acceptors - 1 threads of its own and on the calling thread
+     */
+    public void runServer() {
+        for (int i = 1; i < config.acceptors; i++) {
+            ServerSocketChannel listener = listeners[i % listeners.length];
+            Thread acceptor = new Thread(() -> acceptLoop(listener), "acceptor-" + i);
+            acceptor.setDaemon(true);
+            acceptor.start();
         }
+        acceptLoop(listeners[0]);
+        logger.info("Server is no longer accepting new connections");
     }
 
+    private void acceptLoop(ServerSocketChannel listener) {
+        while (listener.isOpen()) {
+            try {
+                accepted(listener.accept());
+            } catch (ClosedChannelException e) {
+                //closed by close()
+                return;
+            } catch (IOException e) {
+                //eg: out of file descriptors, the next accept may work again
+                logger.warning("Error while accepting a client connection: " + e.getMessage());
+                pauseAccepting();
+            }
+        }
+    }
 
-    public void removeConnection(ConnectionHandler handler) {
-        connections.remove(handler.username);
+    private static void pauseAccepting() {
+        try {
+            Thread.sleep(10);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
     }
 
     /**
-     * adds the parameter to the HashMap with its username as key
+     * admits or rejects the connection before anything is allocated for it, an admitted one gets its handler
      */
-    public void addConnection(ConnectionHandler handler) {
-        connections.put(handler.username, handler);
+    private void accepted(SocketChannel clientChannel) {
+        InetAddress address = clientChannel.socket().getInetAddress();
+        if (!acceptGate.admit(address)) {
+            reject(clientChannel);
+            return;
+        }
+        if (logger.isLoggable(Level.FINE)) {
+            logger.fine("New client connected: " + address);
+        }
+        keepAlive(clientChannel);
+        try {
+            if (eventLoops != null) {
+                acceptNonBlocking(clientChannel);
+            } else if (tls != null) {
+                tls.accept(clientChannel.socket(), socket -> executorService.execute(new ConnectionHandler(socket)),
+                        () -> acceptGate.release(address));
+            } else {
+                executorService.execute(new ConnectionHandler(clientChannel.socket()));
+            }
+        } catch (IOException | RejectedExecutionException e) {
+            //the server is closing
+            acceptGate.release(address);
+            closeQuietly(clientChannel);
+        }
     }
 
-
     /**
-     * NOTE: The reason inner class was used for Connection Handler instead of separate class because some instance methods such as 'broadcast()' has to be accessed by Connection Handler instances
-     *
-     * <h2>What this class does</h2>
-     * <p>First the server greets the client by sending 'Welcome to the chat room'</p>
-     *
-     * <p>Send the notification to all the other connected members that new person has joined the chat room</p>
-     *
+     * TCP keepalive probes after the ping interval, for the clients which can't answer a PING. The probes are spread over
+     * the rest of the idle timeout, so a half-open connection fails its blocked read about when a heartbeat client would be reaped
      */
-
-    public class ConnectionHandler implements Runnable, AutoCloseable {
-        final private Socket clientSocket;
-        String username;
-        PrintWriter clientWriter;
-        private boolean isNew;
-        private boolean isAdmin  =false;
-        int usernameColor;
-
-        public ConnectionHandler(Socket clientSocket) {
-            this.clientSocket = clientSocket;
-            this.isNew = true;
+    private void keepAlive(SocketChannel clientChannel) {
+        if (config.pingIntervalSeconds == 0) {
+            return;
         }
-
-        @Override
-        public void run() {
-            try (
-                    BufferedReader clientReader = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-                    PrintWriter clientWriter = new PrintWriter(clientSocket.getOutputStream(), true);
-            ) {
-                this.clientWriter = clientWriter;
-                String payload;
-                while ((payload = clientReader.readLine()) != null) {
-                    handlePayLoad(payload);
-                }
-            } catch (IOException e) {
-                logger.info("Client " + username + " disconnected " + e.getMessage());
-                close();
+        try {
+            clientChannel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+            if (clientChannel.supportedOptions().contains(ExtendedSocketOptions.TCP_KEEPIDLE)) {
+                int probes = 3;
+                int probeInterval = Math.max(1, (config.idleTimeoutSeconds - config.pingIntervalSeconds) / probes);
+                clientChannel.setOption(ExtendedSocketOptions.TCP_KEEPIDLE, config.pingIntervalSeconds);
+                clientChannel.setOption(ExtendedSocketOptions.TCP_KEEPINTERVAL, probeInterval);
+                clientChannel.setOption(ExtendedSocketOptions.TCP_KEEPCOUNT, probes);
             }
+        } catch (IOException e) {
+            //the platform defaults stay
         }
+    }
 
+    /**
+     * one write into the empty send buffer, which never blocks, then the close
+     */
+    private void reject(SocketChannel clientChannel) {
+        try {
+            if (tls == null) {
+                clientChannel.write(ByteBuffer.wrap(TOO_MANY_CONNECTIONS));
+            }
+        } catch (IOException e) {
+            //closed below
+        } finally {
+            closeQuietly(clientChannel);
+        }
+    }
 
-        public void handlePayLoad(String payload) {
-            payload = payload.trim();
-            String command = null;
-            String body = null;
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            //nothing left to do with it
+        }
+    }
 
-            int spaceIndex = payload.indexOf(" ");
+    /**
+     * switches the channel to non-blocking mode and hands it to the event loops in round-robin order
+     */
+    private void acceptNonBlocking(SocketChannel clientChannel) throws IOException {
+        clientChannel.configureBlocking(false);
+        NioEventLoop eventLoop = eventLoops[Math.floorMod(nextEventLoop.getAndIncrement(), eventLoops.length)];
+        eventLoop.register(clientChannel, new NioConnectionHandler(clientChannel, eventLoop));
+    }
 
-            if(payload.isEmpty()) {
-                clientWriter.println("Invalid payload: format should be 'command <space> body'");
-                return;
+    @Override
+    public void close() {
+        //first close all the connections
+        for (ConnectionHandler connectionHandler : connections.values()) {
+            connectionHandler.close();
+        }
+        if (tls != null) {
+            tls.close();
+        }
+        //close the Thread Pool or the event loops
+        if (executorService != null) {
+            executorService.shutdown();
+        }
+        if (writerPool != null) {
+            writerPool.shutdown();
+        }
+        if (eventLoops != null) {
+            for (NioEventLoop eventLoop : eventLoops) {
+                eventLoop.close();
             }
-
-            //extracting the command and body
-            //some payoads may not have body such as '/disconnect'
-            if(spaceIndex != -1 && !payload.substring(spaceIndex + 1).trim().isEmpty()) {
-                command = payload.substring(0, spaceIndex).trim();
-                body = payload.substring(spaceIndex + 1).trim();
-            } else {
-                command = payload.trim();
+        }
+        if (threadUsageReporter != null) {
+            threadUsageReporter.close();
+        }
+        housekeeping.shutdownNow();
+        timer.close();
+        if (metricsName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(metricsName);
+            } catch (JMException e) {
+                logger.warning("Could not unregister the server metrics from JMX: " + e.getMessage());
             }
-
-            if(command.equals("/adminLogin")) {
-                String username;
-                String password;
-                if(body != null && body.contains("--")) {
-                    username = body.trim().split("--")[0];
-                    password = body.trim().split("--")[1];
-                    handleAdminLogin(username, password);
-                    return;
+        }
+        if (cluster != null) {
+            cluster.close();
+        }
+        //after the connections, so that every message they accepted is written
+        if (messageLog != null) {
+            messageLog.close();
+        }
+        for (ServerSocketChannel listener : listeners) {
+            try {
+                //close the server
+                if (listener.isOpen()) {
+                    listener.close();
                 }
-                send("Error: /adminLogin requires credentials: <username>--<password>");
-                return;
+            } catch (IOException e) {
+                logger.severe("Error while attempting to close the server");
             }
+        }
+    }
 
 
-            //this is done to prevent client to explicitly execute /isNew command even when it is not a new client
-            if(isNew) {
-                if(command.equals("/newClient")) {
-                    handleNewClient(body);
-                    return;
+    /**
+     * returns up to max messages of the room right before beforeSequence, oldest first: from the history ring of the room,
+     * and from the message log once the ring does not reach back far enough (eg: after a restart)
+     */
+    List<LogRecord> historyBefore(String roomName, long beforeSequence, int max) {
+        Room room = rooms.get(roomName);
+        List<LogRecord> records = room != null ? room.history.before(beforeSequence, max) : new ArrayList<>();
+        if (records.size() < max && messageLog != null) {
+            long oldest = records.isEmpty() ? Math.min(beforeSequence, messageLog.nextSequence()) : records.get(0).sequence;
+            try {
+                List<LogRecord> older = messageLog.readBefore(oldest, max - records.size(), roomName);
+                if (!older.isEmpty()) {
+                    older = new ArrayList<>(older);
+                    older.addAll(records);
+                    records = older;
                 }
-                //the cient is new but trying to execute any other command
-                send("Register with /newClient command with a valid username");
-                return;
+            } catch (IOException e) {
+                logger.warning("Error while reading the message log: " + e.getMessage());
             }
+        }
+        return records;
+    }
 
-            switch (command) {
-                case "/message": {
-                    handleMessage(body);
-                    break;
-                }
-
-                case "/changeUsername": {
-                    if(isAdmin) {
-                        send("UsernameChangeFailed: admin can't change their username");
-                        break;
-                    }
-                    handleChangeUsername(body);
-                    break;
-                }
+    /**
+     * drops the oldest records until the rest surely fits into one frame of the binary protocol
+     */
+    private static List<LogRecord> fitIntoFrame(List<LogRecord> records) {
+        int budget = BinaryProtocol.MAX_FRAME_LENGTH - 16;
+        int from = records.size();
+        while (from > 0) {
+            LogRecord record = records.get(from - 1);
+            //4 bytes for each field, 8 for the sequence, and at most 3 UTF-8 bytes per char
+            int bytes = 20 + 3 * (record.username.length() + record.text.length());
+            if (bytes > budget) {
+                break;
+            }
+            budget -= bytes;
+            from--;
+        }
+        return records.subList(from, records.size());
+    }
 
-                case "/ban": {
-                    if(isAdmin) {
-                        handleUserBan(body);
-                        break;
-                    } else {
-                        send("Error: only admins can use /ban command");
-                        break;
-                    }
-                }
+    /**
+     * control characters are refused in usernames and in relayed text: a CR or LF sent in a binary frame would end the line
+     * for the clients of the line protocol, and the rest of it would read like a line of the server
+     */
+    static boolean hasControlCharacters(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            if (Character.isISOControl(text.charAt(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
 
-                case "/disconnect": {
-                    //send /disconnect so that client can initate the disconnect process
-                    send("/disconnect");
-                    broadcastExceptFor("Disconnect: " + username + " has left the chat", this);
-                    close();
-                    break;
-                    //this closes the socket, and since the socket is closed, run() faces an exception which logs Client Disconnected as a part of error handling.
-                }
 
-                case "/onlineCount": {
-                    send("OnlineCount: " + connections.size());
-                    break;
-                }
+    /**
+     * builds the frame of a broadcast with the codec of the receiving connection
+     */
+    interface FrameEncoder {
+        ByteBuffer encode(WireCodec codec);
+    }
 
-                case "/onlineList": {
-                    StringBuilder list = new StringBuilder();
-                    int count = 1;
-                    for(String name: connections.keySet()) {
-                        list.append(count).append(". ").append(name).append("--");
-                        count++;
-                    }
-                    send("OnlineList: " + list.substring(0, list.length() - 2/*remove the last '--'*/));
-                    break;
-                }
+    /**
+     * sends to every connection of the server, whatever room it is in
+     */
+    public void broadcast(ResponseType type, String text) {
+        broadcastExceptFor(codec -> codec.encode(type, text), null);
+    }
 
-                case "/help": {
-                    StringBuilder helps = new StringBuilder();
-                    int count = 1;
-                    helps.append("Help: ");
-                    helps.append("/onlineCount    : check how many people are online");
+    public void broadcastExceptFor(ResponseType type, String text, ConnectionHandler ignoreThisClient) {
+        broadcastExceptFor(codec -> codec.encode(type, text), ignoreThisClient);
+    }
 
-                    helps.append("--");
-                    helps.append("/onlineList     : list the online usernames");
+    void broadcastExceptFor(FrameEncoder encoder, ConnectionHandler ignoreThisClient) {
+        fanOut(connections.values(), encoder, ignoreThisClient, FanOutTracker.NO_TAG);
+    }
 
-                    helps.append("--");
-                    helps.append("/disconnect     : leave the chat roomt");
+    /**
+     * sends to the members of one room only
+     */
+    void broadcastToRoom(Room room, ResponseType type, String text, ConnectionHandler ignoreThisClient) {
+        broadcastToRoom(room, codec -> codec.encode(type, text), ignoreThisClient);
+    }
 
-                    helps.append("--");
-                    helps.append("/changeUsername <newUsername>: changes the username");
+    void broadcastToRoom(Room room, FrameEncoder encoder, ConnectionHandler ignoreThisClient) {
+        broadcastToRoom(room, encoder, ignoreThisClient, FanOutTracker.NO_TAG);
+    }
 
-                    send(helps.toString());
-                    break;
-                }
+    /**
+     * the frames carry the tag of a fan-out measured by the {@link FanOutTracker}, returns the number of frames queued
+     */
+    int broadcastToRoom(Room room, FrameEncoder encoder, ConnectionHandler ignoreThisClient, long tag) {
+        int queued = fanOut(room.members.values(), encoder, ignoreThisClient, tag);
+        room.framesQueued.add(queued);
+        return queued;
+    }
 
-                default: {
-                    clientWriter.println("Wrong Command");
-                }
+    /**
+     * the frame is encoded only once per protocol in use, every connection queues a duplicate of the same read-only frame.
+     * Returns the number of frames queued
+     */
+    private int fanOut(Collection<ConnectionHandler> recipients, FrameEncoder encoder, ConnectionHandler ignoreThisClient, long tag) {
+        ByteBuffer[] frames = new ByteBuffer[WireCodec.COUNT];
+        int queued = 0;
+        for (ConnectionHandler connectionHandler : recipients) {
+            //a parked session gets its missed messages from the history when it is resumed
+            if(connectionHandler == ignoreThisClient || connectionHandler.isParked())
+                continue;
+            WireCodec codec = connectionHandler.codec;
+            ByteBuffer frame = frames[codec.id()];
+            if (frame == null) {
+                frame = Frames.shared(encoder.encode(codec));
+                frames[codec.id()] = frame;
             }
+            connectionHandler.sendFrame(frame.duplicate(), tag);
+            queued++;
         }
+        return queued;
+    }
 
-
-
-        void handleAdminLogin(String username, String password) {
-            if(!(username.equals("admin") &&  password.equals("admin"))) {
-               send("Error: Incorrect Credentials");
-               return;
-            }
-            if(connections.containsKey("admin")) {
-                send("Error: Admin is already logged in");
-                return;
-            }
-            this.username = "admin";
-            this.usernameColor = CustomColors.BRIGHT_RED;
-            isAdmin = true;
-            addConnection(this);
-            send("Success: Logged in as admin");
-            isNew = false;
+    /**
+     * sends a notice to the members of the room on this node, if the room exists here, and on every other node of the cluster
+     */
+    void announce(String roomName, ResponseType type, String text, ConnectionHandler ignoreThisClient) {
+        Room room = rooms.get(roomName);
+        if (room != null) {
+            broadcastToRoom(room, type, text, ignoreThisClient);
         }
+        if (cluster != null) {
+            cluster.forwardNotice(roomName, type, text);
+        }
+    }
 
-        void handleUserBan(String username) {
-            if(username != null && username.trim().isEmpty()) {
-                send("Error: Insert a valid username");
-                return;
-            }
-
-            if(!connections.containsKey(username)) {
-                send("Error: The provided username is not in the chat room");
-                return;
-            }
+    /**
+     * sends a notice to every connection of the cluster
+     */
+    void announceToEveryone(ResponseType type, String text) {
+        broadcast(type, text);
+        if (cluster != null) {
+            cluster.forwardNotice("", type, text);
+        }
+    }
 
-            ConnectionHandler userToBan = connections.get(username);
-            userToBan.send("Error: You have been banned");
-            userToBan.close();
-            broadcast("'"+ username +"' has been banned by admin");
+    /**
+     * keeps a message of the room: in the message log if there is one and in the history ring of the room.
+     * The record is null once the message log is closed or while it drops records, the message is still relayed without a sequence
+     */
+    LogRecord record(Room room, String username, int usernameColor, String message) {
+        LogRecord record = messageLog != null
+                ? messageLog.append(room.name, username, usernameColor, message)
+                : new LogRecord(messageSequence.getAndIncrement(), System.currentTimeMillis(), room.name, username, usernameColor, message);
+        if (record != null) {
+            room.history.append(record);
+        }
+        room.messages.increment();
+        return record;
+    }
+
+    /**
+     * sequence of the newest message so far, -1 before the first one
+     */
+    long lastSequence() {
+        return (messageLog != null ? messageLog.nextSequence() : messageSequence.get()) - 1;
+    }
+
+    /**
+     * members of the room on this node and on the other nodes of the cluster
+     */
+    int onlineCount(Room room) {
+        return room.members.size() + (cluster != null ? cluster.remoteCount(room.name) : 0);
+    }
+
+    /**
+     * the usernames of the room on this node and on the other nodes, rebuilt only after the membership changed
+     */
+    RosterSnapshot roster(Room room) {
+        return room.roster(cluster, config.onlineListPageSize);
+    }
+
+    /**
+     * adds the handler to the room, creating the room if needed
+     */
+    Room enterRoom(String name, ConnectionHandler handler) {
+        Room entered = rooms.compute(name, (key, room) -> {
+            if (room == null) {
+                room = new Room(key, config.historySize);
+            }
+            room.add(handler);
+            return room;
+        });
+        handler.room = entered;
+        if (cluster != null) {
+            cluster.userJoined(handler.username, name);
+        }
+        return entered;
+    }
+
+    /**
+     * removes the handler from the room, and the room from the server once it is empty (except the lobby)
+     */
+    void leaveRoom(Room room, ConnectionHandler handler) {
+        rooms.computeIfPresent(room.name, (key, current) -> {
+            current.remove(handler.username, handler);
+            return current.members.isEmpty() && !current.isLobby() ? null : current;
+        });
+    }
+
+    /**
+     * puts the handler into the seat of the previous one in the room, the roster stays the same.
+     * Returns the room, null if the previous handler is no longer a member
+     */
+    Room takeOverSeat(Room room, ConnectionHandler previous, ConnectionHandler handler) {
+        Room[] taken = new Room[1];
+        rooms.computeIfPresent(room.name, (key, current) -> {
+            if (current.members.replace(handler.username, previous, handler)) {
+                taken[0] = current;
+            }
+            return current;
+        });
+        return taken[0];
+    }
+
+    /**
+     * moves the handler to its new username within its room
+     */
+    void renameInRoom(Room room, String oldUsername, ConnectionHandler handler) {
+        rooms.computeIfPresent(room.name, (key, current) -> {
+            current.members.rename(oldUsername, handler.username, handler);
+            return current;
+        });
+        if (cluster != null) {
+            cluster.userLeft(oldUsername);
+            cluster.userJoined(handler.username, room.name);
+        }
+    }
+
+
+    public void removeConnection(ConnectionHandler handler) {
+        sessions.remove(handler.resumeToken, handler);
+        //unregistered clients have no username yet
+        //remove(key, value) so that a handler never removes someone else who took its old name
+        if (handler.username != null && connections.remove(handler.username, handler) && cluster != null) {
+            cluster.userLeft(handler.username);
+        }
+        Room room = handler.room;
+        if (room != null) {
+            leaveRoom(room, handler);
+        }
+    }
+
+    /**
+     * the local side of the cluster: events relayed by the other nodes are only delivered to the connections of this node
+     */
+    private class ClusterListener implements ClusterNode.Listener {
+        @Override
+        public void onRemoteMessage(String roomName, String username, int usernameColor, String text) {
+            Room room = rooms.get(roomName);
+            if (room == null) {
+                //nobody is in the room on this node, the log still keeps the message for a later /join
+                if (messageLog != null) {
+                    messageLog.append(roomName, username, usernameColor, text);
+                }
+                return;
+            }
+            LogRecord record = record(room, username, usernameColor, text);
+            long sequence = record != null ? record.sequence : -1;
+            metrics.messagesOut.add(broadcastToRoom(room, codec -> codec.message(username, usernameColor, text, sequence), null, FanOutTracker.NO_TAG));
+        }
+
+        @Override
+        public void onRemoteNotice(String roomName, ResponseType type, String text) {
+            if (roomName.isEmpty()) {
+                broadcast(type, text);
+                return;
+            }
+            Room room = rooms.get(roomName);
+            if (room != null) {
+                broadcastToRoom(room, type, text, null);
+            }
+        }
+
+        @Override
+        public void onRemoteBan(String username) {
+            ConnectionHandler userToBan = connections.get(username);
+            if (userToBan != null) {
+                userToBan.send(ResponseType.ERROR, "You have been banned");
+                userToBan.close();
+            }
+        }
+
+        @Override
+        public void onRemoteWhisper(String to, String from, int fromColor, String text) {
+            //the user may have left since the sending node looked it up, then the whisper is lost like a message to an empty room
+            ConnectionHandler recipient = connections.get(to);
+            if (recipient != null && !recipient.isParked()) {
+                recipient.sendFrame(recipient.codec.whisper(from, fromColor, text));
+            }
+        }
+
+        @Override
+        public boolean isLocallyTaken(String username) {
+            return connections.containsKey(username);
+        }
+
+        @Override
+        public Map<String, String> localUsers() {
+            Map<String, String> users = new HashMap<>();
+            for (ConnectionHandler connectionHandler : connections.values()) {
+                Room room = connectionHandler.room;
+                if (room != null) {
+                    users.put(connectionHandler.username, room.name);
+                }
+            }
+            return users;
+        }
+    }
+
+    /**
+     * registers the handler under its username, returns false if someone else has the username already
+     */
+    public boolean addConnection(ConnectionHandler handler) {
+        return connections.register(handler.username, handler);
+    }
+
+    /**
+     * frames thrown away by the slow consumer policy since the server started
+     */
+    public long droppedFrames() {
+        return droppedFrames.sum();
+    }
+
+    public long slowConsumerDisconnects() {
+        return slowConsumerDisconnects.sum();
+    }
+
+    /**
+     * registered connections
+     */
+    int connectionCount() {
+        return connections.size();
+    }
+
+    /**
+     * the deepest outbound queue right now
+     */
+    int maxOutboundBacklog() {
+        int max = 0;
+        for (ConnectionHandler connectionHandler : connections.values()) {
+            max = Math.max(max, connectionHandler.outbound.depth());
+        }
+        return max;
+    }
+
+    /**
+     * the connections with the deepest outbound queues, eg: 'bob: 812 frames (max 1024, 90 dropped)'
+     */
+    List<String> largestBacklogs(int count) {
+        List<ConnectionHandler> handlers = new ArrayList<>(connections.values());
+        handlers.sort((a, b) -> Integer.compare(b.outbound.depth(), a.outbound.depth()));
+        List<String> lines = new ArrayList<>();
+        for (ConnectionHandler handler : handlers.subList(0, Math.min(count, handlers.size()))) {
+            if (handler.outbound.depth() == 0) {
+                break;
+            }
+            lines.add(handler.username + ": " + handler.outbound.depth() + " frames (max " + handler.outbound.maxDepth()
+                    + ", " + handler.outbound.dropped() + " dropped)");
+        }
+        return lines;
+    }
+
+    /**
+     * the compressing connections which saved the most bytes, with their compression report
+     */
+    List<String> largestCompressionSavings(int count) {
+        List<ConnectionHandler> handlers = new ArrayList<>();
+        for (ConnectionHandler handler : connections.values()) {
+            if (handler.compressor != null) {
+                handlers.add(handler);
+            }
+        }
+        handlers.sort((a, b) -> Long.compare(b.compressor.bytesSaved(), a.compressor.bytesSaved()));
+        List<String> lines = new ArrayList<>();
+        for (ConnectionHandler handler : handlers.subList(0, Math.min(count, handlers.size()))) {
+            lines.add(handler.username + ": " + handler.compressor.report());
+        }
+        return lines;
+    }
+
+    /**
+     * sum of the current outbound queue depths of all the connections
+     */
+    public long outboundBacklog() {
+        long backlog = 0;
+        for (ConnectionHandler connectionHandler : connections.values()) {
+            backlog += connectionHandler.outbound.depth();
+        }
+        return backlog;
+    }
+
+
+    /**
+     * NOTE: The reason inner class was used for Connection Handler instead of separate class because some instance methods such as 'broadcast()' has to be accessed by Connection Handler instances
+     *
+     * <h2>What this class does</h2>
+     * <p>First the server greets the client by sending 'Welcome to the chat room'</p>
+     *
+     * <p>Send the notification to all the other connected members that new person has joined the chat room</p>
+     *
+     */
+
+    public class ConnectionHandler implements Runnable, AutoCloseable {
+        //upper bound of the frames in one gathering write, well below the IOV_MAX of the usual platforms
+        static final int MAX_FRAMES_PER_WRITE = 256;
+
+        private static final String[] HELP_LINES = {
+                "/onlineCount    : check how many people are online",
+                "/onlineList [p] : list the online usernames, page p of a long list",
+                "/disconnect     : leave the chat roomt",
+                "/changeUsername <newUsername>: changes the username",
+                "/history <n>    : show n earlier messages",
+                "/join <room>    : move to another room, creates it if needed",
+                "/leave          : go back to the lobby",
+                "/rooms          : list the rooms",
+                "/ping           : check the connection, the server answers Pong",
+                "/whisper <username> <message>: message one user only"
+        };
+
+        //at most this many messages are sent for one /history
+        private static final int MAX_HISTORY_PAGE = 200;
+
+
+        final private Socket clientSocket;
+        //null for a socket which was not accepted, eg: in the benchmarks
+        private final InetAddress admittedFrom;
+        private final AtomicBoolean admissionReleased = new AtomicBoolean(false);
+        String username;
+        //read by the idle check on the timer thread
+        private volatile boolean isNew;
+        private boolean isAdmin  =false;
+        int usernameColor;
+
+        //null until the client is registered, then only changed by the client's own requests
+        volatile Room room;
+
+        //sequence of the oldest message this client has been shown in its room, /history pages back from here
+        private long historyCursor;
+
+        //reused for every request of the connection
+        private final CommandLine request = new CommandLine();
+
+        //System.nanoTime() when the request being handled was read, the start of its fan-out latency
+        private long requestStartedAt;
+
+        //set while the cluster is asked whether the username is free, the client has to wait for the answer
+        volatile boolean claimPending = false;
+
+        //switched to BINARY when the client starts with the binary preamble
+        volatile WireCodec codec = WireCodec.TEXT;
+
+        //set when a binary client offered compression at /newClient, used by the writer from its next batch on
+        volatile FrameCompressor compressor;
+
+        //set when a binary client offered resume at /newClient or /resume
+        private boolean resumeOffered = false;
+
+        //null unless the session can be resumed, see ResumableSessions
+        volatile String resumeToken;
+
+        //set once the connection is gone and the session waits to be resumed
+        private final AtomicBoolean parked = new AtomicBoolean(false);
+
+        //set once another connection resumed this session, from then on closing this one leaves the session alone
+        private volatile boolean handedOver = false;
+
+        //the rate limits of /message, null when off. Taken over by a resumed session, so reconnecting does not refill them
+        private TokenBucket messageBucket = config.messageRate > 0 ? new TokenBucket(config.messageRate, config.messageBurst, System.nanoTime()) : null;
+        private TokenBucket byteBucket = config.messageByteRate > 0 ? new TokenBucket(config.messageByteRate, config.messageByteBurst, System.nanoTime()) : null;
+
+        //System.nanoTime() until which the client was told to hold back, messages dropped before then are not answered again
+        private long throttledUntil = System.nanoTime();
+
+        //set when a binary client offered heartbeats at /newClient or /resume, it gets PINGs and is reaped when it stops answering
+        private volatile boolean heartbeat = false;
+
+        //System.nanoTime() of the last request, the only thing the reading side does for the idle check
+        private volatile long lastReadNanos = System.nanoTime();
+
+        //only used by the idle check on the timer thread
+        private long pingSentAt = lastReadNanos;
+        private volatile HashedWheelTimer.Timeout idleCheck;
+
+        //set once the connection was closed for going quiet, a parked session announces it when it expires
+        private volatile boolean timedOut = false;
+
+        final OutboundQueue outbound = new OutboundQueue(config.outboundQueueCapacity, config.slowConsumerPolicy, droppedFrames);
+
+        //THREADS mode: no writer thread per connection, a pooled thread drains the queue only while frames are pending
+        private volatile boolean drainOnDemand = false;
+        private final AtomicBoolean drainScheduled = new AtomicBoolean();
+        private final AtomicBoolean writingFinished = new AtomicBoolean();
+        //only used by the thread draining the queue, handed over through drainScheduled
+        private WritableByteChannel drainOut;
+        private BufferedOutputStream drainStream;
+
+        public ConnectionHandler(Socket clientSocket) {
+            this.clientSocket = clientSocket;
+            this.admittedFrom = clientSocket.getInetAddress();
+            this.isNew = true;
+        }
+
+        @Override
+        public void run() {
+            if (threadUsageReporter != null) {
+                threadUsageReporter.connectionThreadStarted();
+            }
+            watchIdle();
+            if (config.mode == ServerConfig.ExecutionMode.VIRTUAL) {
+                //a parked virtual writer costs a small heap object, so it waits for frames on its own thread
+                executorService.execute(this::writeLoop);
+            } else {
+                //a platform writer per connection would double the threads, the queue is drained by a pooled thread on demand
+                drainOnDemand = true;
+                wakeWriter();
+            }
+            try (
+                    BufferedInputStream clientInput = new BufferedInputStream(new CountingInputStream(clientSocket.getInputStream(), metrics.bytesIn));
+            ) {
+                //the first byte tells whether the client wants the binary protocol
+                clientInput.mark(1);
+                int firstByte = clientInput.read();
+                clientInput.reset();
+
+                if (firstByte == BinaryProtocol.PREAMBLE[0]) {
+                    readBinaryFrames(clientInput);
+                } else {
+                    readLines(clientInput);
+                }
+                //the client closed its side, stop the writer as well
+                abort();
+            } catch (IOException e) {
+                logger.info("Client " + username + " disconnected " + e.getMessage());
+                abort();
+            } finally {
+                if (threadUsageReporter != null) {
+                    threadUsageReporter.connectionThreadFinished();
+                }
+            }
+        }
+
+        /**
+         * splits the input into lines like onTextBytes() does in NIO mode: a line longer than maxLineLength closes the
+         * connection instead of growing without a limit like BufferedReader.readLine() would
+         */
+        private void readLines(InputStream clientInput) throws IOException {
+            byte[] line = new byte[256];
+            int length = 0;
+            int b;
+            while ((b = clientInput.read()) != -1) {
+                if (b == '\n') {
+                    int end = length > 0 && line[length - 1] == '\r' ? length - 1 : length;
+                    handlePayLoad(new String(line, 0, end, StandardCharsets.UTF_8));
+                    length = 0;
+                    continue;
+                }
+                if (length == line.length) {
+                    if (line.length >= config.maxLineLength) {
+                        logger.warning("Client " + username + " sent a line longer than " + config.maxLineLength + " bytes, closing the connection");
+                        return;
+                    }
+                    line = Arrays.copyOf(line, Math.min(line.length * 2, config.maxLineLength));
+                }
+                line[length++] = (byte) b;
+            }
+            //the last line may end without a line break, like readLine() the handler still gets it
+            if (length > 0) {
+                handlePayLoad(new String(line, 0, length, StandardCharsets.UTF_8));
+            }
+        }
+
+        private void readBinaryFrames(InputStream clientInput) throws IOException {
+            DataInputStream frameReader = new DataInputStream(clientInput);
+            byte[] preamble = new byte[BinaryProtocol.PREAMBLE.length];
+            frameReader.readFully(preamble);
+            if (!acceptPreamble(preamble, 0)) {
+                return;
+            }
+            try {
+                while (true) {
+                    int length = frameReader.readInt();
+                    if (length <= 0 || length > BinaryProtocol.MAX_FRAME_LENGTH) {
+                        logger.warning("Client " + username + " sent a frame of " + length + " bytes, closing the connection");
+                        return;
+                    }
+                    byte[] frame = new byte[length];
+                    frameReader.readFully(frame);
+                    handleBinaryFrame(ByteBuffer.wrap(frame));
+                }
+            } catch (EOFException e) {
+                //the client closed the connection between two frames
+            }
+        }
+
+        /**
+         * switches the connection to the binary protocol and echoes the preamble,
+         * returns false (and logs) if the bytes are not the preamble
+         */
+        boolean acceptPreamble(byte[] bytes, int offset) {
+            if (!BinaryProtocol.isPreamble(bytes, offset)) {
+                logger.warning("Client sent an unknown binary preamble, closing the connection");
+                return false;
+            }
+            codec = WireCodec.BINARY;
+            sendFrame(ByteBuffer.wrap(BinaryProtocol.PREAMBLE));
+            return true;
+        }
+
+        /**
+         * takes everything queued in the outbound queue and writes it with one gathering write, until the queue is closed
+         */
+        private void writeLoop() {
+            if (threadUsageReporter != null) {
+                threadUsageReporter.connectionThreadStarted();
+            }
+            ByteBuffer[] batch = new ByteBuffer[MAX_FRAMES_PER_WRITE];
+            long[] enqueuedAt = new long[MAX_FRAMES_PER_WRITE];
+            long[] tags = new long[MAX_FRAMES_PER_WRITE];
+            long lingerNanos = TimeUnit.MICROSECONDS.toNanos(config.flushWindowMicros);
+            try {
+                BufferedOutputStream stream = socketStream();
+                WritableByteChannel out = stream == null ? clientSocket.getChannel() : Channels.newChannel(stream);
+                while (outbound.awaitFrames(lingerNanos, config.flushBytes)) {
+                    int count = outbound.drainTo(batch, enqueuedAt, tags, config.flushBytes);
+                    compress(batch, 0, count);
+                    writeFully(out, batch, count);
+                    if (stream != null) {
+                        stream.flush();
+                    }
+                    recordWritten(batch, enqueuedAt, tags, 0, count, System.nanoTime());
+                }
+            } catch (IOException e) {
+                logger.info("Client " + username + " disconnected while writing " + e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                finishWriting();
+                if (threadUsageReporter != null) {
+                    threadUsageReporter.connectionThreadFinished();
+                }
+            }
+        }
+
+        /**
+         * the channel of a TLS socket is the one of the plain socket under it, so TLS goes through the stream.
+         * The stream is buffered so that a batch leaves in a few large TLS records. Null when the socket channel is written directly
+         */
+        private BufferedOutputStream socketStream() throws IOException {
+            return clientSocket.getChannel() != null && !(clientSocket instanceof SSLSocket) ? null
+                    : new BufferedOutputStream(clientSocket.getOutputStream(), config.flushBytes);
+        }
+
+        /**
+         * THREADS mode: starts a drain on the pool unless one is running, after a frame was queued or the queue was closed
+         */
+        private void wakeWriter() {
+            if (!drainOnDemand || !drainScheduled.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                writerPool.execute(this::drainPending);
+            } catch (RejectedExecutionException e) {
+                //the server is closing
+                drainScheduled.set(false);
+                finishWriting();
+            }
+        }
+
+        /**
+         * <p>THREADS mode: writes what is queued like {@link #writeLoop()} and returns once the queue is empty, so the pool
+         * thread only belongs to the connection while there is something to write. While other connections wait for a writer
+         * it writes one batch and queues itself again behind them. Once the queue is closed and drained it closes the socket.</p>
+         *
+         * <p>Only one drain runs at a time. A sender which queues a frame while the drain is giving up starts the next one,
+         * or the drain sees the frame when it checks again after clearing drainScheduled</p>
+         */
+        private void drainPending() {
+            ByteBuffer[] batch = new ByteBuffer[MAX_FRAMES_PER_WRITE];
+            long[] enqueuedAt = new long[MAX_FRAMES_PER_WRITE];
+            long[] tags = new long[MAX_FRAMES_PER_WRITE];
+            long lingerNanos = TimeUnit.MICROSECONDS.toNanos(config.flushWindowMicros);
+            try {
+                if (drainOut == null && !writingFinished.get()) {
+                    drainStream = socketStream();
+                    drainOut = drainStream == null ? clientSocket.getChannel() : Channels.newChannel(drainStream);
+                }
+                while (true) {
+                    if (writingFinished.get()) {
+                        //the socket is closed, drainScheduled stays set so no other drain starts
+                        return;
+                    }
+                    if (outbound.depth() > 0) {
+                        outbound.awaitFrames(lingerNanos, config.flushBytes);
+                        int count = outbound.drainTo(batch, enqueuedAt, tags, config.flushBytes);
+                        compress(batch, 0, count);
+                        writeFully(drainOut, batch, count);
+                        if (drainStream != null) {
+                            drainStream.flush();
+                        }
+                        recordWritten(batch, enqueuedAt, tags, 0, count, System.nanoTime());
+                        if (outbound.depth() > 0 && !writerPool.getQueue().isEmpty()) {
+                            //other connections are waiting for a writer, this one goes to the back of the queue
+                            writerPool.execute(this::drainPending);
+                            return;
+                        }
+                        continue;
+                    }
+                    if (outbound.isClosed()) {
+                        finishWriting();
+                        return;
+                    }
+                    drainScheduled.set(false);
+                    if ((outbound.depth() == 0 && !outbound.isClosed()) || !drainScheduled.compareAndSet(false, true)) {
+                        return;
+                    }
+                }
+            } catch (IOException e) {
+                logger.info("Client " + username + " disconnected while writing " + e.getMessage());
+                finishWriting();
+                //the reader notices the closed socket and aborts
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                finishWriting();
+            } catch (RejectedExecutionException e) {
+                //the server is closing
+                finishWriting();
+            }
+        }
+
+        /**
+         * called once by whichever writer stops writing for good
+         */
+        private void finishWriting() {
+            if (writingFinished.compareAndSet(false, true)) {
+                closeSocket();
+                endCompression();
+            }
+        }
+
+        /**
+         * replaces the frames which are worth it by COMPRESSED frames, if the client asked for compression.
+         * Only called by the writer, in the order the frames are written
+         */
+        void compress(ByteBuffer[] batch, int from, int to) {
+            FrameCompressor compressor = this.compressor;
+            if (compressor == null) {
+                return;
+            }
+            for (int i = from; i < to; i++) {
+                batch[i] = compressor.compress(batch[i]);
+            }
+        }
+
+        /**
+         * logs what the compression did for this connection and frees the deflater, called by the writer once it stopped writing
+         */
+        void endCompression() {
+            FrameCompressor compressor = this.compressor;
+            if (compressor != null) {
+                logger.info("Client " + username + " " + compressor.report());
+                compressor.end();
+            }
+        }
+
+        /**
+         * takes a feature offered by a NEW_CLIENT or RESUME frame, a connection keeps the first compression it agreed on
+         */
+        private void offerFeature(String feature) {
+            if (config.compression && compressor == null && BinaryProtocol.COMPRESSION_DEFLATE.equals(feature)) {
+                compressor = new FrameCompressor(config.compressionLevel, config.compressionThreshold, metrics.compression);
+            } else if (BinaryProtocol.RESUME.equals(feature)) {
+                resumeOffered = true;
+            } else if (BinaryProtocol.HEARTBEAT.equals(feature)) {
+                heartbeat = true;
+            }
+        }
+
+        private void writeFully(WritableByteChannel out, ByteBuffer[] batch, int count) throws IOException {
+            if (out instanceof GatheringByteChannel) {
+                GatheringByteChannel gatheringOut = (GatheringByteChannel) out;
+                int offset = 0;
+                while (offset < count) {
+                    writeStats.bytesWritten.add(gatheringOut.write(batch, offset, count - offset));
+                    writeStats.writeCalls.increment();
+                    while (offset < count && !batch[offset].hasRemaining()) {
+                        offset++;
+                    }
+                }
+                return;
+            }
+            for (int i = 0; i < count; i++) {
+                while (batch[i].hasRemaining()) {
+                    writeStats.bytesWritten.add(out.write(batch[i]));
+                    writeStats.writeCalls.increment();
+                }
+            }
+        }
+
+        /**
+         * counts the written frames and their delivery latency, and lets go of the buffers
+         */
+        void recordWritten(ByteBuffer[] batch, long[] enqueuedAt, long[] tags, int from, int to, long now) {
+            for (int i = from; i < to; i++) {
+                writeStats.deliveryLatency.record(now - enqueuedAt[i]);
+                if (tags[i] != FanOutTracker.NO_TAG) {
+                    metrics.fanOut.written(tags[i], now);
+                }
+                batch[i] = null;
+            }
+            writeStats.framesWritten.add(to - from);
+        }
+
+        public void handlePayLoad(String payload) {
+            requestStartedAt = System.nanoTime();
+            lastReadNanos = requestStartedAt;
+            //some payoads may not have body such as '/disconnect'
+            if(!request.parse(payload)) {
+                send(ResponseType.NOTICE, "Invalid payload: format should be 'command <space> body'");
+                return;
+            }
+
+            if(request.type == RequestType.ADMIN_LOGIN) {
+                metrics.command(RequestType.ADMIN_LOGIN);
+                //<username>--<password>, compared in place
+                int separator = request.bodyIndexOf("--", 0);
+                if(separator != -1) {
+                    int passwordEnd = request.bodyIndexOf("--", separator + 2);
+                    handleAdminLogin(request.bodyRegionEquals(0, separator, "admin")
+                            && request.bodyRegionEquals(separator + 2, passwordEnd == -1 ? request.bodyLength() : passwordEnd, "admin"));
+                    return;
+                }
+                send(ResponseType.ERROR, "/adminLogin requires credentials: <username>--<password>");
+                return;
+            }
+
+            handleRequest(request);
+        }
+
+        /**
+         * decodes one binary frame (opcode and fields, without the length) and handles it like handlePayLoad() handles a line
+         */
+        public void handleBinaryFrame(ByteBuffer frame) {
+            requestStartedAt = System.nanoTime();
+            lastReadNanos = requestStartedAt;
+            try {
+                RequestType type = RequestType.fromOpcode(frame.get());
+                if (type == RequestType.ADMIN_LOGIN) {
+                    metrics.command(type);
+                    if (frame.remaining() == 0) {
+                        send(ResponseType.ERROR, "/adminLogin requires credentials: <username>--<password>");
+                        return;
+                    }
+                    handleAdminLogin("admin".equals(BinaryProtocol.getString(frame)) & "admin".equals(BinaryProtocol.getString(frame)));
+                    return;
+                }
+
+                request.set(type, frame.hasRemaining() ? BinaryProtocol.getString(frame) : null);
+                if (type == RequestType.NEW_CLIENT || type == RequestType.RESUME) {
+                    //the strings after the body offer features, the servers from before resume only looked at the first one
+                    while (frame.hasRemaining()) {
+                        offerFeature(BinaryProtocol.getString(frame));
+                    }
+                }
+                handleRequest(request);
+            } catch (BufferUnderflowException | IllegalArgumentException e) {
+                send(ResponseType.ERROR, "Malformed frame");
+            }
+        }
+
+        /**
+         * the body is copied out of the request only by the commands which keep it
+         */
+        void handleRequest(CommandLine request) {
+            RequestType type = request.type;
+            metrics.command(type);
+            //answered whether registered or not, the request itself already counted for the idle check
+            if (type == RequestType.PING) {
+                send(ResponseType.PONG, "");
+                return;
+            }
+            if (type == RequestType.PONG) {
+                return;
+            }
+            if (claimPending) {
+                send(ResponseType.ERROR, "Please wait, the username is being checked");
+                return;
+            }
+            //this is done to prevent client to explicitly execute /isNew command even when it is not a new client
+            if(isNew) {
+                if(type == RequestType.NEW_CLIENT) {
+                    handleNewClient(request.body());
+                    return;
+                }
+                if(type == RequestType.RESUME) {
+                    handleResume(request.body());
+                    return;
+                }
+                //the cient is new but trying to execute any other command
+                send(ResponseType.NOTICE, "Register with /newClient command with a valid username");
+                return;
+            }
+
+            switch (type) {
+                case MESSAGE: {
+                    handleMessage(request.body());
+                    break;
+                }
+
+                case CHANGE_USERNAME: {
+                    if(isAdmin) {
+                        send(ResponseType.USERNAME_CHANGE_FAILED, "admin can't change their username");
+                        break;
+                    }
+                    handleChangeUsername(request.body());
+                    break;
+                }
+
+                case BAN: {
+                    if(isAdmin) {
+                        handleUserBan(request.body());
+                        break;
+                    } else {
+                        send(ResponseType.ERROR, "only admins can use /ban command");
+                        break;
+                    }
+                }
+
+                case DISCONNECT: {
+                    //send /disconnect so that client can initate the disconnect process
+                    send(ResponseType.CLOSE, "");
+                    announce(room.name, ResponseType.DISCONNECT, username + " has left the chat", this);
+                    close();
+                    break;
+                    //this closes the socket, and since the socket is closed, run() faces an exception which logs Client Disconnected as a part of error handling.
+                }
+
+                case ONLINE_COUNT: {
+                    sendFrame(roster(room).countFrame(codec));
+                    break;
+                }
+
+                case ONLINE_LIST: {
+                    handleOnlineList(request);
+                    break;
+                }
+
+                case HELP: {
+                    sendFrame(codec.help(HELP_LINES));
+                    break;
+                }
+
+                case HISTORY: {
+                    handleHistory(request);
+                    break;
+                }
+
+                case JOIN: {
+                    handleJoin(request.body());
+                    break;
+                }
+
+                case WHISPER: {
+                    handleWhisper(request.body());
+                    break;
+                }
+
+                case LEAVE: {
+                    if (room.isLobby()) {
+                        send(ResponseType.ERROR, "You are already in the lobby");
+                        break;
+                    }
+                    moveToRoom(Room.LOBBY);
+                    break;
+                }
+
+                case ROOMS: {
+                    List<String> lines = new ArrayList<>();
+                    for (Room each : rooms.values()) {
+                        lines.add(each.name + " (" + onlineCount(each) + " online)" + (each == room ? " *" : ""));
+                    }
+                    sendFrame(codec.list(ResponseType.ROOM_LIST, lines));
+                    break;
+                }
+
+                case STATS: {
+                    if (!isAdmin) {
+                        send(ResponseType.ERROR, "only admins can use /stats command");
+                        break;
+                    }
+                    sendFrame(codec.list(ResponseType.STATS, metrics.report()));
+                    break;
+                }
+
+                case ROOM_STATS: {
+                    if (!isAdmin) {
+                        send(ResponseType.ERROR, "only admins can use /roomStats command");
+                        break;
+                    }
+                    List<String> lines = new ArrayList<>();
+                    for (Room each : rooms.values()) {
+                        lines.add(each.stats());
+                    }
+                    sendFrame(codec.list(ResponseType.ROOM_LIST, lines));
+                    break;
+                }
+
+                default: {
+                    send(ResponseType.NOTICE, "Wrong Command");
+                }
+            }
+        }
+
+
+
+        void handleAdminLogin(boolean validCredentials) {
+            if(!validCredentials) {
+               send(ResponseType.ERROR, "Incorrect Credentials");
+               return;
+            }
+            if(connections.containsKey("admin") || (cluster != null && cluster.isTaken("admin"))) {
+                send(ResponseType.ERROR, "Admin is already logged in");
+                return;
+            }
+            afterClaim("admin", granted -> {
+                if (!granted) {
+                    send(ResponseType.ERROR, "Admin is already logged in");
+                    return;
+                }
+                this.username = "admin";
+                if (!addConnection(this)) {
+                    this.username = null;
+                    send(ResponseType.ERROR, "Admin is already logged in");
+                    return;
+                }
+                this.usernameColor = CustomColors.BRIGHT_RED;
+                isAdmin = true;
+                send(ResponseType.SUCCESS, "Logged in as admin");
+                replayHistory(Room.LOBBY);
+                enterRoom(Room.LOBBY, this);
+                isNew = false;
+            });
+        }
+
+        void handleUserBan(String username) {
+            if(username == null || username.trim().isEmpty()) {
+                send(ResponseType.ERROR, "Insert a valid username");
+                return;
+            }
+
+            ConnectionHandler userToBan = connections.get(username);
+            if (userToBan != null) {
+                userToBan.send(ResponseType.ERROR, "You have been banned");
+                userToBan.close();
+            } else if (cluster == null || !cluster.forwardBan(username)) {
+                //the node of a remote user bans it
+                send(ResponseType.ERROR, "The provided username is not in the chat room");
+                return;
+            }
+            announceToEveryone(ResponseType.NOTICE, "'"+ username +"' has been banned by admin");
         }
 
         void handleNewClient(String usernameForNewUser) {
             String result = checkUsernameValidity(usernameForNewUser);
             if(result != null) {
-                send("Error: " + result);
+                send(ResponseType.ERROR, result);
+                return;
+            }
+
+            afterClaim(usernameForNewUser, granted -> {
+                if (!granted) {
+                    send(ResponseType.ERROR, "Username is already in use");
+                    return;
+                }
+                //the check above may have raced with another client taking the same username, registering decides
+                this.username = usernameForNewUser;
+                if (!addConnection(this)) {
+                    this.username = null;
+                    send(ResponseType.ERROR, "Username is already in use");
+                    return;
+                }
+                this.usernameColor = ColorAssigner.getNextColor();
+                //valid username:
+                send(ResponseType.SUCCESS, "WELCOME TO THE CHATROOM " + usernameForNewUser);
+                replayHistory(Room.LOBBY);
+                issueResumeToken();
+                announce(Room.LOBBY, ResponseType.NOTICE, "'" + usernameForNewUser + "' has joined the chat", this);
+                enterRoom(Room.LOBBY, this);
+                this.isNew = false;
+            });
+        }
+
+        void handleMessage(String message) {
+            if(message == null) {
+                send(ResponseType.ERROR, "Please enter a valid message");
+                return;
+            }
+            String result = checkMessageValidity(message);
+            if (result != null) {
+                send(ResponseType.ERROR, result);
+                return;
+            }
+            if (!withinRateLimit(message)) {
+                return;
+            }
+            String username = this.username;
+            int usernameColor = this.usernameColor;
+            Room room = this.room;
+            //only queued here, the message log writes and syncs on its own thread
+            LogRecord record = record(room, username, usernameColor, message);
+            long sequence = record != null ? record.sequence : -1;
+            metrics.messagesIn.increment();
+            long tag = metrics.fanOut.begin(requestStartedAt);
+            int queued = broadcastToRoom(room, codec -> codec.message(username, usernameColor, message, sequence), this, tag);
+            metrics.fanOut.end(tag, queued);
+            metrics.messagesOut.add(queued);
+            if (cluster != null) {
+                cluster.forwardMessage(room.name, username, usernameColor, message);
+            }
+        }
+
+        /**
+         * <p>Sends the message to one user only: the registry finds its connection and the frame is queued to it alone, no room
+         * is walked. A user on another node of the cluster gets it through that node.</p>
+         *
+         * <p>Whispers are not logged, so they are not in /history and a parked session can't get them replayed,
+         * it counts as offline until it is resumed</p>
+         */
+        void handleWhisper(String body) {
+            int space = body == null ? -1 : body.indexOf(' ');
+            String text = space == -1 ? "" : body.substring(space + 1).trim();
+            if (text.isEmpty()) {
+                send(ResponseType.ERROR, "Usage: /whisper <username> <message>");
+                return;
+            }
+            String to = body.substring(0, space);
+            if (to.equals(username)) {
+                send(ResponseType.ERROR, "You can't whisper to yourself");
+                return;
+            }
+            String result = checkMessageValidity(text);
+            if (result != null) {
+                send(ResponseType.ERROR, result);
+                return;
+            }
+            if (!withinRateLimit(text)) {
+                return;
+            }
+            ConnectionHandler recipient = connections.get(to);
+            if (recipient != null && !recipient.isParked()) {
+                recipient.sendFrame(recipient.codec.whisper(username, usernameColor, text));
+            } else if (recipient != null || cluster == null || !cluster.forwardWhisper(to, username, usernameColor, text)) {
+                send(ResponseType.ERROR, to + " is not online");
+                return;
+            }
+            metrics.whispers.increment();
+        }
+
+        /**
+         * takes the message out of the rate limits of the connection, before it costs a fan-out to the whole room.
+         * Returns false if the message goes over them: it is dropped and the client is told when it may send again
+         */
+        boolean withinRateLimit(String message) {
+            if (isAdmin && !config.rateLimitAdmins) {
+                return true;
+            }
+            long now = requestStartedAt;
+            long delay = messageBucket == null ? 0 : messageBucket.delayNanos(1, now);
+            if (byteBucket != null) {
+                delay = Math.max(delay, byteBucket.delayNanos(message.length(), now));
+            }
+            if (delay == 0) {
+                if (messageBucket != null) {
+                    messageBucket.take(1);
+                }
+                if (byteBucket != null) {
+                    byteBucket.take(message.length());
+                }
+                return true;
+            }
+            metrics.throttledMessages.increment();
+            //one frame per throttled stretch, a flooding client must not turn every dropped message into a reply
+            if (now - throttledUntil >= 0) {
+                throttledUntil = now + delay;
+                long retryAfterMillis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(delay + 999_999));
+                sendFrame(codec.throttled(retryAfterMillis, "You are sending too fast, your message was not sent. Wait "
+                        + String.format("%.1f", retryAfterMillis / 1000.0) + "s"));
+            }
+            return false;
+        }
+
+        void handleJoin(String name) {
+            String roomName = Room.normalizeName(name);
+            if (roomName == null) {
+                send(ResponseType.ERROR, "Room names are 1 to 20 letters, digits or '_'");
+                return;
+            }
+            if (roomName.equals(room.name)) {
+                send(ResponseType.ERROR, "You are already in '" + roomName + "'");
                 return;
             }
+            moveToRoom(roomName);
+        }
 
-            //valid username:
-            send("Success: WELCOME TO THE CHATROOM " + usernameForNewUser);
-            broadcastExceptFor("'" + usernameForNewUser + "' has joined the chat", this);
-            this.username = usernameForNewUser;
-            this.usernameColor = ColorAssigner.getNextColor();
-            addConnection(this);
-            this.isNew = false;
+        /**
+         * leaves the current room and joins the other one, the client gets the history of the new room like after registering
+         */
+        void moveToRoom(String roomName) {
+            Room previous = room;
+            leaveRoom(previous, this);
+            announce(previous.name, ResponseType.NOTICE, "'" + username + "' has left the room", this);
+
+            send(ResponseType.SUCCESS, "You are now in '" + roomName + "'");
+            replayHistory(roomName);
+            announce(roomName, ResponseType.NOTICE, "'" + username + "' has joined the room", this);
+            enterRoom(roomName, this);
         }
 
-        void handleMessage(String message) {
-            if(message == null) {
-                send("Error: Please enter a valid message");
+        /**
+         * <p>Sends the newest messages of the room as one frame, right after the welcome and before the client enters the room,
+         * so the replay is queued in front of every live message.</p>
+         *
+         * <p>A message published while the client joins is either in the replay or delivered live.
+         * Only one published in between the snapshot and enterRoom() is missed</p>
+         */
+        void replayHistory(String roomName) {
+            historyCursor = Long.MAX_VALUE;
+            if (config.historyReplay == 0) {
+                return;
+            }
+            List<LogRecord> records = fitIntoFrame(historyBefore(roomName, historyCursor, config.historyReplay));
+            if (!records.isEmpty()) {
+                historyCursor = records.get(0).sequence;
+                sendFrame(codec.history(records));
+            }
+        }
+
+        /**
+         * gives a client which offered resume its token, together with the newest sequence it is up to date with
+         */
+        void issueResumeToken() {
+            issueResumeToken(lastSequence());
+        }
+
+        private void issueResumeToken(long upToDate) {
+            if (!resumeOffered || config.resumeWindowSeconds == 0) {
+                return;
+            }
+            resumeToken = sessions.issue(this);
+            sendFrame(codec.resumeToken(resumeToken, upToDate));
+        }
+
+        /**
+         * <p>Takes over the parked session of the token: the username, the room and the /history cursor. The handler replaces
+         * the parked one in the registry and in the room, each a single map operation, so the roster stays the same
+         * and the room is not told anything.</p>
+         *
+         * <p>If the server did not notice yet that the old connection is gone, it is closed now. The messages the client missed
+         * are sent before the live ones start coming, and once more for the few published during the swap.
+         * The client drops the ones it got twice by their sequence</p>
+         */
+        void handleResume(String body) {
+            int space = body == null ? -1 : body.indexOf(' ');
+            long lastSeen;
+            try {
+                lastSeen = space == -1 ? -2 : Long.parseLong(body.substring(space + 1).trim());
+            } catch (NumberFormatException e) {
+                lastSeen = -2;
+            }
+            if (lastSeen < -1) {
+                send(ResponseType.ERROR, "Usage: /resume <token> <last sequence>");
+                return;
+            }
+            ConnectionHandler previous = config.resumeWindowSeconds > 0 ? sessions.take(body.substring(0, space)) : null;
+            if (previous == null) {
+                sessions.failed.increment();
+                send(ResponseType.ERROR, "The session can't be resumed, register again with /newClient");
+                return;
+            }
+            previous.handedOver = true;
+            previous.abort();
+
+            this.username = previous.username;
+            this.usernameColor = previous.usernameColor;
+            this.isAdmin = previous.isAdmin;
+            this.historyCursor = previous.historyCursor;
+            this.messageBucket = previous.messageBucket;
+            this.byteBucket = previous.byteBucket;
+            Room room = previous.room;
+            send(ResponseType.SUCCESS, "Resumed the session of '" + username + "'");
+            long replayedUpTo = replayMissed(room, lastSeen);
+
+            if (!connections.replace(username, previous, this)) {
+                //banned or expired while it was being resumed
+                this.username = null;
+                sessions.failed.increment();
+                send(ResponseType.ERROR, "The session can't be resumed, register again with /newClient");
+                return;
+            }
+            Room seat = takeOverSeat(room, previous, this);
+            if (seat == null) {
+                seat = enterRoom(Room.LOBBY, this);
+            }
+            this.room = seat;
+            long upToDate = lastSequence();
+            replayMissed(seat, replayedUpTo);
+            sessions.resumed.increment();
+            resumeOffered = true;
+            issueResumeToken(upToDate);
+            isNew = false;
+        }
+
+        /**
+         * sends the messages of the room with a sequence above after, oldest first, in as many HISTORY frames as needed.
+         * Returns the newest sequence sent, or after if there was nothing to send
+         */
+        long replayMissed(Room room, long after) {
+            if (config.resumeReplay == 0) {
+                return after;
+            }
+            //one more than allowed, to tell whether some were left out
+            List<LogRecord> records = room.history.after(after, config.resumeReplay + 1);
+            if (records.size() > config.resumeReplay || records.size() >= room.history.capacity()) {
+                records = records.subList(records.size() - Math.min(records.size(), config.resumeReplay), records.size());
+                send(ResponseType.NOTICE, "Not all the messages you missed are shown, /history shows the earlier ones");
+            }
+            if (records.isEmpty()) {
+                return after;
+            }
+            //fitIntoFrame() keeps the newest records which fit, so the pages are cut from the end and sent oldest first
+            List<List<LogRecord>> pages = new ArrayList<>();
+            int to = records.size();
+            while (to > 0) {
+                List<LogRecord> page = fitIntoFrame(records.subList(0, to));
+                if (page.isEmpty()) {
+                    //a message too long for a frame of its own, the older ones are left out with it
+                    break;
+                }
+                pages.add(page);
+                to -= page.size();
+            }
+            for (int i = pages.size() - 1; i >= 0; i--) {
+                sendFrame(codec.history(pages.get(i)));
+            }
+            sessions.replayed.add(records.size() - to);
+            return records.get(records.size() - 1).sequence;
+        }
+
+        /**
+         * sends the requested page of the roster, the first one without a page number
+         */
+        void handleOnlineList(CommandLine request) {
+            RosterSnapshot roster = roster(room);
+            int page;
+            try {
+                page = !request.hasBody() ? 1 : request.bodyAsInt();
+            } catch (NumberFormatException e) {
+                send(ResponseType.ERROR, "Usage: /onlineList [page]");
+                return;
+            }
+            if (page < 1 || page > roster.pages()) {
+                send(ResponseType.ERROR, "Pages go from 1 to " + roster.pages());
+                return;
+            }
+            sendFrame(roster.page(codec, page));
+        }
+
+        void handleHistory(CommandLine request) {
+            int max;
+            try {
+                max = !request.hasBody() ? config.historyReplay : request.bodyAsInt();
+            } catch (NumberFormatException e) {
+                send(ResponseType.ERROR, "Usage: /history <number of messages>");
+                return;
+            }
+            if (max <= 0) {
+                send(ResponseType.ERROR, "Usage: /history <number of messages>");
+                return;
+            }
+            List<LogRecord> records = fitIntoFrame(historyBefore(room.name, historyCursor, Math.min(max, MAX_HISTORY_PAGE)));
+            if (records.isEmpty()) {
+                send(ResponseType.NOTICE, "No earlier messages");
                 return;
             }
-            broadcastExceptFor("Message: " + username + ": " + usernameColor +": " + message, this);
+            historyCursor = records.get(0).sequence;
+            sendFrame(codec.history(records));
         }
 
         void handleChangeUsername(String newUsername) {
             //To see why UsernameChangeFailed used instead of 'Error', see Client implementation(Thread waiting issue)
             String result = checkUsernameValidity(newUsername);
             if(result != null) {
-                send("UsernameChangeFailed: " + result);
+                send(ResponseType.USERNAME_CHANGE_FAILED, result);
                 return;
             }
 
-            removeConnection(this); //old username as key is removed
-            String oldUsername = username;
-            this.username = newUsername;
-            addConnection(this);
-            broadcastExceptFor("'" + oldUsername+"'" + " changed their username to '" + newUsername + "'", this);
-            send("UsernameChanged: " + newUsername + ": Username successfully changed to '" + newUsername + "'");
+            afterClaim(newUsername, granted -> {
+                if (!granted) {
+                    send(ResponseType.USERNAME_CHANGE_FAILED, "Username is already in use");
+                    return;
+                }
+                //takes the new username before letting go of the old one, so nobody can take either in between
+                if (!connections.rename(username, newUsername, this)) {
+                    send(ResponseType.USERNAME_CHANGE_FAILED, "Username is already in use");
+                    return;
+                }
+                String oldUsername = username;
+                this.username = newUsername;
+                renameInRoom(room, oldUsername, this);
+                announce(room.name, ResponseType.NOTICE, "'" + oldUsername+"'" + " changed their username to '" + newUsername + "'", this);
+                sendFrame(codec.usernameChanged(newUsername, "Username successfully changed to '" + newUsername + "'"));
+            });
+        }
+
+        /**
+         * <p>Claims the username in the cluster and passes the answer to register, which takes the username if it was granted.
+         * Without a cluster the username is granted right away.</p>
+         *
+         * <p>This blocks the thread of the connection until the other nodes answered, NIO connections override it to wait without blocking</p>
+         */
+        void afterClaim(String username, Consumer<Boolean> register) {
+            if (cluster == null) {
+                register.accept(true);
+                return;
+            }
+            boolean granted;
+            try {
+                granted = cluster.claim(username).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                granted = false;
+            } catch (ExecutionException e) {
+                granted = false;
+            }
+            endClaim(username, granted, register);
+        }
+
+        /**
+         * registers unless the connection was closed in the meantime, then tells the cluster whether the username is taken for good
+         */
+        void endClaim(String username, boolean granted, Consumer<Boolean> register) {
+            try {
+                if (!outbound.isClosed()) {
+                    register.accept(granted);
+                }
+            } finally {
+                cluster.endClaim(username, connections.get(username) == this);
+            }
         }
 
         /**
@@ -363,12 +1976,17 @@ public class ChatServer implements AutoCloseable {
                 return "Username cannot be empty";
             } else if(username.length() > MAX_USERNAME_SIZE) {
                 return "Username too long [10 characters max]";
-            } else if(connections.containsKey(username)) {
+            } else if(connections.containsKey(username) || (cluster != null && cluster.isTaken(username))) {
                 return "Username is already in use";
             } else if(username.equalsIgnoreCase("admin")) {
                 return "This username is reserved";
             } else if(username.contains("-")) {
                 return "Username can't contain '-' character";
+            } else if(username.contains(":")) {
+                //the line protocol ends the username of a message with ':'
+                return "Username can't contain ':' character";
+            } else if(hasControlCharacters(username)) {
+                return "Username can't contain control characters";
             }
 
             else {
@@ -376,27 +1994,482 @@ public class ChatServer implements AutoCloseable {
             }
         }
 
+        /**
+         * returns error message if the message or whisper can't be relayed,
+         * returns null, if it can
+         */
+        private String checkMessageValidity(String message) {
+            if (message.length() > config.maxMessageLength) {
+                return "Message too long [" + config.maxMessageLength + " characters max]";
+            } else if (hasControlCharacters(message)) {
+                return "Message can't contain control characters";
+            }
+            return null;
+        }
+
 
 
         /**
          * used to send the message to client Socket
          */
-        public void send(String message) {
-            clientWriter.println(message);
+        public void send(ResponseType type, String text) {
+            sendFrame(codec.encode(type, text));
+        }
+
+        /**
+         * queues an already encoded frame, disconnects the client if it is too slow and the policy is DISCONNECT
+         */
+        void sendFrame(ByteBuffer frame) {
+            sendFrame(frame, FanOutTracker.NO_TAG);
+        }
+
+        /**
+         * the tag is handed to the {@link FanOutTracker} once the frame is written
+         */
+        void sendFrame(ByteBuffer frame, long tag) {
+            if (!outbound.offer(frame, tag)) {
+                slowConsumerDisconnects.increment();
+                logger.warning("Disconnecting slow consumer " + username + ": " + outbound.depth() + " frames are waiting to be written");
+                abort();
+                return;
+            }
+            wakeWriter();
         }
 
+        /**
+         * closes the connection after the frames which are already queued (eg: '/disconnect') have been written
+         */
         @Override
         public void close() {
+            //the writer closes the socket once the queue is drained
+            outbound.close();
+            wakeWriter();
+            stopIdleCheck();
+            removeConnection(this);
+        }
+
+        /**
+         * closes the connection right away, queued frames are thrown away
+         */
+        void abort() {
+            outbound.close();
+            closeSocket();
+            //the drain of THREADS mode sees the closed queue and frees the compressor
+            wakeWriter();
+            connectionLost();
+        }
+
+        boolean isParked() {
+            return parked.get();
+        }
+
+        /**
+         * called once the connection is gone without a /disconnect: a resumable session keeps its username and its seat
+         * in the room until the resume window is over, anything else is removed right away
+         */
+        void connectionLost() {
+            if (handedOver) {
+                return;
+            }
+            if (sessions.isCurrent(resumeToken, this)) {
+                if (!parked.compareAndSet(false, true)) {
+                    return;
+                }
+                try {
+                    timer.schedule(this::expire, config.resumeWindowSeconds, TimeUnit.SECONDS);
+                    sessions.parked.increment();
+                    logger.info("Client " + username + " lost the connection, the session can be resumed for " + config.resumeWindowSeconds + "s");
+                    return;
+                } catch (RejectedExecutionException e) {
+                    //the server is closing
+                }
+            }
+            removeConnection(this);
+        }
+
+        /**
+         * ends a parked session which was not resumed in time
+         */
+        private void expire() {
+            if (sessions.remove(resumeToken, this)) {
+                sessions.expired.increment();
+                removeConnection(this);
+                if (timedOut) {
+                    announceTimedOut();
+                }
+            }
+        }
+
+        /**
+         * starts the idle check of the connection, once it is accepted
+         */
+        void watchIdle() {
+            long first = Math.min(config.pingIntervalSeconds > 0 ? config.pingIntervalSeconds : Long.MAX_VALUE,
+                    config.idleTimeoutSeconds > 0 ? config.idleTimeoutSeconds : Long.MAX_VALUE);
+            first = Math.min(first, config.registrationTimeoutSeconds > 0 ? config.registrationTimeoutSeconds : Long.MAX_VALUE);
+            if (first == Long.MAX_VALUE) {
+                return;
+            }
+            try {
+                idleCheck = timer.schedule(this::checkIdle, first, TimeUnit.SECONDS);
+            } catch (RejectedExecutionException e) {
+                //the server is closing
+            }
+        }
+
+        /**
+         * <p>Runs on the timer: sends a PING to a heartbeat client which went quiet, and closes a connection which stayed
+         * quiet for the idle timeout, then schedules itself for the next time something is due.</p>
+         *
+         * <p>A busy connection costs one check per ping interval. A registered client without heartbeats can't be told apart
+         * from a quiet user, so it is left to TCP keepalive and not checked again</p>
+         */
+        void checkIdle() {
+            if (outbound.isClosed()) {
+                return;
+            }
+            long now = System.nanoTime();
+            long lastRead = lastReadNanos;
+            int timeoutSeconds = isNew ? config.registrationTimeoutSeconds : heartbeat ? config.idleTimeoutSeconds : 0;
+            boolean reaping = timeoutSeconds > 0;
+            boolean pinging = config.pingIntervalSeconds > 0 && heartbeat && !isNew;
+            if (!reaping && !pinging) {
+                if (isNew) {
+                    //heartbeats are offered when the client registers, until then look again once per interval
+                    watchIdle();
+                }
+                return;
+            }
+            long next = Long.MAX_VALUE;
+            if (reaping) {
+                long reapIn = lastRead + TimeUnit.SECONDS.toNanos(timeoutSeconds) - now;
+                if (reapIn <= 0) {
+                    reap();
+                    return;
+                }
+                next = reapIn;
+            }
+            if (pinging) {
+                long pingInterval = TimeUnit.SECONDS.toNanos(config.pingIntervalSeconds);
+                //one PING per interval of silence, counted from the last request or the last PING
+                long pingIn = (pingSentAt - lastRead > 0 ? pingSentAt : lastRead) + pingInterval - now;
+                if (pingIn <= 0) {
+                    pingSentAt = now;
+                    metrics.pingsSent.increment();
+                    send(ResponseType.PING, "");
+                    pingIn = pingInterval;
+                }
+                next = Math.min(next, pingIn);
+            }
+            try {
+                idleCheck = timer.schedule(this::checkIdle, next, TimeUnit.NANOSECONDS);
+            } catch (RejectedExecutionException e) {
+                //the server is closing
+            }
+        }
+
+        /**
+         * closes a connection which went quiet, eg: half-open after a network failure. A resumable session is parked like
+         * after any lost connection, the others leave their room with the usual Disconnect notice
+         */
+        private void reap() {
+            metrics.reapedConnections.increment();
+            timedOut = true;
+            logger.info("Client " + (username != null ? username : "(not registered)") + " sent nothing for "
+                    + (isNew ? config.registrationTimeoutSeconds : config.idleTimeoutSeconds) + "s, closing the connection");
+            boolean resumable = sessions.isCurrent(resumeToken, this);
+            abort();
+            if (!resumable) {
+                announceTimedOut();
+            }
+        }
+
+        private void announceTimedOut() {
+            Room room = this.room;
+            if (username != null && room != null) {
+                announce(room.name, ResponseType.DISCONNECT, username + " has left the chat", this);
+            }
+        }
+
+        /**
+         * drops the pending idle check of a closed connection, so the wheel does not hold it until it is due
+         */
+        void stopIdleCheck() {
+            HashedWheelTimer.Timeout check = idleCheck;
+            if (check != null) {
+                check.cancel();
+            }
+        }
+
+        /**
+         * gives the place of the connection back to the AcceptGate, once, whichever way the connection was closed
+         */
+        void releaseAdmission() {
+            if (admittedFrom != null && admissionReleased.compareAndSet(false, true)) {
+                acceptGate.release(admittedFrom);
+            }
+        }
+
+        private void closeSocket() {
+            releaseAdmission();
+            stopIdleCheck();
             //closing the client socket from the server side
             if (clientSocket != null && !clientSocket.isClosed()) {
                 try {
-                    clientWriter.close();
                     clientSocket.close();
                 } catch (IOException e) {
                     logger.warning("Error while attempting to close the client socket associated with the username:" + username);
                 }
+                if (outbound.dropped() > 0) {
+                    logger.info("Client " + username + " dropped " + outbound.dropped() + " frames, max queue depth " + outbound.maxDepth());
+                }
+            }
+        }
+    }
+
+
+    /**
+     * <p>ConnectionHandler used in NIO mode.</p>
+     *
+     * <p>It does not own a thread: its {@link NioEventLoop} calls {@link #onBytesRead(ByteBuffer)} whenever bytes arrive,
+     * this splits them into lines and passes every complete line to the usual handlePayLoad()</p>
+     *
+     * <p>Outgoing lines are queued and written by the event loop, so send() never blocks the caller</p>
+     */
+    public class NioConnectionHandler extends ConnectionHandler {
+        final SocketChannel channel;
+        private final NioEventLoop eventLoop;
+        SelectionKey selectionKey;
+
+        //frames taken from the outbound queue, writeBatch[writeOffset..writeCount) are not fully written yet
+        private final ByteBuffer[] writeBatch = new ByteBuffer[MAX_FRAMES_PER_WRITE];
+        private final long[] writeBatchEnqueuedAt = new long[MAX_FRAMES_PER_WRITE];
+        private final long[] writeBatchTags = new long[MAX_FRAMES_PER_WRITE];
+        private int writeOffset = 0;
+        private int writeCount = 0;
+        private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+        //only touched on the event loop thread
+        private boolean closing = false;
+
+        //bytes of the line which is not yet terminated by '\n', or of the binary frame which is not complete yet
+        private byte[] partialInput = new byte[256];
+        private int partialInputLength = 0;
+
+        //decided by the first byte the client sends
+        private boolean protocolDecided = false;
+        private boolean binaryInput = false;
+        private boolean preambleRead = false;
+
+        public NioConnectionHandler(SocketChannel channel, NioEventLoop eventLoop) {
+            super(channel.socket());
+            this.channel = channel;
+            this.eventLoop = eventLoop;
+            watchIdle();
+        }
+
+        @Override
+        public void run() {
+            //nothing to do, the event loop drives this handler
+        }
+
+        /**
+         * the event loop goes on while the cluster answers, the answer is handled on the event loop again
+         */
+        @Override
+        void afterClaim(String username, Consumer<Boolean> register) {
+            if (cluster == null) {
+                register.accept(true);
+                return;
+            }
+            CompletableFuture<Boolean> claim = cluster.claim(username);
+            claimPending = true;
+            claim.whenComplete((granted, error) -> eventLoop.execute(() -> {
+                claimPending = false;
+                endClaim(username, Boolean.TRUE.equals(granted), register);
+            }));
+        }
+
+        /**
+         * called by the event loop with the bytes that were just read
+         */
+        void onBytesRead(ByteBuffer bytes) {
+            metrics.bytesIn.add(bytes.remaining());
+            if (!protocolDecided) {
+                protocolDecided = true;
+                binaryInput = bytes.get(bytes.position()) == BinaryProtocol.PREAMBLE[0];
+            }
+            if (binaryInput) {
+                onBinaryBytes(bytes);
+            } else {
+                onTextBytes(bytes);
+            }
+        }
+
+        private void onTextBytes(ByteBuffer bytes) {
+            while (bytes.hasRemaining()) {
+                byte b = bytes.get();
+                if (b == '\n') {
+                    int length = partialInputLength;
+                    if (length > 0 && partialInput[length - 1] == '\r') {
+                        length--;
+                    }
+                    String payload = new String(partialInput, 0, length, StandardCharsets.UTF_8);
+                    partialInputLength = 0;
+                    handlePayLoad(payload);
+                    if (closing) {
+                        return;
+                    }
+                    continue;
+                }
+
+                if (partialInputLength == partialInput.length) {
+                    if (partialInput.length >= config.maxLineLength) {
+                        logger.warning("Client " + username + " sent a line longer than " + config.maxLineLength + " bytes, closing the connection");
+                        close();
+                        return;
+                    }
+                    partialInput = Arrays.copyOf(partialInput, Math.min(partialInput.length * 2, config.maxLineLength));
+                }
+                partialInput[partialInputLength++] = b;
+            }
+        }
+
+        private void onBinaryBytes(ByteBuffer bytes) {
+            //frames are at most MAX_FRAME_LENGTH long, so this never holds more than one frame and one read
+            if (partialInput.length - partialInputLength < bytes.remaining()) {
+                partialInput = Arrays.copyOf(partialInput, Math.max(partialInput.length * 2, partialInputLength + bytes.remaining()));
+            }
+            int read = bytes.remaining();
+            bytes.get(partialInput, partialInputLength, read);
+            partialInputLength += read;
+
+            int offset = 0;
+            if (!preambleRead) {
+                if (partialInputLength < BinaryProtocol.PREAMBLE.length) {
+                    return;
+                }
+                if (!acceptPreamble(partialInput, 0)) {
+                    abort();
+                    return;
+                }
+                preambleRead = true;
+                offset = BinaryProtocol.PREAMBLE.length;
+            }
+
+            while (partialInputLength - offset >= BinaryProtocol.LENGTH_FIELD) {
+                int length = ByteBuffer.wrap(partialInput, offset, BinaryProtocol.LENGTH_FIELD).getInt();
+                if (length <= 0 || length > BinaryProtocol.MAX_FRAME_LENGTH) {
+                    logger.warning("Client " + username + " sent a frame of " + length + " bytes, closing the connection");
+                    abort();
+                    return;
+                }
+                if (partialInputLength - offset - BinaryProtocol.LENGTH_FIELD < length) {
+                    break;
+                }
+                handleBinaryFrame(ByteBuffer.wrap(partialInput, offset + BinaryProtocol.LENGTH_FIELD, length).slice());
+                offset += BinaryProtocol.LENGTH_FIELD + length;
+                if (closing) {
+                    return;
+                }
+            }
+            System.arraycopy(partialInput, offset, partialInput, 0, partialInputLength - offset);
+            partialInputLength -= offset;
+        }
+
+        /**
+         * the flush runs after the event loop has handled the current batch of reads (or after the flush window),
+         * so all the frames queued in between leave in one gathering write
+         */
+        @Override
+        void sendFrame(ByteBuffer frame, long tag) {
+            super.sendFrame(frame, tag);
+            if (flushScheduled.compareAndSet(false, true)) {
+                if (config.flushWindowMicros > 0) {
+                    eventLoop.schedule(this::flushPending, TimeUnit.MICROSECONDS.toNanos(config.flushWindowMicros));
+                } else {
+                    eventLoop.defer(this::flushPending);
+                }
+            } else if (config.flushWindowMicros > 0 && outbound.queuedBytes() >= config.flushBytes) {
+                //the byte budget is reached before the window is over
+                eventLoop.defer(this::flushPending);
+            }
+        }
+
+        /**
+         * writes as much of the pending output as the socket accepts without blocking,
+         * and asks for OP_WRITE when the socket buffer is full. Only called on the event loop thread
+         */
+        void flushPending() {
+            flushScheduled.set(false);
+            if (selectionKey == null || !selectionKey.isValid()) {
+                return;
+            }
+            try {
+                while (true) {
+                    if (writeOffset == writeCount) {
+                        writeOffset = 0;
+                        writeCount = outbound.drainTo(writeBatch, writeBatchEnqueuedAt, writeBatchTags, config.flushBytes);
+                        if (writeCount == 0) {
+                            break;
+                        }
+                        compress(writeBatch, 0, writeCount);
+                    }
+                    writeStats.bytesWritten.add(channel.write(writeBatch, writeOffset, writeCount - writeOffset));
+                    writeStats.writeCalls.increment();
+
+                    int written = writeOffset;
+                    while (writeOffset < writeCount && !writeBatch[writeOffset].hasRemaining()) {
+                        writeOffset++;
+                    }
+                    recordWritten(writeBatch, writeBatchEnqueuedAt, writeBatchTags, written, writeOffset, System.nanoTime());
+
+                    if (writeOffset < writeCount) {
+                        //the socket buffer is full, continue when the selector says it is writable again
+                        selectionKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                }
+                selectionKey.interestOps(SelectionKey.OP_READ);
+            } catch (IOException e) {
+                if (!closing) {
+                    logger.info("Client " + username + " disconnected " + e.getMessage());
+                    abort();
+                }
             }
+        }
+
+        @Override
+        public void close() {
+            outbound.close();
+            stopIdleCheck();
             removeConnection(this);
+            eventLoop.execute(() -> closeChannel(true));
+        }
+
+        @Override
+        void abort() {
+            outbound.close();
+            connectionLost();
+            eventLoop.execute(() -> closeChannel(false));
+        }
+
+        private void closeChannel(boolean flushFirst) {
+            if (closing) {
+                return;
+            }
+            closing = true;
+            releaseAdmission();
+            stopIdleCheck();
+            if (flushFirst) {
+                //best effort: lines like '/disconnect' or 'You have been banned' may still be queued
+                flushPending();
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                logger.warning("Error while attempting to close the client channel associated with the username:" + username);
+            }
+            endCompression();
         }
     }
 }
@@ -0,0 +1,766 @@
+package server;
+
+import utils.BinaryProtocol;
+import utils.BinaryProtocol.FrameBuilder;
+import utils.ResponseType;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * <h2>Cluster relay bus</h2>
+ *
+ * <p>Connects this server to the other nodes of a cluster, so clients connected to different nodes can chat with each other.
+ * Every node listens on its cluster port and dials every peer in its list (a full mesh). A link is used in one direction only:
+ * a node sends on the link it dialed and receives on the links it accepted, so every event is forwarded exactly once to each peer
+ * and the receivers only fan it out to their own connections, they never forward it again.</p>
+ *
+ * <p>A node only accepts links from other nodes of the cluster: with a shared secret the HELLO must carry it, without one the link
+ * must come from the address of one of the peers in the list. A link which fails the check is closed before anything is read from it.</p>
+ *
+ * <p>Frames use the layout of the client binary protocol ({@link BinaryProtocol}): [int length][byte type][fields].</p>
+ * <pre>
+ * HELLO        string nodeId [string secret]     first frame in both directions of a new link, the secret only if there is one
+ * MESSAGE      string room, string username, int usernameColor, string text
+ * NOTICE       string room ("" for everyone), int responseOpcode, string text
+ * USER_ADD     string username, string room      a user registered or moved to another room
+ * USER_REMOVE  string username
+ * CLAIM        int claimId, string username      may I register this username?
+ * CLAIM_ACK    int claimId, string username
+ * CLAIM_NACK   int claimId, string username
+ * RELEASE      string username                   the claim failed, forget the reservation
+ * BAN          string username                   sent to the node of the banned user only
+ * WHISPER      string to, string from, int fromColor, string text   sent to the node of the recipient only
+ * </pre>
+ *
+ * <h2>Unique usernames</h2>
+ *
+ * <p>Every node keeps a registry of the users of the other nodes, filled by USER_ADD and USER_REMOVE, and
+ * rebuilt from scratch whenever a link comes up (the dialing node sends a USER_ADD for each of its users).
+ * The registry answers the quick check, the claim makes it safe against two nodes registering the same name at the same time:
+ * the node asks every connected peer, which reserves the name for it or refuses. If two nodes claim the same name at once,
+ * the node with the smaller id wins. A peer which does not answer within the claim timeout counts as a yes, so the cluster stays
+ * usable while a node is down</p>
+ */
+class ClusterNode implements AutoCloseable {
+    private static final Logger logger = Logger.getLogger(ClusterNode.class.getName());
+
+    static final byte HELLO = 1;
+    static final byte MESSAGE = 2;
+    static final byte NOTICE = 3;
+    static final byte USER_ADD = 4;
+    static final byte USER_REMOVE = 5;
+    static final byte CLAIM = 6;
+    static final byte CLAIM_ACK = 7;
+    static final byte CLAIM_NACK = 8;
+    static final byte RELEASE = 9;
+    static final byte BAN = 10;
+    static final byte WHISPER = 11;
+
+    private static final int LINK_QUEUE_CAPACITY = 64 * 1024;
+    private static final long RECONNECT_DELAY_MILLIS = 1000;
+    //a link which was not checked yet gets this many bytes for its HELLO, this long to send it, and this many threads at once
+    static final int MAX_HELLO_LENGTH = 4096;
+    private static final int HANDSHAKE_TIMEOUT_MILLIS = 5000;
+    static final int MAX_HANDSHAKES = 16;
+
+    /**
+     * what the relay bus needs from the local server
+     */
+    interface Listener {
+        void onRemoteMessage(String room, String username, int usernameColor, String text);
+
+        /**
+         * room is "" for a notice to everyone
+         */
+        void onRemoteNotice(String room, ResponseType type, String text);
+
+        void onRemoteBan(String username);
+
+        void onRemoteWhisper(String to, String from, int fromColor, String text);
+
+        boolean isLocallyTaken(String username);
+
+        /**
+         * username to room name of every registered local connection
+         */
+        Map<String, String> localUsers();
+    }
+
+    private static final class RemoteUser {
+        final String nodeId;
+        final String room;
+
+        RemoteUser(String nodeId, String room) {
+            this.nodeId = nodeId;
+            this.room = room;
+        }
+    }
+
+    /**
+     * a username another node is claiming
+     */
+    private static final class Reservation {
+        final String nodeId;
+        final long expiresAtNanos;
+
+        Reservation(String nodeId, long expiresAtNanos) {
+            this.nodeId = nodeId;
+            this.expiresAtNanos = expiresAtNanos;
+        }
+    }
+
+    /**
+     * a username this node is claiming
+     */
+    private static final class Claim {
+        final int id;
+        final CompletableFuture<Boolean> granted = new CompletableFuture<>();
+        final AtomicInteger waitingFor = new AtomicInteger();
+
+        Claim(int id) {
+            this.id = id;
+        }
+    }
+
+    final String nodeId;
+    private final List<String> peers;
+    private final String secret;
+    private final Listener listener;
+    private final long claimTimeoutMillis;
+    private final ServerSocket serverSocket;
+    private final List<PeerLink> links = new ArrayList<>();
+    private final ConcurrentHashMap<String, PeerLink> linksByNode = new ConcurrentHashMap<>();
+    //the reader of the newest link accepted from every node, an older reader which dies late must not wipe the newer state
+    private final ConcurrentHashMap<String, Object> inboundSessions = new ConcurrentHashMap<>();
+    private final Semaphore handshakes = new Semaphore(MAX_HANDSHAKES);
+    //a new link snapshots the local users under this lock, so every later join or leave is queued after the snapshot
+    private final Object localEvents = new Object();
+
+    private final ConcurrentHashMap<String, RemoteUser> remoteUsers = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Set<String>> remoteRoomMembers = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Reservation> reservations = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Claim> claims = new ConcurrentHashMap<>();
+    private final AtomicInteger nextClaimId = new AtomicInteger();
+    //bumped by every change of remoteRoomMembers
+    private final AtomicLong rosterVersion = new AtomicLong();
+
+    final LongAdder framesSent = new LongAdder();
+    final LongAdder framesReceived = new LongAdder();
+    final LongAdder framesDropped = new LongAdder();
+    final LongAdder linksRejected = new LongAdder();
+
+    private volatile boolean closed = false;
+
+    /**
+     * bindAddress and secret may be empty: to listen on every interface, and to accept links from the addresses of the peers only
+     */
+    ClusterNode(String nodeId, String bindAddress, int port, List<String> peers, String secret,
+                long claimTimeoutMillis, Listener listener) throws IOException {
+        this.nodeId = nodeId;
+        this.peers = List.copyOf(peers);
+        this.secret = secret;
+        this.listener = listener;
+        this.claimTimeoutMillis = claimTimeoutMillis;
+        this.serverSocket = new ServerSocket();
+        serverSocket.bind(bindAddress.isEmpty() ? new InetSocketAddress(port) : new InetSocketAddress(bindAddress, port));
+
+        Thread acceptor = new Thread(this::acceptLinks, "cluster-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        for (String peer : peers) {
+            PeerLink link = new PeerLink(peer);
+            links.add(link);
+            Thread dialer = new Thread(link, "cluster-link-" + peer);
+            dialer.setDaemon(true);
+            dialer.start();
+        }
+        logger.info("Cluster node " + nodeId + " listening on " + serverSocket.getLocalSocketAddress() + ", peers " + peers);
+    }
+
+
+    //---------------- events of the local server, forwarded to every peer
+
+    void forwardMessage(String room, String username, int usernameColor, String text) {
+        sendToAll(new FrameBuilder(MESSAGE, room.length() + username.length() + text.length() + 16)
+                .putString(room).putString(username).putInt(usernameColor).putString(text).build());
+    }
+
+    void forwardNotice(String room, ResponseType type, String text) {
+        FrameBuilder frame = new FrameBuilder(NOTICE, room.length() + text.length() + 16).putString(room);
+        sendToAll(frame.putInt(type.opcode).putString(text).build());
+    }
+
+    void userJoined(String username, String room) {
+        synchronized (localEvents) {
+            sendToAll(userAdd(username, room));
+        }
+    }
+
+    void userLeft(String username) {
+        synchronized (localEvents) {
+            sendToAll(new FrameBuilder(USER_REMOVE).putString(username).build());
+        }
+    }
+
+    /**
+     * asks the node of a remote user to ban it, returns false if the user is not on any other node
+     */
+    boolean forwardBan(String username) {
+        RemoteUser user = remoteUsers.get(username);
+        PeerLink link = user == null ? null : linksByNode.get(user.nodeId);
+        if (link == null) {
+            return false;
+        }
+        link.send(new FrameBuilder(BAN).putString(username).build());
+        return true;
+    }
+
+    /**
+     * sends a whisper to the node of a remote user, returns false if the user is not on any other node
+     */
+    boolean forwardWhisper(String to, String from, int fromColor, String text) {
+        RemoteUser user = remoteUsers.get(to);
+        PeerLink link = user == null ? null : linksByNode.get(user.nodeId);
+        if (link == null) {
+            return false;
+        }
+        link.send(new FrameBuilder(WHISPER, to.length() + from.length() + text.length() + 16)
+                .putString(to).putString(from).putInt(fromColor).putString(text).build());
+        return true;
+    }
+
+    private static ByteBuffer userAdd(String username, String room) {
+        return new FrameBuilder(USER_ADD).putString(username).putString(room).build();
+    }
+
+    private void sendToAll(ByteBuffer frame) {
+        for (PeerLink link : links) {
+            link.send(frame.duplicate());
+        }
+    }
+
+
+    //---------------- cluster wide registry
+
+    /**
+     * true if the username is used or being claimed anywhere else in the cluster
+     */
+    boolean isTaken(String username) {
+        if (remoteUsers.containsKey(username) || claims.containsKey(username)) {
+            return true;
+        }
+        Reservation reservation = reservations.get(username);
+        return reservation != null && reservation.expiresAtNanos - System.nanoTime() > 0;
+    }
+
+    int remoteCount(String room) {
+        Set<String> members = remoteRoomMembers.get(room);
+        return members == null ? 0 : members.size();
+    }
+
+    Set<String> remoteMembers(String room) {
+        Set<String> members = remoteRoomMembers.get(room);
+        return members == null ? Collections.emptySet() : members;
+    }
+
+    /**
+     * changes whenever a remote user joins, leaves or moves to another room
+     */
+    long rosterVersion() {
+        return rosterVersion.get();
+    }
+
+    int connectedPeers() {
+        return linksByNode.size();
+    }
+
+    int remoteUserCount() {
+        return remoteUsers.size();
+    }
+
+    /**
+     * <p>Asks every connected peer whether the username is free. The future completes with false as soon as one peer refuses,
+     * and with true once all of them agreed or the claim timed out.</p>
+     *
+     * <p>The username stays claimed until {@link #endClaim(String, boolean)}, which the server calls after it registered the user
+     * (or gave up), so no other claim of this node can take the name in between</p>
+     */
+    CompletableFuture<Boolean> claim(String username) {
+        Claim claim = new Claim(nextClaimId.incrementAndGet());
+        if (claims.putIfAbsent(username, claim) != null) {
+            return CompletableFuture.completedFuture(false);
+        }
+        if (remoteUsers.containsKey(username) || isReservedByOther(username, nodeId)) {
+            claim.granted.complete(false);
+            return claim.granted;
+        }
+
+        List<PeerLink> connected = new ArrayList<>(linksByNode.values());
+        if (connected.isEmpty()) {
+            claim.granted.complete(true);
+            return claim.granted;
+        }
+        claim.waitingFor.set(connected.size());
+        ByteBuffer frame = new FrameBuilder(CLAIM).putInt(claim.id).putString(username).build();
+        for (PeerLink link : connected) {
+            link.send(frame.duplicate());
+        }
+        claim.granted.completeOnTimeout(true, claimTimeoutMillis, TimeUnit.MILLISECONDS);
+        return claim.granted;
+    }
+
+    /**
+     * ends the claim: a registered username is announced by the USER_ADD which follows, otherwise the peers drop their reservation
+     */
+    void endClaim(String username, boolean registered) {
+        claims.remove(username);
+        if (!registered) {
+            sendToAll(new FrameBuilder(RELEASE).putString(username).build());
+        }
+    }
+
+    private boolean isReservedByOther(String username, String claimant) {
+        Reservation reservation = reservations.get(username);
+        return reservation != null && !reservation.nodeId.equals(claimant) && reservation.expiresAtNanos - System.nanoTime() > 0;
+    }
+
+    private void onClaim(String claimant, int claimId, String username) {
+        RemoteUser user = remoteUsers.get(username);
+        boolean taken = listener.isLocallyTaken(username) || user != null || isReservedByOther(username, claimant);
+
+        Claim mine = claims.get(username);
+        if (mine != null && !taken) {
+            //both nodes claim the same name at once, the smaller node id wins
+            //unless this node already got all its answers and is registering the name right now
+            if (claimant.compareTo(nodeId) > 0 || (!mine.granted.complete(false) && mine.granted.getNow(false))) {
+                taken = true;
+            }
+        }
+        if (!taken) {
+            reservations.put(username, new Reservation(claimant, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(2 * claimTimeoutMillis)));
+        }
+
+        PeerLink link = linksByNode.get(claimant);
+        if (link != null) {
+            link.send(new FrameBuilder(taken ? CLAIM_NACK : CLAIM_ACK).putInt(claimId).putString(username).build());
+        }
+    }
+
+    private void onClaimReply(int claimId, String username, boolean granted) {
+        Claim claim = claims.get(username);
+        if (claim == null || claim.id != claimId) {
+            return;
+        }
+        if (!granted) {
+            claim.granted.complete(false);
+        } else if (claim.waitingFor.decrementAndGet() == 0) {
+            claim.granted.complete(true);
+        }
+    }
+
+    private void addRemoteUser(String node, String username, String room) {
+        RemoteUser previous = remoteUsers.put(username, new RemoteUser(node, room));
+        if (previous != null) {
+            removeFromRoom(previous.room, username);
+        }
+        remoteRoomMembers.compute(room, (key, members) -> {
+            if (members == null) {
+                members = ConcurrentHashMap.newKeySet();
+            }
+            members.add(username);
+            return members;
+        });
+        rosterVersion.incrementAndGet();
+        reservations.remove(username);
+    }
+
+    private void removeRemoteUser(String node, String username) {
+        RemoteUser user = remoteUsers.get(username);
+        if (user != null && user.nodeId.equals(node) && remoteUsers.remove(username, user)) {
+            removeFromRoom(user.room, username);
+        }
+    }
+
+    private void removeFromRoom(String room, String username) {
+        remoteRoomMembers.computeIfPresent(room, (key, members) -> {
+            members.remove(username);
+            return members.isEmpty() ? null : members;
+        });
+        rosterVersion.incrementAndGet();
+    }
+
+    /**
+     * forgets everything about a node, its users are gone when its link is
+     */
+    private void removeNode(String node) {
+        for (Map.Entry<String, RemoteUser> entry : remoteUsers.entrySet()) {
+            if (entry.getValue().nodeId.equals(node)) {
+                removeRemoteUser(node, entry.getKey());
+            }
+        }
+        reservations.values().removeIf(reservation -> reservation.nodeId.equals(node));
+    }
+
+
+    //---------------- links
+
+    private void acceptLinks() {
+        while (!closed) {
+            try {
+                Socket socket = serverSocket.accept();
+                if (!handshakes.tryAcquire()) {
+                    //so many links are still in their handshake that this is no node coming back, but a flood
+                    linksRejected.increment();
+                    socket.close();
+                    continue;
+                }
+                socket.setTcpNoDelay(true);
+                Thread reader = new Thread(() -> readLink(socket), "cluster-reader-" + socket.getRemoteSocketAddress());
+                reader.setDaemon(true);
+                reader.start();
+            } catch (IOException e) {
+                if (!closed) {
+                    logger.warning("Error while accepting a cluster link: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * reads the events of the node which dialed this link, until the link breaks
+     */
+    private void readLink(Socket socket) {
+        String node = null;
+        Object session = new Object();
+        boolean handshaking = true;
+        try (socket) {
+            socket.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            ByteBuffer hello = readFrame(in, MAX_HELLO_LENGTH);
+            if (hello == null || hello.get() != HELLO) {
+                return;
+            }
+            String helloNode = BinaryProtocol.getString(hello);
+            if (!isTrusted(socket.getInetAddress(), hello.hasRemaining() ? BinaryProtocol.getString(hello) : "")) {
+                linksRejected.increment();
+                logger.warning("Closed a cluster link from " + socket.getRemoteSocketAddress() + " (node " + helloNode + ")"
+                        + (secret.isEmpty() ? ", it is not the address of a peer" : ", it did not send the cluster secret"));
+                return;
+            }
+            node = helloNode;
+            writeFrame(socket.getOutputStream(), hello());
+            socket.setSoTimeout(0);
+            handshaking = false;
+            handshakes.release();
+
+            //the peer sends all its users again on every new link
+            inboundSessions.put(node, session);
+            removeNode(node);
+            logger.info("Cluster node " + node + " connected from " + socket.getRemoteSocketAddress());
+
+            ByteBuffer frame;
+            while ((frame = readFrame(in, BinaryProtocol.MAX_FRAME_LENGTH * 4)) != null) {
+                framesReceived.increment();
+                dispatch(node, frame);
+            }
+        } catch (IOException | RuntimeException e) {
+            if (!closed) {
+                logger.warning("Cluster link from " + (node == null ? socket.getRemoteSocketAddress() : node) + " failed: " + e.getMessage());
+            }
+        } finally {
+            if (handshaking) {
+                handshakes.release();
+            }
+            if (node != null && inboundSessions.remove(node, session)) {
+                removeNode(node);
+                logger.info("Cluster node " + node + " disconnected");
+            }
+        }
+    }
+
+    private ByteBuffer hello() {
+        FrameBuilder hello = new FrameBuilder(HELLO).putString(nodeId);
+        if (!secret.isEmpty()) {
+            hello.putString(secret);
+        }
+        return hello.build();
+    }
+
+    /**
+     * with a secret the HELLO must carry it, without one the link must come from the address of a peer in the list
+     */
+    private boolean isTrusted(InetAddress address, String offeredSecret) {
+        if (!secret.isEmpty()) {
+            return MessageDigest.isEqual(secret.getBytes(StandardCharsets.UTF_8), offeredSecret.getBytes(StandardCharsets.UTF_8));
+        }
+        for (String peer : peers) {
+            try {
+                for (InetAddress peerAddress : InetAddress.getAllByName(peer.substring(0, peer.lastIndexOf(':')))) {
+                    if (peerAddress.equals(address)) {
+                        return true;
+                    }
+                }
+            } catch (UnknownHostException e) {
+                //a peer which does not resolve is not the one connecting
+            }
+        }
+        return false;
+    }
+
+    private void dispatch(String node, ByteBuffer frame) {
+        byte type = frame.get();
+        switch (type) {
+            case MESSAGE: {
+                String room = BinaryProtocol.getString(frame);
+                String username = BinaryProtocol.getString(frame);
+                int usernameColor = frame.getInt();
+                listener.onRemoteMessage(room, username, usernameColor, BinaryProtocol.getString(frame));
+                break;
+            }
+            case NOTICE: {
+                String room = BinaryProtocol.getString(frame);
+                ResponseType responseType = ResponseType.fromOpcode((byte) frame.getInt());
+                String text = BinaryProtocol.getString(frame);
+                if (responseType != null) {
+                    listener.onRemoteNotice(room, responseType, text);
+                }
+                break;
+            }
+            case USER_ADD: {
+                String username = BinaryProtocol.getString(frame);
+                addRemoteUser(node, username, BinaryProtocol.getString(frame));
+                break;
+            }
+            case USER_REMOVE: {
+                removeRemoteUser(node, BinaryProtocol.getString(frame));
+                break;
+            }
+            case CLAIM: {
+                int claimId = frame.getInt();
+                onClaim(node, claimId, BinaryProtocol.getString(frame));
+                break;
+            }
+            case CLAIM_ACK:
+            case CLAIM_NACK: {
+                int claimId = frame.getInt();
+                onClaimReply(claimId, BinaryProtocol.getString(frame), type == CLAIM_ACK);
+                break;
+            }
+            case RELEASE: {
+                String username = BinaryProtocol.getString(frame);
+                Reservation reservation = reservations.get(username);
+                if (reservation != null && reservation.nodeId.equals(node)) {
+                    reservations.remove(username, reservation);
+                }
+                break;
+            }
+            case BAN: {
+                listener.onRemoteBan(BinaryProtocol.getString(frame));
+                break;
+            }
+            case WHISPER: {
+                String to = BinaryProtocol.getString(frame);
+                String from = BinaryProtocol.getString(frame);
+                int fromColor = frame.getInt();
+                listener.onRemoteWhisper(to, from, fromColor, BinaryProtocol.getString(frame));
+                break;
+            }
+            default: {
+                logger.warning("Unknown cluster frame " + type + " from " + node);
+            }
+        }
+    }
+
+    /**
+     * returns null at the end of the stream
+     */
+    private static ByteBuffer readFrame(DataInputStream in, int maxLength) throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        if (length <= 0 || length > maxLength) {
+            throw new IOException("cluster frame of " + length + " bytes");
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return ByteBuffer.wrap(bytes);
+    }
+
+    private static void writeFrame(OutputStream out, ByteBuffer frame) throws IOException {
+        out.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+        out.flush();
+    }
+
+    /**
+     * <p>The link this node dialed to one peer, everything this node sends to the peer goes through it.</p>
+     *
+     * <p>Frames are queued and written by the link's own thread, which flushes once the queue is empty, so a burst of events costs few writes.
+     * A broken link is dialed again after a short delay, frames sent in the meantime are dropped: the peer rebuilds its registry
+     * from the users which are sent right after every handshake</p>
+     */
+    private class PeerLink implements Runnable {
+        private final String address;
+        private final LinkedBlockingQueue<ByteBuffer> queue = new LinkedBlockingQueue<>(LINK_QUEUE_CAPACITY);
+        private volatile String peerNodeId;
+        private volatile Socket socket;
+
+        PeerLink(String address) {
+            this.address = address;
+        }
+
+        void send(ByteBuffer frame) {
+            if (peerNodeId == null) {
+                return;
+            }
+            if (!queue.offer(frame)) {
+                //the peer can't keep up, start over with a fresh link and a fresh registry
+                framesDropped.increment();
+                closeSocket();
+            }
+        }
+
+        @Override
+        public void run() {
+            boolean warned = false;
+            while (!closed) {
+                try (Socket socket = new Socket()) {
+                    this.socket = socket;
+                    int colon = address.lastIndexOf(':');
+                    socket.connect(new InetSocketAddress(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1))), 5000);
+                    socket.setTcpNoDelay(true);
+                    OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+                    writeFrame(out, hello());
+                    socket.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+                    ByteBuffer hello = readFrame(new DataInputStream(socket.getInputStream()), MAX_HELLO_LENGTH);
+                    if (hello == null || hello.get() != HELLO) {
+                        throw new IOException("no handshake");
+                    }
+                    String peer = BinaryProtocol.getString(hello);
+                    if (!secret.isEmpty() && !isTrusted(socket.getInetAddress(), hello.hasRemaining() ? BinaryProtocol.getString(hello) : "")) {
+                        linksRejected.increment();
+                        throw new IOException("the node " + peer + " did not send the cluster secret");
+                    }
+                    logger.info("Cluster link to " + peer + " (" + address + ") is up");
+                    warned = false;
+
+                    socket.setSoTimeout(1);
+                    synchronized (localEvents) {
+                        queue.clear();
+                        peerNodeId = peer;
+                        linksByNode.put(peer, this);
+                        for (Map.Entry<String, String> user : listener.localUsers().entrySet()) {
+                            send(userAdd(user.getKey(), user.getValue()));
+                        }
+                    }
+                    writeLoop(out, socket.getInputStream());
+                } catch (IOException | RuntimeException e) {
+                    if (!closed && !warned) {
+                        logger.warning("Cluster link to " + address + " is down: " + e.getMessage());
+                        warned = true;
+                    }
+                } finally {
+                    String peer = peerNodeId;
+                    peerNodeId = null;
+                    if (peer != null) {
+                        linksByNode.remove(peer, this);
+                    }
+                }
+                try {
+                    Thread.sleep(RECONNECT_DELAY_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        private void writeLoop(OutputStream out, InputStream in) throws IOException {
+            while (!closed && !socket.isClosed()) {
+                ByteBuffer frame;
+                try {
+                    frame = queue.poll(500, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (frame == null) {
+                    //nothing comes back on this link, but a read notices a peer which closed it
+                    try {
+                        if (in.read() < 0) {
+                            return;
+                        }
+                    } catch (SocketTimeoutException ignored) {
+                        //still connected
+                    }
+                    continue;
+                }
+                out.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+                framesSent.increment();
+                if (queue.isEmpty()) {
+                    out.flush();
+                }
+            }
+        }
+
+        private void closeSocket() {
+            Socket current = socket;
+            if (current != null) {
+                try {
+                    current.close();
+                } catch (IOException ignored) {
+                    //closing anyway
+                }
+            }
+        }
+    }
+
+    String report() {
+        return "cluster " + nodeId + ": links=" + connectedPeers() + "/" + links.size()
+                + " remoteUsers=" + remoteUsers.size()
+                + " framesSent=" + framesSent.sum() + " framesReceived=" + framesReceived.sum() + " framesDropped=" + framesDropped.sum()
+                + " linksRejected=" + linksRejected.sum();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            serverSocket.close();
+        } catch (IOException ignored) {
+            //closing anyway
+        }
+        for (PeerLink link : links) {
+            link.closeSocket();
+        }
+    }
+}
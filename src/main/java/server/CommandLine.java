@@ -0,0 +1,117 @@
+package server;
+
+import utils.RequestType;
+
+/**
+ * <p>One request of a client, parsed in place: the command and the body are offsets into the line it was read from.</p>
+ *
+ * <p>A connection reuses one instance for all its requests. Nothing is copied while parsing, the command is resolved
+ * by {@link RequestType#fromCommand(CharSequence, int, int)} and a handler copies the body with {@link #body()} only if it
+ * keeps it (eg: the text of a message). Commands which ignore the body never allocate.</p>
+ *
+ * <p>The line is split like this, everything trimmed of whitespace (chars up to ' ', like {@link String#trim()}):</p>
+ * <pre>
+ * '/message  hello there ' -> command '/message', body 'hello there'
+ * '/onlineList'            -> command '/onlineList', no body
+ * </pre>
+ */
+final class CommandLine {
+    private String line;
+    private int commandStart, commandEnd;
+    private int bodyStart, bodyEnd;
+
+    RequestType type = RequestType.UNKNOWN;
+
+    /**
+     * parses a line of the line protocol, returns false if it is blank
+     */
+    boolean parse(String line) {
+        int start = 0;
+        int end = line.length();
+        while (start < end && line.charAt(start) <= ' ') {
+            start++;
+        }
+        while (end > start && line.charAt(end - 1) <= ' ') {
+            end--;
+        }
+        if (start == end) {
+            return false;
+        }
+        this.line = line;
+        this.commandStart = start;
+        int space = line.indexOf(' ', start);
+        if (space != -1 && space < end) {
+            //the line is trimmed, so something follows the space
+            commandEnd = trimEnd(start, space);
+            bodyStart = trimStart(space + 1, end);
+            bodyEnd = end;
+        } else {
+            commandEnd = end;
+            bodyStart = bodyEnd = end;
+        }
+        type = RequestType.fromCommand(line, commandStart, commandEnd);
+        return true;
+    }
+
+    /**
+     * a request of the binary protocol, the body is trimmed like in the line protocol and an empty body is no body
+     */
+    void set(RequestType type, String body) {
+        this.type = type;
+        this.line = body == null ? "" : body;
+        commandStart = commandEnd = 0;
+        bodyEnd = trimEnd(0, line.length());
+        bodyStart = trimStart(0, bodyEnd);
+    }
+
+    boolean hasBody() {
+        return bodyStart < bodyEnd;
+    }
+
+    /**
+     * a copy of the body, null if there is none
+     */
+    String body() {
+        return hasBody() ? line.substring(bodyStart, bodyEnd) : null;
+    }
+
+    /**
+     * the body, or part of it, as a number, throws NumberFormatException like {@link Integer#parseInt(String)}
+     */
+    int bodyAsInt() {
+        return Integer.parseInt(line, bodyStart, bodyEnd, 10);
+    }
+
+    /**
+     * index of text in the body, -1 if it is not there
+     */
+    int bodyIndexOf(String text, int from) {
+        int index = line.indexOf(text, bodyStart + from);
+        return index == -1 || index + text.length() > bodyEnd ? -1 : index - bodyStart;
+    }
+
+    /**
+     * whether body[start, end) is exactly the text
+     */
+    boolean bodyRegionEquals(int start, int end, String text) {
+        return end - start == text.length() && line.regionMatches(bodyStart + start, text, 0, text.length());
+    }
+
+    int bodyLength() {
+        return bodyEnd - bodyStart;
+    }
+
+    private int trimStart(int start, int end) {
+        while (start < end && line.charAt(start) <= ' ') {
+            start++;
+        }
+        return start;
+    }
+
+    private int trimEnd(int start, int end) {
+        while (end > start && line.charAt(end - 1) <= ' ') {
+            end--;
+        }
+        return end;
+    }
+}
@@ -0,0 +1,36 @@
+package server;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * counts the bytes read from the socket of a blocking connection, it sits below the buffering so it sees a few large reads
+ */
+class CountingInputStream extends FilterInputStream {
+    private final LongAdder bytesRead;
+
+    CountingInputStream(InputStream in, LongAdder bytesRead) {
+        super(in);
+        this.bytesRead = bytesRead;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int value = super.read();
+        if (value != -1) {
+            bytesRead.increment();
+        }
+        return value;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+        int count = super.read(bytes, offset, length);
+        if (count > 0) {
+            bytesRead.add(count);
+        }
+        return count;
+    }
+}
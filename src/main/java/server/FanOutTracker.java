@@ -0,0 +1,81 @@
+package server;
+
+import utils.LatencyHistogram;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>Measures how long a chat message takes from the moment its request was read until the last recipient's write returned.</p>
+ *
+ * <p>Every fan-out gets a tag from {@link #begin(long)}, which travels with each of its frames through the outbound queues.
+ * The writers report every tagged frame they wrote with {@link #written(long, long)}, and the write which brings the number
+ * of frames still pending to zero records the latency. Nothing is allocated per message: the fan-outs in flight live in a fixed
+ * ring of {@link #SLOTS} slots, a tag is the sequence number of its fan-out and selects the slot.</p>
+ *
+ * <p>A fan-out whose frames were dropped by the slow consumer policy never completes and is not measured. If the ring wraps
+ * around while a fan-out is still in flight (more than {@link #SLOTS} messages behind), its slot is reused and the tag
+ * check makes the late writes count for nothing</p>
+ */
+class FanOutTracker {
+    static final long NO_TAG = -1;
+
+    static final int SLOTS = 4096;
+    private static final int MASK = SLOTS - 1;
+
+    private final AtomicLong nextTag = new AtomicLong();
+    private final AtomicLongArray tags = new AtomicLongArray(SLOTS);
+    private final AtomicLongArray startedAt = new AtomicLongArray(SLOTS);
+    private final AtomicLongArray lastWriteAt = new AtomicLongArray(SLOTS);
+    //frames queued minus frames written, the fan-out is complete when this is 0 after end()
+    private final AtomicIntegerArray pending = new AtomicIntegerArray(SLOTS);
+
+    //nanoseconds
+    final LatencyHistogram latency = new LatencyHistogram();
+
+    FanOutTracker() {
+        for (int i = 0; i < SLOTS; i++) {
+            tags.set(i, NO_TAG);
+        }
+    }
+
+    /**
+     * starts a fan-out for a request read at requestStartedAt (System.nanoTime()), returns the tag for its frames
+     */
+    long begin(long requestStartedAt) {
+        long tag = nextTag.getAndIncrement();
+        int slot = (int) (tag & MASK);
+        tags.set(slot, NO_TAG);
+        startedAt.set(slot, requestStartedAt);
+        lastWriteAt.set(slot, 0);
+        pending.set(slot, 0);
+        tags.set(slot, tag);
+        return tag;
+    }
+
+    /**
+     * called once all the frames of the fan-out are queued, some of them may already be written
+     */
+    void end(long tag, int queued) {
+        int slot = (int) (tag & MASK);
+        if (queued == 0 || tags.get(slot) != tag) {
+            return;
+        }
+        //writes which came first took pending below 0
+        if (pending.addAndGet(slot, queued) == 0) {
+            latency.record(lastWriteAt.get(slot) - startedAt.get(slot));
+        }
+    }
+
+    void written(long tag, long now) {
+        int slot = (int) (tag & MASK);
+        if (tags.get(slot) != tag) {
+            return;
+        }
+        lastWriteAt.accumulateAndGet(slot, now, Math::max);
+        if (pending.decrementAndGet(slot) == 0) {
+            latency.record(now - startedAt.get(slot));
+        }
+    }
+}
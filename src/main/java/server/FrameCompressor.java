@@ -0,0 +1,120 @@
+package server;
+
+import utils.BinaryProtocol;
+import utils.ResponseType;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.Deflater;
+
+/**
+ * <p>Deflates the large outgoing frames of one binary connection which offered compression at /newClient.</p>
+ *
+ * <p>The connection keeps one deflate stream for its whole life, so what was sent before (usernames, the 'Message' fields,
+ * the lines of /help) is the dictionary of what comes next. Frames below the threshold are sent as they are: the
+ * deflate header and the sync flush would make them bigger, and a fan-out compresses once per recipient.</p>
+ *
+ * <p>The stream has to see the frames in the order they are written, so the writer of the connection compresses them
+ * after taking them from the {@link OutboundQueue}, when the slow consumer policy can no longer drop one of them.
+ * Only that thread calls {@link #compress(ByteBuffer)} and {@link #end()}, the counters may be read by any thread</p>
+ */
+final class FrameCompressor {
+
+    //length field and opcode of a COMPRESSED frame
+    private static final int HEADER = BinaryProtocol.LENGTH_FIELD + 1;
+    //deflate can grow incompressible bytes a little, larger frames are sent as they are so the COMPRESSED frame stays below MAX_FRAME_LENGTH
+    static final int MAX_INPUT = BinaryProtocol.MAX_FRAME_LENGTH - 1024;
+
+    /**
+     * the counters of all the compressing connections of a server
+     */
+    static final class Totals {
+        final LongAdder framesCompressed = new LongAdder();
+        final LongAdder bytesBefore = new LongAdder();
+        final LongAdder bytesAfter = new LongAdder();
+        final LongAdder nanos = new LongAdder();
+    }
+
+    private final Deflater deflater;
+    private final int threshold;
+    private final Totals totals;
+    //reused for every frame, the COMPRESSED frame is copied out of it
+    private byte[] output = new byte[4096];
+
+    //written by the writer of the connection only
+    private volatile long framesCompressed, framesSkipped, bytesBefore, bytesAfter, nanos;
+
+    FrameCompressor(int level, int threshold, Totals totals) {
+        this.deflater = new Deflater(level, true);
+        this.threshold = threshold;
+        this.totals = totals;
+    }
+
+    /**
+     * returns the frame itself if it is too small or too large to be compressed, otherwise a COMPRESSED frame which inflates to it
+     */
+    ByteBuffer compress(ByteBuffer frame) {
+        int length = frame.remaining();
+        if (length < threshold || length > MAX_INPUT) {
+            framesSkipped++;
+            return frame;
+        }
+        long started = System.nanoTime();
+        deflater.setInput(frame);
+        int compressed = HEADER;
+        while (true) {
+            compressed += deflater.deflate(output, compressed, output.length - compressed, Deflater.SYNC_FLUSH);
+            //with SYNC_FLUSH the output is complete unless it filled the array
+            if (compressed < output.length) {
+                break;
+            }
+            output = Arrays.copyOf(output, output.length * 2);
+        }
+
+        ByteBuffer result = ByteBuffer.allocate(compressed);
+        result.putInt(compressed - BinaryProtocol.LENGTH_FIELD)
+                .put(ResponseType.COMPRESSED.opcode)
+                .put(output, HEADER, compressed - HEADER)
+                .flip();
+        long elapsed = System.nanoTime() - started;
+
+        framesCompressed++;
+        bytesBefore += length;
+        bytesAfter += compressed;
+        nanos += elapsed;
+        totals.framesCompressed.increment();
+        totals.bytesBefore.add(length);
+        totals.bytesAfter.add(compressed);
+        totals.nanos.add(elapsed);
+        return result;
+    }
+
+    /**
+     * bytes the compression saved so far, may be negative
+     */
+    long bytesSaved() {
+        return bytesBefore - bytesAfter;
+    }
+
+    /**
+     * eg: 'deflate 40 of 52 frames, 120400 -> 20100 bytes (6.0x), 3.2 ms cpu'
+     */
+    String report() {
+        return "deflate " + framesCompressed + " of " + (framesCompressed + framesSkipped) + " frames, "
+                + summary(bytesBefore, bytesAfter, nanos);
+    }
+
+    static String summary(long bytesBefore, long bytesAfter, long nanos) {
+        return bytesBefore + " -> " + bytesAfter + " bytes ("
+                + String.format("%.1fx", bytesAfter == 0 ? 0.0 : (double) bytesBefore / bytesAfter) + "), "
+                + String.format("%.1f", nanos / 1e6) + " ms cpu";
+    }
+
+    /**
+     * frees the native memory of the deflater, called by the writer once the connection is closed
+     */
+    void end() {
+        deflater.end();
+    }
+}
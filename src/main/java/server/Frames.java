@@ -0,0 +1,37 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * <p>Encodes the text lines sent to the clients.</p>
+ *
+ * <p>A frame built with {@link #shared(ByteBuffer)} is read-only, so one encoded frame can be queued for any number of
+ * connections: every connection writes its own {@link ByteBuffer#duplicate()}, which has its own position
+ * but points at the same bytes.</p>
+ */
+final class Frames {
+
+    private Frames() {
+    }
+
+    /**
+     * encodes the message and the '\n' terminator for a single connection
+     */
+    static ByteBuffer line(String message) {
+        return ByteBuffer.wrap(encode(message));
+    }
+
+    /**
+     * makes an encoded frame safe to share for a fan-out. It stays on the heap: the socket channel copies it into the
+     * temporary direct buffer it caches per thread, while a direct frame per broadcast would cost a native allocation
+     * which is only freed by the GC
+     */
+    static ByteBuffer shared(ByteBuffer encoded) {
+        return encoded.asReadOnlyBuffer();
+    }
+
+    private static byte[] encode(String message) {
+        return (message + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+}
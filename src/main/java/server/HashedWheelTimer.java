@@ -0,0 +1,236 @@
+package server;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * <p>A hashed timing wheel: one thread, a ring of buckets, and every tick the thread runs the timeouts of one bucket.
+ * A timeout further away than one turn of the wheel waits in its bucket for as many rounds as needed.</p>
+ *
+ * <p>Scheduling and cancelling only put the timeout into a queue, and a tick only touches its own bucket, so a hundred
+ * thousand connections with one idle timeout each cost the same per tick as a few. A timeout fires up to one tick late,
+ * which is fine for idle timeouts and heartbeats but not for anything precise.</p>
+ *
+ * <p>The tasks run on the timer thread, they have to be short and must not block</p>
+ */
+final class HashedWheelTimer implements AutoCloseable {
+    private static final Logger logger = Logger.getLogger(HashedWheelTimer.class.getName());
+
+    //timeouts moved from the queue into the wheel per tick at most, so a burst of schedule() calls can't stall the timer
+    private static final int MAX_TRANSFERS_PER_TICK = 100_000;
+
+    /**
+     * a scheduled task
+     */
+    interface Timeout {
+        /**
+         * returns false if the task already ran or was cancelled before
+         */
+        boolean cancel();
+    }
+
+    private final long tickNanos;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final long startedAt = System.nanoTime();
+
+    private final Queue<Entry> scheduled = new ConcurrentLinkedQueue<>();
+    private final Queue<Entry> cancelled = new ConcurrentLinkedQueue<>();
+    private final Thread worker;
+    private volatile boolean closed = false;
+
+    //scheduled and not yet run or cancelled
+    private final AtomicInteger pending = new AtomicInteger();
+    final LongAdder expired = new LongAdder();
+
+    //only touched by the worker
+    private long tick = 0;
+
+    /**
+     * wheelSize is rounded up to a power of two
+     */
+    HashedWheelTimer(String name, long tickDuration, TimeUnit unit, int wheelSize) {
+        this.tickNanos = Math.max(1, unit.toNanos(tickDuration));
+        int size = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+        this.wheel = new Bucket[size];
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new Bucket();
+        }
+        this.mask = size - 1;
+        this.worker = new Thread(this::run, name);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * runs the task on the timer thread after the delay, rounded up to the next tick. Throws RejectedExecutionException once closed
+     */
+    Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        if (closed) {
+            throw new RejectedExecutionException("The timer is closed");
+        }
+        Entry entry = new Entry(task, System.nanoTime() - startedAt + unit.toNanos(Math.max(0, delay)));
+        pending.incrementAndGet();
+        scheduled.add(entry);
+        return entry;
+    }
+
+    int pending() {
+        return pending.get();
+    }
+
+    private void run() {
+        while (!closed) {
+            long deadline = tickNanos * (tick + 1);
+            long sleep = deadline - (System.nanoTime() - startedAt);
+            if (sleep > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleep);
+                } catch (InterruptedException e) {
+                    //close()
+                    return;
+                }
+                continue;
+            }
+            removeCancelled();
+            transferScheduled();
+            wheel[(int) (tick & mask)].expire(deadline);
+            tick++;
+        }
+    }
+
+    private void removeCancelled() {
+        Entry entry;
+        while ((entry = cancelled.poll()) != null) {
+            if (entry.bucket != null) {
+                entry.bucket.remove(entry);
+            }
+        }
+    }
+
+    private void transferScheduled() {
+        for (int i = 0; i < MAX_TRANSFERS_PER_TICK; i++) {
+            Entry entry = scheduled.poll();
+            if (entry == null) {
+                return;
+            }
+            if (entry.state.get() != Entry.WAITING) {
+                //cancelled before it got into the wheel
+                continue;
+            }
+            long ticks = entry.deadline / tickNanos;
+            entry.remainingRounds = (ticks - tick) / wheel.length;
+            //a deadline in the past goes into the bucket of this tick
+            wheel[(int) (Math.max(ticks, tick) & mask)].add(entry);
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        worker.interrupt();
+    }
+
+    /**
+     * a doubly linked list, only touched by the worker
+     */
+    private final class Bucket {
+        private Entry head;
+        private Entry tail;
+
+        void add(Entry entry) {
+            entry.bucket = this;
+            if (head == null) {
+                head = tail = entry;
+            } else {
+                tail.next = entry;
+                entry.previous = tail;
+                tail = entry;
+            }
+        }
+
+        void remove(Entry entry) {
+            if (entry.previous != null) {
+                entry.previous.next = entry.next;
+            } else {
+                head = entry.next;
+            }
+            if (entry.next != null) {
+                entry.next.previous = entry.previous;
+            } else {
+                tail = entry.previous;
+            }
+            entry.previous = entry.next = null;
+            entry.bucket = null;
+        }
+
+        /**
+         * runs the entries of this round whose deadline passed, the others wait one more round
+         */
+        void expire(long now) {
+            Entry entry = head;
+            while (entry != null) {
+                Entry next = entry.next;
+                if (entry.remainingRounds <= 0 && entry.deadline <= now) {
+                    remove(entry);
+                    entry.expire();
+                } else {
+                    entry.remainingRounds--;
+                }
+                entry = next;
+            }
+        }
+    }
+
+    private final class Entry implements Timeout {
+        static final int WAITING = 0;
+        static final int CANCELLED = 1;
+        static final int EXPIRED = 2;
+
+        final Runnable task;
+        //nanoseconds after startedAt
+        final long deadline;
+        final AtomicInteger state = new AtomicInteger(WAITING);
+
+        //only touched by the worker
+        long remainingRounds;
+        Bucket bucket;
+        Entry previous;
+        Entry next;
+
+        Entry(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public boolean cancel() {
+            if (!state.compareAndSet(WAITING, CANCELLED)) {
+                return false;
+            }
+            pending.decrementAndGet();
+            //unlinked by the worker, the bucket is not thread safe
+            cancelled.add(this);
+            return true;
+        }
+
+        void expire() {
+            if (!state.compareAndSet(WAITING, EXPIRED)) {
+                return;
+            }
+            pending.decrementAndGet();
+            expired.increment();
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "A timer task failed", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package server;
+
+import server.persistence.LogRecord;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * <p>The last {@link #capacity()} chat messages of one room, kept in memory so that a joining client can be shown what was said before.</p>
+ *
+ * <p>The ring is two arrays allocated up front, the n-th message appended lives in slot n % capacity. Writers never lock:
+ * a slot is claimed with one atomic increment and published like a seqlock. The writer marks the slot as being written,
+ * stores the record and then stores n into the slot sequence. A reader reads the slot sequence before and after the record,
+ * and only takes the record if both are n, so it never mixes up a message with the one overwriting it.</p>
+ *
+ * <p>The position in the ring is private to the ring. Callers page with the {@link LogRecord#sequence} of the messages,
+ * which is numbered across all the rooms (by the message log when persistence is on)</p>
+ */
+class HistoryRing {
+    private static final long WRITING = -1;
+
+    private final AtomicReferenceArray<LogRecord> records;
+    private final AtomicLongArray slotSequences;
+
+    //next position handed out to a writer
+    private final AtomicLong next = new AtomicLong();
+
+    HistoryRing(int capacity) {
+        this.records = new AtomicReferenceArray<>(capacity);
+        this.slotSequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            slotSequences.set(i, WRITING);
+        }
+    }
+
+    int capacity() {
+        return records.length();
+    }
+
+    void append(LogRecord record) {
+        long position = next.getAndIncrement();
+        int slot = (int) (position % records.length());
+        slotSequences.set(slot, WRITING);
+        records.set(slot, record);
+        slotSequences.set(slot, position);
+    }
+
+    /**
+     * returns up to max messages with a sequence below beforeSequence, oldest first.
+     * The list stops early at the oldest message still in the ring, and skips slots which are being written right now
+     */
+    List<LogRecord> before(long beforeSequence, int max) {
+        long newest = next.get() - 1;
+        long oldest = Math.max(0, newest - records.length() + 1);
+        List<LogRecord> found = new ArrayList<>(Math.min(max, records.length()));
+
+        for (long position = newest; position >= oldest && found.size() < max; position--) {
+            int slot = (int) (position % records.length());
+            long sequenceBefore = slotSequences.get(slot);
+            LogRecord record = records.get(slot);
+            long sequenceAfter = slotSequences.get(slot);
+            if (sequenceBefore > position || sequenceAfter > position) {
+                //already overwritten by a newer message: everything older is gone as well
+                break;
+            }
+            if (sequenceBefore == position && sequenceAfter == position && record.sequence < beforeSequence) {
+                found.add(record);
+            }
+        }
+        //two writers may claim their positions in the other order than they got their sequences
+        found.sort(Comparator.comparingLong(record -> record.sequence));
+        return found;
+    }
+
+    /**
+     * returns up to max of the newest messages with a sequence above afterSequence, oldest first.
+     * The whole ring is looked at, since the positions are only roughly in the order of the sequences
+     */
+    List<LogRecord> after(long afterSequence, int max) {
+        long newest = next.get() - 1;
+        long oldest = Math.max(0, newest - records.length() + 1);
+        List<LogRecord> found = new ArrayList<>();
+
+        for (long position = newest; position >= oldest && found.size() < max; position--) {
+            int slot = (int) (position % records.length());
+            long sequenceBefore = slotSequences.get(slot);
+            LogRecord record = records.get(slot);
+            long sequenceAfter = slotSequences.get(slot);
+            if (sequenceBefore > position || sequenceAfter > position) {
+                break;
+            }
+            if (sequenceBefore == position && sequenceAfter == position && record.sequence > afterSequence) {
+                found.add(record);
+            }
+        }
+        found.sort(Comparator.comparingLong(record -> record.sequence));
+        return found;
+    }
+}
@@ -0,0 +1,233 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * <p>A single selector thread which owns a subset of the NIO connections.</p>
+ *
+ * <p>All the reads, writes and interest changes of a connection happen on its loop thread.
+ * Other threads (eg: a broadcast coming from another loop) hand work over with {@link #execute(Runnable)}</p>
+ *
+ * <p>One iteration of the loop first handles all the ready keys, then runs the queued tasks. A task which is
+ * {@link #defer(Runnable) deferred} while handling the keys therefore runs once all of them are handled,
+ * which is how the writes caused by a batch of reads get coalesced.</p>
+ *
+ * <p>A RuntimeException out of a key, a task or a scheduled task is logged and never ends the loop, the other connections of
+ * the loop would hang otherwise. A failing key aborts its own connection</p>
+ */
+class NioEventLoop implements Runnable, AutoCloseable {
+    private static final Logger logger = Logger.getLogger(NioEventLoop.class.getName());
+
+    private final Selector selector;
+    private final Thread thread;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    //only touched on the loop thread
+    private final PriorityQueue<ScheduledTask> scheduledTasks = new PriorityQueue<>();
+    private long scheduledTaskCounter = 0;
+
+    //one read buffer per loop is enough because a loop reads one channel at a time
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(16 * 1024);
+
+    private volatile boolean running = true;
+
+    NioEventLoop(String name) throws IOException {
+        this.selector = Selector.open();
+        this.thread = new Thread(this, name);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * runs the task on the loop thread, immediately if the caller already is the loop thread
+     */
+    void execute(Runnable task) {
+        if (inEventLoop()) {
+            task.run();
+            return;
+        }
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * runs the task on the loop thread after the keys which are being handled right now
+     */
+    void defer(Runnable task) {
+        tasks.add(task);
+        if (!inEventLoop()) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * runs the task on the loop thread once the delay is over (rounded up to the millisecond precision of the selector)
+     */
+    void schedule(Runnable task, long delayNanos) {
+        long deadline = System.nanoTime() + delayNanos;
+        execute(() -> scheduledTasks.add(new ScheduledTask(deadline, scheduledTaskCounter++, task)));
+    }
+
+    void register(SocketChannel channel, ChatServer.NioConnectionHandler handler) {
+        execute(() -> {
+            try {
+                handler.selectionKey = channel.register(selector, SelectionKey.OP_READ, handler);
+            } catch (ClosedChannelException e) {
+                handler.abort();
+            }
+        });
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                select();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    processKey(key);
+                }
+                runTasks();
+                runScheduledTasks();
+            } catch (IOException e) {
+                logger.severe("Error: selector failed in " + thread.getName() + " " + e.getMessage());
+            }
+        }
+        closeSelector();
+    }
+
+    private void select() throws IOException {
+        ScheduledTask next = scheduledTasks.peek();
+        if (next == null) {
+            selector.select();
+            return;
+        }
+        long delayNanos = next.deadline - System.nanoTime();
+        if (delayNanos <= 0) {
+            selector.selectNow();
+        } else {
+            selector.select(Math.max(1, (delayNanos + 999_999) / 1_000_000));
+        }
+    }
+
+    private void runScheduledTasks() {
+        long now = System.nanoTime();
+        ScheduledTask next;
+        while ((next = scheduledTasks.peek()) != null && next.deadline - now <= 0) {
+            runSafely(scheduledTasks.poll().task);
+        }
+    }
+
+    private static class ScheduledTask implements Comparable<ScheduledTask> {
+        final long deadline;
+        //keeps tasks with the same deadline in the order they were scheduled
+        final long order;
+        final Runnable task;
+
+        ScheduledTask(long deadline, long order, Runnable task) {
+            this.deadline = deadline;
+            this.order = order;
+            this.task = task;
+        }
+
+        @Override
+        public int compareTo(ScheduledTask other) {
+            int byDeadline = Long.compare(deadline - other.deadline, 0);
+            return byDeadline != 0 ? byDeadline : Long.compare(order, other.order);
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            runSafely(task);
+        }
+    }
+
+    private void runSafely(Runnable task) {
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            logger.log(Level.SEVERE, "A task failed in " + thread.getName(), e);
+        }
+    }
+
+    private void processKey(SelectionKey key) {
+        ChatServer.NioConnectionHandler handler = (ChatServer.NioConnectionHandler) key.attachment();
+        try {
+            if (key.isValid() && key.isWritable()) {
+                handler.flushPending();
+            }
+            if (key.isValid() && key.isReadable()) {
+                readFrom(handler);
+            }
+        } catch (CancelledKeyException e) {
+            //the connection was closed while its key was being processed
+            handler.abort();
+        } catch (RuntimeException e) {
+            logger.log(Level.SEVERE, "Error while handling client " + handler.username + ", closing its connection", e);
+            handler.abort();
+        }
+    }
+
+    private void readFrom(ChatServer.NioConnectionHandler handler) {
+        readBuffer.clear();
+        int read;
+        try {
+            read = handler.channel.read(readBuffer);
+        } catch (IOException e) {
+            logger.info("Client " + handler.username + " disconnected " + e.getMessage());
+            handler.abort();
+            return;
+        }
+
+        if (read == -1) {
+            logger.info("Client " + handler.username + " disconnected");
+            handler.abort();
+            return;
+        }
+        readBuffer.flip();
+        handler.onBytesRead(readBuffer);
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        selector.wakeup();
+    }
+
+    private void closeSelector() {
+        for (SelectionKey key : selector.keys()) {
+            try {
+                key.channel().close();
+            } catch (IOException e) {
+                //the channel is being thrown away anyway
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            logger.warning("Error while attempting to close the selector of " + thread.getName());
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>Bounded queue of encoded frames waiting to be written to one client.</p>
+ *
+ * <p>Senders (any thread doing a broadcast) only ever call {@link #offer(ByteBuffer)}, which never blocks.
+ * When the queue is full the {@link SlowConsumerPolicy} decides what happens, so one slow client can't stall the sender.</p>
+ *
+ * <p>The queue is drained by the writer of the connection: a writer thread blocking in {@link #awaitFrames(long, long)} in
+ * VIRTUAL mode, one of a bounded pool of writer threads which takes the queue only while frames are queued in THREADS mode,
+ * or the event loop in NIO mode. Each of them takes everything that is queued with {@link #drainTo(ByteBuffer[], long[], long)}
+ * and writes it with a single gathering write.
+ * A frame is removed from the queue before it is written, so dropping never cuts a frame which is half written.</p>
+ */
+class OutboundQueue {
+    private final ByteBuffer[] frames;
+    //System.nanoTime() of the offer() of every frame, to measure the delivery latency
+    private final long[] enqueuedAt;
+    //the FanOutTracker tag of every frame, FanOutTracker.NO_TAG for frames which are not part of a measured fan-out
+    private final long[] tags;
+    private final SlowConsumerPolicy policy;
+
+    //ReentrantLock instead of synchronized so a waiting virtual thread does not pin its carrier
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+
+    private int head = 0;
+    private int size = 0;
+    private long queuedBytes = 0;
+    private boolean closed = false;
+
+    private long dropped = 0;
+    private int maxDepth = 0;
+    //shared by all the queues of a server
+    private final LongAdder droppedTotal;
+
+    OutboundQueue(int capacity, SlowConsumerPolicy policy, LongAdder droppedTotal) {
+        this.frames = new ByteBuffer[capacity];
+        this.enqueuedAt = new long[capacity];
+        this.tags = new long[capacity];
+        this.policy = policy;
+        this.droppedTotal = droppedTotal;
+    }
+
+    /**
+     * returns false if the queue overflowed and the policy is DISCONNECT, the caller has to close the connection
+     */
+    boolean offer(ByteBuffer frame) {
+        return offer(frame, FanOutTracker.NO_TAG);
+    }
+
+    /**
+     * same as {@link #offer(ByteBuffer)}, the tag is handed back by drainTo() together with the frame
+     */
+    boolean offer(ByteBuffer frame, long tag) {
+        lock.lock();
+        try {
+            if (closed) {
+                return true;
+            }
+            if (size == frames.length) {
+                switch (policy) {
+                    case DROP_NEWEST: {
+                        dropped++;
+                        droppedTotal.increment();
+                        return true;
+                    }
+                    case DROP_OLDEST: {
+                        removeHead();
+                        dropped++;
+                        droppedTotal.increment();
+                        break;
+                    }
+                    case DISCONNECT: {
+                        dropped++;
+                        droppedTotal.increment();
+                        return false;
+                    }
+                }
+            }
+            int tail = (head + size) % frames.length;
+            frames[tail] = frame;
+            enqueuedAt[tail] = System.nanoTime();
+            tags[tail] = tag;
+            size++;
+            queuedBytes += frame.remaining();
+            if (size > maxDepth) {
+                maxDepth = size;
+            }
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * <p>Waits until there is something to write, returns false once the queue is closed and everything queued before that was taken.</p>
+     *
+     * <p>With a linger time, it then keeps waiting up to that long for more frames to arrive (or for flushBytes to be queued),
+     * so that a burst leaves in one write instead of one write per frame</p>
+     */
+    boolean awaitFrames(long lingerNanos, long flushBytes) throws InterruptedException {
+        lock.lock();
+        try {
+            while (size == 0 && !closed) {
+                notEmpty.await();
+            }
+            if (size == 0) {
+                return false;
+            }
+            long remaining = lingerNanos;
+            while (remaining > 0 && queuedBytes < flushBytes && !closed) {
+                remaining = notEmpty.awaitNanos(remaining);
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * moves queued frames into the batch until the batch is full or maxBytes are taken (at least one frame is always taken).
+     * The enqueue time of batch[i] is put in enqueueTimes[i]. Returns the number of frames taken
+     */
+    int drainTo(ByteBuffer[] batch, long[] enqueueTimes, long maxBytes) {
+        return drainTo(batch, enqueueTimes, null, maxBytes);
+    }
+
+    /**
+     * same as {@link #drainTo(ByteBuffer[], long[], long)}, and the tag of batch[i] is put in batchTags[i] unless batchTags is null
+     */
+    int drainTo(ByteBuffer[] batch, long[] enqueueTimes, long[] batchTags, long maxBytes) {
+        lock.lock();
+        try {
+            int count = 0;
+            long bytes = 0;
+            while (size > 0 && count < batch.length) {
+                int frameBytes = frames[head].remaining();
+                if (count > 0 && bytes + frameBytes > maxBytes) {
+                    break;
+                }
+                enqueueTimes[count] = enqueuedAt[head];
+                if (batchTags != null) {
+                    batchTags[count] = tags[head];
+                }
+                batch[count++] = removeHead();
+                bytes += frameBytes;
+            }
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private ByteBuffer removeHead() {
+        ByteBuffer frame = frames[head];
+        frames[head] = null;
+        head = (head + 1) % frames.length;
+        size--;
+        queuedBytes -= frame.remaining();
+        return frame;
+    }
+
+    /**
+     * stops accepting frames and wakes up the writer, frames that are already queued can still be taken
+     */
+    void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    boolean isClosed() {
+        lock.lock();
+        try {
+            return closed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int depth() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long queuedBytes() {
+        lock.lock();
+        try {
+            return queuedBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int maxDepth() {
+        lock.lock();
+        try {
+            return maxDepth;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long dropped() {
+        lock.lock();
+        try {
+            return dropped;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package server;
+
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>The sessions a client can take back with /resume after its connection dropped, keyed by their resume token.</p>
+ *
+ * <p>A binary client which offers {@link utils.BinaryProtocol#RESUME} at /newClient gets a token. When its connection is lost
+ * without a /disconnect the server parks the session: the handler stays registered under its username and in its room,
+ * so nobody can take the name and the roster does not change, only its outbound queue is closed. A client which comes back
+ * within the resume window presents the token and takes the parked handler over in one map lookup, then gets the messages
+ * of its room it has not seen. A token is used once, every resume hands out a new one.</p>
+ *
+ * <p>Whoever removes a token from the map owns the session: the resuming connection with {@link #take(String)}, the
+ * expiry or the normal removal with {@link #remove(String, ChatServer.ConnectionHandler)}, so a session is never resumed twice
+ * or resumed after it expired</p>
+ */
+final class ResumableSessions {
+    //22 chars of base64, guessing one of them is out of the question
+    private static final int TOKEN_BYTES = 16;
+
+    private final ConcurrentHashMap<String, ChatServer.ConnectionHandler> byToken = new ConcurrentHashMap<>();
+    private final SecureRandom random = new SecureRandom();
+    private final Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+
+    final LongAdder parked = new LongAdder();
+    final LongAdder resumed = new LongAdder();
+    final LongAdder expired = new LongAdder();
+    //unknown, expired or already used tokens
+    final LongAdder failed = new LongAdder();
+    //messages sent again to resumed clients
+    final LongAdder replayed = new LongAdder();
+
+    /**
+     * a new token for the handler, the handler keeps it in its resumeToken
+     */
+    String issue(ChatServer.ConnectionHandler handler) {
+        byte[] bytes = new byte[TOKEN_BYTES];
+        random.nextBytes(bytes);
+        String token = encoder.encodeToString(bytes);
+        byToken.put(token, handler);
+        return token;
+    }
+
+    /**
+     * whether the token still belongs to the handler, ie: it was neither resumed nor removed
+     */
+    boolean isCurrent(String token, ChatServer.ConnectionHandler handler) {
+        return token != null && byToken.get(token) == handler;
+    }
+
+    /**
+     * removes the token and returns its session, null if the token is unknown, expired or was used already
+     */
+    ChatServer.ConnectionHandler take(String token) {
+        return byToken.remove(token);
+    }
+
+    /**
+     * removes the token only if it still belongs to the handler
+     */
+    boolean remove(String token, ChatServer.ConnectionHandler handler) {
+        return token != null && byToken.remove(token, handler);
+    }
+
+    /**
+     * the sessions waiting to be resumed right now
+     */
+    int parkedCount() {
+        int count = 0;
+        for (ChatServer.ConnectionHandler handler : byToken.values()) {
+            if (handler.isParked()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * eg: 'resume: 2 parked, 40 parked in total, 37 resumed, 1 expired, 2 failed, 180 messages replayed'
+     */
+    String report() {
+        return "resume: " + parkedCount() + " parked, " + parked.sum() + " parked in total, " + resumed.sum() + " resumed, "
+                + expired.sum() + " expired, " + failed.sum() + " failed, " + replayed.sum() + " messages replayed";
+    }
+}
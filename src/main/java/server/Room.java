@@ -0,0 +1,104 @@
+package server;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+/**
+ * <p>A chat room: its members, its recent history and its counters.</p>
+ *
+ * <p>A message is only fanned out to the members of its room, so a busy room costs nothing to the other rooms.
+ * Every client starts in the {@link #LOBBY}, which always exists. Other rooms are created by the first /join and
+ * removed by the server when the last member leaves. Membership only changes inside ChatServer's rooms.compute(), so
+ * a room can't be removed while someone is joining it</p>
+ */
+class Room {
+    static final String LOBBY = "lobby";
+
+    private static final Pattern VALID_NAME = Pattern.compile("[a-z0-9_]{1,20}");
+
+    final String name;
+
+    //keyed by username, like the server wide registry
+    final UsernameRegistry members = new UsernameRegistry();
+
+    //the members on this node and on the other nodes, rebuilt by roster() after a change
+    private volatile RosterSnapshot roster;
+
+    final HistoryRing history;
+
+    final LongAdder messages = new LongAdder();
+    //frames queued by the fan-out of this room, ie: messages and notices times the recipients
+    final LongAdder framesQueued = new LongAdder();
+    final LongAdder joins = new LongAdder();
+    private final AtomicInteger peakMembers = new AtomicInteger();
+
+    Room(String name, int historySize) {
+        this.name = name;
+        this.history = new HistoryRing(historySize);
+    }
+
+    /**
+     * returns null if the name can't be used for a room
+     */
+    static String normalizeName(String name) {
+        if (name == null) {
+            return null;
+        }
+        name = name.trim().toLowerCase();
+        return VALID_NAME.matcher(name).matches() ? name : null;
+    }
+
+    boolean isLobby() {
+        return LOBBY.equals(name);
+    }
+
+    /**
+     * only called from rooms.compute()
+     */
+    void add(ChatServer.ConnectionHandler handler) {
+        members.register(handler.username, handler);
+        joins.increment();
+        peakMembers.accumulateAndGet(members.size(), Math::max);
+    }
+
+    /**
+     * only called from rooms.compute()
+     */
+    void remove(String username, ChatServer.ConnectionHandler handler) {
+        if (username != null) {
+            members.remove(username, handler);
+        }
+    }
+
+    /**
+     * the current snapshot of the usernames in the room, cluster may be null
+     */
+    RosterSnapshot roster(ClusterNode cluster, int pageSize) {
+        long localVersion = members.version();
+        long remoteVersion = cluster == null ? 0 : cluster.rosterVersion();
+        RosterSnapshot current = roster;
+        if (current != null && current.localVersion == localVersion && current.remoteVersion == remoteVersion) {
+            return current;
+        }
+        //read after the versions, so a change in between makes the next call rebuild rather than keep a stale list
+        List<String> usernames = members.usernames();
+        if (cluster != null) {
+            usernames.addAll(cluster.remoteMembers(name));
+        }
+        Collections.sort(usernames, String.CASE_INSENSITIVE_ORDER);
+        current = new RosterSnapshot(localVersion, remoteVersion, usernames, pageSize);
+        roster = current;
+        return current;
+    }
+
+    /**
+     * eg: 'dev: 3 online (peak 5), 120 messages, 410 frames queued, 9 joins'
+     */
+    String stats() {
+        return name + ": " + members.size() + " online (peak " + peakMembers.get() + "), "
+                + messages.sum() + " messages, " + framesQueued.sum() + " frames queued, " + joins.sum() + " joins";
+    }
+}
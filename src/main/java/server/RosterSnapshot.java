@@ -0,0 +1,69 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * <p>The usernames of a room at one version of its membership, sorted, with the /onlineList and /onlineCount frames encoded
+ * on first use and shared by every request until the membership changes.</p>
+ *
+ * <p>A snapshot never changes once built. {@link Room#roster(ClusterNode, int)} keeps the current one and builds a new one
+ * only when the version of the local members or of the remote members moved on, so asking for the list over and over costs
+ * a {@link ByteBuffer#duplicate()} instead of a walk over every member. Two threads may encode the same frame at the same time,
+ * both results are equal and either one is kept</p>
+ */
+final class RosterSnapshot {
+    final long localVersion;
+    final long remoteVersion;
+
+    private final List<String> usernames;
+    private final int pageSize;
+
+    //per codec: the count frame, then one frame per page
+    private final AtomicReferenceArray<ByteBuffer> frames;
+
+    RosterSnapshot(long localVersion, long remoteVersion, List<String> usernames, int pageSize) {
+        this.localVersion = localVersion;
+        this.remoteVersion = remoteVersion;
+        this.usernames = usernames;
+        this.pageSize = pageSize;
+        this.frames = new AtomicReferenceArray<>(WireCodec.COUNT * (1 + pages()));
+    }
+
+    int count() {
+        return usernames.size();
+    }
+
+    /**
+     * at least one, an empty roster has one empty page
+     */
+    int pages() {
+        return Math.max(1, (usernames.size() + pageSize - 1) / pageSize);
+    }
+
+    ByteBuffer countFrame(WireCodec codec) {
+        int index = codec.id() * (1 + pages());
+        ByteBuffer frame = frames.get(index);
+        if (frame == null) {
+            frame = Frames.shared(codec.onlineCount(count()));
+            frames.set(index, frame);
+        }
+        return frame.duplicate();
+    }
+
+    /**
+     * the 1 based page of the /onlineList answer
+     */
+    ByteBuffer page(WireCodec codec, int page) {
+        int index = codec.id() * (1 + pages()) + page;
+        ByteBuffer frame = frames.get(index);
+        if (frame == null) {
+            int first = (page - 1) * pageSize;
+            List<String> onPage = usernames.subList(first, Math.min(usernames.size(), first + pageSize));
+            frame = Frames.shared(codec.onlineList(onPage, first + 1, count()));
+            frames.set(index, frame);
+        }
+        return frame.duplicate();
+    }
+}
@@ -0,0 +1,409 @@
+package server;
+
+import server.persistence.FsyncPolicy;
+import server.persistence.MessageLog;
+import utils.BinaryProtocol;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>Holds the startup options of the server.</p>
+ *
+ * <p>The options are read from system properties so that they can be passed straight through maven, eg:</p>
+ * <pre>mvn exec:java -Pserver -Dchat.server.mode=nio -Dchat.server.eventLoops=2</pre>
+ */
+public class ServerConfig {
+
+    public enum ExecutionMode {
+        /**
+         * every connection gets a thread from a cached thread pool which blocks on readLine()
+         */
+        THREADS,
+        /**
+         * every connection gets its own virtual thread, the blocking code stays the same but parked reads only cost a small heap object
+         */
+        VIRTUAL,
+        /**
+         * a few selector threads multiplex all the connections using non-blocking reads and writes
+         */
+        NIO
+    }
+
+    ExecutionMode mode = ExecutionMode.THREADS;
+
+    /**
+     * number of selector threads used in NIO mode
+     */
+    int eventLoops = Math.min(4, Runtime.getRuntime().availableProcessors());
+
+    /**
+     * threads accepting connections
+     */
+    int acceptors = 1;
+
+    /**
+     * gives every acceptor its own listening socket bound with SO_REUSEPORT, the kernel spreads the connections over them.
+     * Without it, or where the platform does not support it, the acceptors share one listening socket
+     */
+    boolean reusePort = false;
+
+    /**
+     * connections the kernel queues for each listening socket until they are accepted
+     */
+    int acceptBacklog = 1024;
+
+    /**
+     * open connections of the whole server, further ones are closed right after accept(). 0 means no limit
+     */
+    int maxConnections = 50_000;
+
+    /**
+     * open connections from one IP address, further ones are closed right after accept(). 0 means no limit
+     */
+    int maxConnectionsPerAddress = 0;
+
+    /**
+     * lines longer than this are treated as a misbehaving client, in every mode. Between {@link #MIN_LINE_LENGTH} and
+     * {@link #MAX_LINE_LENGTH} bytes
+     */
+    int maxLineLength = 64 * 1024;
+
+    /**
+     * the readers grow their line buffer by doubling it up to maxLineLength, a few commands must always fit and the
+     * buffer of one connection must not take the heap
+     */
+    static final int MIN_LINE_LENGTH = 1024;
+    static final int MAX_LINE_LENGTH = 16 * 1024 * 1024;
+
+    /**
+     * the longest message or whisper in characters, longer ones are refused with an error
+     */
+    int maxMessageLength = 4 * 1024;
+
+    /**
+     * at most 3 UTF-8 bytes a character, with room left for the username and the fields, so any message relayed in a
+     * binary frame stays under {@link BinaryProtocol#MAX_FRAME_LENGTH}
+     */
+    static final int MAX_MESSAGE_LENGTH = (BinaryProtocol.MAX_FRAME_LENGTH - 1024) / 3;
+
+    /**
+     * how often the thread usage is logged at INFO. 0, the default, turns the report off, it is meant for a load test
+     */
+    int threadReportSeconds = 0;
+
+    /**
+     * frames which can wait in the outbound queue of one connection before the slow consumer policy kicks in
+     */
+    int outboundQueueCapacity = 1024;
+
+    SlowConsumerPolicy slowConsumerPolicy = SlowConsumerPolicy.DROP_OLDEST;
+
+    /**
+     * how long a writer waits for more frames after the first one before flushing, 0 flushes whatever is queued right away
+     */
+    long flushWindowMicros = 0;
+
+    /**
+     * a writer flushes early once this many bytes are queued, and never puts more than this into one gathering write
+     */
+    int flushBytes = 64 * 1024;
+
+    /**
+     * THREADS mode: threads writing the outbound queues, a queue which has frames waits for a free one.
+     * A write to a client which stopped reading holds its thread until the socket is closed, so this should stay
+     * well above the number of stalled clients the idle timeout and the slow consumer policy let linger
+     */
+    int writerThreads = 64;
+
+    /**
+     * how often the write counters and the delivery latency are logged at INFO. 0, the default, turns the report off,
+     * like the thread usage report
+     */
+    int writeReportSeconds = 0;
+
+    /**
+     * usernames in one page of /onlineList
+     */
+    int onlineListPageSize = 100;
+
+    /**
+     * publish the server metrics as an MBean on the platform MBean server
+     */
+    boolean jmx = true;
+
+    /**
+     * accept the compression offered by binary clients at /newClient
+     */
+    boolean compression = true;
+
+    /**
+     * frames of a compressing connection shorter than this are sent uncompressed
+     */
+    int compressionThreshold = 256;
+
+    /**
+     * deflate level from 1 (fastest) to 9 (smallest)
+     */
+    int compressionLevel = 6;
+
+    /**
+     * accept TLS connections only, in THREADS and VIRTUAL mode
+     */
+    boolean tls = false;
+
+    /**
+     * PKCS12 key store with the certificate and the private key of the server, see {@link utils.Tls}
+     */
+    String tlsKeyStore = "";
+
+    String tlsKeyStorePassword = "";
+
+    /**
+     * threads running TLS handshakes, the connections themselves run on the usual executor
+     */
+    int tlsHandshakeThreads = Math.max(2, Runtime.getRuntime().availableProcessors() / 2);
+
+    /**
+     * accepted sockets which can wait for a handshake thread, further ones are closed right away
+     */
+    int tlsHandshakeQueue = 256;
+
+    /**
+     * a client which does not finish its handshake within this time is disconnected
+     */
+    long tlsHandshakeTimeoutMillis = 5000;
+
+    /**
+     * TLS sessions kept for resumption
+     */
+    int tlsSessionCacheSize = 20_000;
+
+    /**
+     * how long a TLS session can be resumed
+     */
+    int tlsSessionTimeoutSeconds = 3600;
+
+    /**
+     * a client which offered heartbeats gets a PING once it sent nothing for this long, 0 turns the pings off.
+     * Other connections get TCP keepalive probes after this long
+     */
+    int pingIntervalSeconds = 30;
+
+    /**
+     * a heartbeat client which sent nothing for this long, not even an answer to the PING, is closed. 0 turns the reaping off
+     */
+    int idleTimeoutSeconds = 90;
+
+    /**
+     * a connection which did not register and sent nothing for this long is closed. 0, the default, leaves it open:
+     * the bundled client connects first and then waits for the user to type a username
+     */
+    int registrationTimeoutSeconds = 0;
+
+    /**
+     * messages kept in memory for the history of new clients and /history
+     */
+    int historySize = 512;
+
+    /**
+     * messages replayed to a client right after it joined, 0 turns the replay off
+     */
+    int historyReplay = 50;
+
+    /**
+     * how long the session of a resumable client which lost its connection waits for it to come back, 0 turns resume off
+     */
+    int resumeWindowSeconds = 30;
+
+    /**
+     * missed messages sent to a resumed client at most, older ones can still be read with /history
+     */
+    int resumeReplay = 500;
+
+    /**
+     * chat messages one connection can send per second on average, eg: 10. 0 turns the limit off, which is the default
+     */
+    double messageRate = 0;
+
+    /**
+     * chat messages one connection can send at once after being quiet
+     */
+    int messageBurst = 20;
+
+    /**
+     * bytes of chat messages one connection can send per second on average, eg: 8192. 0 turns the limit off, which is the default.
+     * A message counts its characters
+     */
+    double messageByteRate = 0;
+
+    /**
+     * bytes of chat messages one connection can send at once after being quiet
+     */
+    int messageByteBurst = 32 * 1024;
+
+    /**
+     * whether the message limits apply to the admin as well
+     */
+    boolean rateLimitAdmins = false;
+
+    /**
+     * directory of the message log, eg: chat-log. Empty by default, which turns persistence off
+     */
+    String persistenceDir = "";
+
+    FsyncPolicy fsyncPolicy = FsyncPolicy.INTERVAL;
+
+    long fsyncIntervalMillis = 1000;
+
+    /**
+     * the message log starts a new segment file once the active one reaches this size, at most {@link MessageLog#MAX_SEGMENT_BYTES}
+     */
+    long segmentBytes = 64L * 1024 * 1024;
+
+    /**
+     * the oldest segments are deleted while the log is bigger than this, 0 keeps everything
+     */
+    long retentionBytes = 1024L * 1024 * 1024;
+
+    /**
+     * segments whose newest message is older than this are deleted, 0 keeps everything
+     */
+    long retentionHours = 7 * 24;
+
+    /**
+     * port of the links between the nodes of a cluster, 0 runs the server on its own
+     */
+    int clusterPort = 0;
+
+    /**
+     * address the cluster port listens on, eg: the address of a private network. Empty listens on every interface
+     */
+    String clusterBindAddress = "";
+
+    /**
+     * host:port of the cluster port of every other node
+     */
+    List<String> clusterPeers = new ArrayList<>();
+
+    /**
+     * name of this node, unique in the cluster. Defaults to hostname:clusterPort
+     */
+    String clusterNodeId = "";
+
+    /**
+     * <p>shared by all the nodes, a link whose HELLO does not carry it is closed. It is sent in plain text, so it keeps
+     * strangers out but not someone who can read the traffic between the nodes.</p>
+     *
+     * <p>Empty by default: then only the addresses of the nodes in {@link #clusterPeers} may connect</p>
+     */
+    String clusterSecret = "";
+
+    /**
+     * a peer which did not answer a username claim within this time is taken as a yes
+     */
+    long clusterClaimTimeoutMillis = 2000;
+
+    public static ServerConfig fromSystemProperties() {
+        ServerConfig config = new ServerConfig();
+        config.mode = ExecutionMode.valueOf(System.getProperty("chat.server.mode", config.mode.name()).trim().toUpperCase());
+        config.eventLoops = Math.max(1, Integer.getInteger("chat.server.eventLoops", config.eventLoops));
+        config.acceptors = Math.max(1, Integer.getInteger("chat.server.acceptors", config.acceptors));
+        config.reusePort = Boolean.parseBoolean(System.getProperty("chat.server.reusePort", String.valueOf(config.reusePort)));
+        config.acceptBacklog = Math.max(1, Integer.getInteger("chat.server.acceptBacklog", config.acceptBacklog));
+        config.maxConnections = Math.max(0, Integer.getInteger("chat.server.maxConnections", config.maxConnections));
+        config.maxConnectionsPerAddress = Math.max(0, Integer.getInteger("chat.server.maxConnectionsPerAddress", config.maxConnectionsPerAddress));
+        config.maxLineLength = Math.max(MIN_LINE_LENGTH, Math.min(MAX_LINE_LENGTH, Integer.getInteger("chat.server.maxLineLength", config.maxLineLength)));
+        config.maxMessageLength = Math.max(1, Math.min(MAX_MESSAGE_LENGTH, Integer.getInteger("chat.server.maxMessageLength", config.maxMessageLength)));
+        config.threadReportSeconds = Math.max(0, Integer.getInteger("chat.server.threadReportSeconds", config.threadReportSeconds));
+        config.outboundQueueCapacity = Math.max(1, Integer.getInteger("chat.server.outboundQueueCapacity", config.outboundQueueCapacity));
+        config.flushWindowMicros = Long.getLong("chat.server.flushWindowMicros", config.flushWindowMicros);
+        config.flushBytes = Math.max(1, Integer.getInteger("chat.server.flushBytes", config.flushBytes));
+        config.writerThreads = Math.max(1, Integer.getInteger("chat.server.writerThreads", config.writerThreads));
+        config.writeReportSeconds = Math.max(0, Integer.getInteger("chat.server.writeReportSeconds", config.writeReportSeconds));
+        config.onlineListPageSize = Math.max(1, Integer.getInteger("chat.server.onlineListPageSize", config.onlineListPageSize));
+        config.jmx = Boolean.parseBoolean(System.getProperty("chat.server.jmx", String.valueOf(config.jmx)));
+        config.compression = Boolean.parseBoolean(System.getProperty("chat.server.compression", String.valueOf(config.compression)));
+        config.compressionThreshold = Math.max(1, Integer.getInteger("chat.server.compressionThreshold", config.compressionThreshold));
+        config.compressionLevel = Math.max(1, Math.min(9, Integer.getInteger("chat.server.compressionLevel", config.compressionLevel)));
+        config.tls = Boolean.parseBoolean(System.getProperty("chat.server.tls", String.valueOf(config.tls)));
+        config.tlsKeyStore = System.getProperty("chat.server.tls.keyStore", config.tlsKeyStore).trim();
+        config.tlsKeyStorePassword = System.getProperty("chat.server.tls.keyStorePassword", config.tlsKeyStorePassword);
+        config.tlsHandshakeThreads = Math.max(1, Integer.getInteger("chat.server.tls.handshakeThreads", config.tlsHandshakeThreads));
+        config.tlsHandshakeQueue = Math.max(1, Integer.getInteger("chat.server.tls.handshakeQueue", config.tlsHandshakeQueue));
+        config.tlsHandshakeTimeoutMillis = Math.max(1, Long.getLong("chat.server.tls.handshakeTimeoutMillis", config.tlsHandshakeTimeoutMillis));
+        config.tlsSessionCacheSize = Math.max(0, Integer.getInteger("chat.server.tls.sessionCacheSize", config.tlsSessionCacheSize));
+        config.tlsSessionTimeoutSeconds = Math.max(0, Integer.getInteger("chat.server.tls.sessionTimeoutSeconds", config.tlsSessionTimeoutSeconds));
+        config.slowConsumerPolicy = SlowConsumerPolicy.valueOf(System.getProperty("chat.server.slowConsumerPolicy", config.slowConsumerPolicy.name()).trim().toUpperCase());
+        config.pingIntervalSeconds = Math.max(0, Integer.getInteger("chat.server.pingIntervalSeconds", config.pingIntervalSeconds));
+        config.idleTimeoutSeconds = Math.max(0, Integer.getInteger("chat.server.idleTimeoutSeconds", config.idleTimeoutSeconds));
+        config.registrationTimeoutSeconds = Math.max(0, Integer.getInteger("chat.server.registrationTimeoutSeconds", config.registrationTimeoutSeconds));
+        config.historySize = Math.max(1, Integer.getInteger("chat.server.historySize", config.historySize));
+        config.historyReplay = Math.max(0, Integer.getInteger("chat.server.historyReplay", config.historyReplay));
+        config.resumeWindowSeconds = Math.max(0, Integer.getInteger("chat.server.resumeWindowSeconds", config.resumeWindowSeconds));
+        config.resumeReplay = Math.max(0, Integer.getInteger("chat.server.resumeReplay", config.resumeReplay));
+        config.messageRate = Math.max(0, doubleProperty("chat.server.messageRate", config.messageRate));
+        config.messageBurst = Math.max(1, Integer.getInteger("chat.server.messageBurst", config.messageBurst));
+        config.messageByteRate = Math.max(0, doubleProperty("chat.server.messageByteRate", config.messageByteRate));
+        config.messageByteBurst = Math.max(1, Integer.getInteger("chat.server.messageByteBurst", config.messageByteBurst));
+        config.rateLimitAdmins = Boolean.parseBoolean(System.getProperty("chat.server.rateLimitAdmins", String.valueOf(config.rateLimitAdmins)));
+        config.persistenceDir = System.getProperty("chat.persistence.dir", config.persistenceDir).trim();
+        config.fsyncPolicy = FsyncPolicy.valueOf(System.getProperty("chat.persistence.fsyncPolicy", config.fsyncPolicy.name()).trim().toUpperCase());
+        config.fsyncIntervalMillis = Long.getLong("chat.persistence.fsyncIntervalMillis", config.fsyncIntervalMillis);
+        config.segmentBytes = Math.max(1, Math.min(MessageLog.MAX_SEGMENT_BYTES, Long.getLong("chat.persistence.segmentBytes", config.segmentBytes)));
+        config.retentionBytes = Long.getLong("chat.persistence.retentionBytes", config.retentionBytes);
+        config.retentionHours = Long.getLong("chat.persistence.retentionHours", config.retentionHours);
+        config.clusterPort = Integer.getInteger("chat.cluster.port", config.clusterPort);
+        config.clusterBindAddress = System.getProperty("chat.cluster.bindAddress", config.clusterBindAddress).trim();
+        for (String peer : System.getProperty("chat.cluster.peers", "").split(",")) {
+            if (!peer.isBlank()) {
+                config.clusterPeers.add(peer.trim());
+            }
+        }
+        config.clusterNodeId = System.getProperty("chat.cluster.nodeId", config.clusterNodeId).trim();
+        if (config.clusterNodeId.isEmpty()) {
+            config.clusterNodeId = localHostName() + ":" + config.clusterPort;
+        }
+        config.clusterSecret = System.getProperty("chat.cluster.secret", config.clusterSecret);
+        config.clusterClaimTimeoutMillis = Math.max(1, Long.getLong("chat.cluster.claimTimeoutMillis", config.clusterClaimTimeoutMillis));
+        return config;
+    }
+
+    private static double doubleProperty(String name, double defaultValue) {
+        String value = System.getProperty(name);
+        return value == null || value.isBlank() ? defaultValue : Double.parseDouble(value.trim());
+    }
+
+    private static String localHostName() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            return "localhost";
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "mode=" + mode + ", eventLoops=" + eventLoops
+                + ", acceptors=" + acceptors + (reusePort ? " (SO_REUSEPORT)" : "") + ", acceptBacklog=" + acceptBacklog
+                + ", maxConnections=" + (maxConnections > 0 ? maxConnections : "unlimited")
+                + (maxConnectionsPerAddress > 0 ? " (" + maxConnectionsPerAddress + " per address)" : "")
+                + ", maxMessageLength=" + maxMessageLength
+                + ", outboundQueueCapacity=" + outboundQueueCapacity + ", slowConsumerPolicy=" + slowConsumerPolicy
+                + ", flushWindowMicros=" + flushWindowMicros + ", flushBytes=" + flushBytes
+                + (mode == ExecutionMode.THREADS ? ", writerThreads=" + writerThreads : "")
+                + ", compression=" + (compression ? "deflate (threshold " + compressionThreshold + ", level " + compressionLevel + ")" : "off")
+                + ", tls=" + (tls ? "on (" + tlsHandshakeThreads + " handshake threads)" : "off")
+                + ", rateLimit=" + (messageRate > 0 || messageByteRate > 0
+                        ? messageRate + " msg/s burst " + messageBurst + ", " + messageByteRate + " bytes/s burst " + messageByteBurst : "off")
+                + ", heartbeat=" + (pingIntervalSeconds > 0 ? "ping after " + pingIntervalSeconds + "s" : "off")
+                + (idleTimeoutSeconds > 0 ? ", idle timeout " + idleTimeoutSeconds + "s" : "")
+                + (registrationTimeoutSeconds > 0 ? ", registration timeout " + registrationTimeoutSeconds + "s" : "")
+                + ", resume=" + (resumeWindowSeconds > 0 ? resumeWindowSeconds + "s" : "off")
+                + ", persistence=" + (persistenceDir.isEmpty() ? "off" : persistenceDir + " (fsync " + fsyncPolicy + ")")
+                + ", cluster=" + (clusterPort == 0 ? "off" : clusterNodeId + " on " + (clusterBindAddress.isEmpty() ? "*" : clusterBindAddress) + ":" + clusterPort
+                        + " peers " + clusterPeers + (clusterSecret.isEmpty() ? "" : " (secret)"));
+    }
+}
@@ -0,0 +1,295 @@
+package server;
+
+import utils.LatencyHistogram;
+import utils.RequestType;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>Counters and latencies of a running server, shown to admins by /stats and published over JMX ({@link ServerMetricsMBean}).</p>
+ *
+ * <p>Everything recorded on the request path is a {@link LongAdder} or a {@link LatencyHistogram}, so recording never allocates
+ * and never makes the connection threads wait for each other. The per second rates are computed once a second by {@link #tick()}
+ * on the housekeeping thread</p>
+ */
+class ServerMetrics implements ServerMetricsMBean {
+    private final ChatServer server;
+
+    //chat messages received from the clients of this server
+    final LongAdder messagesIn = new LongAdder();
+    //chat message frames queued to recipients, ie: messages times the recipients
+    final LongAdder messagesOut = new LongAdder();
+    //chat messages dropped by the rate limits, not counted in messagesIn
+    final LongAdder throttledMessages = new LongAdder();
+    //direct messages sent with /whisper, not counted in messagesIn
+    final LongAdder whispers = new LongAdder();
+    final LongAdder bytesIn = new LongAdder();
+    //PINGs sent to quiet heartbeat clients, and connections closed for sending nothing within the idle timeout
+    final LongAdder pingsSent = new LongAdder();
+    final LongAdder reapedConnections = new LongAdder();
+    private final LongAdder bytesOut;
+
+    //indexed by RequestType.ordinal()
+    private final LongAdder[] commands;
+    private final RequestType[] commandTypes = RequestType.values();
+
+    final FanOutTracker fanOut = new FanOutTracker();
+
+    final FrameCompressor.Totals compression = new FrameCompressor.Totals();
+
+    //only written by tick()
+    private long lastTickNanos = System.nanoTime();
+    private long lastMessagesIn, lastMessagesOut, lastBytesIn, lastBytesOut, lastAccepted;
+    private volatile double messagesInPerSecond, messagesOutPerSecond, bytesInPerSecond, bytesOutPerSecond, acceptsPerSecond;
+
+    ServerMetrics(ChatServer server) {
+        this.server = server;
+        this.bytesOut = server.writeStats.bytesWritten;
+        this.commands = new LongAdder[commandTypes.length];
+        for (int i = 0; i < commands.length; i++) {
+            commands[i] = new LongAdder();
+        }
+    }
+
+    void command(RequestType type) {
+        commands[type.ordinal()].increment();
+    }
+
+    /**
+     * updates the per second rates, called once a second
+     */
+    void tick() {
+        long now = System.nanoTime();
+        double seconds = (now - lastTickNanos) / 1e9;
+        if (seconds <= 0) {
+            return;
+        }
+        long in = messagesIn.sum();
+        long out = messagesOut.sum();
+        long read = bytesIn.sum();
+        long written = bytesOut.sum();
+        long accepted = server.acceptGate.accepted.sum();
+        messagesInPerSecond = (in - lastMessagesIn) / seconds;
+        messagesOutPerSecond = (out - lastMessagesOut) / seconds;
+        bytesInPerSecond = (read - lastBytesIn) / seconds;
+        bytesOutPerSecond = (written - lastBytesOut) / seconds;
+        acceptsPerSecond = (accepted - lastAccepted) / seconds;
+        lastMessagesIn = in;
+        lastMessagesOut = out;
+        lastBytesIn = read;
+        lastBytesOut = written;
+        lastAccepted = accepted;
+        lastTickNanos = now;
+    }
+
+    /**
+     * the answer to /stats
+     */
+    List<String> report() {
+        List<String> lines = new ArrayList<>();
+        lines.add(String.format("messages: in %d (%.1f/s), out %d (%.1f/s), %d whispers, %d throttled",
+                getMessagesIn(), messagesInPerSecond, getMessagesOut(), messagesOutPerSecond, getWhispers(), getThrottledMessages()));
+        lines.add(String.format("bytes: in %d (%.0f/s), out %d (%.0f/s)",
+                getBytesIn(), bytesInPerSecond, getBytesOut(), bytesOutPerSecond));
+        lines.add("connections: " + getActiveConnections() + " active, outbound backlog " + getOutboundBacklog()
+                + " frames (max " + getMaxOutboundBacklog() + " on one connection), " + getDroppedFrames() + " frames dropped");
+        for (String backlog : server.largestBacklogs(3)) {
+            lines.add("  backlog " + backlog);
+        }
+        lines.add(server.acceptGate.report(acceptsPerSecond));
+        lines.add("heartbeat: " + pingsSent.sum() + " pings sent, " + getReapedConnections() + " idle connections closed, "
+                + server.timer.pending() + " timers pending");
+        if (server.sessions.parked.sum() + server.sessions.failed.sum() > 0) {
+            lines.add(server.sessions.report());
+        }
+        if (server.tls != null) {
+            lines.addAll(server.tls.report());
+        }
+        if (compression.framesCompressed.sum() > 0) {
+            lines.add("compression: " + compression.framesCompressed.sum() + " frames, "
+                    + FrameCompressor.summary(getCompressionBytesIn(), getCompressionBytesOut(), compression.nanos.sum()));
+            for (String connection : server.largestCompressionSavings(3)) {
+                lines.add("  compression " + connection);
+            }
+        }
+        lines.add("fan-out latency: " + fanOut.latency.summaryMicros() + " over " + fanOut.latency.count() + " messages");
+        lines.add("delivery latency: " + server.writeStats.deliveryLatency.summaryMicros());
+        lines.add("commands: " + getCommandCounts());
+        return lines;
+    }
+
+    @Override
+    public long getMessagesIn() {
+        return messagesIn.sum();
+    }
+
+    @Override
+    public long getMessagesOut() {
+        return messagesOut.sum();
+    }
+
+    @Override
+    public double getMessagesInPerSecond() {
+        return messagesInPerSecond;
+    }
+
+    @Override
+    public double getMessagesOutPerSecond() {
+        return messagesOutPerSecond;
+    }
+
+    @Override
+    public long getThrottledMessages() {
+        return throttledMessages.sum();
+    }
+
+    @Override
+    public long getWhispers() {
+        return whispers.sum();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public double getBytesInPerSecond() {
+        return bytesInPerSecond;
+    }
+
+    @Override
+    public double getBytesOutPerSecond() {
+        return bytesOutPerSecond;
+    }
+
+    @Override
+    public int getActiveConnections() {
+        return server.connectionCount();
+    }
+
+    @Override
+    public long getAcceptedConnections() {
+        return server.acceptGate.accepted.sum();
+    }
+
+    @Override
+    public double getAcceptsPerSecond() {
+        return acceptsPerSecond;
+    }
+
+    @Override
+    public long getRejectedConnections() {
+        return server.acceptGate.rejected();
+    }
+
+    @Override
+    public int getOpenSockets() {
+        return server.acceptGate.open();
+    }
+
+    @Override
+    public long getReapedConnections() {
+        return reapedConnections.sum();
+    }
+
+    @Override
+    public long getOutboundBacklog() {
+        return server.outboundBacklog();
+    }
+
+    @Override
+    public int getMaxOutboundBacklog() {
+        return server.maxOutboundBacklog();
+    }
+
+    @Override
+    public long getDroppedFrames() {
+        return server.droppedFrames();
+    }
+
+    @Override
+    public String getCommandCounts() {
+        StringBuilder counts = new StringBuilder();
+        for (int i = 0; i < commands.length; i++) {
+            long count = commands[i].sum();
+            if (count > 0) {
+                counts.append(counts.length() == 0 ? "" : " ").append(commandTypes[i]).append('=').append(count);
+            }
+        }
+        return counts.toString();
+    }
+
+    @Override
+    public long getCompressionBytesIn() {
+        return compression.bytesBefore.sum();
+    }
+
+    @Override
+    public long getCompressionBytesOut() {
+        return compression.bytesAfter.sum();
+    }
+
+    @Override
+    public long getCompressionMillis() {
+        return compression.nanos.sum() / 1_000_000;
+    }
+
+    @Override
+    public int getParkedSessions() {
+        return server.sessions.parkedCount();
+    }
+
+    @Override
+    public long getResumedSessions() {
+        return server.sessions.resumed.sum();
+    }
+
+    @Override
+    public long getTlsFullHandshakes() {
+        return server.tls == null ? 0 : server.tls.fullHandshakes.sum();
+    }
+
+    @Override
+    public long getTlsResumedHandshakes() {
+        return server.tls == null ? 0 : server.tls.resumedHandshakes.sum();
+    }
+
+    @Override
+    public long getTlsFailedHandshakes() {
+        return server.tls == null ? 0 : server.tls.failedHandshakes.sum() + server.tls.rejectedHandshakes.sum();
+    }
+
+    @Override
+    public long getFanOutLatencyP50Micros() {
+        return fanOut.latency.percentile(0.50) / 1_000;
+    }
+
+    @Override
+    public long getFanOutLatencyP99Micros() {
+        return fanOut.latency.percentile(0.99) / 1_000;
+    }
+
+    @Override
+    public long getFanOutLatencyP999Micros() {
+        return fanOut.latency.percentile(0.999) / 1_000;
+    }
+
+    @Override
+    public long getFanOutLatencyMaxMicros() {
+        return fanOut.latency.max() / 1_000;
+    }
+
+    @Override
+    public void resetLatencies() {
+        fanOut.latency.reset();
+        server.writeStats.deliveryLatency.reset();
+    }
+}
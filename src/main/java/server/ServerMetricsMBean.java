@@ -0,0 +1,120 @@
+package server;
+
+/**
+ * <p>The {@link ServerMetrics} of a running server as a JMX standard MBean, registered as
+ * {@code chat.server:type=ServerMetrics,port=<port>}.</p>
+ *
+ * <p>Counters are totals since the server started, the per second rates cover the last second. Latencies are in microseconds</p>
+ */
+public interface ServerMetricsMBean {
+    long getMessagesIn();
+
+    long getMessagesOut();
+
+    double getMessagesInPerSecond();
+
+    double getMessagesOutPerSecond();
+
+    /**
+     * chat messages dropped because their connection went over its rate limit
+     */
+    long getThrottledMessages();
+
+    /**
+     * messages sent to one user with /whisper, delivered to it alone and not counted in the messages
+     */
+    long getWhispers();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    double getBytesInPerSecond();
+
+    double getBytesOutPerSecond();
+
+    int getActiveConnections();
+
+    /**
+     * connections let in by the accept loops, counted once per connection
+     */
+    long getAcceptedConnections();
+
+    double getAcceptsPerSecond();
+
+    /**
+     * connections closed right after accept() because the server or their address was at its limit
+     */
+    long getRejectedConnections();
+
+    /**
+     * accepted sockets which are not closed yet, including the ones still in their TLS handshake or not registered yet
+     */
+    int getOpenSockets();
+
+    /**
+     * connections closed because they sent nothing, not even a PONG, within the idle timeout
+     */
+    long getReapedConnections();
+
+    long getOutboundBacklog();
+
+    int getMaxOutboundBacklog();
+
+    long getDroppedFrames();
+
+    /**
+     * eg: 'MESSAGE=120 ONLINE_COUNT=4'
+     */
+    String getCommandCounts();
+
+    /**
+     * bytes of the frames which were compressed, before compression
+     */
+    long getCompressionBytesIn();
+
+    /**
+     * bytes of the COMPRESSED frames they became
+     */
+    long getCompressionBytesOut();
+
+    /**
+     * time the writers spent compressing
+     */
+    long getCompressionMillis();
+
+    /**
+     * sessions whose connection dropped and which wait to be resumed
+     */
+    int getParkedSessions();
+
+    long getResumedSessions();
+
+    /**
+     * TLS handshakes which created a new session, 0 without TLS
+     */
+    long getTlsFullHandshakes();
+
+    /**
+     * TLS handshakes which resumed a cached session
+     */
+    long getTlsResumedHandshakes();
+
+    /**
+     * TLS handshakes which failed, timed out or found the handshake queue full
+     */
+    long getTlsFailedHandshakes();
+
+    long getFanOutLatencyP50Micros();
+
+    long getFanOutLatencyP99Micros();
+
+    long getFanOutLatencyP999Micros();
+
+    long getFanOutLatencyMaxMicros();
+
+    /**
+     * clears the latency histograms, the counters keep counting
+     */
+    void resetLatencies();
+}
@@ -0,0 +1,19 @@
+package server;
+
+/**
+ * What a connection does when its outbound queue is full, ie: the client reads slower than the chat room talks
+ */
+public enum SlowConsumerPolicy {
+    /**
+     * throw away the oldest queued frame to make room for the new one, the client skips ahead
+     */
+    DROP_OLDEST,
+    /**
+     * throw away the new frame, the client keeps the backlog it already has
+     */
+    DROP_NEWEST,
+    /**
+     * close the connection, the client can reconnect and start from a clean state
+     */
+    DISCONNECT
+}
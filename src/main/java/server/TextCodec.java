@@ -0,0 +1,114 @@
+package server;
+
+import server.persistence.LogRecord;
+import utils.ResponseType;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * the original line protocol: 'Type: body' terminated by '\n'
+ */
+class TextCodec implements WireCodec {
+    /**
+     * separate the messages of a History line, and the username, color and text of one message.
+     * Both are control characters, so they can't clash with the ':' and '--' the other lines use
+     */
+    static final char RECORD_SEPARATOR = '\u001E';
+    static final char FIELD_SEPARATOR = '\u001F';
+
+    @Override
+    public int id() {
+        return 0;
+    }
+
+    @Override
+    public ByteBuffer encode(ResponseType type, String text) {
+        if (type == ResponseType.CLOSE) {
+            return Frames.line("/disconnect");
+        }
+        if (type.prefix == null) {
+            return Frames.line(text);
+        }
+        return Frames.line(type.prefix + ": " + text);
+    }
+
+    @Override
+    public ByteBuffer message(String username, int usernameColor, String message, long sequence) {
+        //the line protocol has no sequences, its clients can't resume
+        return Frames.line("Message: " + username + ": " + usernameColor + ": " + message);
+    }
+
+    @Override
+    public ByteBuffer usernameChanged(String newUsername, String text) {
+        return Frames.line("UsernameChanged: " + newUsername + ": " + text);
+    }
+
+    @Override
+    public ByteBuffer onlineCount(int count) {
+        return Frames.line("OnlineCount: " + count);
+    }
+
+    @Override
+    public ByteBuffer onlineList(Iterable<String> usernames, int firstNumber, int total) {
+        StringBuilder list = new StringBuilder("OnlineList: ");
+        int count = firstNumber;
+        for(String name: usernames) {
+            list.append(count).append(". ").append(name).append("--");
+            count++;
+        }
+        if (firstNumber > 1 || count - 1 < total) {
+            list.append("showing ").append(firstNumber).append('-').append(count - 1).append(" of ").append(total)
+                    .append(", '/onlineList <page>' for the others--");
+        }
+        if (list.charAt(list.length() - 1) == '-') {
+            //remove the last '--'
+            list.setLength(list.length() - 2);
+        }
+        return Frames.line(list.toString());
+    }
+
+    @Override
+    public ByteBuffer help(String[] lines) {
+        return Frames.line("Help: " + String.join("--", lines));
+    }
+
+    @Override
+    public ByteBuffer list(ResponseType type, List<String> lines) {
+        return Frames.line(type.prefix + ": " + String.join("--", lines));
+    }
+
+    @Override
+    public ByteBuffer history(List<LogRecord> records) {
+        StringBuilder line = new StringBuilder("History: ");
+        for (int i = 0; i < records.size(); i++) {
+            LogRecord record = records.get(i);
+            if (i > 0) {
+                line.append(RECORD_SEPARATOR);
+            }
+            line.append(withoutSeparators(record.username)).append(FIELD_SEPARATOR)
+                    .append(record.usernameColor).append(FIELD_SEPARATOR)
+                    .append(withoutSeparators(record.text));
+        }
+        return Frames.line(line.toString());
+    }
+
+    @Override
+    public ByteBuffer resumeToken(String token, long sequence) {
+        return Frames.line("ResumeToken: " + token + " " + sequence);
+    }
+
+    @Override
+    public ByteBuffer throttled(long retryAfterMillis, String text) {
+        return Frames.line("Throttled: " + retryAfterMillis + ": " + text);
+    }
+
+    @Override
+    public ByteBuffer whisper(String username, int usernameColor, String text) {
+        return Frames.line("Whisper: " + username + ": " + usernameColor + ": " + text);
+    }
+
+    private static String withoutSeparators(String text) {
+        return text.replace(RECORD_SEPARATOR, ' ').replace(FIELD_SEPARATOR, ' ');
+    }
+}
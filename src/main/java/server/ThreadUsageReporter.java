@@ -0,0 +1,107 @@
+package server;
+
+import jdk.jfr.consumer.RecordingStream;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * <p>Periodically logs how many threads the server is using, eg:</p>
+ * <pre>Threads: connectionThreads=20000 platform=31 (peak 33) carriers=8 pinned=0</pre>
+ *
+ * <p>'carriers' are the platform threads which run virtual threads. 'pinned' counts the jdk.VirtualThreadPinned
+ * JFR events, ie: the number of times a virtual thread blocked while holding a monitor and so kept its carrier busy.
+ * If that number grows, run the server with -Djdk.tracePinnedThreads=full to see the stack traces.</p>
+ */
+class ThreadUsageReporter implements AutoCloseable {
+    private static final Logger logger = Logger.getLogger(ThreadUsageReporter.class.getName());
+
+    //the carriers are the workers of the virtual thread scheduler, a ForkJoinPool named like 'ForkJoinPool-1-worker-3'.
+    //The server creates no other pool, and the common pool's workers are named 'ForkJoinPool.commonPool-worker-1'
+    private static final String CARRIER_THREAD_PREFIX = "ForkJoinPool-";
+    private static final String CARRIER_THREAD_WORKER = "-worker-";
+
+    private final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+
+    /**
+     * number of reader and writer loops currently running, ie: threads (virtual or not) owned by connections
+     */
+    private final AtomicInteger activeConnectionThreads = new AtomicInteger();
+    private final AtomicLong pinnedEvents = new AtomicLong();
+
+    private final ScheduledExecutorService scheduler;
+    private final RecordingStream pinnedEventStream;
+
+    ThreadUsageReporter(int intervalSeconds, boolean watchPinning) {
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "thread-usage-reporter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleAtFixedRate(this::report, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+
+        if (watchPinning) {
+            pinnedEventStream = new RecordingStream();
+            pinnedEventStream.enable("jdk.VirtualThreadPinned").withThreshold(Duration.ofMillis(1));
+            pinnedEventStream.onEvent("jdk.VirtualThreadPinned", event -> pinnedEvents.incrementAndGet());
+            pinnedEventStream.startAsync();
+        } else {
+            pinnedEventStream = null;
+        }
+    }
+
+    void connectionThreadStarted() {
+        activeConnectionThreads.incrementAndGet();
+    }
+
+    void connectionThreadFinished() {
+        activeConnectionThreads.decrementAndGet();
+    }
+
+    int activeConnectionThreads() {
+        return activeConnectionThreads.get();
+    }
+
+    long pinnedEvents() {
+        return pinnedEvents.get();
+    }
+
+    /**
+     * counts the carriers by the names of the platform threads. The ThreadMXBean only knows the platform threads, and
+     * a maxDepth of 0 takes no stack traces, so this costs one ThreadInfo per platform thread however many virtual threads run
+     */
+    int carrierThreads() {
+        int carriers = 0;
+        for (ThreadInfo info : threadMXBean.getThreadInfo(threadMXBean.getAllThreadIds(), 0)) {
+            //null for a thread which ended in between
+            if (info != null && info.getThreadName().startsWith(CARRIER_THREAD_PREFIX)
+                    && info.getThreadName().contains(CARRIER_THREAD_WORKER)) {
+                carriers++;
+            }
+        }
+        return carriers;
+    }
+
+    void report() {
+        logger.info("Threads: connectionThreads=" + activeConnectionThreads.get()
+                + " platform=" + threadMXBean.getThreadCount() + " (peak " + threadMXBean.getPeakThreadCount() + ")"
+                + " carriers=" + carrierThreads()
+                + " pinned=" + pinnedEvents.get());
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+        if (pinnedEventStream != null) {
+            pinnedEventStream.close();
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package server;
+
+import utils.LatencyHistogram;
+import utils.Tls;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+/**
+ * <p>Turns the accepted sockets into TLS sockets and runs their handshakes, used in THREADS and VIRTUAL mode with -Dchat.server.tls=true.</p>
+ *
+ * <p>A full handshake costs a few milliseconds of CPU, so the handshakes run on their own small pool with a bounded queue:
+ * during a reconnect storm the connections which are already chatting keep their threads, and the sockets which don't fit
+ * into the queue are closed right away instead of piling up. A handshake which does not finish within the timeout is dropped as well.</p>
+ *
+ * <p>The sessions are cached by the SSLContext of the server, a client which reconnects with the same context resumes its session
+ * with an abbreviated handshake. The acceptor counts both kinds</p>
+ */
+final class TlsAcceptor implements AutoCloseable {
+    private static final Logger logger = Logger.getLogger(TlsAcceptor.class.getName());
+
+    private final SSLSocketFactory socketFactory;
+    private final ThreadPoolExecutor handshakePool;
+    private final int handshakeTimeoutMillis;
+
+    final LongAdder fullHandshakes = new LongAdder();
+    final LongAdder resumedHandshakes = new LongAdder();
+    final LongAdder failedHandshakes = new LongAdder();
+    //sockets closed because the handshake queue was full
+    final LongAdder rejectedHandshakes = new LongAdder();
+    //nanoseconds from the start of a handshake until it finished
+    final LatencyHistogram fullHandshakeLatency = new LatencyHistogram();
+    final LatencyHistogram resumedHandshakeLatency = new LatencyHistogram();
+
+    TlsAcceptor(SSLContext context, int threads, int queueCapacity, long handshakeTimeoutMillis, int sessionCacheSize, int sessionTimeoutSeconds) {
+        SSLSessionContext sessions = context.getServerSessionContext();
+        sessions.setSessionCacheSize(sessionCacheSize);
+        sessions.setSessionTimeout(sessionTimeoutSeconds);
+        this.socketFactory = context.getSocketFactory();
+        this.handshakeTimeoutMillis = (int) Math.min(Integer.MAX_VALUE, handshakeTimeoutMillis);
+
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.handshakePool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), runnable -> {
+            Thread thread = new Thread(runnable, "tls-handshake-" + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    void accept(Socket socket, Consumer<Socket> connected) {
+        accept(socket, connected, () -> {});
+    }
+
+    /**
+     * queues the handshake of an accepted socket, connected receives the TLS socket once the handshake is done.
+     * dropped runs instead once the socket was closed because its handshake failed or did not fit into the queue.
+     * Never blocks the accept loop
+     */
+    void accept(Socket socket, Consumer<Socket> connected, Runnable dropped) {
+        try {
+            handshakePool.execute(() -> handshake(socket, connected, dropped));
+        } catch (RejectedExecutionException e) {
+            rejectedHandshakes.increment();
+            closeQuietly(socket);
+            dropped.run();
+        }
+    }
+
+    private void handshake(Socket socket, Consumer<Socket> connected, Runnable dropped) {
+        SSLSocket tlsSocket = null;
+        try {
+            //the handshake and the session tickets are small records, Nagle would hold each flight back for a delayed ACK
+            socket.setTcpNoDelay(true);
+            tlsSocket = (SSLSocket) socketFactory.createSocket(socket, null, socket.getPort(), true);
+            tlsSocket.setUseClientMode(false);
+            tlsSocket.setSoTimeout(handshakeTimeoutMillis);
+            long startedMillis = System.currentTimeMillis();
+            long started = System.nanoTime();
+            tlsSocket.startHandshake();
+            long elapsed = System.nanoTime() - started;
+            if (Tls.isResumed(tlsSocket.getSession(), startedMillis)) {
+                resumedHandshakes.increment();
+                resumedHandshakeLatency.record(elapsed);
+            } else {
+                fullHandshakes.increment();
+                fullHandshakeLatency.record(elapsed);
+            }
+            tlsSocket.setSoTimeout(0);
+        } catch (IOException e) {
+            failedHandshakes.increment();
+            logger.info("TLS handshake with " + socket.getInetAddress() + " failed: " + e.getMessage());
+            closeQuietly(tlsSocket != null ? tlsSocket : socket);
+            dropped.run();
+            return;
+        }
+        connected.accept(tlsSocket);
+    }
+
+    /**
+     * the /stats lines, eg: 'tls handshakes: 120 full, 880 resumed, 2 failed, 0 rejected, 0 queued' followed by the latencies of both kinds
+     */
+    List<String> report() {
+        List<String> lines = new ArrayList<>();
+        lines.add("tls handshakes: " + fullHandshakes.sum() + " full, " + resumedHandshakes.sum() + " resumed, "
+                + failedHandshakes.sum() + " failed, " + rejectedHandshakes.sum() + " rejected, "
+                + handshakePool.getQueue().size() + " queued");
+        lines.add("  full handshake " + fullHandshakeLatency.summaryMicros());
+        lines.add("  resumed handshake " + resumedHandshakeLatency.summaryMicros());
+        return lines;
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+            //nothing left to do with it
+        }
+    }
+
+    @Override
+    public void close() {
+        handshakePool.shutdownNow();
+    }
+}
@@ -0,0 +1,50 @@
+package server;
+
+/**
+ * <p>A token bucket: it holds up to burst tokens and refills at rate tokens per second, taking tokens out of it lets
+ * a client go at the rate on average and at the burst for a moment.</p>
+ *
+ * <p>The refill is computed from the time passed since the last call, so an idle bucket costs nothing. Not thread safe,
+ * a bucket belongs to one connection and is only used by the thread handling its requests</p>
+ */
+final class TokenBucket {
+    private final double capacity;
+    private final double tokensPerNano;
+
+    private double tokens;
+    private long refilledAt;
+
+    /**
+     * a full bucket, now is System.nanoTime()
+     */
+    TokenBucket(double ratePerSecond, double burst, long now) {
+        this.capacity = Math.max(1, burst);
+        this.tokensPerNano = ratePerSecond / 1e9;
+        this.tokens = capacity;
+        this.refilledAt = now;
+    }
+
+    /**
+     * nanoseconds until the bucket holds amount tokens, 0 if it does now. An amount larger than the burst waits for a full bucket
+     */
+    long delayNanos(double amount, long now) {
+        refill(now);
+        double missing = Math.min(amount, capacity) - tokens;
+        return missing <= 0 ? 0 : (long) Math.ceil(missing / tokensPerNano);
+    }
+
+    /**
+     * takes the tokens out, only after delayNanos() returned 0 for the amount
+     */
+    void take(double amount) {
+        tokens -= Math.min(amount, capacity);
+    }
+
+    private void refill(long now) {
+        long elapsed = now - refilledAt;
+        if (elapsed > 0) {
+            tokens = Math.min(capacity, tokens + elapsed * tokensPerNano);
+            refilledAt = now;
+        }
+    }
+}
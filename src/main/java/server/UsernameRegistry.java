@@ -0,0 +1,92 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Connections keyed by username, used for the server wide registry and for the members of every {@link Room}.</p>
+ *
+ * <p>A username is only ever taken with putIfAbsent(), so two clients racing for the same name can't both get it,
+ * and a rename takes the new name before it gives up the old one. Every change bumps {@link #version()}, which tells
+ * a cached {@link RosterSnapshot} whether it is still current</p>
+ */
+final class UsernameRegistry {
+    private final ConcurrentHashMap<String, ChatServer.ConnectionHandler> handlers = new ConcurrentHashMap<>();
+    private final AtomicLong version = new AtomicLong();
+
+    /**
+     * returns false if the username is already taken
+     */
+    boolean register(String username, ChatServer.ConnectionHandler handler) {
+        if (handlers.putIfAbsent(username, handler) != null) {
+            return false;
+        }
+        version.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * moves the handler from its old to its new username, returns false (and keeps the old username) if the new one is taken
+     */
+    boolean rename(String oldUsername, String newUsername, ChatServer.ConnectionHandler handler) {
+        if (handlers.putIfAbsent(newUsername, handler) != null) {
+            return false;
+        }
+        handlers.remove(oldUsername, handler);
+        version.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * removes the username only if it still belongs to the handler, so a handler never removes someone who took its old name
+     */
+    boolean remove(String username, ChatServer.ConnectionHandler handler) {
+        if (!handlers.remove(username, handler)) {
+            return false;
+        }
+        version.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * hands the username over from one handler to the other without ever freeing it, returns false if it is no longer the previous one's.
+     * The usernames stay the same, so the version does not change
+     */
+    boolean replace(String username, ChatServer.ConnectionHandler previous, ChatServer.ConnectionHandler handler) {
+        return handlers.replace(username, previous, handler);
+    }
+
+    ChatServer.ConnectionHandler get(String username) {
+        return handlers.get(username);
+    }
+
+    boolean containsKey(String username) {
+        return handlers.containsKey(username);
+    }
+
+    Collection<ChatServer.ConnectionHandler> values() {
+        return handlers.values();
+    }
+
+    int size() {
+        return handlers.size();
+    }
+
+    boolean isEmpty() {
+        return handlers.isEmpty();
+    }
+
+    /**
+     * a copy of the usernames, in no particular order
+     */
+    List<String> usernames() {
+        return new ArrayList<>(handlers.keySet());
+    }
+
+    long version() {
+        return version.get();
+    }
+}
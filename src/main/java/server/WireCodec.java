@@ -0,0 +1,74 @@
+package server;
+
+import server.persistence.LogRecord;
+import utils.ResponseType;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * <p>Turns the responses of the server into the bytes of one protocol.</p>
+ *
+ * <p>Every connection starts with {@link #TEXT} and switches to {@link #BINARY} if the client sends the binary preamble.
+ * The returned buffers are heap buffers positioned at 0, ready to be queued or to be shared by {@link Frames#shared(ByteBuffer)}</p>
+ */
+interface WireCodec {
+    WireCodec TEXT = new TextCodec();
+    WireCodec BINARY = new BinaryCodec();
+
+    /**
+     * number of codecs, a broadcast encodes a frame at most once per codec
+     */
+    int COUNT = 2;
+
+    /**
+     * index of this codec between 0 and COUNT - 1
+     */
+    int id();
+
+    /**
+     * frames which only carry a text, eg: Error, Success, Disconnect or a NOTICE
+     */
+    ByteBuffer encode(ResponseType type, String text);
+
+    /**
+     * sequence is the {@link LogRecord#sequence} of the message, -1 if it has none
+     */
+    ByteBuffer message(String username, int usernameColor, String message, long sequence);
+
+    ByteBuffer usernameChanged(String newUsername, String text);
+
+    ByteBuffer onlineCount(int count);
+
+    /**
+     * one page of the online list, firstNumber is the 1 based position of its first username among all the total usernames
+     */
+    ByteBuffer onlineList(Iterable<String> usernames, int firstNumber, int total);
+
+    ByteBuffer help(String[] lines);
+
+    /**
+     * a frame of the given type which carries a list of lines, eg: ROOM_LIST
+     */
+    ByteBuffer list(ResponseType type, List<String> lines);
+
+    /**
+     * one frame with all the messages, oldest first
+     */
+    ByteBuffer history(List<LogRecord> records);
+
+    /**
+     * the token of a resumable session and the newest message sequence the client is up to date with
+     */
+    ByteBuffer resumeToken(String token, long sequence);
+
+    /**
+     * tells the client its message was dropped by the rate limit, and in how many milliseconds it may send again
+     */
+    ByteBuffer throttled(long retryAfterMillis, String text);
+
+    /**
+     * a message sent to this client only, it is never logged so it has no sequence
+     */
+    ByteBuffer whisper(String username, int usernameColor, String text);
+}
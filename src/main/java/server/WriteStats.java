@@ -0,0 +1,30 @@
+package server;
+
+import utils.LatencyHistogram;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>Counters of the outbound writes of all the connections, used to tune the flush window, eg:</p>
+ * <pre>Writes: frames=120000 writeCalls=9000 (13.3 frames/call) bytes=9600000 delivery p50=80us p99=950us p999=2000us max=4100us</pre>
+ *
+ * <p>'writeCalls' are the channel write calls, ie: the write syscalls. 'delivery' is the time from send() queueing a frame
+ * until the write which finished it returned.</p>
+ */
+class WriteStats {
+    final LongAdder writeCalls = new LongAdder();
+    final LongAdder framesWritten = new LongAdder();
+    final LongAdder bytesWritten = new LongAdder();
+    //nanoseconds
+    final LatencyHistogram deliveryLatency = new LatencyHistogram();
+
+    String report() {
+        long calls = writeCalls.sum();
+        long frames = framesWritten.sum();
+        return "Writes: frames=" + frames
+                + " writeCalls=" + calls
+                + " (" + String.format("%.1f", calls == 0 ? 0.0 : (double) frames / calls) + " frames/call)"
+                + " bytes=" + bytesWritten.sum()
+                + " delivery " + deliveryLatency.summaryMicros();
+    }
+}
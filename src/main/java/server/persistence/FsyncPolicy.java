@@ -0,0 +1,19 @@
+package server.persistence;
+
+/**
+ * When the {@link MessageLog} forces its writes to the disk
+ */
+public enum FsyncPolicy {
+    /**
+     * after every group commit, ie: every batch of records the writer takes from the queue
+     */
+    ALWAYS,
+    /**
+     * at most once per fsync interval, a crash can lose the records of the last interval
+     */
+    INTERVAL,
+    /**
+     * never, the operating system writes the pages back whenever it wants
+     */
+    NEVER
+}
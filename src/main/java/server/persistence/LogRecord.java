@@ -0,0 +1,27 @@
+package server.persistence;
+
+/**
+ * One chat message stored in the {@link MessageLog}
+ */
+public class LogRecord {
+    public final long sequence;
+    public final long timestampMillis;
+    public final String room;
+    public final String username;
+    public final int usernameColor;
+    public final String text;
+
+    public LogRecord(long sequence, long timestampMillis, String room, String username, int usernameColor, String text) {
+        this.sequence = sequence;
+        this.timestampMillis = timestampMillis;
+        this.room = room;
+        this.username = username;
+        this.usernameColor = usernameColor;
+        this.text = text;
+    }
+
+    @Override
+    public String toString() {
+        return sequence + " [" + room + "] " + username + ": " + text;
+    }
+}
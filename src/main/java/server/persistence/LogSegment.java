@@ -0,0 +1,373 @@
+package server.persistence;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32C;
+
+/**
+ * <p>One file of the {@link MessageLog}, named after the sequence number of its first record, eg: 00000000000000004096.log</p>
+ *
+ * <p>Every record is stored as:</p>
+ * <pre>
+ * int  length      bytes of the payload
+ * int  checksum    CRC32C of sequence, timestamp and payload
+ * long sequence
+ * long timestamp   milliseconds since the epoch
+ * ...  payload     byte version (2), string room, string username, int usernameColor, string text
+ *                  (a string is an int byte count followed by UTF-8 bytes)
+ *                  version 1 has no room, those records were written before there were rooms and belong to the lobby
+ * </pre>
+ *
+ * <p>Only the writer thread of the log appends. Readers share one mapping of the part of the file that was written when it
+ * was made, the records appended since then (see {@link #readableBytes}) are read with a plain read until they add up to
+ * {@link #REMAP_BYTES}, and only then is the segment mapped again. Readers find their start with a sparse in-memory index
+ * of (sequence, position) pairs.</p>
+ */
+class LogSegment {
+    static final String SUFFIX = ".log";
+    static final int HEADER_BYTES = 4 + 4 + 8 + 8;
+    private static final byte PAYLOAD_VERSION = 2;
+    private static final String VERSION_1_ROOM = "lobby";
+
+    //one index entry per this many bytes of records
+    private static final int INDEX_INTERVAL_BYTES = 4096;
+    //the active segment is mapped again once this many bytes were appended past the mapping
+    private static final int REMAP_BYTES = 64 * 1024;
+
+    final long baseSequence;
+    final Path path;
+
+    //not final so a test can make the writes fail
+    FileChannel writeChannel;
+    private FileChannel readChannel;
+
+    //bytes which are written to the file and therefore safe to read
+    private volatile long readableBytes;
+    //sequence of the last record in the segment, baseSequence - 1 while it is empty
+    private volatile long lastSequence;
+    private volatile long lastTimestampMillis;
+
+    //guarded by 'this'
+    private MappedByteBuffer mapped;
+    private long[] indexSequences = new long[16];
+    private long[] indexPositions = new long[16];
+    private int indexSize = 0;
+    private long lastIndexedPosition = -INDEX_INTERVAL_BYTES;
+    private boolean indexed = false;
+
+    private LogSegment(long baseSequence, Path path) {
+        this.baseSequence = baseSequence;
+        this.path = path;
+        this.lastSequence = baseSequence - 1;
+    }
+
+    static Path pathOf(Path directory, long baseSequence) {
+        return directory.resolve(String.format("%020d", baseSequence) + SUFFIX);
+    }
+
+    static LogSegment create(Path directory, long baseSequence) throws IOException {
+        LogSegment segment = new LogSegment(baseSequence, pathOf(directory, baseSequence));
+        segment.writeChannel = FileChannel.open(segment.path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        segment.readChannel = FileChannel.open(segment.path, StandardOpenOption.READ);
+        segment.indexed = true;
+        return segment;
+    }
+
+    /**
+     * opens an existing segment for reading, its index is built on the first read
+     */
+    static LogSegment open(Path path) throws IOException {
+        String name = path.getFileName().toString();
+        LogSegment segment = new LogSegment(Long.parseLong(name.substring(0, name.length() - SUFFIX.length())), path);
+        segment.readChannel = FileChannel.open(path, StandardOpenOption.READ);
+        segment.readableBytes = segment.readChannel.size();
+        segment.lastTimestampMillis = Files.getLastModifiedTime(path).toMillis();
+        return segment;
+    }
+
+    /**
+     * <p>Scans the whole segment and cuts it right after the last intact record.</p>
+     *
+     * <p>A crash in the middle of a write leaves a torn record at the end: its length points past the end of the file,
+     * or its checksum does not match. Everything from there on is truncated, and the segment is opened for appending.
+     * Returns the number of bytes that were cut.</p>
+     *
+     * <p>The sequences may skip numbers: the records of a batch which failed to write keep the sequences they were given,
+     * and the next batch follows them. Only a sequence which goes backwards is taken for a broken record</p>
+     */
+    synchronized long recoverForAppend() throws IOException {
+        long fileSize = readChannel.size();
+        ByteBuffer file = readChannel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+        long expectedSequence = baseSequence;
+        long position = 0;
+        indexSize = 0;
+        lastIndexedPosition = -INDEX_INTERVAL_BYTES;
+
+        while (position + HEADER_BYTES <= fileSize) {
+            file.position((int) position);
+            int length = file.getInt();
+            int checksum = file.getInt();
+            long sequence = file.getLong();
+            long timestamp = file.getLong();
+            if (length <= 0 || position + HEADER_BYTES + length > fileSize || sequence < expectedSequence) {
+                break;
+            }
+            ByteBuffer payload = file.slice((int) position + HEADER_BYTES, length);
+            if (checksum(sequence, timestamp, payload) != checksum) {
+                break;
+            }
+            addIndexEntry(sequence, position);
+            lastSequence = sequence;
+            lastTimestampMillis = timestamp;
+            expectedSequence = sequence + 1;
+            position += HEADER_BYTES + length;
+        }
+
+        writeChannel = FileChannel.open(path, StandardOpenOption.WRITE);
+        long torn = fileSize - position;
+        if (torn > 0) {
+            writeChannel.truncate(position);
+            writeChannel.force(true);
+        }
+        readableBytes = position;
+        mapped = null;
+        indexed = true;
+        return torn;
+    }
+
+    long nextSequence() {
+        return lastSequence + 1;
+    }
+
+    long lastTimestampMillis() {
+        return lastTimestampMillis;
+    }
+
+    long sizeBytes() {
+        return readableBytes;
+    }
+
+    boolean isEmpty() {
+        return lastSequence < baseSequence;
+    }
+
+    static int encodedLength(byte[] room, byte[] username, byte[] text) {
+        return HEADER_BYTES + 1 + 4 + room.length + 4 + username.length + 4 + 4 + text.length;
+    }
+
+    /**
+     * appends the encoded record to the buffer, which must have space for {@link #encodedLength(byte[], byte[], byte[])} bytes
+     */
+    static void encode(LogRecord record, byte[] room, byte[] username, byte[] text, ByteBuffer buffer) {
+        int start = buffer.position();
+        int payloadLength = encodedLength(room, username, text) - HEADER_BYTES;
+        buffer.putInt(payloadLength);
+        buffer.putInt(0);
+        buffer.putLong(record.sequence);
+        buffer.putLong(record.timestampMillis);
+        buffer.put(PAYLOAD_VERSION);
+        buffer.putInt(room.length).put(room);
+        buffer.putInt(username.length).put(username);
+        buffer.putInt(record.usernameColor);
+        buffer.putInt(text.length).put(text);
+
+        ByteBuffer payload = buffer.duplicate().position(start + HEADER_BYTES).limit(buffer.position());
+        buffer.putInt(start + 4, checksum(record.sequence, record.timestampMillis, payload));
+    }
+
+    private static int checksum(long sequence, long timestamp, ByteBuffer payload) {
+        CRC32C crc = new CRC32C();
+        ByteBuffer header = ByteBuffer.allocate(16).putLong(sequence).putLong(timestamp).flip();
+        crc.update(header);
+        crc.update(payload.duplicate());
+        return (int) crc.getValue();
+    }
+
+    /**
+     * <p>Writes a batch of encoded records, called only by the writer thread.
+     * sequences[i] and offsets[i] (within the buffer) describe the i-th record in the batch.</p>
+     *
+     * <p>The batch is written right after the last intact record. If the write fails the segment is cut back there, and
+     * even if that fails too the next batch overwrites the broken bytes, so good records never follow a torn one</p>
+     */
+    void append(ByteBuffer records, long[] sequences, int[] offsets, int count, long lastTimestamp) throws IOException {
+        long start = readableBytes;
+        int first = records.position();
+        int length = records.remaining();
+        try {
+            while (records.hasRemaining()) {
+                writeChannel.write(records, start + records.position() - first);
+            }
+        } catch (IOException e) {
+            try {
+                writeChannel.truncate(start);
+            } catch (IOException truncateFailed) {
+                e.addSuppressed(truncateFailed);
+            }
+            throw e;
+        }
+        synchronized (this) {
+            for (int i = 0; i < count; i++) {
+                addIndexEntry(sequences[i], start + offsets[i]);
+            }
+        }
+        lastSequence = sequences[count - 1];
+        lastTimestampMillis = lastTimestamp;
+        readableBytes = start + length;
+    }
+
+    void force() throws IOException {
+        writeChannel.force(false);
+    }
+
+    private void addIndexEntry(long sequence, long position) {
+        if (position - lastIndexedPosition < INDEX_INTERVAL_BYTES) {
+            return;
+        }
+        if (indexSize == indexSequences.length) {
+            indexSequences = Arrays.copyOf(indexSequences, indexSize * 2);
+            indexPositions = Arrays.copyOf(indexPositions, indexSize * 2);
+        }
+        indexSequences[indexSize] = sequence;
+        indexPositions[indexSize] = position;
+        indexSize++;
+        lastIndexedPosition = position;
+    }
+
+    /**
+     * adds the records with sequence >= fromSequence to the list until it holds maxRecords,
+     * returns false if the end of the list was reached inside this segment
+     */
+    boolean read(long fromSequence, int maxRecords, List<LogRecord> records) throws IOException {
+        ByteBuffer file;
+        long start;
+        long readable;
+        synchronized (this) {
+            readable = readableBytes;
+            if (mapped == null || readable - mapped.capacity() > REMAP_BYTES) {
+                mapped = readChannel.map(FileChannel.MapMode.READ_ONLY, 0, readable);
+            }
+            if (!indexed) {
+                buildIndex(mapped);
+            }
+            file = mapped.duplicate();
+            start = startPosition(fromSequence);
+        }
+
+        if (start < file.limit() && !readRecords(file, (int) start, fromSequence, maxRecords, records)) {
+            return false;
+        }
+        //readableBytes only moves by whole batches, so the mapping ends where a record starts
+        long tailStart = Math.max(start, file.limit());
+        if (tailStart >= readable) {
+            return true;
+        }
+        ByteBuffer tail = ByteBuffer.allocate((int) (readable - tailStart));
+        while (tail.hasRemaining()) {
+            if (readChannel.read(tail, tailStart + tail.position()) < 0) {
+                throw new EOFException("The message log segment " + path + " is shorter than " + readable + " bytes");
+            }
+        }
+        return readRecords(tail.flip(), 0, fromSequence, maxRecords, records);
+    }
+
+    private static boolean readRecords(ByteBuffer file, int position, long fromSequence, int maxRecords, List<LogRecord> records) {
+        while (position + HEADER_BYTES <= file.limit()) {
+            if (records.size() >= maxRecords) {
+                return false;
+            }
+            file.position(position);
+            int length = file.getInt();
+            file.getInt();
+            long sequence = file.getLong();
+            long timestamp = file.getLong();
+            if (sequence >= fromSequence) {
+                records.add(decode(sequence, timestamp, file.slice(position + HEADER_BYTES, length)));
+            }
+            position += HEADER_BYTES + length;
+        }
+        return true;
+    }
+
+    private long startPosition(long fromSequence) {
+        int low = 0;
+        int high = indexSize - 1;
+        long position = 0;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (indexSequences[middle] <= fromSequence) {
+                position = indexPositions[middle];
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return position;
+    }
+
+    private void buildIndex(ByteBuffer file) {
+        int position = 0;
+        while (position + HEADER_BYTES <= file.limit()) {
+            int length = file.getInt(position);
+            long sequence = file.getLong(position + 8);
+            addIndexEntry(sequence, position);
+            lastSequence = sequence;
+            position += HEADER_BYTES + length;
+        }
+        indexed = true;
+    }
+
+    private static LogRecord decode(long sequence, long timestamp, ByteBuffer payload) {
+        try {
+            byte version = payload.get();
+            String room = version >= 2 ? getString(payload) : VERSION_1_ROOM;
+            String username = getString(payload);
+            int usernameColor = payload.getInt();
+            String text = getString(payload);
+            return new LogRecord(sequence, timestamp, room, username, usernameColor, text);
+        } catch (BufferUnderflowException e) {
+            throw new IllegalStateException("corrupt record " + sequence, e);
+        }
+    }
+
+    private static String getString(ByteBuffer payload) {
+        byte[] bytes = new byte[payload.getInt()];
+        payload.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    void closeForAppend() throws IOException {
+        if (writeChannel != null) {
+            //whatever a failed write left after the last record, a closed segment is read up to its size
+            if (writeChannel.size() > readableBytes) {
+                writeChannel.truncate(readableBytes);
+            }
+            writeChannel.force(false);
+            writeChannel.close();
+            writeChannel = null;
+        }
+    }
+
+    void close() throws IOException {
+        closeForAppend();
+        readChannel.close();
+    }
+
+    void delete() throws IOException {
+        close();
+        synchronized (this) {
+            mapped = null;
+        }
+        Files.deleteIfExists(path);
+    }
+}
@@ -0,0 +1,423 @@
+package server.persistence;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * <p>An append-only log of the chat messages, split into segment files of about {@link #segmentBytes} each.</p>
+ *
+ * <p>{@link #append} only assigns a sequence number and queues the record, so the caller (a connection which just
+ * broadcast the message) never waits for the disk. A single writer thread takes everything that is queued at once,
+ * writes it with one call and then forces it to the disk according to the {@link FsyncPolicy}: many records
+ * share one fsync (group commit). append is called from event loops and cluster readers, so it never blocks: while the
+ * queue is full records are dropped, which is counted in {@link #droppedAppends()}.</p>
+ *
+ * <p>Readers never take the writer's lock, they read memory-mapped segments up to the bytes which are already written.</p>
+ *
+ * <p>On startup the last segment is scanned, and a record torn by a crash is cut off so that new records follow the last intact one.
+ * Old segments are deleted once the log is bigger than {@link #retentionBytes} or a segment is older than {@link #retentionMillis}</p>
+ */
+public class MessageLog implements AutoCloseable {
+    private static final Logger logger = Logger.getLogger(MessageLog.class.getName());
+
+    private static final int QUEUE_CAPACITY = 8192;
+
+    /**
+     * segments are read with int positions, the margin leaves room for the record which takes a segment over its size
+     */
+    public static final long MAX_SEGMENT_BYTES = Integer.MAX_VALUE - 1024 * 1024;
+
+    //readBefore() of a room reads this many records at a time, and at most ROOM_SCAN_LIMIT in total
+    private static final int ROOM_SCAN_CHUNK = 512;
+    private static final int ROOM_SCAN_LIMIT = 16 * 1024;
+
+    private final Path directory;
+    private final FsyncPolicy fsyncPolicy;
+    private final long fsyncIntervalNanos;
+    private final long segmentBytes;
+    private final long retentionBytes;
+    private final long retentionMillis;
+
+    //all the segments by their base sequence, the last one is the active segment which the writer appends to
+    private final ConcurrentSkipListMap<Long, LogSegment> segments = new ConcurrentSkipListMap<>();
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    //guarded by lock
+    private final ArrayDeque<LogRecord> pending = new ArrayDeque<>();
+    private long nextSequence;
+    private boolean closed = false;
+
+    private final Thread writer;
+
+    private final LongAdder appended = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder fsyncs = new LongAdder();
+    private final LongAdder droppedAppends = new LongAdder();
+
+    //only touched by the writer thread
+    private ByteBuffer writeBuffer = ByteBuffer.allocate(64 * 1024);
+    private long[] batchSequences = new long[64];
+    private int[] batchOffsets = new int[64];
+    private boolean dirty = false;
+    private long lastFsyncNanos = System.nanoTime();
+
+    public MessageLog(Path directory, FsyncPolicy fsyncPolicy, long fsyncIntervalMillis,
+                      long segmentBytes, long retentionBytes, long retentionMillis) throws IOException {
+        this.directory = directory;
+        this.fsyncPolicy = fsyncPolicy;
+        this.fsyncIntervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, fsyncIntervalMillis));
+        this.segmentBytes = Math.max(LogSegment.HEADER_BYTES, Math.min(MAX_SEGMENT_BYTES, segmentBytes));
+        this.retentionBytes = retentionBytes;
+        this.retentionMillis = retentionMillis;
+
+        Files.createDirectories(directory);
+        recover();
+
+        writer = new Thread(this::writeLoop, "message-log-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    private void recover() throws IOException {
+        List<Path> files;
+        try (Stream<Path> list = Files.list(directory)) {
+            files = list.filter(path -> path.getFileName().toString().endsWith(LogSegment.SUFFIX)).sorted().toList();
+        }
+        for (Path file : files) {
+            LogSegment segment = LogSegment.open(file);
+            segments.put(segment.baseSequence, segment);
+        }
+
+        if (segments.isEmpty()) {
+            LogSegment segment = LogSegment.create(directory, 0);
+            segments.put(segment.baseSequence, segment);
+        } else {
+            LogSegment active = segments.lastEntry().getValue();
+            long torn = active.recoverForAppend();
+            if (torn > 0) {
+                logger.warning("Truncated a torn tail of " + torn + " bytes from the message log segment " + active.path);
+            }
+        }
+        nextSequence = segments.lastEntry().getValue().nextSequence();
+        logger.info("Message log opened in " + directory + ": " + segments.size() + " segments, next sequence " + nextSequence);
+    }
+
+    /**
+     * queues the message and returns it with its sequence number, the record is written by the writer thread shortly after.
+     * Returns null once the log is closed, or if the writer is so far behind that the queue is full: the record is dropped
+     * without taking a sequence number, so the sequences in the log stay without gaps
+     */
+    public LogRecord append(String room, String username, int usernameColor, String text) {
+        lock.lock();
+        try {
+            if (closed) {
+                return null;
+            }
+            if (pending.size() >= QUEUE_CAPACITY) {
+                droppedAppends.increment();
+                return null;
+            }
+            LogRecord record = new LogRecord(nextSequence++, System.currentTimeMillis(), room, username, usernameColor, text);
+            pending.add(record);
+            if (pending.size() == 1) {
+                notEmpty.signal();
+            }
+            return record;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void writeLoop() {
+        List<LogRecord> batch = new ArrayList<>();
+        while (true) {
+            lock.lock();
+            try {
+                while (pending.isEmpty() && !closed) {
+                    if (dirty && fsyncPolicy == FsyncPolicy.INTERVAL) {
+                        //wake up in time to force the records of this interval even if nothing else arrives
+                        long waitNanos = lastFsyncNanos + fsyncIntervalNanos - System.nanoTime();
+                        if (waitNanos <= 0) {
+                            break;
+                        }
+                        notEmpty.awaitNanos(waitNanos);
+                    } else {
+                        notEmpty.await();
+                    }
+                }
+                if (pending.isEmpty() && closed) {
+                    break;
+                }
+                batch.addAll(pending);
+                pending.clear();
+            } catch (InterruptedException e) {
+                break;
+            } finally {
+                lock.unlock();
+            }
+
+            try {
+                if (!batch.isEmpty()) {
+                    write(batch);
+                    batches.increment();
+                    appended.add(batch.size());
+                }
+                if (fsyncPolicy == FsyncPolicy.ALWAYS
+                        || fsyncPolicy == FsyncPolicy.INTERVAL && System.nanoTime() - lastFsyncNanos >= fsyncIntervalNanos) {
+                    fsync();
+                }
+            } catch (IOException e) {
+                //the segment is cut back to the last record written in full, the rest of the batch is lost and its sequences skipped
+                logger.severe("Error while writing " + batch.size() + " records to the message log: " + e.getMessage());
+            }
+            batch.clear();
+        }
+
+        try {
+            fsync();
+        } catch (IOException e) {
+            logger.severe("Error while forcing the message log to the disk: " + e.getMessage());
+        }
+    }
+
+    private void write(List<LogRecord> batch) throws IOException {
+        LogSegment active = segments.lastEntry().getValue();
+        writeBuffer.clear();
+        int count = 0;
+        long lastTimestamp = 0;
+
+        for (LogRecord record : batch) {
+            byte[] room = record.room.getBytes(StandardCharsets.UTF_8);
+            byte[] username = record.username.getBytes(StandardCharsets.UTF_8);
+            byte[] text = record.text.getBytes(StandardCharsets.UTF_8);
+            int length = LogSegment.encodedLength(room, username, text);
+
+            if (!active.isEmpty() || count > 0) {
+                if (active.sizeBytes() + writeBuffer.position() + length > segmentBytes) {
+                    flushBatch(active, count, lastTimestamp);
+                    count = 0;
+                    active = roll(active, record.sequence);
+                }
+            }
+            if (writeBuffer.remaining() < length) {
+                flushBatch(active, count, lastTimestamp);
+                count = 0;
+                if (writeBuffer.capacity() < length) {
+                    writeBuffer = ByteBuffer.allocate(length);
+                }
+            }
+            if (count == batchSequences.length) {
+                batchSequences = Arrays.copyOf(batchSequences, count * 2);
+                batchOffsets = Arrays.copyOf(batchOffsets, count * 2);
+            }
+            batchSequences[count] = record.sequence;
+            batchOffsets[count] = writeBuffer.position();
+            count++;
+            lastTimestamp = record.timestampMillis;
+            LogSegment.encode(record, room, username, text, writeBuffer);
+        }
+        flushBatch(active, count, lastTimestamp);
+    }
+
+    private void flushBatch(LogSegment active, int count, long lastTimestamp) throws IOException {
+        if (count > 0) {
+            writeBuffer.flip();
+            active.append(writeBuffer, batchSequences, batchOffsets, count, lastTimestamp);
+            dirty = true;
+        }
+        writeBuffer.clear();
+    }
+
+    private LogSegment roll(LogSegment active, long baseSequence) throws IOException {
+        //the full segment is forced whatever the policy, so that only the active segment can ever have a torn tail
+        active.closeForAppend();
+        LogSegment segment = LogSegment.create(directory, baseSequence);
+        segments.put(baseSequence, segment);
+        dirty = false;
+        lastFsyncNanos = System.nanoTime();
+        enforceRetention();
+        return segment;
+    }
+
+    private void fsync() throws IOException {
+        if (dirty && fsyncPolicy != FsyncPolicy.NEVER) {
+            segments.lastEntry().getValue().force();
+            fsyncs.increment();
+        }
+        dirty = false;
+        lastFsyncNanos = System.nanoTime();
+    }
+
+    /**
+     * deletes the oldest segments while the log is over its size limit or they are past their age,
+     * the active segment is never deleted. Called on every roll and periodically by the server
+     */
+    public void enforceRetention() {
+        long totalBytes = 0;
+        for (LogSegment segment : segments.values()) {
+            totalBytes += segment.sizeBytes();
+        }
+        long oldestAllowed = System.currentTimeMillis() - retentionMillis;
+
+        for (Map.Entry<Long, LogSegment> entry : segments.entrySet()) {
+            LogSegment segment = entry.getValue();
+            if (segment == segments.lastEntry().getValue()) {
+                break;
+            }
+            boolean tooBig = retentionBytes > 0 && totalBytes > retentionBytes;
+            boolean tooOld = retentionMillis > 0 && segment.lastTimestampMillis() < oldestAllowed;
+            if (!tooBig && !tooOld) {
+                break;
+            }
+            totalBytes -= segment.sizeBytes();
+            if (!segments.remove(entry.getKey(), segment)) {
+                continue;
+            }
+            try {
+                segment.delete();
+                logger.info("Deleted the message log segment " + segment.path + (tooBig ? " (size limit)" : " (age limit)"));
+            } catch (IOException e) {
+                logger.warning("Error while deleting the message log segment " + segment.path + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * returns up to maxRecords written records starting at fromSequence, records still queued for the writer are not included
+     */
+    public List<LogRecord> read(long fromSequence, int maxRecords) throws IOException {
+        List<LogRecord> records = new ArrayList<>(Math.min(maxRecords, 256));
+        if (maxRecords <= 0) {
+            return records;
+        }
+        Long start = segments.floorKey(fromSequence);
+        if (start == null) {
+            start = segments.firstKey();
+        }
+        for (LogSegment segment : segments.tailMap(start).values()) {
+            if (!segment.read(fromSequence, maxRecords, records)) {
+                break;
+            }
+        }
+        return records;
+    }
+
+    /**
+     * returns up to maxRecords written records right before beforeSequence, oldest first. Used to page back through the history
+     */
+    public List<LogRecord> readBefore(long beforeSequence, int maxRecords) throws IOException {
+        long fromSequence = Math.max(segments.firstKey(), beforeSequence - maxRecords);
+        int count = (int) Math.max(0, beforeSequence - fromSequence);
+        return read(fromSequence, Math.min(count, maxRecords));
+    }
+
+    /**
+     * <p>Returns up to maxRecords written records of one room right before beforeSequence, oldest first.</p>
+     *
+     * <p>The log is not indexed by room, so this reads backwards in chunks and gives up after {@link #ROOM_SCAN_LIMIT} records:
+     * the history of a quiet room on a busy server may end early</p>
+     */
+    public List<LogRecord> readBefore(long beforeSequence, int maxRecords, String room) throws IOException {
+        List<LogRecord> found = new ArrayList<>();
+        long scanned = 0;
+        long cursor = beforeSequence;
+        while (found.size() < maxRecords && scanned < ROOM_SCAN_LIMIT && cursor > segments.firstKey()) {
+            List<LogRecord> chunk = readBefore(cursor, ROOM_SCAN_CHUNK);
+            if (chunk.isEmpty()) {
+                break;
+            }
+            for (int i = chunk.size() - 1; i >= 0 && found.size() < maxRecords; i--) {
+                if (chunk.get(i).room.equals(room)) {
+                    found.add(chunk.get(i));
+                }
+            }
+            scanned += chunk.size();
+            cursor = chunk.get(0).sequence;
+        }
+        Collections.reverse(found);
+        return found;
+    }
+
+    /**
+     * the sequence number the next appended message gets
+     */
+    public long nextSequence() {
+        lock.lock();
+        try {
+            return nextSequence;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long appended() {
+        return appended.sum();
+    }
+
+    public long batches() {
+        return batches.sum();
+    }
+
+    public long fsyncs() {
+        return fsyncs.sum();
+    }
+
+    public long droppedAppends() {
+        return droppedAppends.sum();
+    }
+
+    public int segmentCount() {
+        return segments.size();
+    }
+
+    public String report() {
+        return "message log: appended=" + appended() + " batches=" + batches() + " fsyncs=" + fsyncs()
+                + " dropped=" + droppedAppends() + " segments=" + segmentCount();
+    }
+
+    /**
+     * writes and forces everything which is queued, then closes the segments
+     */
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (LogSegment segment : segments.values()) {
+            try {
+                segment.close();
+            } catch (IOException e) {
+                logger.warning("Error while closing the message log segment " + segment.path + ": " + e.getMessage());
+            }
+        }
+    }
+}
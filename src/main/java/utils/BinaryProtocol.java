@@ -0,0 +1,170 @@
+package utils;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * <h2>Binary wire protocol</h2>
+ *
+ * <p>A client asks for the binary protocol by sending {@link #PREAMBLE} as the very first bytes of the connection.
+ * A server which supports it sends the same preamble back, from then on both sides only exchange binary frames.
+ * The first byte is 0, which can never start a text command, so the server tells the two protocols apart by one byte.
+ * An older server just sees a garbage line and answers with a text line, and the client falls back to the line protocol.</p>
+ *
+ * <p>Every frame is:</p>
+ * <pre>
+ * int  length   number of bytes after this field
+ * byte opcode   {@link RequestType#opcode} or {@link ResponseType#opcode}
+ * ...  fields   ints are 4 bytes big endian, strings are an int byte count followed by UTF-8 bytes
+ * </pre>
+ *
+ * <p>Fields of the server frames:</p>
+ * <pre>
+ * MESSAGE           string username, int usernameColor, string message, long sequence
+ * USERNAME_CHANGED  string newUsername, string text
+ * ONLINE_COUNT      int count
+ * ONLINE_LIST       int n, n * string, then only on a page of a longer list: int firstNumber (1 based), int total
+ * HELP              int n, n * string
+ * ROOM_LIST, STATS  int n, n * string
+ * HISTORY           int n, n * (string username, int usernameColor, string message), n * long sequence
+ * RESUME_TOKEN      string token, long sequence
+ * THROTTLED         string text, long retryAfterMillis
+ * WHISPER           string message, string username, int usernameColor
+ * COMPRESSED        deflate bytes, see below
+ * everything else   string text (optional for CLOSE)
+ * </pre>
+ *
+ * <p>The sequence of a message numbers all the messages of the server, in the order they were accepted. Fields at the end
+ * of a frame which a client does not know about are ignored, which is how the sequences were added.</p>
+ *
+ * <p>Client frames carry the command body as one string, except ADMIN_LOGIN which carries username and password.
+ * NEW_CLIENT may carry more strings after the username to offer features: {@link #COMPRESSION_DEFLATE}, {@link #RESUME}
+ * and {@link #HEARTBEAT}.</p>
+ *
+ * <h3>Compression</h3>
+ *
+ * <p>A server which accepts the offer sends large frames as COMPRESSED frames. The connection keeps one raw deflate stream
+ * (no zlib header) for its whole life, every COMPRESSED frame ends with a sync flush and inflates to exactly one complete frame,
+ * length field included. Small frames keep being sent as they are, so the client has to take both at any time</p>
+ *
+ * <h3>Session resume</h3>
+ *
+ * <p>A server which accepts the {@link #RESUME} offer answers the registration with a RESUME_TOKEN frame: the token and the
+ * sequence of the newest message the client is up to date with. When the connection drops, the server keeps the session
+ * for a while. The client connects again and sends RESUME with the body '&lt;token&gt; &lt;last sequence&gt;', the highest
+ * sequence it received, followed by the same feature strings as NEW_CLIENT. The server answers with SUCCESS, the messages
+ * of the room after that sequence in HISTORY frames, and a new RESUME_TOKEN. A token is only good for one resume,
+ * an ERROR means the session is gone and the client has to register again</p>
+ *
+ * <h3>Rate limits</h3>
+ *
+ * <p>A MESSAGE over the rate limit of the connection is dropped and answered with a THROTTLED frame, the milliseconds until
+ * the client may send again. Further messages dropped within that time are not answered again, the connection stays open</p>
+ *
+ * <h3>Heartbeat</h3>
+ *
+ * <p>A server which accepts the {@link #HEARTBEAT} offer sends a PING frame once the client sent nothing for a while, and
+ * closes the connection if nothing arrives in the time after that, eg: a half-open connection after a network failure.
+ * The client answers with PONG. Any frame counts as an answer. Either side may send PING at any time and gets a PONG</p>
+ */
+public final class BinaryProtocol {
+
+    public static final byte[] PREAMBLE = {0, 'C', 'R', 1, '\n'};
+
+    /**
+     * bytes of the length field in front of every frame
+     */
+    public static final int LENGTH_FIELD = 4;
+
+    public static final int MAX_FRAME_LENGTH = 64 * 1024;
+
+    /**
+     * the compression a client offers in its NEW_CLIENT frame
+     */
+    public static final String COMPRESSION_DEFLATE = "deflate";
+
+    /**
+     * the feature a client offers in its NEW_CLIENT frame to get a resume token
+     */
+    public static final String RESUME = "resume";
+
+    /**
+     * the feature a client offers in its NEW_CLIENT frame when it answers PING frames with PONG
+     */
+    public static final String HEARTBEAT = "heartbeat";
+
+    private BinaryProtocol() {
+    }
+
+    public static boolean isPreamble(byte[] bytes, int offset) {
+        return bytes.length - offset >= PREAMBLE.length
+                && Arrays.equals(bytes, offset, offset + PREAMBLE.length, PREAMBLE, 0, PREAMBLE.length);
+    }
+
+    public static String getString(ByteBuffer frame) {
+        int length = frame.getInt();
+        if (length < 0 || length > frame.remaining()) {
+            throw new IllegalArgumentException("string field of " + length + " bytes in a frame with " + frame.remaining() + " bytes left");
+        }
+        String value = new String(frame.array(), frame.arrayOffset() + frame.position(), length, StandardCharsets.UTF_8);
+        frame.position(frame.position() + length);
+        return value;
+    }
+
+    /**
+     * <p>Builds one frame, eg:</p>
+     * <pre>new FrameBuilder(ResponseType.ONLINE_COUNT.opcode).putInt(5).build()</pre>
+     */
+    public static class FrameBuilder {
+        private ByteBuffer buffer;
+
+        public FrameBuilder(byte opcode) {
+            this(opcode, 64);
+        }
+
+        public FrameBuilder(byte opcode, int expectedLength) {
+            buffer = ByteBuffer.allocate(LENGTH_FIELD + 1 + expectedLength);
+            buffer.putInt(0);
+            buffer.put(opcode);
+        }
+
+        public FrameBuilder putInt(int value) {
+            ensureCapacity(4);
+            buffer.putInt(value);
+            return this;
+        }
+
+        public FrameBuilder putLong(long value) {
+            ensureCapacity(8);
+            buffer.putLong(value);
+            return this;
+        }
+
+        public FrameBuilder putString(String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            ensureCapacity(4 + bytes.length);
+            buffer.putInt(bytes.length);
+            buffer.put(bytes);
+            return this;
+        }
+
+        /**
+         * fills in the length field, the returned buffer is ready to be written
+         */
+        public ByteBuffer build() {
+            buffer.putInt(0, buffer.position() - LENGTH_FIELD);
+            buffer.flip();
+            return buffer;
+        }
+
+        private void ensureCapacity(int bytes) {
+            if (buffer.remaining() < bytes) {
+                ByteBuffer bigger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + bytes));
+                buffer.flip();
+                bigger.put(buffer);
+                buffer = bigger;
+            }
+        }
+    }
+}
@@ -1,13 +1,23 @@
 package utils;
 
-import org.jline.reader.LineReader;
 import org.jline.utils.AttributedString;
-import org.jline.utils.AttributedStringBuilder;
 import org.jline.utils.AttributedStyle;
 
-import java.util.LinkedList;
-import java.util.Queue;
-
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * <p>Formats the chat output into colored lines.</p>
+ *
+ * <p>Every line goes to the given consumer, usually a {@link client.RenderQueue} which prints the lines of a whole frame
+ * with one LineReader.printAbove(). printAbove() removes the readLine("> ") prompt, prints, and writes the prompt again,
+ * so passing reader::printAbove directly redraws the prompt for every line</p>
+ *
+ * <p>The layout is fixed (TOTAL_LINE_LENGTH columns) and only a handful of colors are used, so the pieces of a line are cached:
+ * the escape sequences around a text in one {@link Style}, the runs of spaces used for padding, and the centered box borders.
+ * Rendering a line only concatenates them</p>
+ */
 public class ColorPrint {
 
     private static final int TOTAL_LINE_LENGTH = 75;
@@ -15,197 +25,233 @@ public class ColorPrint {
      * maximum available space for 'my messages' out of total space
      * */
     private static final int MAX_AVAILABLE_LENGTH = TOTAL_LINE_LENGTH / 2;
+    private static final int MAX_USERNAME_LENGTH = 10;
     private static final int COLOR_GRAY = 238;
     private static final int COLOR_DARK_GRAY = 237;
 
-    public static void print(LineReader reader, String message, int color) {
-        AttributedString colored = new AttributedString(message,
-                AttributedStyle.DEFAULT.foreground(color));
+    /**
+     * the escape sequences which turn a style on and back off, taken from what AttributedString.toAnsi() writes
+     * around a text in this style
+     */
+    private static final class Style {
+        final String prefix;
+        final String suffix;
+
+        Style(AttributedStyle style) {
+            String ansi = new AttributedString("x", style).toAnsi();
+            int text = ansi.indexOf('x');
+            this.prefix = ansi.substring(0, text);
+            this.suffix = ansi.substring(text + 1);
+        }
 
-        reader.printAbove(colored.toAnsi()); //NOTE: printAbove removes the readLine("> ") strings, prints something, and then again writes the readLine("> ") string
+        String apply(String text) {
+            return prefix + text + suffix;
+        }
     }
 
-    public static void printAtCenterWithBox(LineReader reader, String message, int color) {
-        message = message.trim();
-        int messageLength = message.length();
+    //filled on first use, two threads building the same entry build equal ones
+    private static final Style[] foregrounds = new Style[256];
+    private static final Style OTHERS_MESSAGE = new Style(AttributedStyle.DEFAULT.foreground(CustomColors.BRIGHT_CYAN).background(COLOR_DARK_GRAY));
+    private static final Style MY_MESSAGE = new Style(AttributedStyle.DEFAULT.background(COLOR_GRAY));
+    //whispers stand out from the room's messages: italic and magenta, in both directions
+    private static final Style WHISPER = new Style(AttributedStyle.DEFAULT.italic().foreground(CustomColors.BRIGHT_MAGENTA).background(COLOR_DARK_GRAY));
+    private static final Style MY_WHISPER = new Style(AttributedStyle.DEFAULT.italic().foreground(CustomColors.BRIGHT_MAGENTA).background(COLOR_GRAY));
+
+    //SPACES[n] is n spaces
+    private static final String[] SPACES = new String[TOTAL_LINE_LENGTH + 1];
+    //the colored border of a box of the given width, centered: borders[color][width]
+    private static final String[][] borders = new String[256][];
+
+    static {
+        for (int i = 0; i < SPACES.length; i++) {
+            SPACES[i] = " ".repeat(i);
+        }
+    }
 
-        message = "| " + message + " |";
-        String coloredMessage = new AttributedString(message,
-                AttributedStyle.DEFAULT.foreground(color)).toAnsi();
-        messageLength +=4;
+    private static Style foreground(int color) {
+        if (color < 0 || color >= foregrounds.length) {
+            return new Style(AttributedStyle.DEFAULT.foreground(color));
+        }
+        Style style = foregrounds[color];
+        if (style == null) {
+            style = new Style(AttributedStyle.DEFAULT.foreground(color));
+            foregrounds[color] = style;
+        }
+        return style;
+    }
 
+    private static String spaces(int count) {
+        if (count <= 0) {
+            return "";
+        }
+        return count < SPACES.length ? SPACES[count] : " ".repeat(count);
+    }
 
-        String boxBorder = "-".repeat(messageLength);
-        String coloredBoxBorder = new AttributedString(boxBorder, AttributedStyle.DEFAULT.foreground(color)).toAnsi();
+    /**
+     * spaces which center something of this width in the line
+     */
+    private static String centering(int width) {
+        return spaces((TOTAL_LINE_LENGTH - width) / 2);
+    }
 
-        //Centering by add spaces
-        String centeredAndColoredMessage = " ".repeat((TOTAL_LINE_LENGTH - messageLength)/2) + coloredMessage;
-        String centeredAndColoredBoxBorder = " ".repeat((TOTAL_LINE_LENGTH - messageLength)/2) + coloredBoxBorder;
+    private static String centeredBorder(int width, int color) {
+        if (color < 0 || color >= borders.length || width > TOTAL_LINE_LENGTH) {
+            return centering(width) + foreground(color).apply("-".repeat(width));
+        }
+        String[] byWidth = borders[color];
+        if (byWidth == null) {
+            byWidth = new String[TOTAL_LINE_LENGTH + 1];
+            borders[color] = byWidth;
+        }
+        String border = byWidth[width];
+        if (border == null) {
+            border = centering(width) + foreground(color).apply("-".repeat(width));
+            byWidth[width] = border;
+        }
+        return border;
+    }
 
-        reader.printAbove(centeredAndColoredBoxBorder);
-        reader.printAbove(centeredAndColoredMessage);
-        reader.printAbove(centeredAndColoredBoxBorder);
+    public static void print(Consumer<String> out, String message, int color) {
+        out.accept(foreground(color).apply(message));
     }
 
+    public static void printAtCenterWithBox(Consumer<String> out, String message, int color) {
+        message = message.trim();
+        int boxWidth = message.length() + 4;
+        String border = centeredBorder(boxWidth, color);
 
+        out.accept(border);
+        out.accept(centering(boxWidth) + foreground(color).apply("| " + message + " |"));
+        out.accept(border);
+    }
 
+    /**
+     * <p>Word wraps a message into lines of MAX_AVAILABLE_LENGTH: a space, as many words as fit, and spaces up to the full
+     * length so the background is even.</p>
+     *
+     * <p>A word too long for a line of its own is cut over several lines</p>
+     */
+    private static List<String> wrap(String message) {
+        List<String> lines = new ArrayList<>();
+        String[] tokens = message.split(" ");
+        StringBuilder line = new StringBuilder(MAX_AVAILABLE_LENGTH);
+
+        int tokenCounter = 0;
+        while (tokenCounter < tokens.length) {
+            line.append(' ');
+            if (line.length() + tokens[tokenCounter].length() >= MAX_AVAILABLE_LENGTH) {
+                //the word does not fit even on an empty line
+                int cut = MAX_AVAILABLE_LENGTH - 2;
+                line.append(tokens[tokenCounter], 0, cut);
+                tokens[tokenCounter] = tokens[tokenCounter].substring(cut);
+            } else {
+                //form a line with line.length smaller than MAX_AVAILABLE_LENGTH
+                while (tokenCounter < tokens.length &&
+                        line.length() + tokens[tokenCounter].length() /* the space in front */ < MAX_AVAILABLE_LENGTH) {
+                    line.append(tokens[tokenCounter]).append(' ');
+                    tokenCounter++;
+                }
+            }
+
+            //making each line the same length for consistent background
+            //by adding spaces to the right
+            line.append(spaces(MAX_AVAILABLE_LENGTH - line.length()));
+            lines.add(line.toString());
+            line.setLength(0);
+        }
+        return lines;
+    }
 
     //There is the total char-length of the message
     //50% can be used by 'my'
     //first line is right aligned
     //if the message exceeds 50% then rest of the parts are shown in another line
     //then the rest is shown by adding 50% blank spaces(basically left aligned)
-    public static void printUserMessage(LineReader reader, String username, int usernameColor, String message) {
-        int MAX_USERNAME_LENGTH = 10;
-        username = String.format("%-"+MAX_USERNAME_LENGTH +"s", username.trim());
-        int messageColor;
-        AttributedStringBuilder lineWithColor = new AttributedStringBuilder();
+    public static void printUserMessage(Consumer<String> out, String username, int usernameColor, String message) {
+        printLeftAligned(out, username, usernameColor, ": ", OTHERS_MESSAGE, message);
+    }
 
-        Queue<AttributedStringBuilder> messagesWithColor;
+    /**
+     * a whisper to this client, like a message of the room but with '~ ' after the username and in the whisper style
+     */
+    public static void printWhisper(Consumer<String> out, String username, int usernameColor, String message) {
+        printLeftAligned(out, username, usernameColor, "~ ", WHISPER, message);
+    }
 
+    private static void printLeftAligned(Consumer<String> out, String username, int usernameColor, String separator, Style style, String message) {
+        username = username.trim();
+        String coloredUsername = foreground(usernameColor).apply(username + spaces(MAX_USERNAME_LENGTH - username.length())) + separator;
 
         if (message.length() > MAX_AVAILABLE_LENGTH) {
-            messagesWithColor = new LinkedList<>();
-            String[] tokens = message.split(" ");
-            StringBuilder line = new StringBuilder();
-
-            int tokenCounter = 0;
-
-            while (tokenCounter < tokens.length) {
-                while (tokenCounter < tokens.length &&
-                        line.length() + tokens[tokenCounter].length() + 1 < MAX_AVAILABLE_LENGTH) {
-                    line.append(tokens[tokenCounter]).append(" ");
-                    tokenCounter++;
-                }
-
-                line.insert(0, " ");
-
-                //making all lines length = MAX_AVAILABLE_LENGTH by appending <space>
-                line.append(" ".repeat(MAX_AVAILABLE_LENGTH - line.length()));
-
-                if(messagesWithColor.isEmpty()) {
-                    lineWithColor.append(username, AttributedStyle.DEFAULT.foreground(usernameColor)).append(": ");
-                } else {
-                    //prepend non-first line with spaces for alignment
-                    lineWithColor.append(" ".repeat(12)); //10 for username + ":" + " "
-                }
-
-                lineWithColor.append(line, AttributedStyle.DEFAULT.foreground(CustomColors.BRIGHT_CYAN).background(COLOR_DARK_GRAY));
-
-                messagesWithColor.add(lineWithColor);
-
-                lineWithColor = new AttributedStringBuilder();
-                line = new StringBuilder();
-            }
-            while (!messagesWithColor.isEmpty()) {
-                reader.printAbove(messagesWithColor.poll().toAnsi());
+            boolean first = true;
+            for (String line : wrap(message)) {
+                //prepend non-first line with spaces for alignment, 10 for username + the 2 of the separator
+                out.accept((first ? coloredUsername : spaces(MAX_USERNAME_LENGTH + 2)) + style.apply(line));
+                first = false;
             }
         } else {
-            lineWithColor.append(username, AttributedStyle.DEFAULT.foreground(usernameColor));
-            // Separator in DEFAULT (white/normal)
-
-            lineWithColor.append(": ");
+            out.accept(coloredUsername + style.apply(" " + message + " "));
+        }
 
-            lineWithColor.append(" " + message + " ", AttributedStyle.DEFAULT.foreground(CustomColors.BRIGHT_CYAN).background(COLOR_DARK_GRAY));
+        out.accept(" ");
+    }
 
-            // Print using printAbove so prompt is redrawn correctly
-            reader.printAbove(lineWithColor.toAnsi());
+    /**
+     * prints earlier messages (oldest first) below a gray header, the same way as the live messages
+     */
+    public static void printHistory(Consumer<String> out, String[] usernames, int[] usernameColors, String[] messages) {
+        String header = "-- " + messages.length + (messages.length == 1 ? " earlier message --" : " earlier messages --");
+        print(out, centering(header.length()) + header, COLOR_GRAY);
+        for (int i = 0; i < messages.length; i++) {
+            printUserMessage(out, usernames[i], usernameColors[i], messages[i]);
         }
+    }
 
-        reader.printAbove(" ");
-
+    public static void printMyMessage(Consumer<String> out, String message) {
+        printRightAligned(out, MY_MESSAGE, message);
     }
 
-    public static void printMyMessage(LineReader reader, String message) {
-        Queue<String> messages;
+    /**
+     * a whisper this client sent, right aligned like its messages and prefixed with the recipient
+     */
+    public static void printMyWhisper(Consumer<String> out, String username, String message) {
+        printRightAligned(out, MY_WHISPER, "~ " + username.trim() + ": " + message);
+    }
 
+    private static void printRightAligned(Consumer<String> out, Style style, String message) {
         if (message.length() > MAX_AVAILABLE_LENGTH) {
-            messages = new LinkedList<>();
-            String[] tokens = message.split(" ");
-
-            //string builder is used so the string is changed frequently
-            StringBuilder line = new StringBuilder();
-
-            int tokenCounter = 0;
-
-            while (tokenCounter < tokens.length) {
-
-                //form a line with line.length smaller than MAX_AVAILABLE_LENGTH
-                while (tokenCounter < tokens.length &&
-                        line.length() + tokens[tokenCounter].length() + 1 /* for <space> appended at the end*/ < MAX_AVAILABLE_LENGTH) {
-                    line.append(tokens[tokenCounter]).append(" ");
-                    //background colors to the line
-                    tokenCounter++;
-                }
-
-                //removing the last <space> and adding one at the start
-                line.deleteCharAt(line.length() - 1);
-                line.insert(0, " ");
-
-                //making each line the same length for consistent background
-                //by adding spaces to the right
-                line.append(" ".repeat(MAX_AVAILABLE_LENGTH - line.length()));
-
-                String lineWithBackground = new AttributedString(line.toString(), AttributedStyle.DEFAULT.background(COLOR_GRAY)).toAnsi();
-
+            for (String line : wrap(message)) {
                 //prepending spaces so that message is right aligned
-                //line.length is used because lineWithBackground has color code
-                lineWithBackground = " ".repeat(TOTAL_LINE_LENGTH - MAX_AVAILABLE_LENGTH) + lineWithBackground;
-                messages.add(lineWithBackground);
-                line = new StringBuilder();
-            }
-            while (!messages.isEmpty()) {
-                reader.printAbove(messages.poll());
+                out.accept(spaces(TOTAL_LINE_LENGTH - MAX_AVAILABLE_LENGTH) + style.apply(line));
             }
         } else {
-            String messageWithBackground = new AttributedString(" " + message + " ", AttributedStyle.DEFAULT.background(COLOR_GRAY)).toAnsi();
-
-            //prepending spaces so that message is right aligned
-            messageWithBackground = " ".repeat(TOTAL_LINE_LENGTH - message.length() - 2 /*due to two spaces added*/) + messageWithBackground;
-            reader.printAbove(messageWithBackground);
+            //prepending spaces so that message is right aligned, two spaces are added around the message
+            out.accept(spaces(TOTAL_LINE_LENGTH - message.length() - 2) + style.apply(" " + message + " "));
         }
-        reader.printAbove(" ");
+        out.accept(" ");
     }
 
 
-    public static void printList(LineReader reader, String list, int color) {
-        String[] lines = list.split("--");
+    public static void printList(Consumer<String> out, String list, int color) {
+        printList(out, list.split("--"), color);
+    }
+
+    public static void printList(Consumer<String> out, String[] lines, int color) {
         //find maximum line length
         int maxLength = 0;
-        int count = 0;
         for (String line : lines) {
-            if (line.length() > maxLength) {
-                maxLength = line.length();
-            }
-            count++;
+            maxLength = Math.max(maxLength, line.length());
         }
-
-
-
         maxLength = maxLength + 4;
 
-        String border = "-".repeat(maxLength);
-
-        //centering and coloring the border
-        String centeredBorder = " ".repeat((TOTAL_LINE_LENGTH - maxLength)/2) + border;
-
-        String centeredAndColoredBorder = new AttributedString(centeredBorder, AttributedStyle.DEFAULT.foreground(color)).toAnsi();
-
-        reader.printAbove(centeredAndColoredBorder);
+        String border = centeredBorder(maxLength, color);
+        Style style = foreground(color);
+        String centering = centering(maxLength);
 
+        out.accept(border);
         for(String line: lines) {
-
-            String centeredLine = "| " + line + " ".repeat(maxLength-line.length() - 4) + " |";
-            //centering
-            centeredLine = " ".repeat((TOTAL_LINE_LENGTH - maxLength)/2) + centeredLine;
-
-            String coloredAndCenteredLine = new AttributedString(centeredLine, AttributedStyle.DEFAULT.foreground(color)).toAnsi();
-
-            reader.printAbove(coloredAndCenteredLine);
+            out.accept(centering + style.apply("| " + line + spaces(maxLength - line.length() - 4) + " |"));
         }
-
-        reader.printAbove(centeredAndColoredBorder);
+        out.accept(border);
     }
 }
-
-
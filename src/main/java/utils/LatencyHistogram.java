@@ -0,0 +1,120 @@
+package utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>A small HDR-style histogram: values are counted in log-linear buckets, so every recorded value keeps about
+ * 3% precision from 1 up to Long.MAX_VALUE while the whole histogram is one fixed array.</p>
+ *
+ * <p>{@link #record(long)} can be called from any number of threads and never allocates,
+ * so it can sit on the hot path of every write. The unit is up to the caller (the server records nanoseconds)</p>
+ *
+ * <p>Values below 32 get their own bucket. Above that, every power of two range [2^m, 2^(m+1)) is split into 32 buckets</p>
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder totalCount = new LongAdder();
+    private final LongAdder totalSum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts.incrementAndGet(bucketOf(value));
+        totalCount.increment();
+        totalSum.add(value);
+
+        long currentMax = max.get();
+        while (value > currentMax && !max.compareAndSet(currentMax, value)) {
+            currentMax = max.get();
+        }
+    }
+
+    static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        int group = magnitude - SUB_BUCKET_BITS + 1;
+        int subBucket = (int) (value >>> (magnitude - SUB_BUCKET_BITS)) - SUB_BUCKETS;
+        return group * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * the highest value which falls into the bucket
+     */
+    static long highestValueOf(int bucket) {
+        int group = bucket / SUB_BUCKETS;
+        int subBucket = bucket % SUB_BUCKETS;
+        if (group == 0) {
+            return subBucket;
+        }
+        long lowest = (long) (SUB_BUCKETS + subBucket) << (group - 1);
+        long width = 1L << (group - 1);
+        return lowest + width - 1;
+    }
+
+    public long count() {
+        return totalCount.sum();
+    }
+
+    public long max() {
+        return max.get();
+    }
+
+    public double mean() {
+        long count = totalCount.sum();
+        return count == 0 ? 0 : (double) totalSum.sum() / count;
+    }
+
+    /**
+     * returns the value below which the given fraction (eg: 0.99) of the recorded values fall, within the bucket precision
+     */
+    public long percentile(double fraction) {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += counts.get(i);
+        }
+        if (count == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(fraction * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= target) {
+                return Math.min(highestValueOf(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * clears the histogram, values recorded while resetting may or may not survive
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        totalCount.reset();
+        totalSum.reset();
+        max.set(0);
+    }
+
+    /**
+     * eg: 'p50=120us p99=900us p999=2100us max=3000us' for a histogram of nanoseconds
+     */
+    public String summaryMicros() {
+        return "p50=" + percentile(0.50) / 1_000 + "us"
+                + " p99=" + percentile(0.99) / 1_000 + "us"
+                + " p999=" + percentile(0.999) / 1_000 + "us"
+                + " max=" + max() / 1_000 + "us";
+    }
+}
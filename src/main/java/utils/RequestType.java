@@ -0,0 +1,116 @@
+package utils;
+
+/**
+ * <p>The commands a client can send.</p>
+ *
+ * <p>In the line protocol a command is sent by its name, eg: '/message hello'.
+ * In the binary protocol it is sent by its opcode, see {@link BinaryProtocol}</p>
+ */
+public enum RequestType {
+    /**
+     * opcode sent by binary clients for a command they don't know, the server answers with 'Wrong Command'
+     */
+    UNKNOWN(null, 0),
+    NEW_CLIENT("/newClient", 1),
+    ADMIN_LOGIN("/adminLogin", 2),
+    MESSAGE("/message", 3),
+    CHANGE_USERNAME("/changeUsername", 4),
+    BAN("/ban", 5),
+    DISCONNECT("/disconnect", 6),
+    ONLINE_COUNT("/onlineCount", 7),
+    ONLINE_LIST("/onlineList", 8),
+    HELP("/help", 9),
+    HISTORY("/history", 10),
+    JOIN("/join", 11),
+    LEAVE("/leave", 12),
+    ROOMS("/rooms", 13),
+    ROOM_STATS("/roomStats", 14),
+    STATS("/stats", 15),
+    RESUME("/resume", 16),
+    /**
+     * asks the server for a PONG, the server sends PING to an idle client which offered heartbeats
+     */
+    PING("/ping", 17),
+    /**
+     * the answer to the PING of the server
+     */
+    PONG("/pong", 18),
+    /**
+     * a message to one user only, the body is the username and the text
+     */
+    WHISPER("/whisper", 19);
+
+    public final String command;
+    public final byte opcode;
+
+    private static final RequestType[] byOpcode = new RequestType[128];
+
+    //open addressing over hash(command), a power of two well above the number of commands so a lookup rarely probes twice
+    private static final RequestType[] byCommand = new RequestType[64];
+
+    static {
+        for (RequestType type : values()) {
+            byOpcode[type.opcode] = type;
+            if (type.command != null) {
+                int slot = hash(type.command, 0, type.command.length());
+                while (byCommand[slot] != null) {
+                    slot = (slot + 1) & (byCommand.length - 1);
+                }
+                byCommand[slot] = type;
+            }
+        }
+    }
+
+    RequestType(String command, int opcode) {
+        this.command = command;
+        this.opcode = (byte) opcode;
+    }
+
+    /**
+     * returns UNKNOWN if the command does not exist
+     */
+    public static RequestType fromCommand(String command) {
+        return command == null ? UNKNOWN : fromCommand(command, 0, command.length());
+    }
+
+    /**
+     * looks up the command in text[start, end) without copying it, returns UNKNOWN if the command does not exist
+     */
+    public static RequestType fromCommand(CharSequence text, int start, int end) {
+        if (end - start < 2) {
+            return UNKNOWN;
+        }
+        for (int slot = hash(text, start, end); byCommand[slot] != null; slot = (slot + 1) & (byCommand.length - 1)) {
+            if (byCommand[slot].matches(text, start, end)) {
+                return byCommand[slot];
+            }
+        }
+        return UNKNOWN;
+    }
+
+    //every command starts with '/', so the length, the second and the last character tell them apart
+    private static int hash(CharSequence text, int start, int end) {
+        int length = end - start;
+        return (length * 31 + text.charAt(start + 1) * 7 + text.charAt(end - 1)) & (byCommand.length - 1);
+    }
+
+    private boolean matches(CharSequence text, int start, int end) {
+        if (command.length() != end - start) {
+            return false;
+        }
+        for (int i = 0; i < command.length(); i++) {
+            if (command.charAt(i) != text.charAt(start + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * returns UNKNOWN if the opcode does not exist
+     */
+    public static RequestType fromOpcode(byte opcode) {
+        RequestType type = opcode >= 0 ? byOpcode[opcode] : null;
+        return type == null ? UNKNOWN : type;
+    }
+}
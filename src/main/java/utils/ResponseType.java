@@ -0,0 +1,110 @@
+package utils;
+
+/**
+ * <p>The kinds of frames the server sends.</p>
+ *
+ * <p>In the line protocol the type is the prefix before the first ':', eg: 'Error: Username is already in use'.
+ * NOTICE lines have no prefix and CLOSE is the bare '/disconnect' line.
+ * In the binary protocol the type is the opcode of the frame, see {@link BinaryProtocol}</p>
+ */
+public enum ResponseType {
+    SUCCESS("Success", 0x40),
+    ERROR("Error", 0x41),
+    MESSAGE("Message", 0x42),
+    DISCONNECT("Disconnect", 0x43),
+    USERNAME_CHANGED("UsernameChanged", 0x44),
+    USERNAME_CHANGE_FAILED("UsernameChangeFailed", 0x45),
+    ONLINE_COUNT("OnlineCount", 0x46),
+    ONLINE_LIST("OnlineList", 0x47),
+    HELP("Help", 0x48),
+    /**
+     * plain text without a type, eg: 'bob' has joined the chat
+     */
+    NOTICE(null, 0x49),
+    /**
+     * the server asks the client to close the connection
+     */
+    CLOSE(null, 0x4A),
+    /**
+     * a batch of earlier chat messages, oldest first
+     */
+    HISTORY("History", 0x4B),
+    /**
+     * lines about the rooms, the answer to /rooms and /roomStats
+     */
+    ROOM_LIST("RoomList", 0x4C),
+    /**
+     * lines of the server metrics, the answer to /stats
+     */
+    STATS("Stats", 0x4D),
+    /**
+     * another frame, deflated, only in the binary protocol and only to a client which offered compression.
+     * The client protocol inflates and decodes it, it never reaches the listener
+     */
+    COMPRESSED(null, 0x4E),
+    /**
+     * the token to resume the session with after the connection dropped, and the newest message sequence the client has seen
+     */
+    RESUME_TOKEN("ResumeToken", 0x4F),
+    /**
+     * a chat message went over the rate limit of the connection and was not sent, and how long the client should hold back
+     */
+    THROTTLED("Throttled", 0x50),
+    /**
+     * the server checks whether an idle client is still there, the client answers with /pong
+     */
+    PING("Ping", 0x51),
+    /**
+     * the answer to /ping
+     */
+    PONG("Pong", 0x52),
+    /**
+     * a message only this client got, from the user who sent /whisper
+     */
+    WHISPER("Whisper", 0x53);
+
+    public final String prefix;
+    public final byte opcode;
+
+    private static final ResponseType[] byOpcode = new ResponseType[128];
+
+    //values() copies the array on every call
+    private static final ResponseType[] all = values();
+
+    static {
+        for (ResponseType type : all) {
+            byOpcode[type.opcode] = type;
+        }
+    }
+
+    ResponseType(String prefix, int opcode) {
+        this.prefix = prefix;
+        this.opcode = (byte) opcode;
+    }
+
+    /**
+     * returns null if no type uses this prefix
+     */
+    public static ResponseType fromPrefix(String prefix) {
+        return fromPrefix(prefix, 0, prefix.length());
+    }
+
+    /**
+     * looks up the prefix in line[start, end) without copying it, returns null if no type uses this prefix
+     */
+    public static ResponseType fromPrefix(String line, int start, int end) {
+        for (ResponseType type : all) {
+            if (type.prefix != null && type.prefix.length() == end - start && line.startsWith(type.prefix, start)) {
+                return type;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * returns null if the opcode does not exist
+     */
+    public static ResponseType fromOpcode(byte opcode) {
+        return opcode >= 0 ? byOpcode[opcode] : null;
+    }
+}
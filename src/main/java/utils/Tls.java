@@ -0,0 +1,72 @@
+package utils;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+
+/**
+ * <h2>TLS setup shared by the server and the clients</h2>
+ *
+ * <p>The server needs a PKCS12 key store with its certificate and private key, a client needs a trust store with that
+ * certificate unless it is signed by a CA the JVM already trusts. For a local test a self-signed pair is enough:</p>
+ * <pre>
+ * keytool -genkeypair -alias chat -keyalg EC -groupname secp256r1 -dname CN=localhost -ext SAN=dns:localhost,ip:127.0.0.1 \
+ *         -validity 365 -storetype PKCS12 -keystore chat-server.p12 -storepass changeit
+ * keytool -exportcert -alias chat -keystore chat-server.p12 -storepass changeit -rfc -file chat-server.pem
+ * keytool -importcert -noprompt -alias chat -file chat-server.pem -storetype PKCS12 -keystore chat-trust.p12 -storepass changeit
+ *
+ * mvn exec:java -Pserver -Dchat.server.tls=true -Dchat.server.tls.keyStore=chat-server.p12 -Dchat.server.tls.keyStorePassword=changeit
+ * mvn exec:java -Pclient -Dchat.client.tls=true -Dchat.client.tls.trustStore=chat-trust.p12 -Dchat.client.tls.trustStorePassword=changeit
+ * </pre>
+ *
+ * <p>A session is only resumed through the {@link SSLContext} which created it, so a process creates one context and keeps it</p>
+ */
+public final class Tls {
+
+    private Tls() {
+    }
+
+    public static SSLContext serverContext(Path keyStore, char[] password) throws IOException, GeneralSecurityException {
+        KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagers.init(load(keyStore, password), password);
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(keyManagers.getKeyManagers(), null, null);
+        return context;
+    }
+
+    /**
+     * without a trust store the certificates the JVM trusts by default are used
+     */
+    public static SSLContext clientContext(Path trustStore, char[] password) throws IOException, GeneralSecurityException {
+        if (trustStore == null) {
+            return SSLContext.getDefault();
+        }
+        TrustManagerFactory trustManagers = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManagers.init(load(trustStore, password));
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, trustManagers.getTrustManagers(), null);
+        return context;
+    }
+
+    /**
+     * whether the handshake which started at handshakeStartedMillis resumed an earlier session instead of creating this one
+     */
+    public static boolean isResumed(SSLSession session, long handshakeStartedMillis) {
+        return session.getCreationTime() < handshakeStartedMillis;
+    }
+
+    private static KeyStore load(Path path, char[] password) throws IOException, GeneralSecurityException {
+        KeyStore store = KeyStore.getInstance("PKCS12");
+        try (InputStream input = Files.newInputStream(path)) {
+            store.load(input, password);
+        }
+        return store;
+    }
+}
@@ -0,0 +1,98 @@
+package client;
+
+import junit.framework.TestCase;
+import org.jline.reader.LineReader;
+import org.jline.reader.LineReaderBuilder;
+import org.jline.terminal.Terminal;
+import org.jline.terminal.impl.DumbTerminal;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+public class RenderQueueTest extends TestCase {
+    private Terminal terminal;
+    //every printAbove() call
+    private final List<String> frames = new CopyOnWriteArrayList<>();
+    private LineReader reader;
+
+    @Override
+    protected void setUp() throws IOException {
+        terminal = new DumbTerminal(new ByteArrayInputStream(new byte[0]), new ByteArrayOutputStream());
+        LineReader real = LineReaderBuilder.builder().terminal(terminal).build();
+        //records the frames instead of printing them
+        reader = (LineReader) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{LineReader.class},
+                (proxy, method, args) -> {
+                    if (method.getName().equals("printAbove")) {
+                        frames.add(String.valueOf(args[0]));
+                        return null;
+                    }
+                    return method.invoke(real, args);
+                });
+    }
+
+    @Override
+    protected void tearDown() throws IOException {
+        terminal.close();
+    }
+
+    public void testBurstIsPrintedInFewFrames() {
+        RenderQueue render = new RenderQueue(reader, 10);
+        for (int i = 0; i < 50; i++) {
+            render.accept("line " + i);
+        }
+        render.close();
+
+        StringBuilder printed = new StringBuilder();
+        for (String frame : frames) {
+            printed.append(frame).append('\n');
+        }
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 50; i++) {
+            expected.append("line ").append(i).append('\n');
+        }
+        assertEquals(expected.toString(), printed.toString());
+        //the first line may leave in a frame of its own, the rest waits for the next frame
+        assertTrue(frames.size() <= 2);
+    }
+
+    public void testBacklogIsShownWhenAFrameCantTakeEverything() throws InterruptedException {
+        RenderQueue render = new RenderQueue(reader, 1);
+        render.accept("first");
+        //the render thread printed 'first' and sleeps until the next frame
+        while (frames.isEmpty()) {
+            Thread.sleep(10);
+        }
+        for (int i = 0; i < RenderQueue.MAX_LINES_PER_FRAME + 5; i++) {
+            render.accept("line " + i);
+        }
+        while (frames.size() < 2) {
+            Thread.sleep(10);
+        }
+        render.close();
+        String second = frames.get(1);
+        assertEquals(RenderQueue.MAX_LINES_PER_FRAME + 1, second.split("\n").length);
+        assertTrue(second.contains("behind: 5 lines waiting"));
+        assertTrue(frames.get(frames.size() - 1).endsWith("line " + (RenderQueue.MAX_LINES_PER_FRAME + 4)));
+    }
+
+    public void testOldestLinesAreSkippedBeyondTheLimit() throws InterruptedException {
+        RenderQueue render = new RenderQueue(reader, 1);
+        render.accept("first");
+        while (frames.isEmpty()) {
+            Thread.sleep(10);
+        }
+        for (int i = 0; i < RenderQueue.MAX_PENDING_LINES + 3; i++) {
+            render.accept("line " + i);
+        }
+        while (frames.size() < 2) {
+            Thread.sleep(10);
+        }
+        render.close();
+        assertTrue(frames.get(1).startsWith("line 3\n"));
+        assertTrue(frames.get(1).contains("3 skipped"));
+    }
+}
@@ -0,0 +1,61 @@
+package client;
+
+import junit.framework.TestCase;
+import utils.ResponseType;
+
+public class ResumeStateTest extends TestCase {
+    private final ResumeState state = new ResumeState();
+
+    private static ServerEvent history(long... sequences) {
+        ServerEvent event = new ServerEvent();
+        event.reset(ResponseType.HISTORY);
+        event.usernames = new String[sequences.length];
+        event.usernameColors = new int[sequences.length];
+        event.items = new String[sequences.length];
+        event.sequences = sequences.clone();
+        for (int i = 0; i < sequences.length; i++) {
+            event.usernames[i] = "bob";
+            event.items[i] = "message " + sequences[i];
+        }
+        return event;
+    }
+
+    public void testTracksTheHighestSequence() {
+        assertFalse(state.hasToken());
+        state.onToken("token", 4);
+        assertTrue(state.onMessage(7));
+        assertTrue(state.onMessage(6));
+        assertEquals(3, state.onHistory(history(1, 2, 3)));
+        assertEquals("token 7", state.resumeBody());
+    }
+
+    public void testDropsWhatArrivesTwiceAroundAResume() {
+        state.onToken("token", 4);
+        state.resuming();
+        assertFalse(state.hasToken());
+        //live before the replay
+        assertTrue(state.onMessage(7));
+        ServerEvent replay = history(5, 6, 7);
+        assertEquals(2, state.onHistory(replay));
+        assertEquals("message 6", replay.items[1]);
+        state.onToken("next", 7);
+        //live after the replay
+        assertFalse(state.onMessage(6));
+        assertTrue(state.onMessage(8));
+        assertEquals("next 8", state.resumeBody());
+    }
+
+    public void testHistoryAskedForIsShownAsItIs() {
+        state.onToken("token", 4);
+        state.resuming();
+        state.onHistory(history(3, 4));
+        state.onToken("next", 4);
+        assertEquals(2, state.onHistory(history(3, 4)));
+    }
+
+    public void testMessagesWithoutSequencesAreAlwaysShown() {
+        state.resuming();
+        assertTrue(state.onMessage(-1));
+        assertTrue(state.onMessage(-1));
+    }
+}
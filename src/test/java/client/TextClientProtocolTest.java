@@ -0,0 +1,76 @@
+package client;
+
+import junit.framework.TestCase;
+import utils.ResponseType;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+public class TextClientProtocolTest extends TestCase {
+    private final ServerEvent event = new ServerEvent();
+
+    private static TextClientProtocol protocol(String lines) {
+        return new TextClientProtocol(new ByteArrayInputStream(lines.getBytes(StandardCharsets.UTF_8)), new ByteArrayOutputStream());
+    }
+
+    public void testMessageTextKeepsItsColons() throws IOException {
+        TextClientProtocol protocol = protocol("Message: alice: 3: see you at 10:30: ok\n");
+        assertTrue(protocol.read(event));
+        assertEquals(ResponseType.MESSAGE, event.type);
+        assertEquals("alice", event.username);
+        assertEquals(3, event.usernameColor);
+        assertEquals("see you at 10:30: ok", event.text);
+        assertFalse(protocol.read(event));
+    }
+
+    public void testUsernameChangedTextKeepsItsColons() throws IOException {
+        TextClientProtocol protocol = protocol("UsernameChanged: bob: Username successfully changed to 'bob': done\n");
+        assertTrue(protocol.read(event));
+        assertEquals(ResponseType.USERNAME_CHANGED, event.type);
+        assertEquals("bob", event.username);
+        assertEquals("Username successfully changed to 'bob': done", event.text);
+    }
+
+    public void testEventIsReusedAcrossTypes() throws IOException {
+        TextClientProtocol protocol = protocol("  OnlineCount: 12 \nOnlineList: 1. alice--2. bob\n/disconnect\n");
+        assertTrue(protocol.read(event));
+        assertEquals(ResponseType.ONLINE_COUNT, event.type);
+        assertEquals(12, event.count);
+        assertTrue(protocol.read(event));
+        assertEquals(ResponseType.ONLINE_LIST, event.type);
+        assertEquals(2, event.items.length);
+        assertEquals("2. bob", event.items[1]);
+        assertEquals(0, event.count);
+        assertTrue(protocol.read(event));
+        assertEquals(ResponseType.CLOSE, event.type);
+    }
+
+    public void testThrottledCarriesTheRetryAfter() throws IOException {
+        TextClientProtocol protocol = protocol("Throttled: 1500: You are sending too fast: wait 1.5s\n");
+        assertTrue(protocol.read(event));
+        assertEquals(ResponseType.THROTTLED, event.type);
+        assertEquals(1500, event.retryAfterMillis);
+        assertEquals("You are sending too fast: wait 1.5s", event.text);
+    }
+
+    public void testWhisperIsDecodedLikeAMessage() throws IOException {
+        TextClientProtocol protocol = protocol("Whisper: alice: 3: meet at 10:30\n");
+        assertTrue(protocol.read(event));
+        assertEquals(ResponseType.WHISPER, event.type);
+        assertEquals("alice", event.username);
+        assertEquals(3, event.usernameColor);
+        assertEquals("meet at 10:30", event.text);
+    }
+
+    public void testUnknownAndMalformedLinesAreNotices() throws IOException {
+        TextClientProtocol protocol = protocol("Welcome: to the chat\nno type here\nMessage: alice\nOnlineCount: many\n");
+        String[] expected = {"Welcome: to the chat", "no type here", "Message: alice", "OnlineCount: many"};
+        for (String text : expected) {
+            assertTrue(protocol.read(event));
+            assertEquals(ResponseType.NOTICE, event.type);
+            assertEquals(text, event.text);
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package server;
+
+import junit.framework.TestCase;
+
+import java.net.InetAddress;
+
+public class AcceptGateTest extends TestCase {
+    private final InetAddress alice = InetAddress.getLoopbackAddress();
+    private final InetAddress bob;
+
+    public AcceptGateTest() throws Exception {
+        bob = InetAddress.getByAddress(new byte[]{10, 0, 0, 2});
+    }
+
+    public void testServerCeiling() {
+        AcceptGate gate = new AcceptGate(2, 0);
+        assertTrue(gate.admit(alice));
+        assertTrue(gate.admit(bob));
+        assertFalse(gate.admit(bob));
+        assertEquals(2, gate.open());
+        assertEquals(1, gate.rejectedFull.sum());
+
+        gate.release(alice);
+        assertTrue(gate.admit(bob));
+        assertEquals(3, gate.accepted.sum());
+    }
+
+    public void testPerAddressLimit() {
+        AcceptGate gate = new AcceptGate(0, 2);
+        assertTrue(gate.admit(alice));
+        assertTrue(gate.admit(alice));
+        assertFalse(gate.admit(alice));
+        //the other addresses are not affected
+        assertTrue(gate.admit(bob));
+        assertEquals(3, gate.open());
+        assertEquals(1, gate.rejectedPerAddress.sum());
+
+        gate.release(alice);
+        assertEquals(1, gate.openFrom(alice));
+        assertTrue(gate.admit(alice));
+    }
+
+    public void testAddressesWithoutOpenSocketsAreForgotten() {
+        AcceptGate gate = new AcceptGate(0, 5);
+        gate.admit(alice);
+        gate.admit(alice);
+        gate.release(alice);
+        gate.release(alice);
+        assertEquals(0, gate.openFrom(alice));
+        assertEquals(0, gate.open());
+    }
+
+    public void testNoLimits() {
+        AcceptGate gate = new AcceptGate(0, 0);
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(gate.admit(alice));
+        }
+        assertEquals(1000, gate.open());
+        assertEquals(0, gate.rejected());
+    }
+}
@@ -0,0 +1,298 @@
+package server;
+
+import junit.framework.TestCase;
+import utils.BinaryProtocol.FrameBuilder;
+import utils.ResponseType;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BooleanSupplier;
+
+public class ClusterNodeTest extends TestCase {
+
+    private static class RecordingListener implements ClusterNode.Listener {
+        final List<String> received = new CopyOnWriteArrayList<>();
+        final Map<String, String> users = new ConcurrentHashMap<>();
+
+        @Override
+        public void onRemoteMessage(String room, String username, int usernameColor, String text) {
+            received.add(room + "/" + username + ": " + text);
+        }
+
+        @Override
+        public void onRemoteNotice(String room, ResponseType type, String text) {
+            received.add(room + "/" + type + ": " + text);
+        }
+
+        @Override
+        public void onRemoteBan(String username) {
+            received.add("ban " + username);
+        }
+
+        @Override
+        public void onRemoteWhisper(String to, String from, int fromColor, String text) {
+            received.add("whisper " + from + " -> " + to + ": " + text);
+        }
+
+        @Override
+        public boolean isLocallyTaken(String username) {
+            return users.containsKey(username);
+        }
+
+        @Override
+        public Map<String, String> localUsers() {
+            return users;
+        }
+    }
+
+    private final RecordingListener listenerA = new RecordingListener();
+    private final RecordingListener listenerB = new RecordingListener();
+    private ClusterNode a;
+    private ClusterNode b;
+
+    @Override
+    protected void setUp() throws Exception {
+        int portA = freePort();
+        int portB = freePort();
+        a = new ClusterNode("a", "", portA, List.of("localhost:" + portB), "", 2000, listenerA);
+        b = new ClusterNode("b", "", portB, List.of("localhost:" + portA), "", 2000, listenerB);
+        waitFor(() -> a.connectedPeers() == 1 && b.connectedPeers() == 1);
+    }
+
+    @Override
+    protected void tearDown() {
+        a.close();
+        b.close();
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!condition.getAsBoolean()) {
+            assertTrue("timed out", System.nanoTime() < deadline);
+            Thread.sleep(20);
+        }
+    }
+
+    public void testMessagesAndNoticesReachThePeerOnce() throws Exception {
+        a.forwardMessage("dev", "alice", 3, "hi: there");
+        a.forwardNotice("", ResponseType.NOTICE, "to everyone");
+        waitFor(() -> listenerB.received.size() == 2);
+
+        assertEquals("dev/alice: hi: there", listenerB.received.get(0));
+        assertEquals("/NOTICE: to everyone", listenerB.received.get(1));
+        Thread.sleep(100);
+        assertEquals(2, listenerB.received.size());
+        assertTrue(listenerA.received.isEmpty());
+    }
+
+    public void testUsersOfThePeerAreTakenAndCounted() throws Exception {
+        listenerA.users.put("alice", "dev");
+        a.userJoined("alice", "dev");
+        waitFor(() -> b.remoteCount("dev") == 1);
+
+        assertTrue(b.isTaken("alice"));
+        assertFalse(b.claim("alice").get(5, TimeUnit.SECONDS));
+        b.endClaim("alice", false);
+
+        listenerA.users.remove("alice");
+        a.userLeft("alice");
+        waitFor(() -> b.remoteCount("dev") == 0);
+        assertTrue(b.claim("alice").get(5, TimeUnit.SECONDS));
+    }
+
+    public void testOnlyOneOfTwoConcurrentClaimsWins() throws Exception {
+        for (int i = 0; i < 20; i++) {
+            String username = "user" + i;
+            CompletableFuture<Boolean> claimA = a.claim(username);
+            CompletableFuture<Boolean> claimB = b.claim(username);
+            boolean grantedA = claimA.get(5, TimeUnit.SECONDS);
+            boolean grantedB = claimB.get(5, TimeUnit.SECONDS);
+            assertTrue(username, grantedA ^ grantedB);
+            a.endClaim(username, false);
+            b.endClaim(username, false);
+        }
+    }
+
+    public void testReleasedClaimCanBeClaimedAgain() throws Exception {
+        assertTrue(a.claim("dave").get(5, TimeUnit.SECONDS));
+        //b answered the claim, so it holds the name for a until the release arrives
+        assertTrue(b.isTaken("dave"));
+        a.endClaim("dave", false);
+        waitFor(() -> !b.isTaken("dave"));
+        assertTrue(b.claim("dave").get(5, TimeUnit.SECONDS));
+    }
+
+    public void testBanGoesToTheNodeOfTheUser() throws Exception {
+        listenerB.users.put("bob", "lobby");
+        b.userJoined("bob", "lobby");
+        waitFor(() -> a.remoteCount("lobby") == 1);
+
+        assertTrue(a.forwardBan("bob"));
+        assertFalse(a.forwardBan("nobody"));
+        waitFor(() -> listenerB.received.contains("ban bob"));
+    }
+
+    public void testWhisperGoesToTheNodeOfTheUser() throws Exception {
+        listenerB.users.put("bob", "lobby");
+        b.userJoined("bob", "lobby");
+        waitFor(() -> a.remoteCount("lobby") == 1);
+
+        assertTrue(a.forwardWhisper("bob", "alice", 3, "psst: hi"));
+        assertFalse(a.forwardWhisper("nobody", "alice", 3, "hi"));
+        waitFor(() -> listenerB.received.contains("whisper alice -> bob: psst: hi"));
+        assertTrue(listenerA.received.isEmpty());
+    }
+
+    public void testUserWhoLeavesDuringTheHandshakeIsNotLeftBehind() throws Exception {
+        int portC = freePort();
+        int portD = freePort();
+        AtomicReference<ClusterNode> nodeD = new AtomicReference<>();
+        AtomicBoolean leaving = new AtomicBoolean();
+        RecordingListener listenerC = new RecordingListener();
+        RecordingListener listenerD = new RecordingListener() {
+            @Override
+            public Map<String, String> localUsers() {
+                Map<String, String> snapshot = new HashMap<>(users);
+                if (leaving.compareAndSet(false, true)) {
+                    //bob leaves right after the snapshot was taken, before his USER_ADD is queued
+                    Thread leave = new Thread(() -> {
+                        users.remove("bob");
+                        nodeD.get().userLeft("bob");
+                    });
+                    leave.start();
+                    try {
+                        leave.join(200);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return snapshot;
+            }
+        };
+        listenerD.users.put("bob", "lobby");
+
+        //d is up before c listens, so its first link to c is dialed again once nodeD is set
+        try (ClusterNode d = new ClusterNode("d", "", portD, List.of("localhost:" + portC), "", 2000, listenerD)) {
+            nodeD.set(d);
+            try (ClusterNode c = new ClusterNode("c", "", portC, List.of("localhost:" + portD), "", 2000, listenerC)) {
+                waitFor(() -> c.connectedPeers() == 1 && d.connectedPeers() == 1);
+                d.forwardMessage("lobby", "alice", 3, "after");
+                waitFor(() -> listenerC.received.contains("lobby/alice: after"));
+                assertTrue(leaving.get());
+                assertFalse(c.isTaken("bob"));
+                assertEquals(0, c.remoteCount("lobby"));
+            }
+        }
+    }
+
+    public void testLinkFromAnAddressWhichIsNoPeerIsClosed() throws Exception {
+        RecordingListener listener = new RecordingListener();
+        int port = freePort();
+        try (ClusterNode c = new ClusterNode("c", "127.0.0.1", port, List.of("192.0.2.1:" + port), "", 2000, listener)) {
+            assertFalse(helloIsAnswered(port, "mallory", null));
+            assertEquals(1, c.linksRejected.sum());
+            assertTrue(listener.received.isEmpty());
+        }
+    }
+
+    public void testLinkWithoutTheSecretIsClosed() throws Exception {
+        RecordingListener listenerC = new RecordingListener();
+        RecordingListener listenerD = new RecordingListener();
+        int portC = freePort();
+        int portD = freePort();
+        try (ClusterNode c = new ClusterNode("c", "", portC, List.of("localhost:" + portD), "s3cret", 2000, listenerC);
+             ClusterNode d = new ClusterNode("d", "", portD, List.of("localhost:" + portC), "s3cret", 2000, listenerD)) {
+            waitFor(() -> c.connectedPeers() == 1 && d.connectedPeers() == 1);
+
+            //the address is the one of a peer, but the secret is wrong
+            assertFalse(helloIsAnswered(portC, "mallory", "guess"));
+            assertFalse(helloIsAnswered(portC, "mallory", null));
+            assertTrue(helloIsAnswered(portC, "e", "s3cret"));
+            assertEquals(2, c.linksRejected.sum());
+        }
+    }
+
+    public void testOversizedHelloIsClosed() throws Exception {
+        RecordingListener listener = new RecordingListener();
+        int port = freePort();
+        try (ClusterNode c = new ClusterNode("c", "", port, List.of(), "s3cret", 2000, listener);
+             Socket socket = new Socket("localhost", port)) {
+            socket.setSoTimeout(5000);
+            //only the length field, the node would have to wait for all the bytes of the frame before it checks anything
+            ByteBuffer length = ByteBuffer.allocate(4).putInt(ClusterNode.MAX_HELLO_LENGTH + 1).flip();
+            socket.getOutputStream().write(length.array());
+            try {
+                assertEquals(-1, socket.getInputStream().read());
+            } catch (IOException reset) {
+                //closed with the length unread
+            }
+            assertTrue(helloIsAnswered(port, "d", "s3cret"));
+        }
+    }
+
+    public void testHandshakesBeyondTheLimitAreClosed() throws Exception {
+        RecordingListener listener = new RecordingListener();
+        int port = freePort();
+        List<Socket> silent = new ArrayList<>();
+        try (ClusterNode c = new ClusterNode("c", "", port, List.of(), "s3cret", 2000, listener)) {
+            for (int i = 0; i < ClusterNode.MAX_HANDSHAKES; i++) {
+                silent.add(new Socket("localhost", port));
+            }
+            assertFalse(helloIsAnsweredQuietly(port));
+            assertEquals(1, c.linksRejected.sum());
+
+            for (Socket socket : silent) {
+                socket.close();
+            }
+            waitFor(() -> helloIsAnsweredQuietly(port));
+        } finally {
+            for (Socket socket : silent) {
+                socket.close();
+            }
+        }
+    }
+
+    private static boolean helloIsAnsweredQuietly(int port) {
+        try {
+            return helloIsAnswered(port, "d", "s3cret");
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * dials the cluster port like a node would, returns whether the HELLO got one back
+     */
+    private static boolean helloIsAnswered(int port, String node, String secret) throws IOException {
+        FrameBuilder hello = new FrameBuilder(ClusterNode.HELLO).putString(node);
+        if (secret != null) {
+            hello.putString(secret);
+        }
+        ByteBuffer frame = hello.build();
+        try (Socket socket = new Socket("localhost", port)) {
+            socket.setSoTimeout(5000);
+            socket.getOutputStream().write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+            InputStream in = socket.getInputStream();
+            return in.read() >= 0;
+        }
+    }
+}
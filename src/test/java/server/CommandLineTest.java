@@ -0,0 +1,68 @@
+package server;
+
+import junit.framework.TestCase;
+import utils.RequestType;
+
+public class CommandLineTest extends TestCase {
+    private final CommandLine request = new CommandLine();
+
+    public void testCommandAndBodyAreTrimmed() {
+        assertTrue(request.parse("  /message   hello there \r"));
+        assertEquals(RequestType.MESSAGE, request.type);
+        assertEquals("hello there", request.body());
+    }
+
+    public void testCommandWithoutBody() {
+        assertTrue(request.parse("/onlineList"));
+        assertEquals(RequestType.ONLINE_LIST, request.type);
+        assertFalse(request.hasBody());
+        assertNull(request.body());
+    }
+
+    public void testBlankLineIsRejected() {
+        assertFalse(request.parse(""));
+        assertFalse(request.parse(" \t "));
+    }
+
+    public void testOnlyASpaceSeparatesTheCommand() {
+        assertTrue(request.parse("/message\thello"));
+        assertEquals(RequestType.UNKNOWN, request.type);
+        assertTrue(request.parse("/message\t hello"));
+        assertEquals(RequestType.MESSAGE, request.type);
+        assertEquals("hello", request.body());
+    }
+
+    public void testEveryCommandIsFound() {
+        for (RequestType type : RequestType.values()) {
+            if (type.command != null) {
+                assertTrue(request.parse(type.command + " x"));
+                assertEquals(type, request.type);
+            }
+        }
+        assertTrue(request.parse("/messages"));
+        assertEquals(RequestType.UNKNOWN, request.type);
+        assertTrue(request.parse("/"));
+        assertEquals(RequestType.UNKNOWN, request.type);
+    }
+
+    public void testBodyOffsets() {
+        assertTrue(request.parse("/adminLogin admin--secret--x"));
+        int separator = request.bodyIndexOf("--", 0);
+        assertEquals(5, separator);
+        assertTrue(request.bodyRegionEquals(0, separator, "admin"));
+        assertEquals(13, request.bodyIndexOf("--", separator + 2));
+        assertFalse(request.bodyRegionEquals(separator + 2, request.bodyLength(), "secret"));
+
+        assertTrue(request.parse("/history  12 "));
+        assertEquals(12, request.bodyAsInt());
+    }
+
+    public void testBinaryBodyIsTrimmedLikeALine() {
+        request.set(RequestType.JOIN, "  dev ");
+        assertEquals("dev", request.body());
+        request.set(RequestType.JOIN, "   ");
+        assertFalse(request.hasBody());
+        request.set(RequestType.HELP, null);
+        assertNull(request.body());
+    }
+}
@@ -0,0 +1,42 @@
+package server;
+
+import junit.framework.TestCase;
+
+public class FanOutTrackerTest extends TestCase {
+    private final FanOutTracker tracker = new FanOutTracker();
+
+    public void testCompletesOnTheLastWriteAfterEnd() {
+        long tag = tracker.begin(1000);
+        tracker.end(tag, 2);
+        tracker.written(tag, 1500);
+        assertEquals(0, tracker.latency.count());
+        tracker.written(tag, 3000);
+        assertEquals(1, tracker.latency.count());
+        assertEquals(2000, tracker.latency.max());
+    }
+
+    public void testWritesBeforeEndAreCounted() {
+        long tag = tracker.begin(1000);
+        tracker.written(tag, 4000);
+        tracker.written(tag, 2500);
+        assertEquals(0, tracker.latency.count());
+        tracker.end(tag, 2);
+        assertEquals(1, tracker.latency.count());
+        assertEquals(3000, tracker.latency.max());
+    }
+
+    public void testStaleTagIsIgnoredOnceItsSlotIsReused() {
+        long stale = tracker.begin(0);
+        tracker.end(stale, 1);
+        for (int i = 1; i < FanOutTracker.SLOTS; i++) {
+            tracker.begin(0);
+        }
+        long reused = tracker.begin(1000);
+        tracker.end(reused, 1);
+        tracker.written(stale, 1_000_000);
+        assertEquals(0, tracker.latency.count());
+        tracker.written(reused, 1200);
+        assertEquals(1, tracker.latency.count());
+        assertEquals(200, tracker.latency.max());
+    }
+}
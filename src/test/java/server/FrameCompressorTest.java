@@ -0,0 +1,81 @@
+package server;
+
+import junit.framework.TestCase;
+import utils.BinaryProtocol;
+import utils.ResponseType;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.Inflater;
+
+public class FrameCompressorTest extends TestCase {
+    private final FrameCompressor.Totals totals = new FrameCompressor.Totals();
+    private final FrameCompressor compressor = new FrameCompressor(6, 64, totals);
+    //the client side of the stream
+    private final Inflater inflater = new Inflater(true);
+
+    @Override
+    protected void tearDown() {
+        compressor.end();
+        inflater.end();
+    }
+
+    private static ByteBuffer message(String username, String text) {
+        return WireCodec.BINARY.message(username, 3, text, 0);
+    }
+
+    private static byte[] bytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    private byte[] inflate(ByteBuffer compressed) throws Exception {
+        assertEquals(compressed.remaining() - BinaryProtocol.LENGTH_FIELD, compressed.getInt());
+        assertEquals(ResponseType.COMPRESSED.opcode, compressed.get());
+        inflater.setInput(compressed);
+        byte[] output = new byte[BinaryProtocol.MAX_FRAME_LENGTH];
+        int length = inflater.inflate(output);
+        assertTrue(inflater.needsInput());
+        return Arrays.copyOf(output, length);
+    }
+
+    public void testSmallFramesAreSentAsTheyAre() {
+        ByteBuffer frame = message("bob", "hi");
+        assertSame(frame, compressor.compress(frame));
+        assertEquals(0, totals.framesCompressed.sum());
+    }
+
+    public void testCompressedFramesInflateToTheOriginals() throws Exception {
+        List<ByteBuffer> frames = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            frames.add(message("alice" + (i % 3), "message number " + i + " with enough text to be worth compressing, ".repeat(2)));
+        }
+        for (ByteBuffer frame : frames) {
+            byte[] original = bytes(frame);
+            ByteBuffer compressed = compressor.compress(frame);
+            assertTrue(compressed.remaining() < original.length);
+            assertTrue(Arrays.equals(original, inflate(compressed)));
+        }
+        assertEquals(20, totals.framesCompressed.sum());
+        assertTrue(compressor.bytesSaved() > 0);
+        assertTrue(compressor.report(), compressor.report().startsWith("deflate 20 of 20 frames, "));
+    }
+
+    public void testStreamRemembersEarlierFrames() throws Exception {
+        String text = "the quick brown fox jumps over the lazy dog while the chat keeps scrolling by";
+        ByteBuffer first = compressor.compress(message("alice", text));
+        inflate(first);
+        ByteBuffer second = compressor.compress(message("alice", text));
+        inflate(second);
+        //the second frame is mostly a reference back to the first one
+        assertTrue(second.limit() + " vs " + first.limit(), second.limit() < first.limit() / 2);
+    }
+
+    public void testFramesTooLargeForOneCompressedFrameAreSentAsTheyAre() {
+        ByteBuffer frame = ByteBuffer.allocate(FrameCompressor.MAX_INPUT + 1);
+        assertSame(frame, compressor.compress(frame));
+    }
+}
@@ -0,0 +1,138 @@
+package server;
+
+import junit.framework.TestCase;
+import utils.BinaryProtocol;
+import utils.BinaryProtocol.FrameBuilder;
+import utils.RequestType;
+import utils.ResponseType;
+
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>Base of the tests which drive handlers without sockets: requests go in as lines or binary frames, and what the handlers
+ * would write is read back from their outbound queues.</p>
+ *
+ * <p>The server has no message log, no reports, no JMX and no history replay, a test changes the rest in {@link #configure}</p>
+ */
+abstract class HandlerTestSupport extends TestCase {
+    protected ServerConfig config;
+    protected ChatServer server;
+
+    @Override
+    protected void setUp() throws Exception {
+        config = new ServerConfig();
+        config.persistenceDir = "";
+        config.threadReportSeconds = 0;
+        config.writeReportSeconds = 0;
+        config.jmx = false;
+        config.historyReplay = 0;
+        configure(config);
+        server = new ChatServer(0, config);
+    }
+
+    @Override
+    protected void tearDown() {
+        server.close();
+    }
+
+    /**
+     * called before the server is started
+     */
+    protected void configure(ServerConfig config) {
+    }
+
+    /**
+     * a handler of the line protocol
+     */
+    ChatServer.ConnectionHandler connect() {
+        return server.new ConnectionHandler(new Socket());
+    }
+
+    /**
+     * a handler which already switched to the binary protocol
+     */
+    ChatServer.ConnectionHandler connectBinary() {
+        ChatServer.ConnectionHandler handler = connect();
+        handler.codec = WireCodec.BINARY;
+        return handler;
+    }
+
+    /**
+     * a handler of the line protocol which sent the command, the replies are thrown away
+     */
+    ChatServer.ConnectionHandler register(String command) {
+        ChatServer.ConnectionHandler handler = connect();
+        handler.handlePayLoad(command);
+        lines(handler);
+        return handler;
+    }
+
+    /**
+     * the lines queued for a handler of the line protocol since the last call
+     */
+    static List<String> lines(ChatServer.ConnectionHandler handler) {
+        List<String> lines = new ArrayList<>();
+        for (ByteBuffer line : drain(handler)) {
+            byte[] bytes = new byte[line.remaining()];
+            line.get(bytes);
+            lines.add(new String(bytes, StandardCharsets.UTF_8).trim());
+        }
+        return lines;
+    }
+
+    /**
+     * a request frame, positioned after the length field like handleBinaryFrame() expects it
+     */
+    static ByteBuffer frame(RequestType type, String... fields) {
+        FrameBuilder frame = new FrameBuilder(type.opcode);
+        for (String field : fields) {
+            frame.putString(field);
+        }
+        ByteBuffer built = frame.build();
+        built.position(BinaryProtocol.LENGTH_FIELD);
+        return built;
+    }
+
+    static void request(ChatServer.ConnectionHandler handler, RequestType type, String... fields) {
+        handler.handleBinaryFrame(frame(type, fields));
+    }
+
+    /**
+     * the binary frames queued for the handler since the last call, positioned at the opcode.
+     * They are copies on the heap: broadcast frames are shared read-only buffers, getString() needs the array
+     */
+    static List<ByteBuffer> frames(ChatServer.ConnectionHandler handler) {
+        List<ByteBuffer> frames = new ArrayList<>();
+        for (ByteBuffer frame : drain(handler)) {
+            ByteBuffer copy = ByteBuffer.allocate(frame.remaining());
+            copy.put(frame).flip();
+            frames.add(copy.position(BinaryProtocol.LENGTH_FIELD));
+        }
+        return frames;
+    }
+
+    /**
+     * the types of the binary frames queued for the handler since the last call
+     */
+    static List<ResponseType> types(ChatServer.ConnectionHandler handler) {
+        List<ResponseType> types = new ArrayList<>();
+        for (ByteBuffer frame : frames(handler)) {
+            types.add(ResponseType.fromOpcode(frame.get()));
+        }
+        return types;
+    }
+
+    private static List<ByteBuffer> drain(ChatServer.ConnectionHandler handler) {
+        ByteBuffer[] batch = new ByteBuffer[64];
+        int count = handler.outbound.drainTo(batch, new long[64], Long.MAX_VALUE);
+        List<ByteBuffer> frames = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            frames.add(batch[i].duplicate());
+        }
+        return frames;
+    }
+}
@@ -0,0 +1,87 @@
+package server;
+
+import junit.framework.TestCase;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+public class HashedWheelTimerTest extends TestCase {
+    private HashedWheelTimer timer;
+
+    @Override
+    protected void tearDown() {
+        if (timer != null) {
+            timer.close();
+        }
+    }
+
+    public void testRunsInDeadlineOrder() throws InterruptedException {
+        timer = new HashedWheelTimer("test-timer", 10, TimeUnit.MILLISECONDS, 64);
+        List<Integer> ran = new CopyOnWriteArrayList<>();
+        CountDownLatch done = new CountDownLatch(3);
+        timer.schedule(() -> { ran.add(3); done.countDown(); }, 150, TimeUnit.MILLISECONDS);
+        timer.schedule(() -> { ran.add(1); done.countDown(); }, 10, TimeUnit.MILLISECONDS);
+        timer.schedule(() -> { ran.add(2); done.countDown(); }, 80, TimeUnit.MILLISECONDS);
+        assertEquals(3, timer.pending());
+
+        assertTrue(done.await(2, TimeUnit.SECONDS));
+        assertEquals(List.of(1, 2, 3), ran);
+        assertEquals(0, timer.pending());
+        assertEquals(3, timer.expired.sum());
+    }
+
+    public void testNeverEarly() throws InterruptedException {
+        timer = new HashedWheelTimer("test-timer", 10, TimeUnit.MILLISECONDS, 64);
+        long[] ranAfter = new long[1];
+        CountDownLatch done = new CountDownLatch(1);
+        long start = System.nanoTime();
+        timer.schedule(() -> { ranAfter[0] = System.nanoTime() - start; done.countDown(); }, 100, TimeUnit.MILLISECONDS);
+        assertTrue(done.await(2, TimeUnit.SECONDS));
+        assertTrue(ranAfter[0] + " ns", ranAfter[0] >= TimeUnit.MILLISECONDS.toNanos(100));
+    }
+
+    public void testCancelled() throws InterruptedException {
+        timer = new HashedWheelTimer("test-timer", 10, TimeUnit.MILLISECONDS, 64);
+        CountDownLatch ran = new CountDownLatch(1);
+        HashedWheelTimer.Timeout cancelled = timer.schedule(ran::countDown, 50, TimeUnit.MILLISECONDS);
+        assertTrue(cancelled.cancel());
+        assertFalse(cancelled.cancel());
+        assertEquals(0, timer.pending());
+
+        assertFalse(ran.await(200, TimeUnit.MILLISECONDS));
+        assertEquals(0, timer.expired.sum());
+    }
+
+    public void testCancelledAfterItGotIntoTheWheel() throws InterruptedException {
+        timer = new HashedWheelTimer("test-timer", 10, TimeUnit.MILLISECONDS, 64);
+        CountDownLatch ran = new CountDownLatch(1);
+        HashedWheelTimer.Timeout cancelled = timer.schedule(ran::countDown, 200, TimeUnit.MILLISECONDS);
+        Thread.sleep(50);
+        assertTrue(cancelled.cancel());
+        assertFalse(ran.await(300, TimeUnit.MILLISECONDS));
+    }
+
+    public void testDelaysLongerThanOneTurn() throws InterruptedException {
+        //one turn is 40ms, the task waits in its bucket for several rounds
+        timer = new HashedWheelTimer("test-timer", 10, TimeUnit.MILLISECONDS, 3);
+        CountDownLatch done = new CountDownLatch(1);
+        long start = System.nanoTime();
+        timer.schedule(done::countDown, 150, TimeUnit.MILLISECONDS);
+        assertTrue(done.await(2, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(150));
+    }
+
+    public void testClosed() {
+        timer = new HashedWheelTimer("test-timer", 10, TimeUnit.MILLISECONDS, 64);
+        timer.close();
+        try {
+            timer.schedule(() -> { }, 10, TimeUnit.MILLISECONDS);
+            fail();
+        } catch (RejectedExecutionException e) {
+            //expected
+        }
+    }
+}
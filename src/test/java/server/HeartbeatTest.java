@@ -0,0 +1,112 @@
+package server;
+
+import utils.BinaryProtocol;
+import utils.RequestType;
+import utils.ResponseType;
+
+import java.util.List;
+import java.util.function.BooleanSupplier;
+
+/**
+ * drives handlers without sockets with a ping interval of 1s and an idle timeout of 2s, the idle checks run on the server's timer
+ */
+public class HeartbeatTest extends HandlerTestSupport {
+
+    @Override
+    protected void configure(ServerConfig config) {
+        config.pingIntervalSeconds = 1;
+        config.idleTimeoutSeconds = 2;
+    }
+
+    /**
+     * a handler of the binary protocol whose idle checks are scheduled, like after accept()
+     */
+    @Override
+    ChatServer.ConnectionHandler connectBinary() {
+        ChatServer.ConnectionHandler handler = super.connectBinary();
+        handler.watchIdle();
+        return handler;
+    }
+
+    private static boolean await(BooleanSupplier condition, long millis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + millis;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                return false;
+            }
+            Thread.sleep(20);
+        }
+        return true;
+    }
+
+    public void testPingAnsweredBeforeRegistration() {
+        ChatServer.ConnectionHandler handler = connectBinary();
+        request(handler, RequestType.PING);
+        assertEquals(List.of(ResponseType.PONG), types(handler));
+    }
+
+    public void testQuietClientIsPingedThenReaped() throws InterruptedException {
+        ChatServer.ConnectionHandler alice = connectBinary();
+        request(alice, RequestType.NEW_CLIENT, "alice", BinaryProtocol.HEARTBEAT);
+        ChatServer.ConnectionHandler bob = connectBinary();
+        request(bob, RequestType.NEW_CLIENT, "bob");
+        types(alice);
+        types(bob);
+
+        assertTrue(await(() -> server.metrics.pingsSent.sum() == 1, 2000));
+        assertEquals(List.of(ResponseType.PING), types(alice));
+
+        //the queue is closed before the others are told, wait for the notice itself
+        assertTrue(await(() -> bob.outbound.depth() > 0, 2000));
+        assertTrue(alice.outbound.isClosed());
+        assertEquals(1, server.metrics.reapedConnections.sum());
+        assertEquals(List.of(ResponseType.DISCONNECT), types(bob));
+        //bob never offered heartbeats, he is left to TCP keepalive
+        assertFalse(bob.outbound.isClosed());
+    }
+
+    public void testAnsweringKeepsTheConnection() throws InterruptedException {
+        ChatServer.ConnectionHandler alice = connectBinary();
+        request(alice, RequestType.NEW_CLIENT, "alice", BinaryProtocol.HEARTBEAT);
+        types(alice);
+
+        long end = System.currentTimeMillis() + 3500;
+        while (System.currentTimeMillis() < end) {
+            if (types(alice).contains(ResponseType.PING)) {
+                request(alice, RequestType.PONG);
+            }
+            Thread.sleep(50);
+        }
+        assertFalse(alice.outbound.isClosed());
+        assertTrue(server.metrics.pingsSent.sum() >= 2);
+        assertEquals(0, server.metrics.reapedConnections.sum());
+    }
+
+    public void testUnregisteredConnectionIsReapedWithARegistrationTimeout() throws InterruptedException {
+        config.registrationTimeoutSeconds = 2;
+        ChatServer.ConnectionHandler handler = connectBinary();
+        assertTrue(await(handler.outbound::isClosed, 3000));
+        assertEquals(1, server.metrics.reapedConnections.sum());
+        assertEquals(0, server.metrics.pingsSent.sum());
+    }
+
+    public void testUnregisteredConnectionIsKeptByDefault() throws InterruptedException {
+        assertEquals(0, new ServerConfig().registrationTimeoutSeconds);
+        //a user who takes a while to type a username, then offers heartbeats
+        ChatServer.ConnectionHandler alice = connectBinary();
+        assertFalse(await(alice.outbound::isClosed, 3000));
+        assertEquals(0, server.metrics.reapedConnections.sum());
+
+        request(alice, RequestType.NEW_CLIENT, "alice", BinaryProtocol.HEARTBEAT);
+        assertTrue(await(() -> server.metrics.pingsSent.sum() == 1, 2000));
+    }
+
+    public void testClosedConnectionLeavesTheWheel() throws InterruptedException {
+        int before = server.timer.pending();
+        ChatServer.ConnectionHandler handler = connectBinary();
+        assertEquals(before + 1, server.timer.pending());
+        request(handler, RequestType.NEW_CLIENT, "alice", BinaryProtocol.HEARTBEAT);
+        request(handler, RequestType.DISCONNECT);
+        assertTrue(await(() -> server.timer.pending() == before, 1000));
+    }
+}
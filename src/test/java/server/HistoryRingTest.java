@@ -0,0 +1,73 @@
+package server;
+
+import junit.framework.TestCase;
+import server.persistence.LogRecord;
+
+import java.util.List;
+
+public class HistoryRingTest extends TestCase {
+
+    private static void append(HistoryRing ring, long sequence) {
+        ring.append(new LogRecord(sequence, 0, "lobby", "user", 1, String.valueOf(sequence)));
+    }
+
+    private static String texts(List<LogRecord> records) {
+        StringBuilder texts = new StringBuilder();
+        for (LogRecord record : records) {
+            texts.append(record.text);
+        }
+        return texts.toString();
+    }
+
+    public void testReturnsTheNewestMessagesOldestFirst() {
+        HistoryRing ring = new HistoryRing(8);
+        for (int i = 0; i < 5; i++) {
+            append(ring, i);
+        }
+
+        assertEquals("234", texts(ring.before(Long.MAX_VALUE, 3)));
+        assertEquals("01", texts(ring.before(2, 10)));
+        assertEquals("", texts(ring.before(0, 10)));
+    }
+
+    public void testOverwrittenMessagesAreGone() {
+        HistoryRing ring = new HistoryRing(4);
+        for (int i = 0; i < 10; i++) {
+            append(ring, i);
+        }
+
+        assertEquals("6789", texts(ring.before(Long.MAX_VALUE, 10)));
+        assertEquals("", texts(ring.before(6, 10)));
+    }
+
+    public void testSequencesOfOtherRoomsLeaveGaps() {
+        HistoryRing ring = new HistoryRing(4);
+        //the sequences are numbered across all the rooms, this room only got every third message
+        for (int i = 0; i < 12; i += 3) {
+            append(ring, i);
+        }
+
+        assertEquals("69", texts(ring.before(Long.MAX_VALUE, 2)));
+        assertEquals("03", texts(ring.before(6, 10)));
+    }
+
+    public void testMessagesAppendedOutOfOrderAreSorted() {
+        HistoryRing ring = new HistoryRing(4);
+        append(ring, 2);
+        append(ring, 1);
+
+        assertEquals("12", texts(ring.before(Long.MAX_VALUE, 4)));
+    }
+
+    public void testAfterReturnsTheNewestMessagesAboveTheSequence() {
+        HistoryRing ring = new HistoryRing(4);
+        for (int i = 0; i < 6; i++) {
+            append(ring, i);
+        }
+
+        assertEquals("45", texts(ring.after(3, 10)));
+        assertEquals("5", texts(ring.after(3, 1)));
+        assertEquals("2345", texts(ring.after(-1, 10)));
+        assertEquals("", texts(ring.after(5, 10)));
+    }
+}
@@ -0,0 +1,50 @@
+package server;
+
+import utils.RequestType;
+
+import java.util.List;
+
+/**
+ * drives handlers without sockets, over the line protocol and in binary frames which may carry any character
+ */
+public class MessageLimitsTest extends HandlerTestSupport {
+
+    @Override
+    protected void configure(ServerConfig config) {
+        config.maxMessageLength = 10;
+    }
+
+    public void testLongMessagesAreRefused() {
+        ChatServer.ConnectionHandler alice = register("/newClient alice");
+        ChatServer.ConnectionHandler bob = register("/newClient bob");
+        lines(alice);
+
+        alice.handlePayLoad("/message " + "x".repeat(11));
+        alice.handlePayLoad("/whisper bob " + "x".repeat(11));
+        assertEquals(List.of("Error: Message too long [10 characters max]", "Error: Message too long [10 characters max]"), lines(alice));
+        assertEquals(List.of(), lines(bob));
+
+        alice.handlePayLoad("/message " + "x".repeat(10));
+        assertEquals(1, lines(bob).size());
+        assertEquals(1, server.metrics.messagesIn.sum());
+    }
+
+    public void testBinaryTextCantStartALineOfItsOwn() {
+        ChatServer.ConnectionHandler alice = connectBinary();
+        request(alice, RequestType.NEW_CLIENT, "alice");
+        ChatServer.ConnectionHandler bob = register("/newClient bob");
+
+        request(alice, RequestType.MESSAGE, "hi\r\nNotice: fake");
+        request(alice, RequestType.WHISPER, "bob hi\nNotice: fake");
+        assertEquals(List.of(), lines(bob));
+        assertEquals(0, server.metrics.messagesIn.sum());
+        assertEquals(0, server.metrics.whispers.sum());
+    }
+
+    public void testUsernamesCantHaveControlCharacters() {
+        ChatServer.ConnectionHandler alice = connectBinary();
+        request(alice, RequestType.NEW_CLIENT, "al\nice");
+        request(alice, RequestType.NEW_CLIENT, "al\u001bice");
+        assertNull(alice.username);
+    }
+}
@@ -0,0 +1,34 @@
+package server;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class NioEventLoopTest extends TestCase {
+    private NioEventLoop loop;
+
+    @Override
+    protected void setUp() throws Exception {
+        loop = new NioEventLoop("test-loop");
+        loop.start();
+    }
+
+    @Override
+    protected void tearDown() {
+        loop.close();
+    }
+
+    public void testFailingTaskDoesNotEndTheLoop() throws InterruptedException {
+        CountDownLatch ran = new CountDownLatch(2);
+        loop.execute(() -> {
+            throw new NullPointerException("test");
+        });
+        loop.execute(ran::countDown);
+        loop.schedule(() -> {
+            throw new IllegalStateException("test");
+        }, TimeUnit.MILLISECONDS.toNanos(10));
+        loop.schedule(ran::countDown, TimeUnit.MILLISECONDS.toNanos(50));
+        assertTrue(ran.await(2, TimeUnit.SECONDS));
+    }
+}
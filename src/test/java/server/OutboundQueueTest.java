@@ -0,0 +1,84 @@
+package server;
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.LongAdder;
+
+public class OutboundQueueTest extends TestCase {
+
+    private static ByteBuffer frame(int id) {
+        return ByteBuffer.wrap(new byte[]{(byte) id});
+    }
+
+    /**
+     * drains the queue and returns the ids of the frames in order
+     */
+    private static String drain(OutboundQueue queue) {
+        ByteBuffer[] batch = new ByteBuffer[8];
+        long[] enqueuedAt = new long[8];
+        int count = queue.drainTo(batch, enqueuedAt, Long.MAX_VALUE);
+        StringBuilder ids = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            ids.append(batch[i].get(0));
+        }
+        return ids.toString();
+    }
+
+    public void testDropOldestKeepsTheNewestFrames() {
+        LongAdder droppedTotal = new LongAdder();
+        OutboundQueue queue = new OutboundQueue(2, SlowConsumerPolicy.DROP_OLDEST, droppedTotal);
+
+        assertTrue(queue.offer(frame(1)));
+        assertTrue(queue.offer(frame(2)));
+        assertTrue(queue.offer(frame(3)));
+
+        assertEquals("23", drain(queue));
+        assertEquals("", drain(queue));
+        assertEquals(1, queue.dropped());
+        assertEquals(1, droppedTotal.sum());
+    }
+
+    public void testDropNewestKeepsTheBacklog() {
+        OutboundQueue queue = new OutboundQueue(2, SlowConsumerPolicy.DROP_NEWEST, new LongAdder());
+
+        queue.offer(frame(1));
+        queue.offer(frame(2));
+        assertTrue(queue.offer(frame(3)));
+
+        assertEquals("12", drain(queue));
+        assertEquals(1, queue.dropped());
+    }
+
+    public void testDisconnectPolicyReportsOverflow() {
+        OutboundQueue queue = new OutboundQueue(1, SlowConsumerPolicy.DISCONNECT, new LongAdder());
+
+        assertTrue(queue.offer(frame(1)));
+        assertFalse(queue.offer(frame(2)));
+        assertEquals(1, queue.depth());
+    }
+
+    public void testDrainStopsAtTheByteBudgetButTakesAtLeastOneFrame() {
+        OutboundQueue queue = new OutboundQueue(4, SlowConsumerPolicy.DROP_OLDEST, new LongAdder());
+        queue.offer(ByteBuffer.allocate(10));
+        queue.offer(ByteBuffer.allocate(10));
+        queue.offer(ByteBuffer.allocate(10));
+        assertEquals(30, queue.queuedBytes());
+
+        ByteBuffer[] batch = new ByteBuffer[4];
+        assertEquals(1, queue.drainTo(batch, new long[4], 5));
+        assertEquals(2, queue.drainTo(batch, new long[4], 25));
+        assertEquals(0, queue.queuedBytes());
+    }
+
+    public void testAwaitFramesDrainsQueuedFramesAfterClose() throws InterruptedException {
+        OutboundQueue queue = new OutboundQueue(4, SlowConsumerPolicy.DROP_OLDEST, new LongAdder());
+        queue.offer(frame(1));
+        queue.close();
+        queue.offer(frame(2));
+
+        assertTrue(queue.awaitFrames(0, 1));
+        assertEquals("1", drain(queue));
+        assertFalse(queue.awaitFrames(0, 1));
+    }
+}
@@ -0,0 +1,54 @@
+package server;
+
+import java.util.List;
+
+/**
+ * drives handlers without sockets over the line protocol, with limits which do not refill within a test
+ */
+public class RateLimitTest extends HandlerTestSupport {
+
+    @Override
+    protected void configure(ServerConfig config) {
+        config.messageRate = 0.001;
+        config.messageBurst = 2;
+        config.messageByteRate = 0.001;
+        config.messageByteBurst = 100;
+    }
+
+    public void testMessagesOverTheBurstAreDroppedWithOneThrottledFrame() {
+        ChatServer.ConnectionHandler alice = register("/newClient alice");
+        ChatServer.ConnectionHandler bob = register("/newClient bob");
+        lines(alice);
+
+        for (int i = 1; i <= 5; i++) {
+            alice.handlePayLoad("/message hello " + i);
+        }
+        assertEquals(List.of("Message: alice: " + alice.usernameColor + ": hello 1", "Message: alice: " + alice.usernameColor + ": hello 2"), lines(bob));
+        List<String> replies = lines(alice);
+        assertEquals(1, replies.size());
+        assertTrue(replies.get(0), replies.get(0).startsWith("Throttled: "));
+        assertEquals(3, server.metrics.throttledMessages.sum());
+        assertEquals(2, server.metrics.messagesIn.sum());
+
+        //the limit is per connection
+        bob.handlePayLoad("/message still here");
+        assertEquals(1, lines(alice).size());
+    }
+
+    public void testBytesAreLimitedToo() {
+        ChatServer.ConnectionHandler alice = register("/newClient alice");
+        alice.handlePayLoad("/message " + "x".repeat(80));
+        alice.handlePayLoad("/message " + "x".repeat(80));
+        assertEquals(1, server.metrics.messagesIn.sum());
+        assertEquals(1, server.metrics.throttledMessages.sum());
+    }
+
+    public void testAdminIsExempt() {
+        ChatServer.ConnectionHandler admin = register("/adminLogin admin--admin");
+        for (int i = 0; i < 5; i++) {
+            admin.handlePayLoad("/message announcement " + i);
+        }
+        assertEquals(5, server.metrics.messagesIn.sum());
+        assertEquals(0, server.metrics.throttledMessages.sum());
+    }
+}
@@ -0,0 +1,173 @@
+package server;
+
+import utils.BinaryProtocol;
+import utils.RequestType;
+import utils.ResponseType;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * drives handlers without sockets like {@link BenchmarkServer} does, and reads what they would write from their outbound queues
+ */
+public class ResumableSessionsTest extends HandlerTestSupport {
+
+    @Override
+    protected void configure(ServerConfig config) {
+        config.resumeWindowSeconds = 1;
+    }
+
+    /**
+     * the frames queued for the handler since the last call, each as 'TYPE' or 'TYPE field'
+     */
+    private static List<String> describe(ChatServer.ConnectionHandler handler) {
+        List<String> frames = new ArrayList<>();
+        for (ByteBuffer frame : frames(handler)) {
+            ResponseType type = ResponseType.fromOpcode(frame.get());
+            switch (type) {
+                case MESSAGE: {
+                    String username = BinaryProtocol.getString(frame);
+                    frame.getInt();
+                    frames.add("MESSAGE " + username + ": " + BinaryProtocol.getString(frame));
+                    break;
+                }
+                case HISTORY: {
+                    int n = frame.getInt();
+                    StringBuilder texts = new StringBuilder("HISTORY");
+                    for (int j = 0; j < n; j++) {
+                        BinaryProtocol.getString(frame);
+                        frame.getInt();
+                        texts.append(' ').append(BinaryProtocol.getString(frame));
+                    }
+                    frames.add(texts.toString());
+                    break;
+                }
+                default: {
+                    frames.add(type.name());
+                }
+            }
+        }
+        return frames;
+    }
+
+    /**
+     * the token of the RESUME_TOKEN frame queued for the handler, the other frames are thrown away
+     */
+    private static String token(ChatServer.ConnectionHandler handler) {
+        for (ByteBuffer frame : frames(handler)) {
+            if (frame.get() == ResponseType.RESUME_TOKEN.opcode) {
+                return BinaryProtocol.getString(frame) + " " + frame.getLong();
+            }
+        }
+        return null;
+    }
+
+    public void testTokenOnlyWhenOffered() {
+        ChatServer.ConnectionHandler alice = connectBinary();
+        request(alice, RequestType.NEW_CLIENT, "alice");
+        assertEquals(List.of("SUCCESS"), describe(alice));
+
+        ChatServer.ConnectionHandler bob = connectBinary();
+        request(bob, RequestType.NEW_CLIENT, "bob", BinaryProtocol.RESUME);
+        assertEquals(List.of("SUCCESS", "RESUME_TOKEN"), describe(bob));
+    }
+
+    public void testResumeKeepsTheSessionAndReplaysTheMissedMessages() {
+        ChatServer.ConnectionHandler alice = connectBinary();
+        request(alice, RequestType.NEW_CLIENT, "alice", BinaryProtocol.RESUME);
+        String token = token(alice).split(" ")[0];
+        ChatServer.ConnectionHandler bob = connectBinary();
+        request(bob, RequestType.NEW_CLIENT, "bob");
+        assertEquals(List.of("SUCCESS"), describe(bob));
+        request(bob, RequestType.MESSAGE, "seen");
+        assertEquals(List.of("NOTICE", "MESSAGE bob: seen"), describe(alice));
+        long lastSeen = server.lastSequence();
+
+        alice.abort();
+        assertTrue(alice.isParked());
+        request(bob, RequestType.MESSAGE, "missed 1");
+        request(bob, RequestType.MESSAGE, "missed 2");
+
+        //the username is still taken and the roster did not change
+        ChatServer.ConnectionHandler mallory = connectBinary();
+        request(mallory, RequestType.NEW_CLIENT, "alice");
+        assertEquals(List.of("ERROR"), describe(mallory));
+        assertEquals(2, server.connectionCount());
+
+        ChatServer.ConnectionHandler resumed = connectBinary();
+        request(resumed, RequestType.RESUME, token + " " + lastSeen);
+        assertEquals(List.of("SUCCESS", "HISTORY missed 1 missed 2", "RESUME_TOKEN"), describe(resumed));
+        assertEquals("alice", resumed.username);
+        assertEquals(2, server.connectionCount());
+        assertEquals(1, server.sessions.resumed.sum());
+        assertEquals(2, server.sessions.replayed.sum());
+
+        request(bob, RequestType.MESSAGE, "live");
+        assertEquals(List.of("MESSAGE bob: live"), describe(resumed));
+        request(resumed, RequestType.MESSAGE, "back");
+        assertEquals(List.of("MESSAGE alice: back"), describe(bob));
+    }
+
+    public void testTokenIsUsedOnce() {
+        ChatServer.ConnectionHandler alice = connectBinary();
+        request(alice, RequestType.NEW_CLIENT, "alice", BinaryProtocol.RESUME);
+        String token = token(alice).split(" ")[0];
+        alice.abort();
+
+        ChatServer.ConnectionHandler first = connectBinary();
+        request(first, RequestType.RESUME, token + " -1");
+        assertEquals("SUCCESS", describe(first).get(0));
+
+        ChatServer.ConnectionHandler second = connectBinary();
+        request(second, RequestType.RESUME, token + " -1");
+        assertEquals(List.of("ERROR"), describe(second));
+        assertEquals(1, server.sessions.failed.sum());
+    }
+
+    public void testResumeTakesOverAConnectionWhichLooksAlive() {
+        ChatServer.ConnectionHandler alice = connectBinary();
+        request(alice, RequestType.NEW_CLIENT, "alice", BinaryProtocol.RESUME);
+        String token = token(alice).split(" ")[0];
+
+        ChatServer.ConnectionHandler resumed = connectBinary();
+        request(resumed, RequestType.RESUME, token + " -1");
+        assertEquals("SUCCESS", describe(resumed).get(0));
+        assertTrue(alice.outbound.isClosed());
+        //the old connection going away later leaves the session alone
+        alice.abort();
+        assertEquals(1, server.connectionCount());
+    }
+
+    public void testDisconnectEndsTheSession() {
+        ChatServer.ConnectionHandler alice = connectBinary();
+        request(alice, RequestType.NEW_CLIENT, "alice", BinaryProtocol.RESUME);
+        String token = token(alice).split(" ")[0];
+        request(alice, RequestType.DISCONNECT);
+        alice.abort();
+        assertFalse(alice.isParked());
+        assertEquals(0, server.connectionCount());
+
+        ChatServer.ConnectionHandler resumed = connectBinary();
+        request(resumed, RequestType.RESUME, token + " -1");
+        assertEquals(List.of("ERROR"), describe(resumed));
+    }
+
+    public void testParkedSessionExpires() throws Exception {
+        ChatServer.ConnectionHandler alice = connectBinary();
+        request(alice, RequestType.NEW_CLIENT, "alice", BinaryProtocol.RESUME);
+        alice.abort();
+        assertEquals(1, server.sessions.parkedCount());
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (server.connectionCount() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertEquals(0, server.connectionCount());
+        assertEquals(1, server.sessions.expired.sum());
+
+        ChatServer.ConnectionHandler bob = connectBinary();
+        request(bob, RequestType.NEW_CLIENT, "alice");
+        assertEquals(List.of("SUCCESS"), describe(bob));
+    }
+}
@@ -0,0 +1,56 @@
+package server;
+
+import junit.framework.TestCase;
+import utils.BinaryProtocol;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+public class RosterSnapshotTest extends TestCase {
+
+    private static String text(ByteBuffer frame) {
+        byte[] bytes = new byte[frame.remaining()];
+        frame.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    public void testShortListIsOnePageWithoutFooter() {
+        RosterSnapshot snapshot = new RosterSnapshot(1, 0, List.of("alice", "bob"), 100);
+        assertEquals(1, snapshot.pages());
+        assertEquals("OnlineList: 1. alice--2. bob\n", text(snapshot.page(WireCodec.TEXT, 1)));
+        assertEquals("OnlineCount: 2\n", text(snapshot.countFrame(WireCodec.TEXT)));
+    }
+
+    public void testPagesAreNumberedAcrossTheList() {
+        RosterSnapshot snapshot = new RosterSnapshot(1, 0, List.of("a", "b", "c", "d", "e"), 2);
+        assertEquals(3, snapshot.pages());
+        assertEquals("OnlineList: 3. c--4. d--showing 3-4 of 5, '/onlineList <page>' for the others\n",
+                text(snapshot.page(WireCodec.TEXT, 2)));
+        assertEquals("OnlineList: 5. e--showing 5-5 of 5, '/onlineList <page>' for the others\n",
+                text(snapshot.page(WireCodec.TEXT, 3)));
+    }
+
+    public void testBinaryPageCarriesItsPosition() {
+        RosterSnapshot snapshot = new RosterSnapshot(1, 0, List.of("a", "b", "c"), 2);
+        ByteBuffer shared = snapshot.page(WireCodec.BINARY, 2);
+        //the shared frame is read-only, getString() needs the array
+        ByteBuffer frame = ByteBuffer.allocate(shared.remaining()).put(shared).flip();
+        frame.position(BinaryProtocol.LENGTH_FIELD + 1);
+        assertEquals(1, frame.getInt());
+        assertEquals("c", BinaryProtocol.getString(frame));
+        assertEquals(3, frame.getInt());
+        assertEquals(3, frame.getInt());
+        assertFalse(frame.hasRemaining());
+    }
+
+    public void testFramesAreEncodedOnceAndShared() {
+        RosterSnapshot snapshot = new RosterSnapshot(1, 0, List.of("alice"), 100);
+        ByteBuffer first = snapshot.page(WireCodec.TEXT, 1);
+        first.get();
+        ByteBuffer second = snapshot.page(WireCodec.TEXT, 1);
+        assertEquals(0, second.position());
+        assertTrue(second.isReadOnly());
+        assertEquals(first.capacity(), second.capacity());
+    }
+}
@@ -0,0 +1,27 @@
+package server;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class ThreadUsageReporterTest extends TestCase {
+
+    public void testCarriersAreCountedWhileVirtualThreadsRun() throws InterruptedException {
+        try (ThreadUsageReporter reporter = new ThreadUsageReporter(3600, false)) {
+            CountDownLatch started = new CountDownLatch(1);
+            CountDownLatch done = new CountDownLatch(1);
+            Thread.ofVirtual().start(() -> {
+                started.countDown();
+                try {
+                    done.await();
+                } catch (InterruptedException e) {
+                    //ending anyway
+                }
+            });
+            assertTrue(started.await(2, TimeUnit.SECONDS));
+            assertTrue(reporter.carrierThreads() >= 1);
+            done.countDown();
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package server;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.TimeUnit;
+
+public class TokenBucketTest extends TestCase {
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    public void testBurstThenRate() {
+        TokenBucket bucket = new TokenBucket(2, 3, 0);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0, bucket.delayNanos(1, 0));
+            bucket.take(1);
+        }
+        assertEquals(SECOND / 2, bucket.delayNanos(1, 0));
+        assertEquals(SECOND / 4, bucket.delayNanos(1, SECOND / 4));
+        assertEquals(0, bucket.delayNanos(1, SECOND / 2));
+    }
+
+    public void testRefillStopsAtTheBurst() {
+        TokenBucket bucket = new TokenBucket(10, 5, 0);
+        bucket.take(5);
+        //quiet for a minute, still only 5 at once
+        assertEquals(0, bucket.delayNanos(5, 60 * SECOND));
+        bucket.take(5);
+        assertEquals(SECOND / 10, bucket.delayNanos(1, 60 * SECOND));
+    }
+
+    public void testAmountAboveTheBurstWaitsForAFullBucket() {
+        TokenBucket bucket = new TokenBucket(100, 100, 0);
+        assertEquals(0, bucket.delayNanos(1000, 0));
+        bucket.take(1000);
+        assertEquals(SECOND, bucket.delayNanos(1000, 0));
+        assertEquals(0, bucket.delayNanos(1000, SECOND));
+    }
+
+    public void testClockGoingBackDoesNotRefill() {
+        TokenBucket bucket = new TokenBucket(1, 1, SECOND);
+        bucket.take(1);
+        assertEquals(SECOND, bucket.delayNanos(1, 0));
+    }
+}
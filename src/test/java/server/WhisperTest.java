@@ -0,0 +1,71 @@
+package server;
+
+import utils.BinaryProtocol;
+import utils.RequestType;
+
+import java.util.List;
+
+/**
+ * drives handlers without sockets over the line protocol, and reads the lines they would write from their outbound queues
+ */
+public class WhisperTest extends HandlerTestSupport {
+
+    @Override
+    protected void configure(ServerConfig config) {
+        config.resumeWindowSeconds = 5;
+    }
+
+    public void testOnlyTheRecipientGetsIt() {
+        ChatServer.ConnectionHandler alice = register("/newClient alice");
+        ChatServer.ConnectionHandler bob = register("/newClient bob");
+        ChatServer.ConnectionHandler carol = register("/newClient carol");
+        lines(alice);
+        lines(bob);
+
+        alice.handlePayLoad("/whisper bob  see you at 10:30 ");
+        assertEquals(List.of("Whisper: alice: " + alice.usernameColor + ": see you at 10:30"), lines(bob));
+        assertEquals(List.of(), lines(alice));
+        assertEquals(List.of(), lines(carol));
+        assertEquals(1, server.metrics.whispers.sum());
+        assertEquals(0, server.metrics.messagesIn.sum());
+    }
+
+    public void testOfflineRecipientIsAnErrorRightAway() {
+        ChatServer.ConnectionHandler alice = register("/newClient alice");
+        alice.handlePayLoad("/whisper nobody hi");
+        assertEquals(List.of("Error: nobody is not online"), lines(alice));
+        assertEquals(0, server.metrics.whispers.sum());
+    }
+
+    public void testParkedSessionCountsAsOffline() {
+        ChatServer.ConnectionHandler alice = register("/newClient alice");
+        ChatServer.ConnectionHandler bob = connectBinary();
+        request(bob, RequestType.NEW_CLIENT, "bob", BinaryProtocol.RESUME);
+        bob.abort();
+        assertTrue(bob.isParked());
+        lines(alice);
+
+        alice.handlePayLoad("/whisper bob hi");
+        assertEquals(List.of("Error: bob is not online"), lines(alice));
+    }
+
+    public void testUsage() {
+        ChatServer.ConnectionHandler alice = register("/newClient alice");
+        alice.handlePayLoad("/whisper bob");
+        alice.handlePayLoad("/whisper");
+        alice.handlePayLoad("/whisper alice hi");
+        assertEquals(List.of("Error: Usage: /whisper <username> <message>", "Error: Usage: /whisper <username> <message>",
+                "Error: You can't whisper to yourself"), lines(alice));
+    }
+
+    public void testRateLimited() {
+        config.messageBurst = 1;
+        config.messageRate = 0.001;
+        ChatServer.ConnectionHandler alice = register("/newClient alice");
+        ChatServer.ConnectionHandler bob = register("/newClient bob");
+        alice.handlePayLoad("/whisper bob one");
+        alice.handlePayLoad("/whisper bob two");
+        assertEquals(1, lines(bob).size());
+        assertEquals(1, server.metrics.throttledMessages.sum());
+    }
+}
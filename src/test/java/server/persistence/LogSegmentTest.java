@@ -0,0 +1,219 @@
+package server.persistence;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+public class LogSegmentTest extends TestCase {
+    private Path directory;
+
+    @Override
+    protected void setUp() throws IOException {
+        directory = Files.createTempDirectory("log-segment-test");
+    }
+
+    @Override
+    protected void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    private static void append(LogSegment segment, long... sequences) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        int[] offsets = new int[sequences.length];
+        for (int i = 0; i < sequences.length; i++) {
+            offsets[i] = buffer.position();
+            LogRecord record = new LogRecord(sequences[i], 1000 + sequences[i], "lobby", "alice", 1, "message " + sequences[i]);
+            byte[] room = record.room.getBytes(StandardCharsets.UTF_8);
+            byte[] username = record.username.getBytes(StandardCharsets.UTF_8);
+            byte[] text = record.text.getBytes(StandardCharsets.UTF_8);
+            LogSegment.encode(record, room, username, text, buffer);
+        }
+        segment.append(buffer.flip(), sequences, offsets, sequences.length, 1000);
+    }
+
+    private static List<Long> sequences(LogSegment segment) throws IOException {
+        List<LogRecord> records = new ArrayList<>();
+        segment.read(0, Integer.MAX_VALUE, records);
+        return records.stream().map(record -> record.sequence).toList();
+    }
+
+    public void testFailedWriteLeavesNoTornRecordBehind() throws IOException {
+        LogSegment segment = LogSegment.create(directory, 0);
+        append(segment, 0, 1);
+
+        FileChannel channel = segment.writeChannel;
+        segment.writeChannel = new FailingChannel(channel, 10);
+        try {
+            append(segment, 2, 3);
+            fail("the write should have failed");
+        } catch (IOException expected) {
+            //the records 2 and 3 are lost
+        }
+        segment.writeChannel = channel;
+        assertEquals(List.of(0L, 1L), sequences(segment));
+
+        //the next batch keeps its sequences, the log skips the lost ones
+        append(segment, 4);
+        assertEquals(List.of(0L, 1L, 4L), sequences(segment));
+        segment.close();
+
+        segment = LogSegment.open(LogSegment.pathOf(directory, 0));
+        assertEquals(0, segment.recoverForAppend());
+        assertEquals(List.of(0L, 1L, 4L), sequences(segment));
+        assertEquals(5, segment.nextSequence());
+        segment.close();
+    }
+
+    public void testFailedWriteWhichCanNotBeCutIsOverwritten() throws IOException {
+        LogSegment segment = LogSegment.create(directory, 0);
+        append(segment, 0);
+
+        FileChannel channel = segment.writeChannel;
+        FailingChannel failing = new FailingChannel(channel, 30);
+        failing.failTruncate = true;
+        segment.writeChannel = failing;
+        try {
+            append(segment, 1, 2);
+            fail("the write should have failed");
+        } catch (IOException expected) {
+            assertEquals(1, expected.getSuppressed().length);
+        }
+        segment.writeChannel = channel;
+        append(segment, 3);
+        segment.close();
+
+        segment = LogSegment.open(LogSegment.pathOf(directory, 0));
+        segment.recoverForAppend();
+        assertEquals(List.of(0L, 3L), sequences(segment));
+        segment.close();
+    }
+
+    /**
+     * writes the first bytes it is given, then fails like a full disk
+     */
+    private static class FailingChannel extends FileChannel {
+        private final FileChannel delegate;
+        private int bytesLeft;
+        boolean failTruncate = false;
+
+        FailingChannel(FileChannel delegate, int bytesLeft) {
+            this.delegate = delegate;
+            this.bytesLeft = bytesLeft;
+        }
+
+        @Override
+        public int write(ByteBuffer src, long position) throws IOException {
+            if (bytesLeft == 0) {
+                throw new IOException("No space left on device");
+            }
+            ByteBuffer part = src.duplicate();
+            part.limit(part.position() + Math.min(part.remaining(), bytesLeft));
+            int written = delegate.write(part, position);
+            src.position(src.position() + written);
+            bytesLeft -= written;
+            return written;
+        }
+
+        @Override
+        public FileChannel truncate(long size) throws IOException {
+            if (failTruncate) {
+                throw new IOException("Input/output error");
+            }
+            delegate.truncate(size);
+            return this;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            return delegate.read(dst);
+        }
+
+        @Override
+        public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+            return delegate.read(dsts, offset, length);
+        }
+
+        @Override
+        public int read(ByteBuffer dst, long position) throws IOException {
+            return delegate.read(dst, position);
+        }
+
+        @Override
+        public long position() throws IOException {
+            return delegate.position();
+        }
+
+        @Override
+        public FileChannel position(long newPosition) throws IOException {
+            delegate.position(newPosition);
+            return this;
+        }
+
+        @Override
+        public long size() throws IOException {
+            return delegate.size();
+        }
+
+        @Override
+        public void force(boolean metaData) throws IOException {
+            delegate.force(metaData);
+        }
+
+        @Override
+        public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+            return delegate.transferTo(position, count, target);
+        }
+
+        @Override
+        public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+            return delegate.transferFrom(src, position, count);
+        }
+
+        @Override
+        public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+            return delegate.map(mode, position, size);
+        }
+
+        @Override
+        public FileLock lock(long position, long size, boolean shared) throws IOException {
+            return delegate.lock(position, size, shared);
+        }
+
+        @Override
+        public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+            return delegate.tryLock(position, size, shared);
+        }
+
+        @Override
+        protected void implCloseChannel() throws IOException {
+            delegate.close();
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package server.persistence;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+public class MessageLogTest extends TestCase {
+    private Path directory;
+
+    @Override
+    protected void setUp() throws IOException {
+        directory = Files.createTempDirectory("message-log-test");
+    }
+
+    @Override
+    protected void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    private MessageLog open(long segmentBytes, long retentionBytes) throws IOException {
+        return new MessageLog(directory, FsyncPolicy.ALWAYS, 1000, segmentBytes, retentionBytes, 0);
+    }
+
+    private List<Path> segmentFiles() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.sorted().toList();
+        }
+    }
+
+    public void testMessagesSurviveARestart() throws IOException {
+        MessageLog log = open(1024 * 1024, 0);
+        assertEquals(0, log.append("lobby", "alice", 3, "hello").sequence);
+        assertEquals(1, log.append("lobby", "bob", 4, "hi: there").sequence);
+        log.close();
+
+        log = open(1024 * 1024, 0);
+        assertEquals(2, log.nextSequence());
+        List<LogRecord> records = log.read(0, 10);
+        assertEquals(2, records.size());
+        assertEquals("alice", records.get(0).username);
+        assertEquals(3, records.get(0).usernameColor);
+        assertEquals("hi: there", records.get(1).text);
+        assertEquals(1, records.get(1).sequence);
+        log.close();
+    }
+
+    public void testSegmentsRollAndReadAcrossThem() throws IOException {
+        MessageLog log = open(200, 0);
+        for (int i = 0; i < 50; i++) {
+            log.append("lobby", "user", 1, "message " + i);
+        }
+        log.close();
+
+        log = open(200, 0);
+        assertTrue(log.segmentCount() > 1);
+        List<LogRecord> records = log.read(17, 20);
+        assertEquals(20, records.size());
+        assertEquals("message 17", records.get(0).text);
+        assertEquals("message 36", records.get(19).text);
+
+        List<LogRecord> before = log.readBefore(50, 5);
+        assertEquals(5, before.size());
+        assertEquals(45, before.get(0).sequence);
+        assertEquals(49, before.get(4).sequence);
+        log.close();
+    }
+
+    public void testReadsFollowTheActiveSegmentPastItsMapping() throws IOException, InterruptedException {
+        MessageLog log = open(1024 * 1024, 0);
+        int total = 3000;
+        int seen = 0;
+        for (int i = 0; i < total; i++) {
+            log.append("lobby", "user", 1, "message " + i + " " + "x".repeat(40));
+            //every record written so far is there, whether it is in the mapping or after it
+            List<LogRecord> records = log.read(seen, Integer.MAX_VALUE);
+            for (int j = 0; j < records.size(); j++) {
+                assertEquals(seen + j, records.get(j).sequence);
+            }
+            seen += records.size();
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        while (log.read(0, Integer.MAX_VALUE).size() < total && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        List<LogRecord> records = log.read(2990, 100);
+        assertEquals(10, records.size());
+        assertTrue(records.get(9).text.startsWith("message 2999 "));
+        log.close();
+    }
+
+    public void testTornTailIsTruncatedOnRecovery() throws IOException {
+        MessageLog log = open(1024 * 1024, 0);
+        log.append("lobby", "alice", 1, "first");
+        log.append("lobby", "alice", 1, "second");
+        log.close();
+
+        Path segment = segmentFiles().get(0);
+        long intact = Files.size(segment);
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            //the second record loses its last bytes, as if the machine crashed in the middle of the write
+            channel.truncate(intact - 3);
+        }
+
+        log = open(1024 * 1024, 0);
+        List<LogRecord> records = log.read(0, 10);
+        assertEquals(1, records.size());
+        assertEquals("first", records.get(0).text);
+        assertEquals(1, log.append("lobby", "alice", 1, "second again").sequence);
+        log.close();
+
+        log = open(1024 * 1024, 0);
+        assertEquals("second again", log.read(1, 1).get(0).text);
+        log.close();
+    }
+
+    public void testRetentionDeletesTheOldestSegments() throws IOException {
+        MessageLog log = open(200, 600);
+        for (int i = 0; i < 100; i++) {
+            log.append("lobby", "user", 1, "message " + i);
+        }
+        log.close();
+
+        List<Path> files = segmentFiles();
+        assertFalse(files.get(0).getFileName().toString().startsWith("00000000000000000000"));
+        long total = 0;
+        for (Path file : files) {
+            total += Files.size(file);
+        }
+        assertTrue(total <= 600 + 200);
+
+        log = open(200, 600);
+        assertEquals(100, log.nextSequence());
+        assertEquals("message 99", log.readBefore(100, 1).get(0).text);
+        log.close();
+    }
+
+    public void testReadBeforeOfOneRoomSkipsTheOtherRooms() throws IOException {
+        MessageLog log = open(1024 * 1024, 0);
+        for (int i = 0; i < 20; i++) {
+            log.append(i % 4 == 0 ? "dev" : "lobby", "user", 1, "message " + i);
+        }
+        log.close();
+
+        log = open(1024 * 1024, 0);
+        List<LogRecord> records = log.readBefore(16, 3, "dev");
+        assertEquals(3, records.size());
+        assertEquals("message 4", records.get(0).text);
+        assertEquals("message 12", records.get(2).text);
+        assertEquals("dev", records.get(2).room);
+        log.close();
+    }
+}
@@ -0,0 +1,70 @@
+package utils;
+
+import junit.framework.TestCase;
+import org.jline.utils.AttributedString;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class ColorPrintTest extends TestCase {
+    private final List<String> lines = new ArrayList<>();
+
+    //the visible text of the printed lines, without the escape sequences
+    private List<String> plain() {
+        List<String> plain = new ArrayList<>();
+        for (String line : lines) {
+            plain.add(AttributedString.fromAnsi(line).toString());
+        }
+        return plain;
+    }
+
+    public void testShortMessageIsOneLine() {
+        ColorPrint.printUserMessage(lines::add, "alice", CustomColors.BRIGHT_GREEN, "hello");
+        assertEquals(List.of("alice     :  hello ", " "), plain());
+    }
+
+    public void testWhispersAreMarkedInBothDirections() {
+        ColorPrint.printWhisper(lines::add, "alice", CustomColors.BRIGHT_GREEN, "psst");
+        ColorPrint.printMyWhisper(lines::add, "bob", "hi");
+        assertEquals(List.of("alice     ~  psst ", " ", " ".repeat(64) + " ~ bob: hi ", " "), plain());
+        //styled apart from the messages of the room
+        lines.clear();
+        ColorPrint.printUserMessage(lines::add, "alice", CustomColors.BRIGHT_GREEN, "psst");
+        String message = lines.get(0);
+        lines.clear();
+        ColorPrint.printWhisper(lines::add, "alice", CustomColors.BRIGHT_GREEN, "psst");
+        assertFalse(message.equals(lines.get(0)));
+    }
+
+    public void testLongMessageIsWrappedToEvenLines() {
+        ColorPrint.printMyMessage(lines::add, "one two three four five six seven eight nine ten eleven twelve");
+        List<String> plain = plain();
+        assertEquals(3, plain.size());
+        assertEquals(75, plain.get(0).length());
+        assertEquals(75, plain.get(1).length());
+        assertEquals(" ", plain.get(2));
+        assertEquals("one two three four five six seven", plain.get(0).trim());
+        assertEquals("eight nine ten eleven twelve", plain.get(1).trim());
+    }
+
+    public void testWordLongerThanALineIsCut() {
+        ColorPrint.printUserMessage(lines::add, "bob", CustomColors.BRIGHT_GREEN, "hi " + "a".repeat(100) + " bye");
+        int letters = 0;
+        for (String line : plain()) {
+            assertTrue(line, line.length() <= 75);
+            letters += line.length() - line.replace("a", "").length();
+        }
+        assertEquals(100, letters);
+        assertTrue(plain().get(0).contains(" hi "));
+        assertTrue(plain().get(lines.size() - 2).contains(" bye "));
+    }
+
+    public void testBoxWiderThanTheLine() {
+        String message = "x".repeat(100);
+        ColorPrint.printAtCenterWithBox(lines::add, message, CustomColors.BRIGHT_GREEN);
+        List<String> plain = plain();
+        assertEquals(3, plain.size());
+        assertEquals("-".repeat(104), plain.get(0));
+        assertEquals("| " + message + " |", plain.get(1));
+    }
+}